@@ -0,0 +1,173 @@
+package com.example.android.books.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded benchmark comparing small concurrent writes that each commit on their own with
+ * the same writes going through the group commit of {@link BookWriteScheduler}. It runs on a
+ * device, because the point is the cost of a real commit and fsync on flash storage.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BookWriteSchedulerBenchmark {
+
+    private static final String LOG_TAG = BookWriteSchedulerBenchmark.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "bookStoreBenchmark.db";
+
+    /**
+     * Number of concurrent writer threads to measure
+     */
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    /**
+     * Number of single-row inserts each writer thread does per run
+     */
+    private static final int WRITES_PER_THREAD = 200;
+
+    private Context mContext;
+    private BookDbHelper mDbHelper;
+
+    /**
+     * A way of inserting one book
+     */
+    private interface Writer {
+        void insert(ContentValues values);
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new BookDbHelper(mContext, DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void groupCommitScalesWithConcurrentWriters() throws Exception {
+        final SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        final BookWriteScheduler scheduler = new BookWriteScheduler(mDbHelper);
+
+        Writer direct = new Writer() {
+            @Override
+            public void insert(ContentValues values) {
+                // One implicit transaction, and so one commit, per insert
+                database.insertOrThrow(BookEntry.TABLE_NAME, null, values);
+            }
+        };
+        Writer grouped = new Writer() {
+            @Override
+            public void insert(final ContentValues values) {
+                scheduler.execute(new BookWriteScheduler.Write<Long>() {
+                    @Override
+                    public Long apply(SQLiteDatabase database) {
+                        return database.insertOrThrow(BookEntry.TABLE_NAME, null, values);
+                    }
+                });
+            }
+        };
+
+        long expectedRows = 0;
+        double lastDirect = 0;
+        double lastGrouped = 0;
+        for (int threads : THREAD_COUNTS) {
+            lastDirect = writesPerSecond(threads, direct);
+
+            long writesBefore = scheduler.getWriteCount();
+            long commitsBefore = scheduler.getCommitCount();
+            lastGrouped = writesPerSecond(threads, grouped);
+            double batchSize = (double) (scheduler.getWriteCount() - writesBefore)
+                    / (scheduler.getCommitCount() - commitsBefore);
+
+            expectedRows += 2L * threads * WRITES_PER_THREAD;
+            Log.i(LOG_TAG, String.format("threads=%d direct=%.0f writes/s grouped=%.0f writes/s"
+                    + " average group size=%.1f", threads, lastDirect, lastGrouped, batchSize));
+
+            if (threads > 1) {
+                // Concurrent writers must actually share commits
+                assertTrue("writes weren't grouped with " + threads + " threads", batchSize > 1);
+            }
+        }
+
+        // Under the heaviest load sharing commits should pay off. Throughput depends on the
+        // device and on whatever else it is doing, so it is reported rather than asserted.
+        Log.i(LOG_TAG, String.format("heaviest load: grouped/direct=%.2f",
+                lastGrouped / lastDirect));
+
+        // No write may get lost on the way
+        assertEquals(expectedRows, DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME));
+    }
+
+    /**
+     * Let the given number of threads insert {@link #WRITES_PER_THREAD} books each, all starting
+     * at the same time, and return the overall throughput.
+     */
+    private static double writesPerSecond(final int threads, final Writer writer)
+            throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                            writer.insert(book(thread, i));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.await();
+        long startNanos = System.nanoTime();
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        return threads * WRITES_PER_THREAD * 1e9 / elapsedNanos;
+    }
+
+    private static ContentValues book(int thread, int i) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, "Book " + thread + "-" + i);
+        values.put(BookEntry.COLUMN_BOOK_CATEGORY, "benchmark");
+        values.put(BookEntry.COLUMN_BOOK_PRICE, i % 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1 + i % 20);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + thread);
+        values.put(BookEntry.COLUMN_SUPPLIER_NUMBER, 20458900);
+        return values;
+    }
+}
@@ -7,6 +7,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.content.ContentResolver;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
@@ -15,19 +16,68 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.android.books.data.BookConflictException;
+import com.example.android.books.data.BookContract;
 import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
 import com.example.android.books.data.BookDbHelper;
+import com.example.android.books.data.BookTrace;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * {@link BookCursorAdapter} is an adapter for a list or grid view
  * that uses a {@link Cursor} of book data as its data source. This adapter knows
  * how to create list items for each row of book data in the {@link Cursor}.
+ * <p>
+ * It also indexes the list by first letter for fast scrolling, using the sections
+ * {@link CatalogLoader} computes along with the list, so jumping to a letter never walks
+ * the cursor.
  */
-public class BookCursorAdapter extends CursorAdapter {
+public class BookCursorAdapter extends CursorAdapter implements SectionIndexer {
+
+    /**
+     * How many times a sale is retried when another writer changed the book at the same time
+     */
+    private static final int MAX_SALE_ATTEMPTS = 3;
+
+    /**
+     * Loads the book covers off the main thread
+     */
+    private final CoverLoader mCoverLoader;
+
+    /**
+     * Size of the cover in a list item, in pixels
+     */
+    private final int mCoverSizePx;
+
+    /**
+     * Names of the alphabetical sections of the current cursor (empty if it has none)
+     */
+    private String[] mSections = new String[0];
+
+    /**
+     * Position of the first row of every section
+     */
+    private int[] mSectionPositions = new int[0];
+
+    /**
+     * Correlation ids of the traced taps whose row hasn't been bound with the change yet, by
+     * book id. Only used on the main thread.
+     */
+    private final Map<Long, Long> mTracedTaps = new HashMap<>();
 
+    /**
+     * Correlation id of the latest change the current cursor shows, see {@link BookTrace}
+     */
+    private long mCursorCorrelationId;
 
     /**
      * Constructs a new {@link BookCursorAdapter}.
@@ -37,6 +87,8 @@ public class BookCursorAdapter extends CursorAdapter {
      */
     public BookCursorAdapter(Context context, Cursor c) {
         super(context, c, 0 /* flags */);
+        mCoverLoader = CoverLoader.get(context);
+        mCoverSizePx = context.getResources().getDimensionPixelSize(R.dimen.cover_size);
     }
 
     @Override
@@ -44,6 +96,64 @@ public class BookCursorAdapter extends CursorAdapter {
         return super.getItemId(position);
     }
 
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        Bundle extras = newCursor == null ? null : newCursor.getExtras();
+        String[] sections = extras == null ? null
+                : extras.getStringArray(CatalogLoader.EXTRA_SECTIONS);
+        int[] positions = extras == null ? null
+                : extras.getIntArray(CatalogLoader.EXTRA_SECTION_POSITIONS);
+        if (sections == null || positions == null) {
+            sections = new String[0];
+            positions = new int[0];
+        }
+        mSections = sections;
+        mSectionPositions = positions;
+        mCursorCorrelationId = extras == null ? 0
+                : extras.getLong(CatalogLoader.EXTRA_CORRELATION_ID);
+
+        long span = BookTrace.begin("adapter.swapCursor", mCursorCorrelationId);
+        try {
+            return super.swapCursor(newCursor);
+        } finally {
+            BookTrace.end(span);
+        }
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        if (mSectionPositions.length == 0) {
+            return 0;
+        }
+        sectionIndex = Math.max(0, Math.min(sectionIndex, mSectionPositions.length - 1));
+        // The list may have changed slightly since the sections were computed
+        return Math.min(mSectionPositions[sectionIndex], Math.max(getCount() - 1, 0));
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (mSectionPositions.length == 0) {
+            return 0;
+        }
+        // Last section starting at or before the position
+        int index = Arrays.binarySearch(mSectionPositions, position);
+        if (index < 0) {
+            index = -index - 2;
+        } else {
+            // Sections can't be empty, but be safe with equal positions
+            while (index + 1 < mSectionPositions.length
+                    && mSectionPositions[index + 1] == position) {
+                index++;
+            }
+        }
+        return Math.max(index, 0);
+    }
+
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
      *
@@ -71,12 +181,31 @@ public class BookCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
+        // The first binding of a tapped book with a cursor that has its change ends the trace
+        long span = BookTrace.NO_SPAN;
+        if (!mTracedTaps.isEmpty()) {
+            long id = cursor.getLong(cursor.getColumnIndex(BookEntry._ID));
+            Long correlationId = mTracedTaps.get(id);
+            if (correlationId != null && correlationId <= mCursorCorrelationId) {
+                mTracedTaps.remove(id);
+                span = BookTrace.begin("adapter.bindView", correlationId);
+            }
+        }
+        try {
+            bindBook(view, context, cursor);
+        } finally {
+            BookTrace.end(span);
+        }
+    }
+
+    private void bindBook(View view, Context context, Cursor cursor) {
         // Find individual views that we want to modify in the list item layout
         TextView nameTextView = view.findViewById(R.id.name);
         TextView summaryTextView = view.findViewById(R.id.summary);
         TextView priceTextView = view.findViewById(R.id.price);
         TextView quantityTextView = view.findViewById(R.id.quantity);
         ImageButton reduceTextView = view.findViewById(R.id.reduce);
+        ImageView coverImageView = view.findViewById(R.id.cover);
 
         // Find the columns of book attributes that we're interested in
         //final int idColumnIndex = cursor.getColumnIndex(BookEntry._ID);
@@ -85,6 +214,7 @@ public class BookCursorAdapter extends CursorAdapter {
         int categoryColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_CATEGORY);
         int priceColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_PRICE);
         int quantityColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_QUANTITY);
+        int versionColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_VERSION);
 
         // Read the book attributes from the Cursor for the current book
         String nameString = cursor.getString(nameColumnIndex);
@@ -92,6 +222,8 @@ public class BookCursorAdapter extends CursorAdapter {
         String priceString = Integer.toString(cursor.getInt(priceColumnIndex));
         final String quantityString = Integer.toString(cursor.getInt(quantityColumnIndex));
         final int bookId = cursor.getInt(idColumnIndex);
+        // -1 if the version isn't known, then it's read before selling
+        final long version = versionColumnIndex == -1 ? -1 : cursor.getLong(versionColumnIndex);
 
         // If the book category is empty string or null, then use some default text
         // that says "Unknown category", so the TextView isn't blank.
@@ -105,23 +237,92 @@ public class BookCursorAdapter extends CursorAdapter {
         priceTextView.setText(priceString);
         quantityTextView.setText(quantityString);
 
+        // Show the cover once it's decoded, this also cancels the load for the book
+        // this recycled view showed before
+        mCoverLoader.load(bookId, coverImageView, mCoverSizePx, R.drawable.ic_empty_shelf);
+
         reduceTextView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                int quantity = Integer.parseInt(quantityString);
-                if (quantity >= 2) {
-                    quantity -= 1;
-                    Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId);
-                    ContentValues values = new ContentValues();
-                    values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity);
-                    String selection = BookEntry._ID + "=?";
-                    String[] selectionArgs = new String[]{String.valueOf(bookId)};
+                long correlationId = BookTrace.newCorrelationId();
+                long span = BookTrace.begin("stock.tap", correlationId);
+                try {
+                    int quantity = Integer.parseInt(quantityString);
+                    boolean sold;
+                    try {
+                        sold = sellOne(view.getContext().getContentResolver(), bookId, quantity,
+                                version);
+                    } catch (IllegalArgumentException e) {
+                        // The copies left are at the locations, like in the editor
+                        Toast.makeText(view.getContext(), R.string.editor_quantity_at_locations,
+                                Toast.LENGTH_SHORT).show();
+                        sold = false;
+                    }
+                    if (sold && span != BookTrace.NO_SPAN) {
+                        // The reload showing the sale happens later on this thread
+                        mTracedTaps.put((long) bookId, correlationId);
+                    }
+                } finally {
+                    BookTrace.end(span);
+                }
+            }
+        });
 
-                    int rowsAffected = view.getContext().getContentResolver().update(uri, values, selection, selectionArgs);
+    }
 
+    /**
+     * Decrease the quantity of the given book by one. The update only succeeds if the book is
+     * still at the version it had when it was shown, so a sale from another till in the meantime
+     * isn't overwritten. On a conflict the book is read again and the sale retried.
+     *
+     * @param quantity the quantity the book had when it was shown
+     * @param version  the version the book had when it was shown, or -1 if unknown
+     * @return whether the book was sold
+     * @throws IllegalArgumentException if the copy would be taken from the stock the book has
+     *                                  at its locations
+     */
+    private static boolean sellOne(ContentResolver resolver, long bookId, int quantity, long version) {
+        Uri bookUri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, bookId);
+        for (int attempt = 0; attempt < MAX_SALE_ATTEMPTS; attempt++) {
+            if (version < 0) {
+                // Read the current quantity and version of the book
+                Cursor cursor = resolver.query(bookUri, new String[]{
+                        BookEntry.COLUMN_BOOK_QUANTITY, BookEntry.COLUMN_BOOK_VERSION},
+                        null, null, null);
+                if (cursor == null) {
+                    return false;
+                }
+                try {
+                    if (!cursor.moveToFirst()) {
+                        // The book has been deleted
+                        return false;
+                    }
+                    quantity = cursor.getInt(0);
+                    version = cursor.getLong(1);
+                } finally {
+                    cursor.close();
                 }
             }
-        });
 
+            // Keep at least one book on the shelf
+            if (quantity < 2) {
+                return false;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity - 1);
+            try {
+                Uri saleUri = BookEntry.buildConditionalUri(bookId, version).buildUpon()
+                        .appendQueryParameter(BookContract.PARAM_STOCK_REASON,
+                                StockMovementEntry.REASON_SALE)
+                        .build();
+                resolver.update(saleUri, values, null, null);
+                return true;
+            } catch (BookConflictException e) {
+                // Someone else changed the book, read it again and retry
+                version = -1;
+            }
+        }
+        return false;
     }
 }
@@ -2,28 +2,44 @@ package com.example.android.books;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.InputType;
+import android.text.TextUtils;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.inputmethod.EditorInfo;
 import android.widget.AdapterView;
+import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import com.example.android.books.data.BookContract;
 import com.example.android.books.data.BookContract.BookEntry;
 import com.example.android.books.data.BookDbHelper;
+import com.example.android.books.data.CatalogSnapshot;
 
 /**
  * Displays list of books that were entered and stored in the app.
@@ -35,6 +51,34 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
      */
     private static final int BOOK_LOADER = 0;
 
+    /**
+     * Request code used when picking a supplier price feed
+     */
+    private static final int PICK_PRICE_FEED_REQUEST = 1;
+
+    /**
+     * Request codes used when picking where to write a backup, and which backup to restore
+     */
+    private static final int CREATE_BACKUP_REQUEST = 2;
+    private static final int PICK_BACKUP_REQUEST = 3;
+
+    /**
+     * Sizes of the test catalogs offered in debug builds, in the order of
+     * R.array.generate_catalog_sizes
+     */
+    private static final int[] GENERATE_CATALOG_SIZES = {1000, 10000, 100000, 1000000};
+
+    /**
+     * Identifier for the loader of the in-memory catalog columns, used once the user sorts or
+     * filters the list
+     */
+    private static final int COLUMNS_LOADER = 1;
+
+    private static final String STATE_USING_COLUMNS = "using_columns";
+    private static final String STATE_SORT_ORDER = "sort_order";
+    private static final String STATE_MIN_PRICE = "min_price";
+    private static final String STATE_MAX_PRICE = "max_price";
+
     ListView bookListView ;
 
     /**
@@ -42,11 +86,81 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
      */
     BookCursorAdapter mCursorAdapter;
 
+    /**
+     * Cursor over the catalog snapshot shown until the loader delivers (null if none is shown)
+     */
+    private Cursor mSnapshotCursor;
+
+    /**
+     * True while the user has the list sorted or filtered. The list then shows the in-memory
+     * {@link CatalogColumns} instead of the cursor of the {@link CatalogLoader}.
+     */
+    private boolean mUsingColumns;
+
+    /**
+     * Sort order and price range picked by the user, see {@link CatalogColumns#select}
+     */
+    private int mSortOrder = CatalogColumns.SORT_BY_NAME;
+    private int mMinPrice = CatalogColumns.NO_MIN_PRICE;
+    private int mMaxPrice = CatalogColumns.NO_MAX_PRICE;
+
+    /**
+     * The latest catalog columns (null until loaded) and the cursor showing the selected rows
+     */
+    private CatalogColumns mColumns;
+    private Cursor mColumnsCursor;
+
+    /**
+     * Loads the catalog columns, and refreshes them after every change of the books
+     */
+    private final LoaderManager.LoaderCallbacks<CatalogColumns> mColumnsCallbacks =
+            new LoaderManager.LoaderCallbacks<CatalogColumns>() {
+                @Override
+                public Loader<CatalogColumns> onCreateLoader(int id, Bundle args) {
+                    return new CatalogColumnsLoader(CatalogActivity.this);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<CatalogColumns> loader, CatalogColumns columns) {
+                    mColumns = columns;
+                    showColumns();
+                }
+
+                @Override
+                public void onLoaderReset(Loader<CatalogColumns> loader) {
+                    mColumns = null;
+                    mCursorAdapter.swapCursor(null);
+                    closeColumnsCursor();
+                }
+            };
+
+    /**
+     * Shows the progress of a background bulk delete
+     */
+    ProgressBar mBulkDeleteProgress;
+
+    /**
+     * Observes the progress of background bulk deletes started from this screen
+     */
+    private final ContentObserver mBulkDeleteObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            showBulkDeleteProgress();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
+        if (savedInstanceState != null) {
+            mUsingColumns = savedInstanceState.getBoolean(STATE_USING_COLUMNS);
+            mSortOrder = savedInstanceState.getInt(STATE_SORT_ORDER, CatalogColumns.SORT_BY_NAME);
+            mMinPrice = savedInstanceState.getInt(STATE_MIN_PRICE, CatalogColumns.NO_MIN_PRICE);
+            mMaxPrice = savedInstanceState.getInt(STATE_MAX_PRICE, CatalogColumns.NO_MAX_PRICE);
+        }
+
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -64,11 +178,26 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         View emptyView = findViewById(R.id.empty_view);
         bookListView.setEmptyView(emptyView);
 
+        mBulkDeleteProgress = findViewById(R.id.bulk_delete_progress);
+
         // Setup an Adapter to create a list item for each row of book data in the Cursor.
         // There is no book data yet (until the loader finishes) so pass in null for the Cursor.
         mCursorAdapter = new BookCursorAdapter(this, null);
         bookListView.setAdapter(mCursorAdapter);
 
+        // The adapter indexes the catalog by first letter, drag the scroll thumb to jump
+        bookListView.setFastScrollEnabled(true);
+
+        // Paint the list right away from the catalog snapshot the provider keeps, if it's
+        // up to date. The loader result replaces it as soon as it arrives. The snapshot is in
+        // the default order, so it's no use for a sorted or filtered list.
+        if (!mUsingColumns) {
+            mSnapshotCursor = CatalogSnapshot.open(this);
+            if (mSnapshotCursor != null) {
+                mCursorAdapter.swapCursor(mSnapshotCursor);
+            }
+        }
+
         // Setup the item click listener
         bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
@@ -86,12 +215,56 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 // Set the URI on the data field of the intent
                 intent.setData(currentBookUri);
 
+                // The adapter's cursor is already positioned on the clicked row, so hand the
+                // editor a snapshot of it. This lets the editor fill its fields right away
+                // instead of waiting for its own loader to query the same row again. The
+                // catalog columns only hold what the list shows, so they are no use here.
+                Cursor cursor = (Cursor) adapterView.getItemAtPosition(position);
+                if (cursor != null && !mUsingColumns) {
+                    intent.putExtra(EditorActivity.EXTRA_BOOK_SNAPSHOT,
+                            EditorActivity.snapshotFromCursor(cursor));
+                }
+
                 // Launch the {@link EditorActivity} to display the data for the current book.
                 startActivity(intent);
             }
         });
         // Kick off the loader
-        getLoaderManager().initLoader(BOOK_LOADER, null, this);
+        if (mUsingColumns) {
+            getLoaderManager().initLoader(COLUMNS_LOADER, null, mColumnsCallbacks);
+        } else {
+            getLoaderManager().initLoader(BOOK_LOADER, null, this);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_USING_COLUMNS, mUsingColumns);
+        outState.putInt(STATE_SORT_ORDER, mSortOrder);
+        outState.putInt(STATE_MIN_PRICE, mMinPrice);
+        outState.putInt(STATE_MAX_PRICE, mMaxPrice);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        closeColumnsCursor();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        getContentResolver().registerContentObserver(BookContract.BULK_DELETE_URI, false,
+                mBulkDeleteObserver);
+        // A bulk delete may have made progress (or finished) while we weren't watching
+        showBulkDeleteProgress();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        getContentResolver().unregisterContentObserver(mBulkDeleteObserver);
     }
 
     /**
@@ -115,11 +288,395 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     }
 
     /**
-     * Helper method to delete all books in the database.
+     * Show a dialog to pick how many books of a synthetic test catalog to add. For debugging
+     * and performance work only.
+     */
+    private void showGenerateCatalogDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.generate_catalog_title);
+        builder.setItems(R.array.generate_catalog_sizes, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                generateCatalog(GENERATE_CATALOG_SIZES[which]);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Let the provider add a synthetic catalog of the given size on a background thread, then
+     * show how long it took. The list reloads by itself as the books come in.
+     */
+    private void generateCatalog(int books) {
+        final ContentResolver resolver = getContentResolver();
+        final Context context = getApplicationContext();
+        new AsyncTask<Integer, Void, Long>() {
+            @Override
+            protected Long doInBackground(Integer... books) {
+                long start = SystemClock.elapsedRealtime();
+                try {
+                    resolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_GENERATE_CATALOG,
+                            String.valueOf(books[0]), null);
+                } catch (RuntimeException e) {
+                    Log.e("CatalogActivity", "Failed to generate " + books[0] + " books", e);
+                    return null;
+                }
+                return SystemClock.elapsedRealtime() - start;
+            }
+
+            @Override
+            protected void onPostExecute(Long millis) {
+                if (millis == null) {
+                    Toast.makeText(context, R.string.generate_catalog_failed,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(context, context.getString(R.string.generate_catalog_done,
+                        millis), Toast.LENGTH_SHORT).show();
+            }
+        }.execute(books);
+    }
+
+    /**
+     * Helper method to delete all books in the database. The provider deletes them on a
+     * background thread in small chunks, so the list stays usable while it runs.
      */
     private void deleteAllBooks() {
-        int rowsDeleted = getContentResolver().delete(BookEntry.CONTENT_URI, null, null);
-        Log.v("CatalogActivity", rowsDeleted + " rows deleted from book database");
+        getContentResolver().call(BookEntry.CONTENT_URI, BookContract.METHOD_BULK_DELETE,
+                null, null);
+        Log.v("CatalogActivity", "Started deleting all books from book database");
+    }
+
+    /**
+     * Update the progress bar with the state of the current background bulk delete.
+     */
+    private void showBulkDeleteProgress() {
+        Bundle status = getContentResolver().call(BookEntry.CONTENT_URI,
+                BookContract.METHOD_BULK_DELETE_STATUS, null, null);
+        if (status == null || status.getBoolean(BookContract.EXTRA_FINISHED)) {
+            mBulkDeleteProgress.setVisibility(View.GONE);
+            return;
+        }
+
+        int total = status.getInt(BookContract.EXTRA_TOTAL);
+        mBulkDeleteProgress.setIndeterminate(total < 0);
+        mBulkDeleteProgress.setMax(Math.max(total, 0));
+        mBulkDeleteProgress.setProgress(status.getInt(BookContract.EXTRA_DELETED));
+        mBulkDeleteProgress.setVisibility(View.VISIBLE);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == PICK_PRICE_FEED_REQUEST && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            applyPriceFeed(data.getData());
+        } else if (requestCode == CREATE_BACKUP_REQUEST && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            backUpTo(data.getData());
+        } else if (requestCode == PICK_BACKUP_REQUEST && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            showRestoreConfirmationDialog(data.getData());
+        }
+    }
+
+    /**
+     * Let the provider write the backup on a background thread. The catalog stays usable
+     * meanwhile, the provider doesn't hold up reads or writes for it.
+     */
+    private void backUpTo(Uri backupUri) {
+        final ContentResolver resolver = getContentResolver();
+        final Context context = getApplicationContext();
+        new AsyncTask<Uri, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Uri... uris) {
+                try {
+                    return resolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_BACKUP,
+                            uris[0].toString(), null);
+                } catch (RuntimeException e) {
+                    Log.e("CatalogActivity", "Failed to back up to " + uris[0], e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bundle result) {
+                Toast.makeText(context, result == null ? R.string.backup_failed
+                        : R.string.backup_done, Toast.LENGTH_SHORT).show();
+            }
+        }.execute(backupUri);
+    }
+
+    private void showRestoreConfirmationDialog(final Uri backupUri) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.restore_dialog_msg);
+        builder.setPositiveButton(R.string.restore, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                restoreFrom(backupUri);
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Let the provider restore the backup on a background thread. The list reloads by itself
+     * once the restored books are in.
+     */
+    private void restoreFrom(Uri backupUri) {
+        final ContentResolver resolver = getContentResolver();
+        final Context context = getApplicationContext();
+        new AsyncTask<Uri, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Uri... uris) {
+                try {
+                    return resolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_RESTORE,
+                            uris[0].toString(), null);
+                } catch (RuntimeException e) {
+                    Log.e("CatalogActivity", "Failed to restore " + uris[0], e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bundle result) {
+                if (result == null) {
+                    Toast.makeText(context, R.string.restore_failed, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(context, context.getString(R.string.restore_done,
+                        result.getLong(BookContract.EXTRA_TOTAL)), Toast.LENGTH_SHORT).show();
+            }
+        }.execute(backupUri);
+    }
+
+    /**
+     * Let the provider apply the price feed on a background thread, then show how many books
+     * it changed. The list reloads by itself, once, if anything changed.
+     */
+    private void applyPriceFeed(Uri feedUri) {
+        final ContentResolver resolver = getContentResolver();
+        final Context context = getApplicationContext();
+        new AsyncTask<Uri, Void, Bundle>() {
+            @Override
+            protected Bundle doInBackground(Uri... uris) {
+                try {
+                    return resolver.call(BookEntry.CONTENT_URI,
+                            BookContract.METHOD_APPLY_PRICE_FEED, uris[0].toString(), null);
+                } catch (RuntimeException e) {
+                    Log.e("CatalogActivity", "Failed to apply price feed " + uris[0], e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bundle result) {
+                if (result == null) {
+                    Toast.makeText(context, R.string.price_feed_failed, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(context, context.getString(R.string.price_feed_applied,
+                        result.getInt(BookContract.EXTRA_CHANGED),
+                        result.getInt(BookContract.EXTRA_FEED_ROWS)), Toast.LENGTH_LONG).show();
+            }
+        }.execute(feedUri);
+    }
+
+    /**
+     * Show a dialog that sells one copy of a book every time its ISBN is scanned, or typed and
+     * confirmed. Barcode scanners type the code followed by Enter, so the dialog stays open and
+     * the field is cleared after every scan.
+     */
+    private void showScanToSellDialog() {
+        final EditText isbnEditText = new EditText(this);
+        isbnEditText.setHint(R.string.hint_book_isbn);
+        isbnEditText.setSingleLine(true);
+        isbnEditText.setInputType(InputType.TYPE_CLASS_TEXT
+                | InputType.TYPE_TEXT_FLAG_CAP_CHARACTERS);
+        isbnEditText.setImeOptions(EditorInfo.IME_ACTION_DONE);
+        isbnEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+            @Override
+            public boolean onEditorAction(TextView textView, int actionId, KeyEvent event) {
+                // A hardware Enter comes as a key down and a key up, only sell once
+                if (event != null && event.getAction() != KeyEvent.ACTION_DOWN) {
+                    return true;
+                }
+                sellScannedBook(textView.getText().toString().trim());
+                textView.setText("");
+                return true;
+            }
+        });
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.scan_to_sell_title);
+        builder.setView(isbnEditText);
+        builder.setPositiveButton(R.string.done, null);
+        builder.create().show();
+    }
+
+    /**
+     * Sell one copy of the book with the given ISBN. The provider finds the book and
+     * decrements its stock in a single call.
+     */
+    private void sellScannedBook(String isbn) {
+        if (TextUtils.isEmpty(isbn)) {
+            return;
+        }
+        Bundle sale;
+        try {
+            sale = getContentResolver().call(BookEntry.CONTENT_URI,
+                    BookContract.METHOD_SELL_BY_ISBN, isbn, null);
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(this, R.string.editor_invalid_isbn, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String message;
+        if (sale.getLong(BookContract.EXTRA_BOOK_ID) == -1) {
+            message = getString(R.string.scan_unknown_isbn, isbn);
+        } else if (!sale.getBoolean(BookContract.EXTRA_SOLD)) {
+            message = getString(R.string.scan_out_of_stock);
+        } else {
+            message = getString(R.string.scan_sold, sale.getInt(BookContract.EXTRA_QUANTITY));
+        }
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Show a dialog to pick the order of the list.
+     */
+    private void showSortDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.sort_title);
+        builder.setSingleChoiceItems(R.array.sort_orders, mSortOrder,
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        mSortOrder = which;
+                        dialog.dismiss();
+                        useColumns();
+                    }
+                });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Show a dialog to only list the books within a price range. An empty bound leaves that
+     * side of the range open.
+     */
+    private void showPriceFilterDialog() {
+        final EditText minEditText = new EditText(this);
+        minEditText.setHint(R.string.hint_min_price);
+        minEditText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        if (mMinPrice != CatalogColumns.NO_MIN_PRICE) {
+            minEditText.setText(String.valueOf(mMinPrice));
+        }
+        final EditText maxEditText = new EditText(this);
+        maxEditText.setHint(R.string.hint_max_price);
+        maxEditText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        if (mMaxPrice != CatalogColumns.NO_MAX_PRICE) {
+            maxEditText.setText(String.valueOf(mMaxPrice));
+        }
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        layout.addView(minEditText);
+        layout.addView(maxEditText);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.filter_price_title);
+        builder.setView(layout);
+        builder.setPositiveButton(R.string.apply, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int id) {
+                mMinPrice = parsePrice(minEditText, CatalogColumns.NO_MIN_PRICE);
+                mMaxPrice = parsePrice(maxEditText, CatalogColumns.NO_MAX_PRICE);
+                useColumns();
+            }
+        });
+        builder.setNeutralButton(R.string.clear, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int id) {
+                mMinPrice = CatalogColumns.NO_MIN_PRICE;
+                mMaxPrice = CatalogColumns.NO_MAX_PRICE;
+                useColumns();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Returns the price typed in the field, or the default if it's empty or not a number.
+     */
+    private static int parsePrice(EditText editText, int defaultPrice) {
+        String price = editText.getText().toString().trim();
+        if (TextUtils.isEmpty(price)) {
+            return defaultPrice;
+        }
+        try {
+            return Integer.parseInt(price);
+        } catch (NumberFormatException e) {
+            return defaultPrice;
+        }
+    }
+
+    /**
+     * Show the list sorted and filtered as picked by the user. The first time, the cursor
+     * loader is swapped for the loader of the catalog columns, which keeps the whole catalog
+     * in memory, so every later sort or filter is applied right away without a query. Back to
+     * the default order without a filter, the cursor loader takes over again, with the row
+     * snapshots for the editor and the fast-scroll sections that only its cursor has.
+     */
+    private void useColumns() {
+        boolean sortedOrFiltered = mSortOrder != CatalogColumns.SORT_BY_NAME
+                || mMinPrice != CatalogColumns.NO_MIN_PRICE
+                || mMaxPrice != CatalogColumns.NO_MAX_PRICE;
+        if (!sortedOrFiltered) {
+            if (mUsingColumns) {
+                mUsingColumns = false;
+                getLoaderManager().destroyLoader(COLUMNS_LOADER);
+                if (getSupportActionBar() != null) {
+                    getSupportActionBar().setSubtitle(null);
+                }
+                getLoaderManager().initLoader(BOOK_LOADER, null, this);
+            }
+        } else if (!mUsingColumns) {
+            mUsingColumns = true;
+            getLoaderManager().destroyLoader(BOOK_LOADER);
+            getLoaderManager().initLoader(COLUMNS_LOADER, null, mColumnsCallbacks);
+        } else {
+            showColumns();
+        }
+    }
+
+    /**
+     * Select the rows of the catalog columns matching the sort order and price range, show
+     * them in the list and their totals in the app bar.
+     */
+    private void showColumns() {
+        if (mColumns == null) {
+            return;
+        }
+        int[] rows = mColumns.select(mSortOrder, mMinPrice, mMaxPrice);
+        CatalogColumns.Aggregates totals = mColumns.aggregate(rows);
+        Cursor cursor = mColumns.cursor(rows);
+
+        mCursorAdapter.swapCursor(cursor);
+        closeColumnsCursor();
+        mColumnsCursor = cursor;
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(getString(R.string.catalog_summary,
+                    totals.count, totals.stock, totals.stockValue));
+        }
+    }
+
+    private void closeColumnsCursor() {
+        if (mColumnsCursor != null) {
+            mColumnsCursor.close();
+            mColumnsCursor = null;
+        }
     }
 
     private void showDeleteConfirmationDialog() {
@@ -164,10 +721,49 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             case R.id.action_insert_dummy_data:
                 insertBook();
                 return true;
+            // Respond to a click on the "Generate test catalog" menu option (debug builds only)
+            case R.id.action_generate_catalog:
+                showGenerateCatalogDialog();
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Import price feed" menu option
+            case R.id.action_import_price_feed:
+                Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                pickIntent.setType("text/*");
+                startActivityForResult(Intent.createChooser(pickIntent,
+                        getString(R.string.action_import_price_feed)), PICK_PRICE_FEED_REQUEST);
+                return true;
+            // Respond to a click on the "Scan to sell" menu option
+            case R.id.action_scan_to_sell:
+                showScanToSellDialog();
+                return true;
+            // Respond to a click on the "Back up" menu option
+            case R.id.action_backup:
+                Intent createIntent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                createIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                createIntent.setType("application/gzip");
+                createIntent.putExtra(Intent.EXTRA_TITLE, getString(R.string.backup_file_name));
+                startActivityForResult(createIntent, CREATE_BACKUP_REQUEST);
+                return true;
+            // Respond to a click on the "Restore" menu option
+            case R.id.action_restore:
+                Intent openIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                openIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                openIntent.setType("*/*");
+                startActivityForResult(Intent.createChooser(openIntent,
+                        getString(R.string.action_restore)), PICK_BACKUP_REQUEST);
+                return true;
+            // Respond to a click on the "Sort" menu option
+            case R.id.action_sort:
+                showSortDialog();
+                return true;
+            // Respond to a click on the "Filter by price" menu option
+            case R.id.action_filter_price:
+                showPriceFilterDialog();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -180,27 +776,47 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
                 BookEntry.COLUMN_BOOK_NAME,
                 BookEntry.COLUMN_BOOK_CATEGORY,
                 BookEntry.COLUMN_BOOK_PRICE,
-                BookEntry.COLUMN_BOOK_QUANTITY};
+                BookEntry.COLUMN_BOOK_QUANTITY,
+                BookEntry.COLUMN_BOOK_VERSION,
+                // The ISBN and supplier columns aren't shown in the list, but they are handed
+                // to the editor when a row is clicked so it can open without a query.
+                BookEntry.COLUMN_BOOK_ISBN,
+                BookEntry.COLUMN_SUPPLIER_NAME,
+                BookEntry.COLUMN_SUPPLIER_NUMBER};
 
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
+        // This loader will execute the ContentProvider's query method on a background thread.
+        // It throttles and coalesces the reloads caused by bursts of writes.
+        return new CatalogLoader(this,   // Parent activity context
                 BookEntry.CONTENT_URI,   // Provider content URI to query
                 projection,             // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
-                null);                  // Default sort order
+                BookEntry.CATALOG_SORT_ORDER); // Same order as the catalog snapshot
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         // Update {@link BookCursorAdapter} with this new cursor containing updated book data
         mCursorAdapter.swapCursor(data);
+        closeSnapshot();
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // Callback called when the data needs to be deleted
         mCursorAdapter.swapCursor(null);
+        closeSnapshot();
+    }
+
+    /**
+     * Close the snapshot cursor once the live data has replaced it. The loader owns its own
+     * cursors, but the snapshot one is ours.
+     */
+    private void closeSnapshot() {
+        if (mSnapshotCursor != null) {
+            mSnapshotCursor.close();
+            mSnapshotCursor = null;
+        }
     }
 
     @Override
@@ -211,6 +827,12 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             MenuItem menuItem = menu.findItem(R.id.action_delete_all_entries);
             menuItem.setVisible(false);
         }
+        // Picking where to write a file needs the storage access framework
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            menu.findItem(R.id.action_backup).setVisible(false);
+        }
+        // Test data is for debugging only
+        menu.findItem(R.id.action_generate_catalog).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -0,0 +1,528 @@
+package com.example.android.books;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-oriented copy of the list columns of the catalog, for sorting, filtering and summing
+ * up the catalog on the client without going back to the provider.
+ * <p>
+ * Every column is a primitive array indexed by row, and the rows are kept in id order. Names and
+ * categories are dictionary encoded: a row holds an int code into a {@link Dictionary} of the
+ * distinct strings. The orders by name, price and quantity are computed once per version of the
+ * catalog, so a sort is a lookup and a price range is one pass over an int array.
+ * <p>
+ * An instance never changes, {@link #refresh} returns a new one. It reads the id and version of
+ * every book, which is cheap, and only reads the books that are new or have a new version in
+ * full. Books are never given the id of a deleted book, so new books always go at the end.
+ */
+public class CatalogColumns {
+
+    /**
+     * Sort orders for {@link #select}
+     */
+    public static final int SORT_BY_NAME = 0;
+    public static final int SORT_BY_PRICE = 1;
+    public static final int SORT_BY_QUANTITY = 2;
+
+    /**
+     * Bounds of a price range meaning "no bound"
+     */
+    public static final int NO_MIN_PRICE = 0;
+    public static final int NO_MAX_PRICE = Integer.MAX_VALUE;
+
+    /**
+     * The columns of the cursors returned by {@link #cursor}
+     */
+    private static final String[] COLUMNS = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_CATEGORY,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_VERSION};
+
+    /**
+     * Maximum number of ids in one "_id IN (...)" query, SQLite allows 999 arguments
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * Distinct strings of a column, each with a code. Strings are only ever appended, so the
+     * codes of an older {@link CatalogColumns} stay valid. Only the thread that loads the
+     * columns adds strings.
+     */
+    static class Dictionary {
+
+        private String[] mValues = new String[16];
+        private int mSize;
+        private final Map<String, Integer> mCodes = new HashMap<>();
+
+        /**
+         * Position of every code in alphabetical order (ignoring case), computed when needed
+         */
+        private int[] mRanks = new int[0];
+
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = mCodes.get(value);
+            if (code == null) {
+                if (mSize == mValues.length) {
+                    mValues = Arrays.copyOf(mValues, mSize * 2);
+                }
+                code = mSize;
+                mValues[mSize++] = value;
+                mCodes.put(value, code);
+            }
+            return code;
+        }
+
+        /**
+         * Returns the alphabetical rank of every code, sorting the dictionary again only if
+         * strings were added since the last time.
+         */
+        int[] ranks() {
+            if (mRanks.length != mSize) {
+                Integer[] codes = new Integer[mSize];
+                for (int i = 0; i < mSize; i++) {
+                    codes[i] = i;
+                }
+                final String[] values = mValues;
+                Arrays.sort(codes, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return String.CASE_INSENSITIVE_ORDER.compare(values[a], values[b]);
+                    }
+                });
+                int[] ranks = new int[mSize];
+                for (int rank = 0; rank < mSize; rank++) {
+                    ranks[codes[rank]] = rank;
+                }
+                mRanks = ranks;
+            }
+            return mRanks;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Estimated size of the strings and the lookup table, in bytes
+         */
+        long estimateBytes() {
+            long bytes = 16 + 4L * mValues.length + 4L * mRanks.length;
+            for (int i = 0; i < mSize; i++) {
+                // String object and its characters, plus a hash map entry
+                bytes += 40 + 2L * mValues[i].length() + 32;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Totals over a selection of books
+     */
+    public static class Aggregates {
+        public final int count;
+
+        /**
+         * Number of copies in stock
+         */
+        public final long stock;
+
+        /**
+         * Value of the copies in stock, the sum of price times quantity
+         */
+        public final long stockValue;
+
+        Aggregates(int count, long stock, long stockValue) {
+            this.count = count;
+            this.stock = stock;
+            this.stockValue = stockValue;
+        }
+    }
+
+    private final int mSize;
+    private final long[] mIds;
+    private final int[] mVersions;
+    private final int[] mPrices;
+    private final int[] mQuantities;
+    private final int[] mNameCodes;
+    private final int[] mCategoryCodes;
+
+    private final Dictionary mNames;
+    private final Dictionary mCategories;
+
+    /**
+     * The strings of the dictionaries as of this instance
+     */
+    private final String[] mNameValues;
+    private final String[] mCategoryValues;
+
+    /**
+     * Rows in the order of every sort
+     */
+    private final int[] mByName;
+    private final int[] mByPrice;
+    private final int[] mByQuantity;
+
+    private CatalogColumns(int size, long[] ids, int[] versions, int[] prices, int[] quantities,
+                           int[] nameCodes, int[] categoryCodes, Dictionary names,
+                           Dictionary categories) {
+        mSize = size;
+        mIds = ids;
+        mVersions = versions;
+        mPrices = prices;
+        mQuantities = quantities;
+        mNameCodes = nameCodes;
+        mCategoryCodes = categoryCodes;
+        mNames = names;
+        mCategories = categories;
+        mNameValues = names.mValues;
+        mCategoryValues = categories.mValues;
+
+        int[] nameRanks = names.ranks();
+        long[] keys = new long[size];
+        for (int row = 0; row < size; row++) {
+            int rank = nameCodes[row] == -1 ? 0 : nameRanks[nameCodes[row]];
+            keys[row] = ((long) rank << 32) | row;
+        }
+        mByName = sortedRows(keys);
+        for (int row = 0; row < size; row++) {
+            keys[row] = ((long) prices[row] << 32) | row;
+        }
+        mByPrice = sortedRows(keys);
+        for (int row = 0; row < size; row++) {
+            keys[row] = ((long) quantities[row] << 32) | row;
+        }
+        mByQuantity = sortedRows(keys);
+    }
+
+    /**
+     * Sort the keys, each one a sort value in the high half and a row in the low half, and
+     * return the rows in that order. Equal values stay in row order, which is id order.
+     */
+    private static int[] sortedRows(long[] keys) {
+        Arrays.sort(keys);
+        int[] rows = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            rows[i] = (int) keys[i];
+        }
+        return rows;
+    }
+
+    /**
+     * Read the whole catalog. Call it on a background thread.
+     */
+    public static CatalogColumns load(ContentResolver resolver) {
+        Dictionary names = new Dictionary();
+        Dictionary categories = new Dictionary();
+        Cursor cursor = resolver.query(BookEntry.CONTENT_URI, COLUMNS, null, null, BookEntry._ID);
+        if (cursor == null) {
+            return new CatalogColumns(0, new long[0], new int[0], new int[0], new int[0],
+                    new int[0], new int[0], names, categories);
+        }
+        try {
+            int size = cursor.getCount();
+            long[] ids = new long[size];
+            int[] versions = new int[size];
+            int[] prices = new int[size];
+            int[] quantities = new int[size];
+            int[] nameCodes = new int[size];
+            int[] categoryCodes = new int[size];
+            for (int row = 0; row < size && cursor.moveToNext(); row++) {
+                ids[row] = cursor.getLong(0);
+                nameCodes[row] = names.encode(cursor.getString(1));
+                categoryCodes[row] = categories.encode(cursor.getString(2));
+                prices[row] = cursor.getInt(3);
+                quantities[row] = cursor.getInt(4);
+                versions[row] = cursor.getInt(5);
+            }
+            return new CatalogColumns(size, ids, versions, prices, quantities, nameCodes,
+                    categoryCodes, names, categories);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the columns as they are now in the provider: this instance if nothing changed,
+     * otherwise a new one that reuses the rows that didn't change. Call it on a background
+     * thread, and only on the latest instance.
+     */
+    public CatalogColumns refresh(ContentResolver resolver) {
+        // Once most strings in the dictionaries belong to deleted books, start over
+        if (mNames.size() > 2 * mSize + 1000) {
+            return load(resolver);
+        }
+
+        Cursor cursor = resolver.query(BookEntry.CONTENT_URI,
+                new String[]{BookEntry._ID, BookEntry.COLUMN_BOOK_VERSION}, null, null,
+                BookEntry._ID);
+        if (cursor == null) {
+            return this;
+        }
+        int size;
+        long[] ids;
+        int[] versions;
+        int[] oldRows;
+        List<Long> changedIds = new ArrayList<>();
+        try {
+            // Merge the ids of the provider with ours, both are in id order
+            size = cursor.getCount();
+            ids = new long[size];
+            versions = new int[size];
+            oldRows = new int[size];
+            int oldRow = 0;
+            for (int row = 0; row < size && cursor.moveToNext(); row++) {
+                ids[row] = cursor.getLong(0);
+                versions[row] = cursor.getInt(1);
+                while (oldRow < mSize && mIds[oldRow] < ids[row]) {
+                    // Deleted or archived since
+                    oldRow++;
+                }
+                if (oldRow < mSize && mIds[oldRow] == ids[row] && mVersions[oldRow] == versions[row]) {
+                    oldRows[row] = oldRow++;
+                } else {
+                    oldRows[row] = -1;
+                    changedIds.add(ids[row]);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (changedIds.isEmpty() && size == mSize) {
+            return this;
+        }
+        if (changedIds.size() > size / 2) {
+            return load(resolver);
+        }
+
+        int[] prices = new int[size];
+        int[] quantities = new int[size];
+        int[] nameCodes = new int[size];
+        int[] categoryCodes = new int[size];
+        Map<Long, Integer> changedRows = new HashMap<>();
+        for (int row = 0; row < size; row++) {
+            int oldRow = oldRows[row];
+            if (oldRow == -1) {
+                // Filled in below. If the book is deleted in the meantime it stays empty, with
+                // a version that makes the next refresh read it again.
+                changedRows.put(ids[row], row);
+                nameCodes[row] = -1;
+                categoryCodes[row] = -1;
+                versions[row] = -1;
+                continue;
+            }
+            prices[row] = mPrices[oldRow];
+            quantities[row] = mQuantities[oldRow];
+            nameCodes[row] = mNameCodes[oldRow];
+            categoryCodes[row] = mCategoryCodes[oldRow];
+        }
+
+        // Read the new and changed books in full, a few hundred at a time
+        for (int start = 0; start < changedIds.size(); start += MAX_IDS_PER_QUERY) {
+            List<Long> chunk = changedIds.subList(start,
+                    Math.min(start + MAX_IDS_PER_QUERY, changedIds.size()));
+            Cursor changed = resolver.query(BookEntry.CONTENT_URI, COLUMNS,
+                    BookEntry._ID + " IN (" + TextUtils.join(",", chunk) + ")", null, null);
+            if (changed == null) {
+                return load(resolver);
+            }
+            try {
+                while (changed.moveToNext()) {
+                    Integer row = changedRows.get(changed.getLong(0));
+                    if (row == null) {
+                        // Inserted after the ids were read, the next refresh picks it up
+                        continue;
+                    }
+                    nameCodes[row] = mNames.encode(changed.getString(1));
+                    categoryCodes[row] = mCategories.encode(changed.getString(2));
+                    prices[row] = changed.getInt(3);
+                    quantities[row] = changed.getInt(4);
+                    versions[row] = changed.getInt(5);
+                }
+            } finally {
+                changed.close();
+            }
+        }
+        return new CatalogColumns(size, ids, versions, prices, quantities, nameCodes,
+                categoryCodes, mNames, mCategories);
+    }
+
+    /**
+     * Returns the number of books
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the rows of the books whose price is within the given range, both bounds
+     * included, in the given order.
+     */
+    public int[] select(int sortOrder, int minPrice, int maxPrice) {
+        int[] order;
+        switch (sortOrder) {
+            case SORT_BY_NAME:
+                order = mByName;
+                break;
+            case SORT_BY_PRICE:
+                order = mByPrice;
+                break;
+            case SORT_BY_QUANTITY:
+                order = mByQuantity;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort order " + sortOrder);
+        }
+        if (minPrice <= NO_MIN_PRICE && maxPrice == NO_MAX_PRICE) {
+            return order;
+        }
+
+        int[] rows = new int[mSize];
+        int count = 0;
+        for (int row : order) {
+            int price = mPrices[row];
+            if (price >= minPrice && price <= maxPrice) {
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Sum up the given rows.
+     */
+    public Aggregates aggregate(int[] rows) {
+        long stock = 0;
+        long stockValue = 0;
+        for (int row : rows) {
+            stock += mQuantities[row];
+            stockValue += (long) mPrices[row] * mQuantities[row];
+        }
+        return new Aggregates(rows.length, stock, stockValue);
+    }
+
+    /**
+     * Returns a cursor over the given rows, in that order, with the columns
+     * {@link BookEntry#_ID}, {@link BookEntry#COLUMN_BOOK_NAME},
+     * {@link BookEntry#COLUMN_BOOK_CATEGORY}, {@link BookEntry#COLUMN_BOOK_PRICE},
+     * {@link BookEntry#COLUMN_BOOK_QUANTITY} and {@link BookEntry#COLUMN_BOOK_VERSION}.
+     */
+    public Cursor cursor(int[] rows) {
+        return new ColumnsCursor(rows);
+    }
+
+    /**
+     * Estimated memory used by this instance, in bytes: the arrays, including the three sort
+     * orders, and the dictionaries it shares with the instances before and after it.
+     */
+    public long estimateBytes() {
+        // An array has a 16 byte header, then its elements
+        long arrays = 16 + 8L * mIds.length
+                + 8 * (16 + 4L * mSize);
+        return arrays + mNames.estimateBytes() + mCategories.estimateBytes();
+    }
+
+    /**
+     * Read-only cursor over a selection of rows
+     */
+    private class ColumnsCursor extends AbstractCursor {
+
+        private final int[] mRows;
+
+        ColumnsCursor(int[] rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return COLUMNS;
+        }
+
+        @Override
+        public String getString(int column) {
+            int row = mRows[getPosition()];
+            switch (column) {
+                case 1:
+                    return mNameCodes[row] == -1 ? null : mNameValues[mNameCodes[row]];
+                case 2:
+                    return mCategoryCodes[row] == -1 ? null : mCategoryValues[mCategoryCodes[row]];
+                default:
+                    return String.valueOf(getLong(column));
+            }
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            int row = mRows[getPosition()];
+            switch (column) {
+                case 0:
+                    return mIds[row];
+                case 3:
+                    return mPrices[row];
+                case 4:
+                    return mQuantities[row];
+                case 5:
+                    return mVersions[row];
+                default:
+                    return Long.parseLong(getString(column));
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            int row = mRows[getPosition()];
+            return (column == 1 && mNameCodes[row] == -1)
+                    || (column == 2 && mCategoryCodes[row] == -1);
+        }
+
+        @Override
+        public int getType(int column) {
+            if (isNull(column)) {
+                return FIELD_TYPE_NULL;
+            }
+            return column == 1 || column == 2 ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.books;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookContract.BookEntry;
+
+/**
+ * Loads the {@link CatalogColumns} of the catalog once, then refreshes them on every change of
+ * the books, reading only what changed. Like {@link CatalogLoader} it reloads at most once
+ * every {@link #MIN_RELOAD_INTERVAL_MILLIS} during a burst of writes.
+ * <p>
+ * Every load logs how long it took and how much memory the columns take per book.
+ */
+public class CatalogColumnsLoader extends AsyncTaskLoader<CatalogColumns> {
+
+    private static final String LOG_TAG = CatalogColumnsLoader.class.getSimpleName();
+
+    /**
+     * Minimum time between the end of one load and the start of the next
+     */
+    private static final long MIN_RELOAD_INTERVAL_MILLIS = 300;
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    /**
+     * A restored backup may hold other books under the same ids and versions, so the next load
+     * after a restore starts from scratch
+     */
+    private final ContentObserver mRestoreObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mRestored = true;
+            onContentChanged();
+        }
+    };
+
+    private volatile boolean mRestored;
+
+    /**
+     * True while {@link #mObserver} is registered
+     */
+    private boolean mObserving;
+
+    /**
+     * The latest columns, refreshed by the next load. Only used on the main thread, and by
+     * the load in the background while no other load runs.
+     */
+    private volatile CatalogColumns mColumns;
+
+    public CatalogColumnsLoader(Context context) {
+        super(context);
+        setUpdateThrottle(MIN_RELOAD_INTERVAL_MILLIS);
+    }
+
+    @Override
+    public CatalogColumns loadInBackground() {
+        long start = SystemClock.elapsedRealtime();
+        CatalogColumns previous = mRestored ? null : mColumns;
+        mRestored = false;
+        CatalogColumns columns = previous == null
+                ? CatalogColumns.load(getContext().getContentResolver())
+                : previous.refresh(getContext().getContentResolver());
+        if (columns != previous) {
+            Log.i(LOG_TAG, (previous == null ? "Loaded " : "Refreshed ") + columns.size()
+                    + " books in " + (SystemClock.elapsedRealtime() - start) + " ms, "
+                    + (columns.size() == 0 ? 0 : columns.estimateBytes() / columns.size())
+                    + " bytes per book");
+        }
+        // The next load starts from these, even if this result ends up not being delivered
+        mColumns = columns;
+        return columns;
+    }
+
+    @Override
+    public void deliverResult(CatalogColumns columns) {
+        if (isStarted()) {
+            super.deliverResult(columns);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            // Refresh on every change of the books, until the loader is reset
+            getContext().getContentResolver().registerContentObserver(BookEntry.CONTENT_URI,
+                    true, mObserver);
+            getContext().getContentResolver().registerContentObserver(BookContract.RESTORE_URI,
+                    false, mRestoreObserver);
+            mObserving = true;
+        }
+        if (mColumns != null) {
+            deliverResult(mColumns);
+        }
+        if (takeContentChanged() || mColumns == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            getContext().getContentResolver().unregisterContentObserver(mRestoreObserver);
+            mObserving = false;
+        }
+        mColumns = null;
+    }
+}
@@ -0,0 +1,314 @@
+package com.example.android.books;
+
+import android.content.Context;
+import android.content.CursorLoader;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookTrace;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link CursorLoader} for the catalog list that doesn't re-query on every single change
+ * notification. During a burst of writes (an import, a run of sales) it:
+ * <ul>
+ * <li>reloads at most once every {@link #MIN_RELOAD_INTERVAL_MILLIS},</li>
+ * <li>collapses all the notifications that arrive meanwhile into one pending reload,</li>
+ * <li>cancels a query that is still running when a newer change comes in, since its result
+ * would be out of date anyway.</li>
+ * </ul>
+ * When the catalog has been idle for longer than the interval, a change is reloaded right away.
+ * The counters kept here show how many queries ran and how many of them were thrown away.
+ * <p>
+ * Along with an unfiltered list it loads the alphabetical sections of the catalog, and hands
+ * them over in the extras of the cursor, see {@link #EXTRA_SECTIONS}. The sections are kept
+ * between loads, and only loaded again once a book has been added, renamed, deleted or
+ * archived, see {@link BookContract#NAMES_URI}: a sale doesn't change them. The extras also tell
+ * which traced change the cursor is up to date with, see {@link #EXTRA_CORRELATION_ID}.
+ */
+public class CatalogLoader extends CursorLoader {
+
+    private static final String LOG_TAG = CatalogLoader.class.getSimpleName();
+
+    /**
+     * Minimum time between the end of one load and the start of the next
+     */
+    private static final long MIN_RELOAD_INTERVAL_MILLIS = 300;
+
+    /**
+     * Cursor extra holding the names of the alphabetical sections of the list, as a String[]
+     */
+    public static final String EXTRA_SECTIONS = "com.example.android.books.extra.SECTIONS";
+
+    /**
+     * Cursor extra holding the position of the first row of every section, as an int[]
+     */
+    public static final String EXTRA_SECTION_POSITIONS =
+            "com.example.android.books.extra.SECTION_POSITIONS";
+
+    /**
+     * Cursor extra holding the correlation id of the latest change the cursor shows, as a long,
+     * see {@link BookTrace}
+     */
+    public static final String EXTRA_CORRELATION_ID =
+            "com.example.android.books.extra.CORRELATION_ID";
+
+    /**
+     * Number of change notifications received
+     */
+    private final AtomicInteger mChangeCount = new AtomicInteger();
+
+    /**
+     * Number of queries started
+     */
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    /**
+     * Number of running queries that were cancelled because a newer change came in
+     */
+    private final AtomicInteger mCancelledCount = new AtomicInteger();
+
+    /**
+     * Number of queries that completed but whose result was thrown away
+     */
+    private final AtomicInteger mWastedCount = new AtomicInteger();
+
+    /**
+     * Number of times the names in the catalog may have changed
+     */
+    private final AtomicInteger mNamesGeneration = new AtomicInteger();
+
+    /**
+     * Tells the loader the sections are out of date, and reloads the list. The list is
+     * notified too, but the sections must not be kept by a reload that ran in between.
+     */
+    private final ContentObserver mNamesObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mNamesGeneration.incrementAndGet();
+            onContentChanged();
+        }
+    };
+
+    /**
+     * True while {@link #mNamesObserver} is registered. Until then nothing tells the loader
+     * about new names, so it loads the sections every time.
+     */
+    private volatile boolean mObservingNames;
+
+    /**
+     * The sections of the latest load, null until the first one
+     */
+    private volatile Sections mSections;
+
+    public CatalogLoader(Context context, Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        // The framework loader postpones a load until this long after the previous one
+        // completed, and replaces a postponed load with the newest one.
+        setUpdateThrottle(MIN_RELOAD_INTERVAL_MILLIS);
+    }
+
+    @Override
+    public void onContentChanged() {
+        mChangeCount.incrementAndGet();
+        long span = BookTrace.begin("catalog.changed", BookTrace.lastChangeCorrelationId());
+        try {
+            // Forcing a load cancels the one in flight, its cursor will go to onCanceled()
+            super.onContentChanged();
+        } finally {
+            BookTrace.end(span);
+        }
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        mQueryCount.incrementAndGet();
+        // Every change notified by now is in the result
+        long correlationId = BookTrace.lastChangeCorrelationId();
+        long span = BookTrace.begin("catalog.load", correlationId);
+        try {
+            return load(correlationId);
+        } finally {
+            BookTrace.end(span);
+        }
+    }
+
+    private Cursor load(long correlationId) {
+        Cursor cursor = super.loadInBackground();
+        if (cursor == null) {
+            return null;
+        }
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_CORRELATION_ID, correlationId);
+        if (getSelection() != null) {
+            // The sections only describe the whole catalog
+            return new ExtrasCursor(cursor, extras);
+        }
+
+        Sections sections = loadSections();
+        if (sections != null) {
+            extras.putStringArray(EXTRA_SECTIONS, sections.names);
+            extras.putIntArray(EXTRA_SECTION_POSITIONS, sections.positions);
+        }
+        return new ExtrasCursor(cursor, extras);
+    }
+
+    /**
+     * Returns the sections of the previous load if no name changed since, otherwise queries
+     * them. Returns null if the query fails.
+     */
+    private Sections loadSections() {
+        // Read before the query, so a change notified during the query loads them again
+        int generation = mNamesGeneration.get();
+        Sections sections = mSections;
+        if (mObservingNames && sections != null && sections.generation == generation) {
+            return sections;
+        }
+
+        Cursor cursor = getContext().getContentResolver().query(BookEntry.SECTIONS_URI,
+                null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            String[] names = new String[cursor.getCount()];
+            int[] positions = new int[names.length];
+            int position = 0;
+            int sectionColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_SECTION);
+            int sizeColumnIndex = cursor.getColumnIndexOrThrow(BookEntry.COLUMN_SECTION_SIZE);
+            for (int i = 0; cursor.moveToNext(); i++) {
+                names[i] = cursor.getString(sectionColumnIndex).toUpperCase(Locale.getDefault());
+                positions[i] = position;
+                position += cursor.getInt(sizeColumnIndex);
+            }
+            sections = new Sections(generation, names, positions);
+            mSections = sections;
+            return sections;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObservingNames) {
+            getContext().getContentResolver().registerContentObserver(BookContract.NAMES_URI,
+                    false, mNamesObserver);
+            mObservingNames = true;
+        }
+        super.onStartLoading();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        if (mObservingNames) {
+            getContext().getContentResolver().unregisterContentObserver(mNamesObserver);
+            mObservingNames = false;
+        }
+        mSections = null;
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        // Only called while a query is running, and only on API 16+ where it can be interrupted
+        mCancelledCount.incrementAndGet();
+        super.cancelLoadInBackground();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null) {
+            mWastedCount.incrementAndGet();
+        }
+        super.onCanceled(cursor);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        super.deliverResult(cursor);
+        // Only build the stats when they are logged, this runs on every delivery
+        if (Log.isLoggable(LOG_TAG, Log.VERBOSE)) {
+            Log.v(LOG_TAG, "Catalog reloaded: " + getStats());
+        }
+    }
+
+    /**
+     * Number of change notifications received so far
+     */
+    public int getChangeCount() {
+        return mChangeCount.get();
+    }
+
+    /**
+     * Number of queries run so far, including the first load
+     */
+    public int getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    /**
+     * Number of queries that were cancelled while running
+     */
+    public int getCancelledQueryCount() {
+        return mCancelledCount.get();
+    }
+
+    /**
+     * Number of queries that completed, but whose result was superseded before it was shown
+     */
+    public int getWastedQueryCount() {
+        return mWastedCount.get();
+    }
+
+    /**
+     * Returns all the counters as a single line, for logging.
+     */
+    public String getStats() {
+        return "changes=" + getChangeCount() + " queries=" + getQueryCount()
+                + " cancelled=" + getCancelledQueryCount() + " wasted=" + getWastedQueryCount();
+    }
+
+    /**
+     * The alphabetical sections of the catalog, and the names generation they were loaded at
+     */
+    private static class Sections {
+        final int generation;
+        final String[] names;
+        final int[] positions;
+
+        Sections(int generation, String[] names, int[] positions) {
+            this.generation = generation;
+            this.names = names;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * Cursor with extras of our own. {@link Cursor#setExtras} is only available from API 23.
+     */
+    private static class ExtrasCursor extends CursorWrapper {
+
+        private final Bundle mExtras;
+
+        ExtrasCursor(Cursor cursor, Bundle extras) {
+            super(cursor);
+            mExtras = extras;
+        }
+
+        @Override
+        public Bundle getExtras() {
+            return mExtras;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.android.books;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Loads book covers into image views without holding up scrolling. Covers are decoded off the
+ * main thread and downsampled to the size of the view. Decoded covers are kept in a memory cache
+ * bounded in bytes, and the downsampled thumbnails are also kept on disk so they don't have to
+ * be decoded from the full-size image again. Binding a view to another book cancels the load
+ * that was still running for the previous one. A restored backup has other books under the same
+ * ids, so everything cached is forgotten when one is restored.
+ */
+public class CoverLoader {
+
+    private static final String LOG_TAG = CoverLoader.class.getSimpleName();
+
+    private static final String THUMBNAIL_DIR = "cover_thumbnails";
+
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    private static CoverLoader sInstance;
+
+    private final ContentResolver mResolver;
+    private final File mThumbnailDir;
+
+    /**
+     * Decoded thumbnails, keyed by book id and size. Bounded to an eighth of the heap.
+     */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /**
+     * Books known to have no cover, so they don't cost a failed file open on every bind
+     */
+    private final Set<Long> mMissingCovers = Collections.synchronizedSet(new HashSet<Long>());
+
+    public static synchronized CoverLoader get(Context context) {
+        if (sInstance == null) {
+            sInstance = new CoverLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CoverLoader(Context context) {
+        mResolver = context.getContentResolver();
+        mThumbnailDir = new File(context.getCacheDir(), THUMBNAIL_DIR);
+        int cacheBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+        // The loader lives as long as the app, and so does its observer
+        mResolver.registerContentObserver(BookContract.RESTORE_URI, false,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateAll();
+                    }
+                });
+    }
+
+    /**
+     * Show the cover of the given book in the image view, downsampled to the given size in
+     * pixels. Until it is loaded, or if the book has no cover, the view shows the placeholder.
+     */
+    public void load(long bookId, ImageView view, int sizePx, int placeholderResId) {
+        // Whatever the view was loading before is no longer wanted
+        CoverTask previous = (CoverTask) view.getTag(R.id.cover);
+        if (previous != null) {
+            if (previous.mBookId == bookId && previous.mSizePx == sizePx) {
+                return;
+            }
+            previous.cancel(true);
+            view.setTag(R.id.cover, null);
+        }
+
+        Bitmap cached = mMemoryCache.get(key(bookId, sizePx));
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageResource(placeholderResId);
+        if (mMissingCovers.contains(bookId)) {
+            return;
+        }
+
+        CoverTask task = new CoverTask(view, bookId, sizePx);
+        view.setTag(R.id.cover, task);
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Forget everything cached for the given book, after its cover has been replaced.
+     */
+    public void invalidate(long bookId) {
+        mMissingCovers.remove(bookId);
+        String prefix = bookId + "_";
+        for (String key : mMemoryCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mMemoryCache.remove(key);
+            }
+        }
+        File[] thumbnails = mThumbnailDir.listFiles();
+        if (thumbnails != null) {
+            for (File thumbnail : thumbnails) {
+                if (thumbnail.getName().startsWith(prefix)) {
+                    thumbnail.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget everything cached for every book, after a backup has been restored.
+     */
+    public void invalidateAll() {
+        mMissingCovers.clear();
+        mMemoryCache.evictAll();
+        File[] thumbnails = mThumbnailDir.listFiles();
+        if (thumbnails != null) {
+            for (File thumbnail : thumbnails) {
+                thumbnail.delete();
+            }
+        }
+    }
+
+    private static String key(long bookId, int sizePx) {
+        return bookId + "_" + sizePx;
+    }
+
+    /**
+     * Decode the image behind the URI, downsampled so that it is still at least the requested
+     * size in both dimensions. Returns null if there is no image.
+     */
+    static Bitmap decodeSampled(ContentResolver resolver, Uri uri, int sizePx) throws IOException {
+        // First pass: only read the dimensions of the image
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream in = resolver.openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Second pass: decode at the largest power of two reduction that is still big enough
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= sizePx
+                && options.outHeight / (sampleSize * 2) >= sizePx) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap;
+        in = resolver.openInputStream(uri);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null) {
+            return null;
+        }
+
+        // Scale the rest of the way, so the shorter side matches the requested size
+        int shorterSide = Math.min(bitmap.getWidth(), bitmap.getHeight());
+        if (shorterSide <= sizePx) {
+            return bitmap;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                bitmap.getWidth() * sizePx / shorterSide,
+                bitmap.getHeight() * sizePx / shorterSide, true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    /**
+     * Loads one cover, from the disk thumbnail if there is one, otherwise from the full image.
+     */
+    private class CoverTask extends AsyncTask<Void, Void, Bitmap> {
+
+        private final ImageView mView;
+        private final long mBookId;
+        private final int mSizePx;
+
+        CoverTask(ImageView view, long bookId, int sizePx) {
+            mView = view;
+            mBookId = bookId;
+            mSizePx = sizePx;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            String key = key(mBookId, mSizePx);
+            File thumbnail = new File(mThumbnailDir, key + ".jpg");
+            try {
+                Bitmap bitmap = null;
+                if (thumbnail.exists()) {
+                    bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+                }
+                if (bitmap == null && !isCancelled()) {
+                    bitmap = decodeSampled(mResolver, BookEntry.buildCoverUri(mBookId), mSizePx);
+                    if (bitmap != null && !isCancelled()) {
+                        writeThumbnail(thumbnail, bitmap);
+                    }
+                }
+                if (bitmap != null) {
+                    mMemoryCache.put(key, bitmap);
+                }
+                return bitmap;
+            } catch (FileNotFoundException e) {
+                // This book has no cover
+                mMissingCovers.add(mBookId);
+                return null;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to load cover of book " + mBookId, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            // Only show the cover if the view still belongs to this book
+            if (mView.getTag(R.id.cover) != this) {
+                return;
+            }
+            mView.setTag(R.id.cover, null);
+            if (bitmap != null) {
+                mView.setImageBitmap(bitmap);
+            }
+        }
+
+        private void writeThumbnail(File thumbnail, Bitmap bitmap) {
+            if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs()) {
+                return;
+            }
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(thumbnail);
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to write cover thumbnail " + thumbnail, e);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // The thumbnail is only a cache
+                    }
+                }
+            }
+        }
+    }
+}
@@ -17,32 +17,51 @@ package com.example.android.books;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 
+import com.example.android.books.data.BookConflictException;
+import com.example.android.books.data.BookContract;
 import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookDuplicateException;
 
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.FilterQueryProvider;
 import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.SimpleCursorAdapter;
 import android.widget.Toast;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 
 /**
  * Allows user to create a new book or edit an existing one.
@@ -50,25 +69,52 @@ import android.widget.Toast;
 public class EditorActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
+    /**
+     * Tag for the log messages
+     */
+    private static final String LOG_TAG = EditorActivity.class.getSimpleName();
+
     /**
      * Identifier for the book data loader
      */
     private static final int EXISTING_BOOK_LOADER = 0;
 
+    /**
+     * Intent extra holding a {@link Bundle} snapshot of the book row the caller already has,
+     * keyed by column name. See {@link #snapshotFromCursor(Cursor)}.
+     */
+    public static final String EXTRA_BOOK_SNAPSHOT = "com.example.android.books.extra.BOOK_SNAPSHOT";
+
+    /**
+     * Request code used when picking a cover image
+     */
+    private static final int PICK_COVER_REQUEST = 1;
+
     /**
      * Content URI for the existing book (null if it's a new book)
      */
     private Uri mCurrentBookUri;
 
+    /**
+     * Snapshot of the book values that are currently shown in the editor (null if nothing
+     * has been shown yet). Used to tell whether the loader result differs from what's on screen.
+     */
+    private Bundle mShownBook;
+
     /**
      * EditText field to enter the books's name
      */
     private EditText mNameEditText;
 
     /**
-     * EditText field to enter the books's category
+     * EditText field to enter the books's category, suggesting the existing categories
+     */
+    private AutoCompleteTextView mCategoryEditText;
+
+    /**
+     * EditText field to enter the book's ISBN
      */
-    private EditText mCategoryEditText;
+    private EditText mIsbnEditText;
 
     /**
      * EditText field to enter the book's price
@@ -81,15 +127,26 @@ public class EditorActivity extends AppCompatActivity implements
     private EditText mQuantityEditText;
 
     /**
-     * EditText field to enter the supplier name
+     * EditText field to enter the supplier name, suggesting the existing suppliers
      */
-    private EditText mSupplierNameEditText;
+    private AutoCompleteTextView mSupplierNameEditText;
 
     /**
      * EditText field to enter the supplier phone number
      */
     private EditText mSupplierNumberEditText;
 
+    /**
+     * Shows the book cover, tap it to pick another one
+     */
+    private ImageView mCoverImageView;
+
+    /**
+     * Image picked as the new cover, copied into the provider when the book is saved
+     * (null if the cover wasn't changed)
+     */
+    private Uri mPendingCoverUri;
+
     /**
      * Button to increase quantity field by 1
      */
@@ -148,11 +205,43 @@ public class EditorActivity extends AppCompatActivity implements
         // Find all relevant views that we will need to read user input from
         mNameEditText = findViewById(R.id.edit_book_name);
         mCategoryEditText = findViewById(R.id.edit_book_category);
+        mIsbnEditText = findViewById(R.id.edit_book_isbn);
         mPriceEditText = findViewById(R.id.edit_book_price);
         mQuantityEditText = findViewById(R.id.edit_book_quantity);
         mSupplierNameEditText = findViewById(R.id.edit_supplier_name);
         mSupplierNumberEditText = findViewById(R.id.edit_supplier_number);
 
+        // Suggest the values already in use, so the same supplier isn't typed in five ways
+        setUpSuggestions(mCategoryEditText, BookEntry.COLUMN_BOOK_CATEGORY);
+        setUpSuggestions(mSupplierNameEditText, BookEntry.COLUMN_SUPPLIER_NAME);
+
+        // Show the current cover and let the user pick a new one
+        mCoverImageView = findViewById(R.id.edit_book_cover);
+        if (mCurrentBookUri != null) {
+            CoverLoader.get(this).load(ContentUris.parseId(mCurrentBookUri), mCoverImageView,
+                    getResources().getDimensionPixelSize(R.dimen.editor_cover_size),
+                    R.drawable.ic_empty_shelf);
+        }
+        mCoverImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                pickIntent.setType("image/*");
+                startActivityForResult(Intent.createChooser(pickIntent, getString(R.string.pick_cover)),
+                        PICK_COVER_REQUEST);
+            }
+        });
+
+        // If the catalog handed us the row it already had in memory, show it right away.
+        // The loader started above will still check it against the provider and only
+        // touch the fields if the data has changed in the meantime.
+        if (mCurrentBookUri != null) {
+            Bundle snapshot = intent.getBundleExtra(EXTRA_BOOK_SNAPSHOT);
+            if (snapshot != null) {
+                showBook(snapshot);
+            }
+        }
+
         //add and subtract buttons
         mIncreaseQuantityButton = findViewById(R.id.plus);
         mDecreaseQuantityButton = findViewById(R.id.minus);
@@ -179,6 +268,7 @@ public class EditorActivity extends AppCompatActivity implements
         // or not, if the user tries to leave the editor without saving.
         mNameEditText.setOnTouchListener(mTouchListener);
         mCategoryEditText.setOnTouchListener(mTouchListener);
+        mIsbnEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mQuantityEditText.setOnTouchListener(mTouchListener);
         mSupplierNameEditText.setOnTouchListener(mTouchListener);
@@ -217,6 +307,110 @@ public class EditorActivity extends AppCompatActivity implements
 
     }
 
+    /**
+     * Let the field suggest the values of the column starting with what has been typed. The
+     * filter runs on a background thread, and the provider answers it from memory.
+     */
+    private void setUpSuggestions(AutoCompleteTextView field, final String column) {
+        SimpleCursorAdapter adapter = new SimpleCursorAdapter(this,
+                android.R.layout.simple_dropdown_item_1line, null,
+                new String[]{BookEntry.COLUMN_SUGGESTION}, new int[]{android.R.id.text1}, 0);
+        adapter.setFilterQueryProvider(new FilterQueryProvider() {
+            @Override
+            public Cursor runQuery(CharSequence constraint) {
+                return getContentResolver().query(BookEntry.buildSuggestionsUri(column,
+                        constraint == null ? null : constraint.toString()), null, null, null, null);
+            }
+        });
+        adapter.setCursorToStringConverter(new SimpleCursorAdapter.CursorToStringConverter() {
+            @Override
+            public CharSequence convertToString(Cursor cursor) {
+                return cursor.getString(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_SUGGESTION));
+            }
+        });
+        field.setAdapter(adapter);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != PICK_COVER_REQUEST || resultCode != RESULT_OK || data == null
+                || data.getData() == null) {
+            return;
+        }
+        mPendingCoverUri = data.getData();
+        mBookHasChanged = true;
+
+        // Decode a preview of the picked image off the main thread, at the size it is shown
+        final int sizePx = getResources().getDimensionPixelSize(R.dimen.editor_cover_size);
+        new AsyncTask<Uri, Void, Bitmap>() {
+            @Override
+            protected Bitmap doInBackground(Uri... uris) {
+                try {
+                    return CoverLoader.decodeSampled(getContentResolver(), uris[0], sizePx);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to decode cover " + uris[0], e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap bitmap) {
+                if (bitmap != null) {
+                    mCoverImageView.setImageBitmap(bitmap);
+                }
+            }
+        }.execute(mPendingCoverUri);
+    }
+
+    /**
+     * Copy the picked cover image into the provider as the cover of the given book, on a
+     * background thread. Does nothing if no new cover was picked.
+     */
+    private void saveCover(final long bookId) {
+        if (mPendingCoverUri == null) {
+            return;
+        }
+        final Uri source = mPendingCoverUri;
+        final Context context = getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ContentResolver resolver = context.getContentResolver();
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    in = resolver.openInputStream(source);
+                    out = resolver.openOutputStream(BookEntry.buildCoverUri(bookId));
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to save cover of book " + bookId, e);
+                } finally {
+                    closeQuietly(in);
+                    closeQuietly(out);
+                }
+
+                // Drop the old cover from the caches and let the lists show the new one
+                CoverLoader.get(context).invalidate(bookId);
+                resolver.notifyChange(BookEntry.CONTENT_URI, null);
+            }
+        }, "SaveCover").start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing useful to do about it
+            }
+        }
+    }
+
     /**
      * Get user input from editor and save book into database.
      */
@@ -225,6 +419,7 @@ public class EditorActivity extends AppCompatActivity implements
         // Use trim to eliminate leading or trailing white space
         String nameString = mNameEditText.getText().toString().trim();
         String categoryString = mCategoryEditText.getText().toString().trim();
+        String isbnString = mIsbnEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String quantityString = mQuantityEditText.getText().toString().trim();
         String supplierNameString = mSupplierNameEditText.getText().toString().trim();
@@ -234,7 +429,7 @@ public class EditorActivity extends AppCompatActivity implements
         // and check if all the fields in the editor are blank
         if (mCurrentBookUri == null &&
                 TextUtils.isEmpty(nameString) && TextUtils.isEmpty(categoryString) &&
-                TextUtils.isEmpty(priceString) && TextUtils.isEmpty(quantityString) &&
+                TextUtils.isEmpty(isbnString) && TextUtils.isEmpty(priceString) && TextUtils.isEmpty(quantityString) &&
                 TextUtils.isEmpty(supplierNameString) && TextUtils.isEmpty(supplierNumberString)) {
             // Since no fields were modified, we can return early without creating a new book.
             // No need to create ContentValues and no need to do any ContentProvider operations.
@@ -254,12 +449,22 @@ public class EditorActivity extends AppCompatActivity implements
                 Toast.makeText(this, R.string.fields_not_filled, Toast.LENGTH_SHORT).show();
                 return;
             } else {
+                // The ISBN is optional, but if it's there it has to be a valid one
+                String isbn;
+                try {
+                    isbn = BookEntry.normalizeIsbn(isbnString);
+                } catch (IllegalArgumentException e) {
+                    Toast.makeText(this, R.string.editor_invalid_isbn, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+
                 int price = Integer.parseInt(priceString);
                 int quantity = Integer.parseInt(quantityString);
                 int supplierNumber = Integer.parseInt(supplierNumberString);
 
                 values.put(BookEntry.COLUMN_BOOK_NAME, nameString);
                 values.put(BookEntry.COLUMN_BOOK_CATEGORY, categoryString);
+                values.put(BookEntry.COLUMN_BOOK_ISBN, isbn);
                 values.put(BookEntry.COLUMN_BOOK_PRICE, price);
                 values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity);
                 values.put(BookEntry.COLUMN_SUPPLIER_NAME, supplierNameString);
@@ -269,26 +474,58 @@ public class EditorActivity extends AppCompatActivity implements
 
             // Determine if this is a new or existing book by checking if mCurrentBookUri is null or not
             if (mCurrentBookUri == null) {
-                // This is a NEW book, so insert a new book into the provider,
-                // returning the content URI for the new book.
-                Uri newUri = getContentResolver().insert(BookEntry.CONTENT_URI, values);
-
-                // Show a toast message depending on whether or not the insertion was successful.
-                if (newUri == null) {
-                    // If the new content URI is null, then there was an error with insertion.
-                    Toast.makeText(this, getString(R.string.editor_insert_book_failed),
-                            Toast.LENGTH_SHORT).show();
-                } else {
-                    // Otherwise, the insertion was successful and we can display a toast.
-                    Toast.makeText(this, getString(R.string.editor_insert_book_successful),
-                            Toast.LENGTH_SHORT).show();
+                // This is a NEW book, so insert a new book into the provider, unless it looks
+                // like a book that is already in the catalog.
+                try {
+                    if (!insertBook(BookEntry.buildInsertUri(BookContract.ON_DUPLICATE_REJECT),
+                            values, R.string.editor_insert_book_successful)) {
+                        return;
+                    }
+                } catch (BookDuplicateException e) {
+                    showDuplicateDialog(values);
+                    return;
                 }
             } else {
                 // Otherwise this is an EXISTING book, so update the book with content URI: mCurrentBookUri
                 // and pass in the new ContentValues. Pass in null for the selection and selection args
                 // because mCurrentBookUri will already identify the correct row in the database that
                 // we want to modify.
-                int rowsAffected = getContentResolver().update(mCurrentBookUri, values, null, null);
+                // If we know which version of the book the user started from, only save if
+                // nobody else changed the book in the meantime.
+                Uri updateUri = mCurrentBookUri;
+                if (mShownBook != null && mShownBook.containsKey(BookEntry.COLUMN_BOOK_VERSION)) {
+                    updateUri = BookEntry.buildConditionalUri(ContentUris.parseId(mCurrentBookUri),
+                            mShownBook.getLong(BookEntry.COLUMN_BOOK_VERSION));
+                }
+                int rowsAffected;
+                try {
+                    rowsAffected = getContentResolver().update(updateUri, values, null, null);
+                } catch (BookConflictException e) {
+                    if (e.getCurrentVersion() == -1) {
+                        // The book has been deleted meanwhile
+                        Toast.makeText(this, getString(R.string.editor_update_book_failed),
+                                Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    // Keep the form as typed, and let the user decide whether to save it over
+                    // the other changes. The form no longer matches the stored book, so the
+                    // loader mustn't replace it either.
+                    mBookHasChanged = true;
+                    mShownBook.putLong(BookEntry.COLUMN_BOOK_VERSION, e.getCurrentVersion());
+                    showConflictDialog();
+                    return;
+                } catch (SQLiteConstraintException e) {
+                    // The only unique column besides the id is the ISBN
+                    Toast.makeText(this, getString(R.string.editor_isbn_taken),
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                } catch (IllegalArgumentException e) {
+                    // The form is checked already, so it's a quantity below the copies the
+                    // book has at its locations
+                    Toast.makeText(this, getString(R.string.editor_quantity_at_locations),
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
 
                 // Show a toast message depending on whether or not the update was successful.
                 if (rowsAffected == 0) {
@@ -299,12 +536,90 @@ public class EditorActivity extends AppCompatActivity implements
                     // Otherwise, the update was successful and we can display a toast.
                     Toast.makeText(this, getString(R.string.editor_update_book_successful),
                             Toast.LENGTH_SHORT).show();
+                    saveCover(ContentUris.parseId(mCurrentBookUri));
                 }
             }
         }
         finish();
     }
 
+    /**
+     * Insert the book with the given insert URI and show a toast with the outcome.
+     *
+     * @return true if the book was saved, false if the form should stay open to fix it
+     */
+    private boolean insertBook(Uri insertUri, ContentValues values, int successMessage) {
+        Uri newUri;
+        try {
+            newUri = getContentResolver().insert(insertUri, values);
+        } catch (SQLiteConstraintException e) {
+            // The only unique column besides the id is the ISBN
+            Toast.makeText(this, getString(R.string.editor_isbn_taken),
+                    Toast.LENGTH_SHORT).show();
+            return false;
+        }
+
+        // Show a toast message depending on whether or not the insertion was successful.
+        if (newUri == null) {
+            // If the new content URI is null, then there was an error with insertion.
+            Toast.makeText(this, getString(R.string.editor_insert_book_failed),
+                    Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        // Otherwise, the insertion was successful and we can display a toast.
+        Toast.makeText(this, getString(successMessage), Toast.LENGTH_SHORT).show();
+        saveCover(ContentUris.parseId(newUri));
+        return true;
+    }
+
+    /**
+     * The new book has the same name and supplier as a book in the catalog, ask whether to add
+     * its copies to that book or to save it as a separate book anyway.
+     */
+    private void showDuplicateDialog(final ContentValues values) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.editor_duplicate_title);
+        builder.setMessage(getString(R.string.editor_duplicate_msg,
+                values.getAsString(BookEntry.COLUMN_BOOK_NAME),
+                values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME)));
+        builder.setPositiveButton(R.string.editor_duplicate_merge, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (insertBook(BookEntry.buildInsertUri(BookContract.ON_DUPLICATE_MERGE), values,
+                        R.string.editor_duplicate_merged)) {
+                    finish();
+                }
+            }
+        });
+        builder.setNegativeButton(R.string.editor_duplicate_keep, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                if (insertBook(BookEntry.CONTENT_URI, values,
+                        R.string.editor_insert_book_successful)) {
+                    finish();
+                }
+            }
+        });
+        builder.setNeutralButton(R.string.keep_editing, null);
+        builder.create().show();
+    }
+
+    /**
+     * The book was changed somewhere else since it was shown, ask whether to save the values of
+     * the form over those changes. The form now stands for the latest version, so saving again
+     * overwrites them unless the book changes once more.
+     */
+    private void showConflictDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.editor_conflict_title);
+        builder.setMessage(R.string.editor_conflict_msg);
+        builder.setPositiveButton(R.string.editor_conflict_overwrite, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                saveBook();
+            }
+        });
+        builder.setNegativeButton(R.string.keep_editing, null);
+        builder.create().show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -388,10 +703,12 @@ public class EditorActivity extends AppCompatActivity implements
                 BookEntry._ID,
                 BookEntry.COLUMN_BOOK_NAME,
                 BookEntry.COLUMN_BOOK_CATEGORY,
+                BookEntry.COLUMN_BOOK_ISBN,
                 BookEntry.COLUMN_BOOK_PRICE,
                 BookEntry.COLUMN_BOOK_QUANTITY,
                 BookEntry.COLUMN_SUPPLIER_NAME,
-                BookEntry.COLUMN_SUPPLIER_NUMBER
+                BookEntry.COLUMN_SUPPLIER_NUMBER,
+                BookEntry.COLUMN_BOOK_VERSION
         };
 
         // This loader will execute the ContentProvider's query method on a background thread
@@ -413,29 +730,20 @@ public class EditorActivity extends AppCompatActivity implements
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
-            // Find the columns of book attributes that we're interested in
-            int nameColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_NAME);
-            int categoryColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_CATEGORY);
-            int priceColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_PRICE);
-            int quantityColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_QUANTITY);
-            int supplierNameColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_SUPPLIER_NAME);
-            int supplierNumberColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_SUPPLIER_NUMBER);
-
-            // Extract out the value from the Cursor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String category = cursor.getString(categoryColumnIndex);
-            int price = cursor.getInt(priceColumnIndex);
-            int quantity = cursor.getInt(quantityColumnIndex);
-            String supplierName = cursor.getString(supplierNameColumnIndex);
-            int supplierNumber = cursor.getInt(supplierNumberColumnIndex);
+            Bundle book = snapshotFromCursor(cursor);
+
+            // Nothing to do if the provider agrees with what's already on the screen
+            if (mShownBook != null && sameBook(mShownBook, book)) {
+                return;
+            }
+
+            // Don't overwrite anything the user has started typing
+            if (mBookHasChanged) {
+                return;
+            }
 
             // Update the views on the screen with the values from the database
-            mNameEditText.setText(name);
-            mCategoryEditText.setText(category);
-            mPriceEditText.setText(Integer.toString(price));
-            mQuantityEditText.setText(Integer.toString(quantity));
-            mSupplierNameEditText.setText(supplierName);
-            mSupplierNumberEditText.setText(Integer.toString(supplierNumber));
+            showBook(book);
         }
     }
 
@@ -444,11 +752,93 @@ public class EditorActivity extends AppCompatActivity implements
         // If the loader is invalidated, clear out all the data from the input fields.
         mNameEditText.setText("");
         mCategoryEditText.setText("");
+        mIsbnEditText.setText("");
         mPriceEditText.setText("");
         mQuantityEditText.setText("");
         mSupplierNameEditText.setText("");
         mSupplierNumberEditText.setText("");
+        mShownBook = null;
+
+    }
+
+    /**
+     * Copy the book attributes of the row the cursor is currently pointing at into a compact
+     * {@link Bundle} keyed by column name. Columns missing from the cursor are left out.
+     *
+     * @param cursor positioned on the book row
+     * @return the book snapshot, suitable for {@link #EXTRA_BOOK_SNAPSHOT}
+     */
+    public static Bundle snapshotFromCursor(Cursor cursor) {
+        Bundle book = new Bundle();
+        putString(book, cursor, BookEntry.COLUMN_BOOK_NAME);
+        putString(book, cursor, BookEntry.COLUMN_BOOK_CATEGORY);
+        putString(book, cursor, BookEntry.COLUMN_BOOK_ISBN);
+        putInt(book, cursor, BookEntry.COLUMN_BOOK_PRICE);
+        putInt(book, cursor, BookEntry.COLUMN_BOOK_QUANTITY);
+        putString(book, cursor, BookEntry.COLUMN_SUPPLIER_NAME);
+        putInt(book, cursor, BookEntry.COLUMN_SUPPLIER_NUMBER);
+        int versionColumnIndex = cursor.getColumnIndex(BookEntry.COLUMN_BOOK_VERSION);
+        if (versionColumnIndex != -1) {
+            book.putLong(BookEntry.COLUMN_BOOK_VERSION, cursor.getLong(versionColumnIndex));
+        }
+        return book;
+    }
+
+    private static void putString(Bundle book, Cursor cursor, String column) {
+        int columnIndex = cursor.getColumnIndex(column);
+        if (columnIndex != -1) {
+            book.putString(column, cursor.getString(columnIndex));
+        }
+    }
+
+    private static void putInt(Bundle book, Cursor cursor, String column) {
+        int columnIndex = cursor.getColumnIndex(column);
+        if (columnIndex != -1) {
+            book.putInt(column, cursor.getInt(columnIndex));
+        }
+    }
+
+    /**
+     * Returns true if both snapshots hold the same value for every column they contain.
+     */
+    private static boolean sameBook(Bundle a, Bundle b) {
+        if (!a.keySet().equals(b.keySet())) {
+            return false;
+        }
+        for (String column : a.keySet()) {
+            if (!TextUtils.equals(String.valueOf(a.get(column)), String.valueOf(b.get(column)))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    /**
+     * Fill the input fields with the values of the given book snapshot.
+     */
+    private void showBook(Bundle book) {
+        if (book.containsKey(BookEntry.COLUMN_BOOK_NAME)) {
+            mNameEditText.setText(book.getString(BookEntry.COLUMN_BOOK_NAME));
+        }
+        if (book.containsKey(BookEntry.COLUMN_BOOK_CATEGORY)) {
+            mCategoryEditText.setText(book.getString(BookEntry.COLUMN_BOOK_CATEGORY));
+        }
+        if (book.containsKey(BookEntry.COLUMN_BOOK_ISBN)) {
+            mIsbnEditText.setText(book.getString(BookEntry.COLUMN_BOOK_ISBN));
+        }
+        if (book.containsKey(BookEntry.COLUMN_BOOK_PRICE)) {
+            mPriceEditText.setText(Integer.toString(book.getInt(BookEntry.COLUMN_BOOK_PRICE)));
+        }
+        if (book.containsKey(BookEntry.COLUMN_BOOK_QUANTITY)) {
+            mQuantityEditText.setText(Integer.toString(book.getInt(BookEntry.COLUMN_BOOK_QUANTITY)));
+        }
+        if (book.containsKey(BookEntry.COLUMN_SUPPLIER_NAME)) {
+            mSupplierNameEditText.setText(book.getString(BookEntry.COLUMN_SUPPLIER_NAME));
+        }
+        if (book.containsKey(BookEntry.COLUMN_SUPPLIER_NUMBER)) {
+            mSupplierNumberEditText.setText(Integer.toString(book.getInt(BookEntry.COLUMN_SUPPLIER_NUMBER)));
+        }
+        mShownBook = book;
     }
 
     /**
@@ -0,0 +1,166 @@
+package com.example.android.books.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link BookStore} of the app, on the Android SQLite database of {@link BookProvider}.
+ * Writes go through the provider's {@link BookWriteScheduler}, so they are committed together
+ * with the provider's own writes, and reads use the readable database like the provider's
+ * queries do.
+ * <p>
+ * The provider writes the books through here too: the methods that take a
+ * {@link SQLiteDatabase} run the statements of {@link SqlBookStore} in a write the provider is
+ * already running, which adds its own changes around them (suggestions, stock per location,
+ * duplicates). They don't notify the listeners, the provider notifies its own URIs.
+ * <p>
+ * The store only keeps the books themselves. The typeahead suggestions of the provider are not
+ * updated by the {@link BookStore} writes, so they're meant for changes that don't touch the
+ * categories or the suppliers, such as the stock.
+ */
+class AndroidBookStore extends SqlBookStore {
+
+    private final BookDbHelper mDbHelper;
+    private final BookWriteScheduler mWriteScheduler;
+
+    AndroidBookStore(BookDbHelper dbHelper, BookWriteScheduler writeScheduler) {
+        mDbHelper = dbHelper;
+        mWriteScheduler = writeScheduler;
+    }
+
+    @Override
+    protected <T> T inTransaction(final Transaction<T> transaction) {
+        return mWriteScheduler.execute(new BookWriteScheduler.Write<T>() {
+            @Override
+            public T apply(SQLiteDatabase database) {
+                return transaction.run(new AndroidDatabase(database));
+            }
+        });
+    }
+
+    @Override
+    protected <T> T read(Transaction<T> transaction) {
+        return transaction.run(new AndroidDatabase(mDbHelper.getReadableDatabase()));
+    }
+
+    /**
+     * Insert a new book in the running write, see {@link SqlBookStore#insertBook}.
+     */
+    long insert(SQLiteDatabase database, Book book, long now) {
+        return insertBook(new AndroidDatabase(database), book, now);
+    }
+
+    /**
+     * Returns the book with the given id as seen by the running write, null if there is none.
+     */
+    Book get(SQLiteDatabase database, long id) {
+        return getBook(new AndroidDatabase(database), id);
+    }
+
+    /**
+     * Replace the values of a stored book in the running write, see
+     * {@link SqlBookStore#updateBook}.
+     */
+    long update(SQLiteDatabase database, Book stored, Book book, String reason, long now) {
+        return updateBook(new AndroidDatabase(database), stored, book, reason, now);
+    }
+
+    /**
+     * Delete the books matching the selection in the running write, and return how many there
+     * were.
+     */
+    int delete(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        return deleteBooks(new AndroidDatabase(database), selection,
+                selectionArgs == null ? new Object[0] : selectionArgs);
+    }
+
+    /**
+     * Adjust the stock of a book in the running write, see {@link SqlBookStore#adjustStock}.
+     */
+    int adjustStock(SQLiteDatabase database, long id, int delta, String reason, long now) {
+        return adjustStock(new AndroidDatabase(database), id, delta, reason, now);
+    }
+
+    /**
+     * Runs the statements on a {@link SQLiteDatabase}
+     */
+    private static class AndroidDatabase implements Database {
+        private final SQLiteDatabase mDatabase;
+
+        AndroidDatabase(SQLiteDatabase database) {
+            mDatabase = database;
+        }
+
+        @Override
+        public long insert(String sql, Object... args) {
+            SQLiteStatement statement = compile(sql, args);
+            try {
+                return statement.executeInsert();
+            } finally {
+                statement.close();
+            }
+        }
+
+        @Override
+        public int update(String sql, Object... args) {
+            SQLiteStatement statement = compile(sql, args);
+            try {
+                return statement.executeUpdateDelete();
+            } finally {
+                statement.close();
+            }
+        }
+
+        @Override
+        public List<Book> queryBooks(String sql, Object... args) {
+            Cursor cursor = mDatabase.rawQuery(sql, toStrings(args));
+            try {
+                List<Book> books = new ArrayList<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    books.add(new Book(cursor.getLong(0), cursor.getString(1),
+                            cursor.getString(2), cursor.getInt(3), cursor.getInt(4),
+                            cursor.getString(5), cursor.getInt(6), cursor.getString(7),
+                            cursor.getLong(8), cursor.getLong(9)));
+                }
+                return books;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public long queryLong(String sql, long defaultValue, Object... args) {
+            Cursor cursor = mDatabase.rawQuery(sql, toStrings(args));
+            try {
+                return cursor.moveToFirst() ? cursor.getLong(0) : defaultValue;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private SQLiteStatement compile(String sql, Object[] args) {
+            SQLiteStatement statement = mDatabase.compileStatement(sql);
+            for (int i = 0; i < args.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, args[i]);
+            }
+            return statement;
+        }
+
+        /**
+         * Returns the query arguments as strings, the way a query takes them. SQLite applies
+         * the affinity of the column, so numbers still compare as numbers.
+         */
+        private static String[] toStrings(Object[] args) {
+            String[] strings = new String[args.length];
+            for (int i = 0; i < args.length; i++) {
+                strings[i] = args[i] == null ? null : String.valueOf(args[i]);
+            }
+            return strings;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.books.data;
+
+import android.content.ContentResolver;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the books matching a selection from the books table into the archive, in small chunks,
+ * each one a separate write on the {@link BookWriteScheduler}. Every chunk copies the rows into
+ * the archive and deletes them from the books table in the same transaction, so a book is always
+ * in exactly one of the two tables.
+ * <p>
+ * Keeping the dead titles out of the books table keeps the catalog queries, the snapshot and
+ * the indexes proportional to the books that are actually on sale.
+ */
+class ArchiveJob implements Runnable {
+
+    private static final String LOG_TAG = ArchiveJob.class.getSimpleName();
+
+    /**
+     * Number of rows moved per transaction
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    private final BookWriteScheduler mWriteScheduler;
+    private final SuggestionIndex mSuggestions;
+    private final ContentResolver mResolver;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    ArchiveJob(BookWriteScheduler writeScheduler, SuggestionIndex suggestions,
+               ContentResolver resolver, String selection, String[] selectionArgs) {
+        mWriteScheduler = writeScheduler;
+        mSuggestions = suggestions;
+        mResolver = resolver;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+    }
+
+    /**
+     * Returns a job applying the archive policy: it archives the books that are sold out and
+     * haven't changed for the given number of days.
+     */
+    static ArchiveJob forPolicy(BookWriteScheduler writeScheduler, SuggestionIndex suggestions,
+                                ContentResolver resolver, int idleDays) {
+        if (idleDays < 0) {
+            throw new IllegalArgumentException("archive requires a positive number of days");
+        }
+        long changedBefore = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(idleDays);
+        return new ArchiveJob(writeScheduler, suggestions, resolver,
+                BookEntry.COLUMN_BOOK_QUANTITY + "=0 AND "
+                        + BookEntry.COLUMN_BOOK_UPDATED_AT + "<?",
+                new String[]{String.valueOf(changedBefore)});
+    }
+
+    @Override
+    public void run() {
+        // The same chunk of rows is picked twice in one transaction, once to copy and once to
+        // delete, so it has to be picked in a stable order.
+        final String chunkIds = "SELECT " + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME
+                + (TextUtils.isEmpty(mSelection) ? "" : " WHERE " + mSelection)
+                + " ORDER BY " + BookEntry._ID + " LIMIT " + CHUNK_SIZE;
+        String columns = TextUtils.join(", ", BookDbHelper.BOOK_COLUMNS);
+        final String copyChunk = "INSERT INTO " + BookEntry.ARCHIVE_TABLE_NAME
+                + " (" + columns + ", " + BookEntry.COLUMN_ARCHIVED_AT + ")"
+                + " SELECT " + columns + ", ? FROM " + BookEntry.TABLE_NAME
+                + " WHERE " + BookEntry._ID + " IN (" + chunkIds + ")";
+
+        final Object[] copyArgs = new Object[1 + (mSelectionArgs == null ? 0 : mSelectionArgs.length)];
+        if (mSelectionArgs != null) {
+            System.arraycopy(mSelectionArgs, 0, copyArgs, 1, mSelectionArgs.length);
+        }
+        final String chunkWhere = BookEntry._ID + " IN (" + chunkIds + ")";
+        final SuggestionIndex.Delta[] suggestions = new SuggestionIndex.Delta[1];
+        BookWriteScheduler.Write<Integer> moveChunk = new BookWriteScheduler.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase database) {
+                copyArgs[0] = System.currentTimeMillis();
+                database.execSQL(copyChunk, copyArgs);
+                suggestions[0] = mSuggestions.removed(database, chunkWhere, mSelectionArgs);
+                return database.delete(BookEntry.TABLE_NAME, chunkWhere, mSelectionArgs);
+            }
+        };
+
+        int archived = 0;
+        try {
+            int moved;
+            do {
+                moved = mWriteScheduler.execute(moveChunk);
+                mSuggestions.apply(suggestions[0]);
+                archived += moved;
+            } while (moved == CHUNK_SIZE);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Archiving failed after " + archived + " rows", e);
+        }
+
+        if (archived > 0) {
+            // Let the book lists reload once, now that the books have moved
+            mResolver.notifyChange(BookContract.NAMES_URI, null);
+            mResolver.notifyChange(BookEntry.CONTENT_URI, null);
+            Log.i(LOG_TAG, "Archived " + archived + " books");
+        }
+    }
+}
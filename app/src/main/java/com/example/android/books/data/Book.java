@@ -0,0 +1,114 @@
+package com.example.android.books.data;
+
+/**
+ * One book, as read from and written to a {@link BookStore}. Unlike the rows of the provider it
+ * doesn't depend on any Android class, so the stores can be used on a plain JVM.
+ */
+public final class Book {
+
+    /**
+     * The version of a book that was never stored. Updating a book at this version doesn't
+     * check the version the stored book is at.
+     */
+    public static final long NO_VERSION = 0;
+
+    private final long mId;
+    private final String mName;
+    private final String mCategory;
+    private final int mPrice;
+    private final int mQuantity;
+    private final String mSupplierName;
+    private final int mSupplierNumber;
+    private final String mIsbn;
+    private final long mVersion;
+    private final long mUpdatedAt;
+
+    /**
+     * Constructs a new book, to be inserted into a store.
+     */
+    public Book(String name, String category, int price, int quantity, String supplierName,
+                int supplierNumber, String isbn) {
+        this(0, name, category, price, quantity, supplierName, supplierNumber, isbn, NO_VERSION,
+                0);
+    }
+
+    /**
+     * Constructs a stored book, or the changes of one with the version they were made on.
+     */
+    public Book(long id, String name, String category, int price, int quantity,
+                String supplierName, int supplierNumber, String isbn, long version,
+                long updatedAt) {
+        mId = id;
+        mName = name;
+        mCategory = category;
+        mPrice = price;
+        mQuantity = quantity;
+        mSupplierName = supplierName;
+        mSupplierNumber = supplierNumber;
+        mIsbn = isbn;
+        mVersion = version;
+        mUpdatedAt = updatedAt;
+    }
+
+    /**
+     * Returns a copy of this book with another stock, for an update.
+     */
+    public Book withQuantity(int quantity) {
+        return new Book(mId, mName, mCategory, mPrice, quantity, mSupplierName, mSupplierNumber,
+                mIsbn, mVersion, mUpdatedAt);
+    }
+
+    /**
+     * Returns a copy of this book with another price, for an update.
+     */
+    public Book withPrice(int price) {
+        return new Book(mId, mName, mCategory, price, mQuantity, mSupplierName, mSupplierNumber,
+                mIsbn, mVersion, mUpdatedAt);
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getCategory() {
+        return mCategory;
+    }
+
+    public int getPrice() {
+        return mPrice;
+    }
+
+    public int getQuantity() {
+        return mQuantity;
+    }
+
+    public String getSupplierName() {
+        return mSupplierName;
+    }
+
+    public int getSupplierNumber() {
+        return mSupplierNumber;
+    }
+
+    public String getIsbn() {
+        return mIsbn;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public long getUpdatedAt() {
+        return mUpdatedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "Book " + mId + " \"" + mName + "\" v" + mVersion + ", " + mQuantity + " at "
+                + mPrice;
+    }
+}
@@ -0,0 +1,408 @@
+package com.example.android.books.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Backs up the books database to a gzip stream, and restores it from one, while the app keeps
+ * running.
+ * <p>
+ * A backup is a plain copy of the database file, which is only consistent as long as nothing
+ * writes to the file. In write-ahead logging mode commits only go to the log, and the file
+ * itself is only written by checkpoints, so the backup turns off automatic checkpoints, folds
+ * the log into the file with one checkpoint, and then copies the file {@link #STEP_PAGES} pages
+ * at a time. Readers and writers keep going meanwhile, the log just grows until the copy is
+ * done and checkpoints are back on. Without write-ahead logging (API 15) the file is copied on
+ * the writer thread instead, so writes wait for the copy.
+ * <p>
+ * A restore unpacks the stream next to the database, checks it is an intact books database
+ * no newer than the app, and upgrades it if it comes from an older version of the app. Only
+ * then are its rows copied over those of the database, in a single write on the writer thread.
+ * The database stays open all along: readers keep seeing the old rows until the copy commits,
+ * and cursors that are still open keep working. (Attaching the copy to the database instead
+ * would turn write-ahead logging off.)
+ */
+class BookBackup {
+
+    private static final String LOG_TAG = BookBackup.class.getSimpleName();
+
+    /**
+     * Number of database pages copied per step
+     */
+    private static final int STEP_PAGES = 256;
+
+    /**
+     * Every SQLite database file starts with this header
+     */
+    private static final byte[] SQLITE_HEADER =
+            "SQLite format 3\u0000".getBytes(Charset.forName("US-ASCII"));
+
+    private static final String RESTORE_SUFFIX = ".restore";
+
+    private final BookDbHelper mDbHelper;
+    private final BookWriteScheduler mWriteScheduler;
+
+    BookBackup(BookDbHelper dbHelper, BookWriteScheduler writeScheduler) {
+        mDbHelper = dbHelper;
+        mWriteScheduler = writeScheduler;
+    }
+
+    /**
+     * Write a compressed copy of the database to the stream and return the result as described
+     * in {@link BookContract#METHOD_BACKUP}. The stream is left open.
+     */
+    synchronized Bundle backup(OutputStream out) throws IOException {
+        long start = System.currentTimeMillis();
+        final File file = databaseFile();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        long bytes;
+
+        String journalMode = DatabaseUtils.stringForQuery(mDbHelper.getReadableDatabase(),
+                "PRAGMA journal_mode", null);
+        if ("wal".equalsIgnoreCase(journalMode)) {
+            final long autoCheckpoint = stopCheckpoints();
+            try {
+                checkpoint();
+                bytes = copy(file, gzip);
+            } finally {
+                mWriteScheduler.execute(new BookWriteScheduler.Write<Void>() {
+                    @Override
+                    public Void apply(SQLiteDatabase database) {
+                        setAutoCheckpoint(database, autoCheckpoint);
+                        return null;
+                    }
+                });
+            }
+        } else {
+            // The file changes with every commit, hold the writes off while copying it
+            final GZIPOutputStream target = gzip;
+            bytes = mWriteScheduler.executeAlone(new BookWriteScheduler.Write<Long>() {
+                @Override
+                public Long apply(SQLiteDatabase database) {
+                    try {
+                        return copy(file, target);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Can't copy " + file, e);
+                    }
+                }
+            });
+        }
+        gzip.finish();
+        gzip.flush();
+
+        Bundle result = new Bundle();
+        result.putLong(BookContract.EXTRA_BYTES, bytes);
+        Log.i(LOG_TAG, "Backed up " + bytes + " bytes in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * Turn off automatic checkpoints and return the previous interval. All the writes run on the
+     * connection of the writer thread, so the only one that checkpoints is that one, and a
+     * transaction is the only way to make sure the pragma runs there.
+     */
+    private long stopCheckpoints() {
+        return mWriteScheduler.execute(new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                long autoCheckpoint = DatabaseUtils.longForQuery(database,
+                        "PRAGMA wal_autocheckpoint", null);
+                setAutoCheckpoint(database, 0);
+                return autoCheckpoint;
+            }
+        });
+    }
+
+    private static void setAutoCheckpoint(SQLiteDatabase database, long pages) {
+        Cursor cursor = database.rawQuery("PRAGMA wal_autocheckpoint=" + pages, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copy every committed change from the log into the database file. It can't run in a
+     * transaction, and it waits for the readers that are still on older data.
+     */
+    private void checkpoint() {
+        long busy = mWriteScheduler.executeAlone(new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                // Returns busy, log frames and checkpointed frames, busy is 1 if it didn't finish
+                return DatabaseUtils.longForQuery(database, "PRAGMA wal_checkpoint(FULL)", null);
+            }
+        });
+        if (busy != 0) {
+            throw new IllegalStateException("Can't checkpoint the database, it is busy");
+        }
+    }
+
+    /**
+     * Copy the database file to the stream, a few pages at a time, and return its size.
+     */
+    private long copy(File file, OutputStream out) throws IOException {
+        long pageSize = DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                "PRAGMA page_size", null);
+        byte[] buffer = new byte[(int) pageSize * STEP_PAGES];
+        long bytes = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                bytes += read;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Replace the database with the compressed copy read from the stream and return the result
+     * as described in {@link BookContract#METHOD_RESTORE}. The stream is left open. If the copy
+     * isn't a valid books database, the database is left alone.
+     */
+    synchronized Bundle restore(InputStream in) throws IOException {
+        File file = databaseFile();
+        File restored = new File(file.getPath() + RESTORE_SUFFIX);
+        try {
+            unpack(in, restored);
+            validate(restored);
+
+            final SQLiteDatabase source = SQLiteDatabase.openDatabase(restored.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+            long books;
+            try {
+                upgrade(source);
+                // Everything kept in step with the commits learns about the new data from
+                // this commit
+                books = mWriteScheduler.execute(new BookWriteScheduler.Write<Long>() {
+                    @Override
+                    public Long apply(SQLiteDatabase database) {
+                        copyTables(source, database);
+                        return DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME);
+                    }
+                });
+            } finally {
+                source.close();
+            }
+
+            Bundle result = new Bundle();
+            result.putLong(BookContract.EXTRA_TOTAL, books);
+            Log.i(LOG_TAG, "Restored " + books + " books");
+            return result;
+        } finally {
+            if (restored.exists() && !restored.delete()) {
+                Log.w(LOG_TAG, "Can't delete " + restored);
+            }
+            deleteSidecars(restored);
+        }
+    }
+
+    /**
+     * Bring a copy from an older version of the app up to the schema of the database.
+     */
+    private void upgrade(SQLiteDatabase source) {
+        int version = source.getVersion();
+        int currentVersion = mDbHelper.getReadableDatabase().getVersion();
+        if (version == currentVersion) {
+            return;
+        }
+        source.beginTransaction();
+        try {
+            mDbHelper.onUpgrade(source, version, currentVersion);
+            source.setVersion(currentVersion);
+            source.setTransactionSuccessful();
+        } finally {
+            source.endTransaction();
+        }
+    }
+
+    /**
+     * Replace the rows of every table of the database with those of the same table in the
+     * source, which has the same schema. All the tables are emptied first, so the triggers
+     * deleting the rows of a book don't touch the copied rows.
+     */
+    private static void copyTables(SQLiteDatabase source, SQLiteDatabase database) {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type='table'"
+                + " AND name<>'android_metadata' AND (name NOT LIKE 'sqlite_%'"
+                + " OR name='sqlite_sequence')", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String table : tables) {
+            database.delete(table, null, null);
+        }
+        for (String table : tables) {
+            copyRows(source, database, table);
+        }
+    }
+
+    /**
+     * Insert all the rows of the table in the source into the same table of the database.
+     */
+    private static void copyRows(SQLiteDatabase source, SQLiteDatabase database, String table) {
+        String[] columns = columnsOf(database, table);
+        if (DatabaseUtils.longForQuery(source, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE type='table' AND name=?", new String[]{table}) == 0) {
+            // A table the copy doesn't have stays empty
+            return;
+        }
+        StringBuilder insert = new StringBuilder("INSERT INTO ").append(table).append(" (")
+                .append(TextUtils.join(", ", columns)).append(") VALUES (?");
+        for (int i = 1; i < columns.length; i++) {
+            insert.append(", ?");
+        }
+        SQLiteStatement statement = database.compileStatement(insert.append(")").toString());
+        Cursor cursor = source.query(table, columns, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columns.length; i++) {
+                    bind(statement, i + 1, cursor, i);
+                }
+                statement.executeInsert();
+            }
+        } finally {
+            cursor.close();
+            statement.close();
+        }
+    }
+
+    private static String[] columnsOf(SQLiteDatabase database, String table) {
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            String[] columns = new String[cursor.getCount()];
+            int name = cursor.getColumnIndexOrThrow("name");
+            for (int i = 0; cursor.moveToNext(); i++) {
+                columns[i] = cursor.getString(name);
+            }
+            return columns;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                statement.bindNull(index);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                statement.bindLong(index, cursor.getLong(column));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                statement.bindDouble(index, cursor.getDouble(column));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                statement.bindBlob(index, cursor.getBlob(column));
+                break;
+            default:
+                statement.bindString(index, cursor.getString(column));
+                break;
+        }
+    }
+
+    /**
+     * Delete the log, shared memory and journal files SQLite keeps next to a database file.
+     */
+    private static void deleteSidecars(File file) {
+        for (String suffix : new String[]{"-wal", "-shm", "-journal"}) {
+            File sidecar = new File(file.getPath() + suffix);
+            if (sidecar.exists() && !sidecar.delete()) {
+                Log.w(LOG_TAG, "Can't delete " + sidecar);
+            }
+        }
+    }
+
+    private static void unpack(InputStream in, File file) throws IOException {
+        GZIPInputStream gzip = new GZIPInputStream(in);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Make sure the file is an intact database with a books table, from this version of the app
+     * or an older one.
+     */
+    private void validate(File file) throws IOException {
+        byte[] header = new byte[SQLITE_HEADER.length];
+        InputStream in = new FileInputStream(file);
+        try {
+            if (in.read(header) != header.length || !Arrays.equals(header, SQLITE_HEADER)) {
+                throw new IllegalArgumentException("Backup is not a database");
+            }
+        } finally {
+            in.close();
+        }
+
+        // Opened for writing, a database in write-ahead logging mode can't be opened read only
+        // before it has its log files
+        SQLiteDatabase database;
+        try {
+            database = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE);
+        } catch (SQLiteException e) {
+            throw new IllegalArgumentException("Can't open backup", e);
+        }
+        try {
+            String integrity = DatabaseUtils.stringForQuery(database, "PRAGMA integrity_check",
+                    null);
+            if (!"ok".equals(integrity)) {
+                throw new IllegalArgumentException("Backup is damaged: " + integrity);
+            }
+            int version = database.getVersion();
+            if (version < 1 || version > mDbHelper.getReadableDatabase().getVersion()) {
+                throw new IllegalArgumentException("Backup has unsupported version " + version);
+            }
+            if (DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM sqlite_master"
+                    + " WHERE type='table' AND name=?", new String[]{BookEntry.TABLE_NAME}) == 0) {
+                throw new IllegalArgumentException("Backup has no books");
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    private File databaseFile() {
+        return new File(mDbHelper.getReadableDatabase().getPath());
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.android.books.data;
+
+/**
+ * Thrown by {@link BookProvider#update} when a conditional update was asked for with
+ * {@link BookContract#PARAM_EXPECTED_VERSION}, but the book has been changed by someone else
+ * since that version was read. The caller should read the book again and retry.
+ */
+public class BookConflictException extends IllegalStateException {
+
+    /**
+     * The version the caller expected the book to have
+     */
+    private final long mExpectedVersion;
+
+    /**
+     * The version the book actually has (-1 if the book doesn't exist anymore)
+     */
+    private final long mCurrentVersion;
+
+    public BookConflictException(long expectedVersion, long currentVersion) {
+        super("book was expected at version " + expectedVersion + " but is at version "
+                + currentVersion);
+        mExpectedVersion = expectedVersion;
+        mCurrentVersion = currentVersion;
+    }
+
+    public long getExpectedVersion() {
+        return mExpectedVersion;
+    }
+
+    public long getCurrentVersion() {
+        return mCurrentVersion;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.android.books.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -32,6 +33,277 @@ public class BookContract {
      */
     public static final String PATH_BOOKS = "books";
 
+    /**
+     * Path of the cover image of a single book, appended to the book's URI, e.g.
+     * content://com.example.android.books/books/3/cover
+     */
+    public static final String PATH_COVER = "cover";
+
+    /**
+     * Path for looking books up by ISBN, appended to the books URI, e.g.
+     * content://com.example.android.books/books/isbn/9780747532699
+     */
+    public static final String PATH_ISBN = "isbn";
+
+    /**
+     * Path of the alphabetical sections of the catalog, appended to the books URI, i.e.
+     * content://com.example.android.books/books/sections
+     */
+    public static final String PATH_SECTIONS = "sections";
+
+    /**
+     * Path of the typeahead suggestions for a column, appended to the books URI, e.g.
+     * content://com.example.android.books/books/suggestions/supplier_name?prefix=pen
+     */
+    public static final String PATH_SUGGESTIONS = "suggestions";
+
+    /**
+     * Path of the clusters of likely duplicate books, appended to the books URI, i.e.
+     * content://com.example.android.books/books/duplicates
+     */
+    public static final String PATH_DUPLICATES = "duplicates";
+
+    /**
+     * Path of the stock held at each location, on its own, i.e.
+     * content://com.example.android.books/stock, or appended to a book's URI, e.g.
+     * content://com.example.android.books/books/3/stock/downtown
+     */
+    public static final String PATH_STOCK = "stock";
+
+    /**
+     * Path of the stock totals per location, appended to the stock URI, i.e.
+     * content://com.example.android.books/stock/locations
+     */
+    public static final String PATH_LOCATIONS = "locations";
+
+    /**
+     * Path of the stock movements of a book, appended to the book's URI, e.g.
+     * content://com.example.android.books/books/3/movements
+     */
+    public static final String PATH_MOVEMENTS = "movements";
+
+    /**
+     * Path of the price history of a book, appended to the book's URI, e.g.
+     * content://com.example.android.books/books/3/prices
+     */
+    public static final String PATH_PRICES = "prices";
+
+    /**
+     * Path used to publish the progress of a background bulk delete,
+     * i.e. content://com.example.android.books/bulk_delete. It is deliberately not below
+     * {@link #PATH_BOOKS}, so progress updates don't make every book cursor reload.
+     */
+    public static final String PATH_BULK_DELETE = "bulk_delete";
+
+    /**
+     * The URI that is notified every time a background bulk delete makes progress
+     */
+    public static final Uri BULK_DELETE_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BULK_DELETE);
+
+    /**
+     * Path notified when a backup has replaced all the data, see {@link #METHOD_RESTORE},
+     * i.e. content://com.example.android.books/restore. The books are notified as well, this
+     * one tells caches that the versions of the books can't be trusted to tell what changed.
+     */
+    public static final String PATH_RESTORE = "restore";
+
+    /**
+     * The URI that is notified every time a backup has been restored
+     */
+    public static final Uri RESTORE_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_RESTORE);
+
+    /**
+     * Path notified when the names in the catalog may have changed, i.e.
+     * content://com.example.android.books/names. It is deliberately not below
+     * {@link #PATH_BOOKS}, so a sale or a new price doesn't make the sections of the catalog
+     * reload, see {@link BookEntry#SECTIONS_URI}.
+     */
+    public static final String PATH_NAMES = "names";
+
+    /**
+     * The URI that is notified every time a book has been added, renamed, deleted or archived.
+     * The books are notified as well.
+     */
+    public static final Uri NAMES_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_NAMES);
+
+    /**
+     * {@link android.content.ContentProvider#call} method that starts deleting the books matching
+     * the selection passed as the call argument (null for all books) on a background thread.
+     * Selection arguments can be passed in the extras under {@link #EXTRA_SELECTION_ARGS}.
+     * Returns the same Bundle as {@link #METHOD_BULK_DELETE_STATUS}.
+     */
+    public static final String METHOD_BULK_DELETE = "bulk_delete";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that returns the progress of the
+     * current (or last) bulk delete in {@link #EXTRA_DELETED}, {@link #EXTRA_TOTAL} and
+     * {@link #EXTRA_FINISHED}.
+     */
+    public static final String METHOD_BULK_DELETE_STATUS = "bulk_delete_status";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that sells copies of the book whose
+     * ISBN is passed as the call argument, as done at the till when a barcode is scanned.
+     * The number of copies is taken from {@link #EXTRA_QUANTITY} (1 if it's missing). With a
+     * location in {@link #EXTRA_LOCATION} the copies are taken from the stock at that location,
+     * see {@link StockEntry}, otherwise from the stock that isn't at any location. The stock is
+     * only decremented if there are enough copies left there.
+     * Returns the book in {@link #EXTRA_BOOK_ID} (-1 if no book has that ISBN), whether the sale
+     * went through in {@link #EXTRA_SOLD} and the stock left in {@link #EXTRA_QUANTITY}, at the
+     * location if there is one.
+     */
+    public static final String METHOD_SELL_BY_ISBN = "sell_by_isbn";
+
+    /**
+     * Query parameter for a conditional update of a single book, e.g.
+     * content://com.example.android.books/books/3?expected_version=7. The update is only
+     * applied if the book is still at that {@link BookEntry#COLUMN_BOOK_VERSION}, otherwise
+     * a {@link BookConflictException} is thrown.
+     */
+    public static final String PARAM_EXPECTED_VERSION = "expected_version";
+
+    /**
+     * Query parameter that makes a query on the books also return the archived books, e.g.
+     * content://com.example.android.books/books?include_archive=true. By default only the
+     * books in stock, or recently sold out, are returned.
+     */
+    public static final String PARAM_INCLUDE_ARCHIVE = "include_archive";
+
+    /**
+     * Query parameter holding what has been typed so far, for the suggestions URI built by
+     * {@link BookEntry#buildSuggestionsUri}
+     */
+    public static final String PARAM_PREFIX = "prefix";
+
+    /**
+     * Query parameter of an insert telling what to do if the new book is a likely duplicate
+     * of a book in the catalog, that is if it has the same
+     * {@link BookEntry#COLUMN_BOOK_DEDUPE_KEY}: {@link #ON_DUPLICATE_REJECT} or
+     * {@link #ON_DUPLICATE_MERGE}. Without it, the book is inserted anyway.
+     */
+    public static final String PARAM_ON_DUPLICATE = "on_duplicate";
+
+    /**
+     * Don't insert a likely duplicate, throw a {@link BookDuplicateException} instead
+     */
+    public static final String ON_DUPLICATE_REJECT = "reject";
+
+    /**
+     * Add the quantity of a likely duplicate to the existing book instead of inserting it,
+     * the insert then returns the URI of the existing book
+     */
+    public static final String ON_DUPLICATE_MERGE = "merge";
+
+    /**
+     * Query parameter of an update telling why the quantity of the book changes, recorded as
+     * the {@link StockMovementEntry#COLUMN_REASON} of the movement, e.g.
+     * content://com.example.android.books/books/3?stock_reason=sale. Without it the change is
+     * recorded as {@link StockMovementEntry#REASON_EDIT}.
+     */
+    public static final String PARAM_STOCK_REASON = "stock_reason";
+
+    /**
+     * Query parameters of a history query restricting it to a time range, in milliseconds
+     * since the epoch: from is inclusive and to exclusive, e.g.
+     * content://com.example.android.books/books/3/movements?from=1500000000000 or
+     * content://com.example.android.books/books/3/prices?to=1500000000000. Either one can be
+     * left out.
+     */
+    public static final String PARAM_FROM = "from";
+    public static final String PARAM_TO = "to";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that moves books out of the catalog
+     * into the archive, on a background thread and in small batches. The call argument is the
+     * selection of the books to archive, with its arguments in {@link #EXTRA_SELECTION_ARGS}.
+     * Without a selection the archive policy is applied: books that are sold out and haven't
+     * changed for {@link #EXTRA_IDLE_DAYS} days ({@link #DEFAULT_ARCHIVE_IDLE_DAYS} if missing)
+     * are archived. The provider also applies the policy by itself about once a day.
+     * Archived books can only be read, with {@link #PARAM_INCLUDE_ARCHIVE}.
+     */
+    public static final String METHOD_ARCHIVE = "archive";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that applies a supplier price feed.
+     * The call argument is the content or file URI of the feed, the provider doesn't download
+     * anything: a feed from the network has to be saved by the caller first.
+     * The feed is a CSV file with the header {@code isbn,supplier,title,price,quantity}. Lines
+     * are matched to books by ISBN, or by supplier name and title if they have no ISBN, and
+     * only the books whose price or quantity changed are written.
+     * Runs on the calling thread and returns {@link #EXTRA_FEED_ROWS},
+     * {@link #EXTRA_INVALID_ROWS}, {@link #EXTRA_MATCHED} and {@link #EXTRA_CHANGED}.
+     */
+    public static final String METHOD_APPLY_PRICE_FEED = "apply_price_feed";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that writes a gzip compressed copy of
+     * the database to the URI given as the call argument, while the app keeps reading and
+     * writing. Runs on the calling thread and returns the size of the database in
+     * {@link #EXTRA_BYTES}.
+     */
+    public static final String METHOD_BACKUP = "backup";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that replaces all the data with a copy
+     * written by {@link #METHOD_BACKUP}, read from the URI given as the call argument. The copy
+     * is checked before anything is replaced, and swapped in all at once. Runs on the calling
+     * thread and returns the number of books restored in {@link #EXTRA_TOTAL}. Book covers are
+     * not part of the copy, so the covers of the books before are deleted.
+     */
+    public static final String METHOD_RESTORE = "restore";
+
+    /**
+     * {@link android.content.ContentProvider#call} method that reads books by id without a
+     * cursor, for callers that only need the current values of a few books and don't watch them
+     * for changes. The id of a single book is given as the call argument, a batch of ids as a
+     * long array in {@link #EXTRA_IDS}.
+     * <p>
+     * Returns the ids of the books found in {@link #EXTRA_IDS}, in the order they were asked
+     * for (books that don't exist are left out), and one array per column, keyed by the column
+     * name and in the same order: String arrays for {@link BookEntry#COLUMN_BOOK_NAME},
+     * {@link BookEntry#COLUMN_BOOK_CATEGORY}, {@link BookEntry#COLUMN_BOOK_ISBN} and
+     * {@link BookEntry#COLUMN_SUPPLIER_NAME}, int arrays for
+     * {@link BookEntry#COLUMN_BOOK_PRICE}, {@link BookEntry#COLUMN_BOOK_QUANTITY} and
+     * {@link BookEntry#COLUMN_SUPPLIER_NUMBER}, and a long array for
+     * {@link BookEntry#COLUMN_BOOK_VERSION}. Archived books are not returned.
+     */
+    public static final String METHOD_GET_BOOKS = "get_books";
+
+    /**
+     * {@link android.content.ContentProvider#call} method for tests and debug builds that adds
+     * a synthetic catalog of books, see {@link CatalogGenerator}. The number of books is given as
+     * the call argument, and the seed of the generator in {@link #EXTRA_SEED} (0 if missing);
+     * the same seed gives the same books on an empty database. The books are inserted in a few
+     * large transactions, bypassing the checks and the duplicate detection of an insert. Runs on
+     * the calling thread and returns the number of books added in {@link #EXTRA_TOTAL}.
+     */
+    public static final String METHOD_GENERATE_CATALOG = "generate_catalog";
+
+    /**
+     * Number of days a sold out book stays in the catalog before the archive policy moves it
+     */
+    public static final int DEFAULT_ARCHIVE_IDLE_DAYS = 180;
+
+    /**
+     * Extras used with the {@link android.content.ContentProvider#call} methods.
+     */
+    public static final String EXTRA_SELECTION_ARGS = "selection_args";
+    public static final String EXTRA_DELETED = "deleted";
+    public static final String EXTRA_TOTAL = "total";
+    public static final String EXTRA_FINISHED = "finished";
+    public static final String EXTRA_BOOK_ID = "book_id";
+    public static final String EXTRA_QUANTITY = "quantity";
+    public static final String EXTRA_SOLD = "sold";
+    public static final String EXTRA_IDLE_DAYS = "idle_days";
+    public static final String EXTRA_FEED_ROWS = "feed_rows";
+    public static final String EXTRA_INVALID_ROWS = "invalid_rows";
+    public static final String EXTRA_MATCHED = "matched";
+    public static final String EXTRA_CHANGED = "changed";
+    public static final String EXTRA_BYTES = "bytes";
+    public static final String EXTRA_LOCATION = "location";
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_SEED = "seed";
+
 
     /**
      * Inner class that defines constant values for the books database table.
@@ -46,6 +318,61 @@ public class BookContract {
 
         public static final String TABLE_NAME = "books";
 
+        /**
+         * Table holding the archived books, with the same columns as {@link #TABLE_NAME} plus
+         * {@link #COLUMN_ARCHIVED_AT}. Archived books keep their id.
+         */
+        public static final String ARCHIVE_TABLE_NAME = "books_archive";
+
+        /**
+         * The content URI of the alphabetical sections of the catalog. It returns one row per
+         * first letter of the book names, with {@link #COLUMN_SECTION} and
+         * {@link #COLUMN_SECTION_SIZE}, in the order of {@link #CATALOG_SORT_ORDER}. The
+         * position of a section in the catalog is the sum of the sizes of the sections before it.
+         */
+        public static final Uri SECTIONS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SECTIONS);
+
+        /**
+         * The first letter of the names in a section, as found in the first book of the section
+         */
+        public static final String COLUMN_SECTION = "section";
+
+        /**
+         * The number of books in a section
+         */
+        public static final String COLUMN_SECTION_SIZE = "section_size";
+
+        /**
+         * A suggested value, in the cursors of the suggestions URI
+         */
+        public static final String COLUMN_SUGGESTION = "suggestion";
+
+        /**
+         * The content URI of the clusters of likely duplicate books. It returns one row per
+         * {@link #COLUMN_BOOK_DEDUPE_KEY} shared by more than one book, with the oldest book of
+         * the cluster in {@link #_ID}, {@link #COLUMN_BOOK_NAME} and
+         * {@link #COLUMN_SUPPLIER_NAME}, and {@link #COLUMN_DUPLICATE_COUNT} and
+         * {@link #COLUMN_DUPLICATE_IDS}.
+         */
+        public static final Uri DUPLICATES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_DUPLICATES);
+
+        /**
+         * The number of books in a cluster of duplicates
+         */
+        public static final String COLUMN_DUPLICATE_COUNT = "duplicate_count";
+
+        /**
+         * The ids of the books in a cluster of duplicates, separated by commas
+         */
+        public static final String COLUMN_DUPLICATE_IDS = "duplicate_ids";
+
+        /**
+         * The order in which the catalog lists the books: by name, ignoring case. It is backed
+         * by an index, so it costs no sort.
+         */
+        public static final String CATALOG_SORT_ORDER =
+                COLUMN_BOOK_NAME + " COLLATE NOCASE ASC, " + _ID + " ASC";
+
         public static final String COLUMN_BOOK_NAME = "name";
         public static final String COLUMN_BOOK_CATEGORY = "category";
         public static final String COLUMN_BOOK_PRICE = "price";
@@ -53,6 +380,171 @@ public class BookContract {
         public static final String COLUMN_SUPPLIER_NAME = "supplier_name";
         public static final String COLUMN_SUPPLIER_NUMBER = "supplier_phone_number";
 
+        /**
+         * ISBN of the book, stored without hyphens or spaces (see {@link #normalizeIsbn}).
+         * Optional, but no two books may have the same ISBN.
+         */
+        public static final String COLUMN_BOOK_ISBN = "isbn";
+
+        /**
+         * Time of the last change of the book, in milliseconds since the epoch. It is
+         * maintained by the provider and read only for clients.
+         */
+        public static final String COLUMN_BOOK_UPDATED_AT = "updated_at";
+
+        /**
+         * The name and supplier of the book, normalized by {@link #buildDedupeKey}. Two books with
+         * the same key are likely the same book entered twice. It is maintained by the provider
+         * and read only for clients.
+         */
+        public static final String COLUMN_BOOK_DEDUPE_KEY = "dedupe_key";
+
+        /**
+         * Time the book was archived, in milliseconds since the epoch. Only in
+         * {@link #ARCHIVE_TABLE_NAME}.
+         */
+        public static final String COLUMN_ARCHIVED_AT = "archived_at";
+
+        /**
+         * Version of the row, starting at 1 and incremented by the provider on every update.
+         * It is read only for clients, see {@link BookContract#PARAM_EXPECTED_VERSION}.
+         */
+        public static final String COLUMN_BOOK_VERSION = "version";
+
+        /**
+         * The MIME type of the cover image of a book. Covers are stored as they were picked,
+         * so they may be in any format {@link android.graphics.BitmapFactory} can decode.
+         */
+        public static final String COVER_TYPE = "image/*";
+
+        /**
+         * Returns the content URI of the cover image of the given book. Open it with
+         * {@link ContentResolver#openInputStream} to read the cover, or
+         * {@link ContentResolver#openOutputStream} to replace it.
+         */
+        public static Uri buildCoverUri(long id) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(CONTENT_URI, id), PATH_COVER);
+        }
+
+        /**
+         * Returns the content URI of the stock of the given book at every location, see
+         * {@link StockEntry}.
+         */
+        public static Uri buildStockUri(long id) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(CONTENT_URI, id), PATH_STOCK);
+        }
+
+        /**
+         * Returns the content URI of the stock of the given book at one location. Update it with
+         * {@link StockEntry#COLUMN_QUANTITY} to set the stock there, or with
+         * {@link StockEntry#COLUMN_ADJUSTMENT} to add to it (or take from it, if negative).
+         */
+        public static Uri buildStockUri(long id, String location) {
+            return buildStockUri(id).buildUpon().appendPath(location).build();
+        }
+
+        /**
+         * Returns the content URI of the stock movements of the given book, see
+         * {@link StockMovementEntry}.
+         */
+        public static Uri buildMovementsUri(long id) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(CONTENT_URI, id),
+                    PATH_MOVEMENTS);
+        }
+
+        /**
+         * Returns the content URI of the stock movements of the given book from one time
+         * (inclusive) to another (exclusive), see {@link BookContract#PARAM_FROM}.
+         */
+        public static Uri buildMovementsUri(long id, long from, long to) {
+            return buildMovementsUri(id).buildUpon()
+                    .appendQueryParameter(PARAM_FROM, String.valueOf(from))
+                    .appendQueryParameter(PARAM_TO, String.valueOf(to))
+                    .build();
+        }
+
+        /**
+         * Returns the content URI of the price history of the given book, see
+         * {@link PriceHistoryEntry}.
+         */
+        public static Uri buildPricesUri(long id) {
+            return Uri.withAppendedPath(ContentUris.withAppendedId(CONTENT_URI, id), PATH_PRICES);
+        }
+
+        /**
+         * Returns the content URI of the price history of the given book from one time
+         * (inclusive) to another (exclusive), see {@link BookContract#PARAM_FROM}.
+         */
+        public static Uri buildPricesUri(long id, long from, long to) {
+            return buildPricesUri(id).buildUpon()
+                    .appendQueryParameter(PARAM_FROM, String.valueOf(from))
+                    .appendQueryParameter(PARAM_TO, String.valueOf(to))
+                    .build();
+        }
+
+        /**
+         * Returns the content URI of the book with the given ISBN.
+         */
+        public static Uri buildIsbnUri(String isbn) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_ISBN).appendPath(normalizeIsbn(isbn))
+                    .build();
+        }
+
+        /**
+         * Returns the content URI of the typeahead suggestions for a column: the distinct values
+         * of the column among the books that start with the prefix, ignoring case, in
+         * alphabetical order, with {@link #_ID} and {@link #COLUMN_SUGGESTION}. Suggestions are
+         * available for {@link #COLUMN_BOOK_CATEGORY} and {@link #COLUMN_SUPPLIER_NAME}, and
+         * are answered from memory.
+         */
+        public static Uri buildSuggestionsUri(String column, String prefix) {
+            Uri.Builder builder = CONTENT_URI.buildUpon().appendPath(PATH_SUGGESTIONS)
+                    .appendPath(column);
+            if (prefix != null) {
+                builder.appendQueryParameter(PARAM_PREFIX, prefix);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the ISBN in the form it is stored in: without hyphens or spaces and with an
+         * upper case check digit "X". Returns null for a null or blank ISBN.
+         *
+         * @throws IllegalArgumentException if it isn't a valid ISBN-10 or ISBN-13
+         */
+        public static String normalizeIsbn(String isbn) {
+            return BookRules.normalizeIsbn(isbn);
+        }
+
+        /**
+         * Returns the key under which likely duplicates of a book are found: its name and
+         * supplier in lower case, with every run of spaces and punctuation turned into a single
+         * space. "The  Hobbit" from "Harper Collins" and "the hobbit." from "harper-collins"
+         * get the same key.
+         */
+        public static String buildDedupeKey(String name, String supplierName) {
+            return BookRules.buildDedupeKey(name, supplierName);
+        }
+
+        /**
+         * Returns the content URI to insert a book into, telling what to do if it is a likely
+         * duplicate, see {@link BookContract#PARAM_ON_DUPLICATE}.
+         */
+        public static Uri buildInsertUri(String onDuplicate) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_ON_DUPLICATE, onDuplicate).build();
+        }
+
+        /**
+         * Returns the content URI for a conditional update of the given book, which only
+         * succeeds if the book is still at the expected version.
+         */
+        public static Uri buildConditionalUri(long id, long expectedVersion) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(PARAM_EXPECTED_VERSION, String.valueOf(expectedVersion))
+                    .build();
+        }
+
         /**
          * The MIME type of the {@link #} for a list of books.
          */
@@ -65,6 +557,253 @@ public class BookContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_BOOKS;
 
+        /**
+         * The MIME type of the {@link #SECTIONS_URI}.
+         */
+        public static final String SECTIONS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SECTIONS;
+
+        /**
+         * The MIME type of the suggestions URI.
+         */
+        public static final String SUGGESTIONS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUGGESTIONS;
+
+        /**
+         * The MIME type of the {@link #DUPLICATES_URI}.
+         */
+        public static final String DUPLICATES_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DUPLICATES;
+
+    }
+
+    /**
+     * Constant values for the stock of the books at each location (branch). The
+     * {@link BookEntry#COLUMN_BOOK_QUANTITY} of a book remains its total stock: every change of
+     * the stock at a location changes the total by the same amount, in the same write, and
+     * never sums anything up again. Changes of the quantity of the book itself, such as an edit
+     * or a sale without a location, go to the stock that isn't at any location, which is the
+     * total less the stock at all the locations. It can't go below 0: such a change that takes
+     * more copies than that is rejected, the copies have to be taken from a location.
+     */
+    public static abstract class StockEntry implements BaseColumns {
+
+        /**
+         * The content URI of the stock of every book at every location. It can be queried with
+         * a selection, e.g. on {@link #COLUMN_LOCATION}.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOCK);
+
+        /**
+         * The content URI of the stock totals per location. It returns one row per location,
+         * with {@link #COLUMN_LOCATION}, the total {@link #COLUMN_QUANTITY} and
+         * {@link #COLUMN_BOOK_COUNT}, in alphabetical order.
+         */
+        public static final Uri LOCATIONS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LOCATIONS);
+
+        public static final String TABLE_NAME = "stock";
+
+        /**
+         * The book, by {@link BookEntry#_ID}
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * Name of the location, without leading or trailing spaces
+         */
+        public static final String COLUMN_LOCATION = "location";
+
+        /**
+         * The number of copies of the book at the location
+         */
+        public static final String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Only used in updates: the number of copies to add to the stock at the location,
+         * negative to take them away
+         */
+        public static final String COLUMN_ADJUSTMENT = "adjustment";
+
+        /**
+         * The number of books with stock rows at a location, in the cursors of the
+         * {@link #LOCATIONS_URI}
+         */
+        public static final String COLUMN_BOOK_COUNT = "book_count";
+
+        /**
+         * The MIME type of the stock of a book, or of all books, at several locations.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCK;
+
+        /**
+         * The MIME type of the stock of a book at one location.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STOCK;
+
+        /**
+         * The MIME type of the {@link #LOCATIONS_URI}.
+         */
+        public static final String LOCATIONS_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_LOCATIONS;
+    }
+
+    /**
+     * Constant values for the stock movements ledger. Every change of the
+     * {@link BookEntry#COLUMN_BOOK_QUANTITY} of a book appends a movement with the change and
+     * the quantity it left, in the same transaction, so the quantity of a book is always the
+     * sum of the {@link #COLUMN_DELTA} of its movements. Movements are never changed, only
+     * folded: those older than {@link #RETENTION_DAYS} days are replaced by one
+     * {@link #REASON_SNAPSHOT} per book and UTC day, which keeps the ledger bounded. The
+     * movements of a book go with it when it is deleted or archived.
+     * <p>
+     * The movements of a book are read through {@link BookEntry#buildMovementsUri}, oldest
+     * first.
+     */
+    public static abstract class StockMovementEntry implements BaseColumns {
+
+        /**
+         * Number of days the movements are kept one by one
+         */
+        public static final int RETENTION_DAYS = 90;
+
+        public static final String TABLE_NAME = "stock_movements";
+
+        /**
+         * The book, by {@link BookEntry#_ID}
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * The number of copies added, negative if they were taken away
+         */
+        public static final String COLUMN_DELTA = "delta";
+
+        /**
+         * The quantity of the book right after the movement
+         */
+        public static final String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Why the quantity changed, one of the REASON constants or a reason given by the app
+         * with {@link BookContract#PARAM_STOCK_REASON}
+         */
+        public static final String COLUMN_REASON = "reason";
+
+        /**
+         * Time of the movement, in milliseconds since the epoch. For a snapshot it is the time
+         * of the last movement it folds.
+         */
+        public static final String COLUMN_CREATED_AT = "created_at";
+
+        /**
+         * The stock a new book is inserted with
+         */
+        public static final String REASON_INITIAL = "initial";
+
+        /**
+         * A change of the quantity by an update of the book
+         */
+        public static final String REASON_EDIT = "edit";
+
+        /**
+         * Copies sold
+         */
+        public static final String REASON_SALE = "sale";
+
+        /**
+         * The stock of a likely duplicate merged into the book
+         */
+        public static final String REASON_MERGE = "merge";
+
+        /**
+         * A change of the stock at a location
+         */
+        public static final String REASON_LOCATION = "location";
+
+        /**
+         * A change of the quantity by a supplier's price feed
+         */
+        public static final String REASON_FEED = "feed";
+
+        /**
+         * The movements of a day folded into one, their delta is the sum of theirs
+         */
+        public static final String REASON_SNAPSHOT = "snapshot";
+
+        /**
+         * The MIME type of the movements of a book.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_MOVEMENTS;
     }
 
+    /**
+     * Constant values for the price history. Every change of the
+     * {@link BookEntry#COLUMN_BOOK_PRICE} of a book appends a row with the new price, in the
+     * same transaction as the change. A new book starts with a row of its first price.
+     * <p>
+     * The history is downsampled as it gets older, so it stays small after years of daily
+     * supplier updates: the changes of the last {@link #FULL_RESOLUTION_DAYS} days are kept one
+     * by one, older ones are merged into one row per book and UTC day, and those older than
+     * {@link #DAILY_RESOLUTION_DAYS} days into one row per book and UTC month. A merged row has
+     * the last price of its day or month, the lowest and highest prices set in it and the
+     * number of changes it stands for. The history of a book goes with it when it is deleted
+     * or archived.
+     * <p>
+     * The history of a book is read through {@link BookEntry#buildPricesUri}, oldest first.
+     */
+    public static abstract class PriceHistoryEntry implements BaseColumns {
+
+        /**
+         * Number of days the price changes are kept one by one
+         */
+        public static final int FULL_RESOLUTION_DAYS = 30;
+
+        /**
+         * Number of days the price changes are kept by day, before they are merged by month
+         */
+        public static final int DAILY_RESOLUTION_DAYS = 365;
+
+        public static final String TABLE_NAME = "price_history";
+
+        /**
+         * The book, by {@link BookEntry#_ID}
+         */
+        public static final String COLUMN_BOOK_ID = "book_id";
+
+        /**
+         * The price of the book from this change on, for a merged row the last price it had in
+         * the day or month
+         */
+        public static final String COLUMN_PRICE = "price";
+
+        /**
+         * The lowest price set in the day or month, the price itself for a single change
+         */
+        public static final String COLUMN_MIN_PRICE = "min_price";
+
+        /**
+         * The highest price set in the day or month, the price itself for a single change
+         */
+        public static final String COLUMN_MAX_PRICE = "max_price";
+
+        /**
+         * The number of price changes the row stands for, 1 for a single change
+         */
+        public static final String COLUMN_CHANGES = "changes";
+
+        /**
+         * Time of the change, in milliseconds since the epoch. For a merged row it is the time
+         * of the last change it merges.
+         */
+        public static final String COLUMN_CHANGED_AT = "changed_at";
+
+        /**
+         * The MIME type of the price history of a book.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PRICES;
+    }
 }
@@ -1,10 +1,14 @@
 package com.example.android.books.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
 import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
 
 /**
  * Database helper for book's app. Manages database creation and version management.
@@ -19,7 +23,23 @@ public class BookDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 14;
+
+    /**
+     * All the columns of a book, in both the books table and the archive
+     */
+    static final String[] BOOK_COLUMNS = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_CATEGORY,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_SUPPLIER_NUMBER,
+            BookEntry.COLUMN_BOOK_VERSION,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_BOOK_UPDATED_AT,
+            BookEntry.COLUMN_BOOK_DEDUPE_KEY};
 
     /**
      * Constructs a new instance of {@link BookDbHelper}.
@@ -27,7 +47,51 @@ public class BookDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public BookDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link BookDbHelper} on a database file of its own,
+     * so tests and benchmarks don't touch the app's data.
+     *
+     * @param context of the app
+     * @param name    of the database file
+     */
+    BookDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+
+        // Write-ahead logging lets the catalog keep reading while a long write,
+        // such as a background bulk delete, is running. A new database is only switched to it
+        // once its tables exist, see onOpen.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && context.getDatabasePath(name).exists()) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * This is called when the database connection is being configured, before the
+     * tables are created, upgraded or opened.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Free pages are only handed back to the file system on request (see BulkDeleteJob).
+        // This only takes effect for new databases, older ones keep reusing their free pages.
+        // SQLite ignores it in WAL mode, so a new database is created in rollback mode.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    }
+
+    /**
+     * This is called when the database has been opened, after it was created or upgraded.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // A new database has its tables and its vacuum mode now, it can go to WAL mode
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()
+                && !db.isWriteAheadLoggingEnabled()) {
+            db.enableWriteAheadLogging();
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     /**
@@ -35,18 +99,97 @@ public class BookDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // Create a String that contains the SQL statement to create the books table
-        String SQL_CREATE_BOOKS_TABLE = "CREATE TABLE " + BookEntry.TABLE_NAME + " ("
-                + BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + BookEntry.COLUMN_BOOK_NAME + " TEXT NOT NULL, "
-                + BookEntry.COLUMN_BOOK_CATEGORY + " TEXT, "
-                + BookEntry.COLUMN_BOOK_PRICE + " INTEGER NOT NULL DEFAULT 0, "
-                + BookEntry.COLUMN_BOOK_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
-                + BookEntry.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL, "
-                + BookEntry.COLUMN_SUPPLIER_NUMBER + " INTEGER DEFAULT 0);";
+        for (String statement : BookSchema.CREATE_STATEMENTS) {
+            db.execSQL(statement);
+        }
+    }
+
+    /**
+     * Create the table of the stock per location. Every location of a book is a single row,
+     * found through the unique index on the book and location, so an adjustment at one location
+     * never touches the rows of the others. The index on the location serves the totals per
+     * location. The rows of a book go with it when it is deleted or archived.
+     */
+    private static void createStockTable(SQLiteDatabase db) {
+        db.execSQL(BookSchema.CREATE_STOCK_TABLE);
+        db.execSQL(BookSchema.CREATE_STOCK_LOCATION_INDEX);
+        db.execSQL(BookSchema.CREATE_STOCK_DELETE_TRIGGER);
+    }
 
-        // Execute the SQL statement
-        db.execSQL(SQL_CREATE_BOOKS_TABLE);
+    /**
+     * Create the ledger of the stock movements. The index on the book and the time serves the
+     * history of a book over a time range, the folding of its old movements, and deleting the
+     * ledger of a deleted book. The ledger of an archived book stays.
+     */
+    private static void createMovementsTable(SQLiteDatabase db) {
+        db.execSQL(BookSchema.CREATE_MOVEMENTS_TABLE);
+        db.execSQL(BookSchema.CREATE_MOVEMENTS_INDEX);
+    }
+
+    /**
+     * Create the price history. The index on the book and the time serves the history of a
+     * book over a time range, its downsampling, and deleting the history of a deleted book. The
+     * history of an archived book stays.
+     */
+    private static void createPriceHistoryTable(SQLiteDatabase db) {
+        db.execSQL(BookSchema.CREATE_PRICE_HISTORY_TABLE);
+        db.execSQL(BookSchema.CREATE_PRICE_HISTORY_INDEX);
+    }
+
+    /**
+     * Create the index on the dedupe key. It finds the likely duplicate of a new book with a
+     * single lookup, and lists all the duplicates in one pass over the index.
+     */
+    private static void createDedupeKeyIndex(SQLiteDatabase db) {
+        db.execSQL(BookSchema.CREATE_DEDUPE_KEY_INDEX);
+    }
+
+    /**
+     * Compute the dedupe key of every row of the table. The normalization can't be expressed
+     * in SQL, so this reads the rows and writes their keys back one by one.
+     */
+    private static void fillDedupeKeys(SQLiteDatabase db, String table) {
+        Cursor cursor = db.query(table, new String[]{BookEntry._ID, BookEntry.COLUMN_BOOK_NAME,
+                BookEntry.COLUMN_SUPPLIER_NAME}, null, null, null, null, null);
+        SQLiteStatement statement = db.compileStatement("UPDATE " + table + " SET "
+                + BookEntry.COLUMN_BOOK_DEDUPE_KEY + "=? WHERE " + BookEntry._ID + "=?");
+        try {
+            while (cursor.moveToNext()) {
+                statement.bindString(1, BookEntry.buildDedupeKey(cursor.getString(1),
+                        cursor.getString(2)));
+                statement.bindLong(2, cursor.getLong(0));
+                statement.executeUpdateDelete();
+            }
+        } finally {
+            statement.close();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Create the index behind {@link BookEntry#CATALOG_SORT_ORDER}. The row id is part of every
+     * index entry, so the index also covers the tie break on the id.
+     */
+    private static void createNameIndex(SQLiteDatabase db) {
+        db.execSQL(BookSchema.CREATE_NAME_INDEX);
+    }
+
+    /**
+     * Create the table the archived books are moved to. It has the same columns as the books
+     * table, but keeps the ids of the books and has no index besides the primary key, since
+     * it's only read on request.
+     */
+    private static void createArchiveTable(SQLiteDatabase db) {
+        db.execSQL(BookSchema.CREATE_ARCHIVE_TABLE);
+    }
+
+    /**
+     * Create the unique index on the ISBN column. Scanning a barcode at the till looks a book up
+     * by ISBN, so this keeps every scan a single index lookup. Books without an ISBN (null) are
+     * not affected by the uniqueness.
+     */
+    private static void createIsbnIndex(SQLiteDatabase db) {
+        db.execSQL(BookSchema.CREATE_ISBN_INDEX);
     }
 
     /**
@@ -54,6 +197,72 @@ public class BookDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        // Bring older databases up to date one version at a time
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookEntry.COLUMN_BOOK_VERSION + " INTEGER NOT NULL DEFAULT 1");
+        }
+        if (oldVersion < 6) {
+            db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookEntry.COLUMN_BOOK_ISBN + " TEXT");
+            createIsbnIndex(db);
+        }
+        if (oldVersion < 7) {
+            // Existing books count as changed now, so none of them is archived right away
+            db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookEntry.COLUMN_BOOK_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE " + BookEntry.TABLE_NAME + " SET "
+                    + BookEntry.COLUMN_BOOK_UPDATED_AT + "=" + System.currentTimeMillis());
+            createArchiveTable(db);
+        }
+        if (oldVersion < 8) {
+            createNameIndex(db);
+        }
+        if (oldVersion < 9) {
+            db.execSQL("ALTER TABLE " + BookEntry.TABLE_NAME + " ADD COLUMN "
+                    + BookEntry.COLUMN_BOOK_DEDUPE_KEY + " TEXT");
+            fillDedupeKeys(db, BookEntry.TABLE_NAME);
+            createDedupeKeyIndex(db);
+            // An archive created by the upgrade to version 7 above already has the column
+            if (oldVersion >= 7) {
+                db.execSQL("ALTER TABLE " + BookEntry.ARCHIVE_TABLE_NAME + " ADD COLUMN "
+                        + BookEntry.COLUMN_BOOK_DEDUPE_KEY + " TEXT");
+            }
+            fillDedupeKeys(db, BookEntry.ARCHIVE_TABLE_NAME);
+        }
+        if (oldVersion < 10) {
+            // The stock of the existing books isn't at any location yet
+            createStockTable(db);
+        }
+        if (oldVersion < 11) {
+            // The stock the existing books have so far is their opening snapshot
+            createMovementsTable(db);
+            db.execSQL("INSERT INTO " + StockMovementEntry.TABLE_NAME + " ("
+                    + StockMovementEntry.COLUMN_BOOK_ID + ", "
+                    + StockMovementEntry.COLUMN_DELTA + ", "
+                    + StockMovementEntry.COLUMN_QUANTITY + ", "
+                    + StockMovementEntry.COLUMN_REASON + ", "
+                    + StockMovementEntry.COLUMN_CREATED_AT + ") SELECT "
+                    + BookEntry._ID + ", "
+                    + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                    + BookEntry.COLUMN_BOOK_QUANTITY + ", '"
+                    + StockMovementEntry.REASON_SNAPSHOT + "', "
+                    + BookEntry.COLUMN_BOOK_UPDATED_AT + " FROM " + BookEntry.TABLE_NAME
+                    + " WHERE " + BookEntry.COLUMN_BOOK_QUANTITY + "<>0");
+        }
+        if (oldVersion < 12) {
+            // The history starts with the price the existing books have now
+            createPriceHistoryTable(db);
+            PriceHistory.recordInserted(db, 0);
+        }
+        if (oldVersion < 13) {
+            // Archiving deleted the ledger of the archived books through this trigger. What it
+            // deleted is gone, the books archived from now on keep theirs.
+            db.execSQL("DROP TRIGGER IF EXISTS " + BookSchema.MOVEMENTS_DELETE_TRIGGER);
+        }
+        if (oldVersion < 14) {
+            // The same for the price history of the archived books
+            db.execSQL("DROP TRIGGER IF EXISTS " + BookSchema.PRICE_HISTORY_DELETE_TRIGGER);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package com.example.android.books.data;
+
+/**
+ * Thrown by {@link BookProvider#insert} when a book was inserted with
+ * {@link BookContract#PARAM_ON_DUPLICATE} set to {@link BookContract#ON_DUPLICATE_REJECT}, but
+ * a book with the same {@link BookContract.BookEntry#COLUMN_BOOK_DEDUPE_KEY} already exists.
+ * The caller can insert it again with {@link BookContract#ON_DUPLICATE_MERGE} to add the copies
+ * to the existing book instead.
+ */
+public class BookDuplicateException extends IllegalStateException {
+
+    /**
+     * The id of the book that is already in the catalog
+     */
+    private final long mExistingId;
+
+    public BookDuplicateException(long existingId) {
+        super("book is a likely duplicate of book " + existingId);
+        mExistingId = existingId;
+    }
+
+    public long getExistingId() {
+        return mExistingId;
+    }
+}
@@ -16,17 +16,41 @@
 package com.example.android.books.data;
 
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 
 import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+import com.example.android.books.data.BookContract.StockEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
 
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 /**
  * {@link ContentProvider} for books app.
  */
@@ -47,6 +71,93 @@ public class BookProvider extends ContentProvider {
      */
     private static final int BOOK_ID = 101;
 
+    /**
+     * URI matcher code for the content URI for the cover image of a single book
+     */
+    private static final int BOOK_COVER = 102;
+
+    /**
+     * URI matcher code for the content URI for the book with a given ISBN
+     */
+    private static final int BOOK_ISBN = 103;
+
+    /**
+     * URI matcher code for the content URI for the alphabetical sections of the catalog
+     */
+    private static final int BOOK_SECTIONS = 104;
+
+    /**
+     * URI matcher code for the typeahead suggestions of a column
+     */
+    private static final int BOOK_SUGGESTIONS = 105;
+
+    /**
+     * URI matcher code for the clusters of likely duplicate books
+     */
+    private static final int BOOK_DUPLICATES = 106;
+
+    /**
+     * URI matcher code for the stock of a single book at every location
+     */
+    private static final int BOOK_STOCK = 107;
+
+    /**
+     * URI matcher code for the stock of a single book at one location
+     */
+    private static final int BOOK_STOCK_LOCATION = 108;
+
+    /**
+     * URI matcher code for the stock of every book at every location
+     */
+    private static final int STOCK = 109;
+
+    /**
+     * URI matcher code for the stock totals per location
+     */
+    private static final int STOCK_LOCATIONS = 110;
+
+    /**
+     * URI matcher code for the stock movements of a single book
+     */
+    private static final int BOOK_MOVEMENTS = 111;
+
+    /**
+     * URI matcher code for the price history of a single book
+     */
+    private static final int BOOK_PRICES = 112;
+
+    private static final String FIRST_LETTER =
+            "substr(" + BookEntry.COLUMN_BOOK_NAME + ",1,1) COLLATE NOCASE";
+
+    /**
+     * The sections of the catalog. They come from a single pass over the name index, grouped by
+     * first letter the same way the catalog is sorted, instead of walking the list.
+     */
+    static final String SECTIONS_QUERY = "SELECT " + FIRST_LETTER + " AS "
+            + BookEntry.COLUMN_SECTION + ", COUNT(*) AS " + BookEntry.COLUMN_SECTION_SIZE
+            + " FROM " + BookEntry.TABLE_NAME
+            + " GROUP BY " + FIRST_LETTER + " ORDER BY " + FIRST_LETTER;
+
+    /**
+     * The clusters of books sharing a dedupe key. The clusters come from one pass over the
+     * dedupe key index, which also holds the ids, and only the first book of each cluster is
+     * read from the table, for its name and supplier.
+     */
+    static final String DUPLICATES_QUERY = "SELECT c." + BookEntry._ID + ", "
+            + "c." + BookEntry.COLUMN_BOOK_DEDUPE_KEY + ", "
+            + "b." + BookEntry.COLUMN_BOOK_NAME + ", "
+            + "b." + BookEntry.COLUMN_SUPPLIER_NAME + ", "
+            + "c." + BookEntry.COLUMN_DUPLICATE_COUNT + ", "
+            + "c." + BookEntry.COLUMN_DUPLICATE_IDS
+            + " FROM (SELECT MIN(" + BookEntry._ID + ") AS " + BookEntry._ID + ", "
+            + BookEntry.COLUMN_BOOK_DEDUPE_KEY + ", "
+            + "COUNT(*) AS " + BookEntry.COLUMN_DUPLICATE_COUNT + ", "
+            + "group_concat(" + BookEntry._ID + ") AS " + BookEntry.COLUMN_DUPLICATE_IDS
+            + " FROM " + BookEntry.TABLE_NAME
+            + " WHERE " + BookEntry.COLUMN_BOOK_DEDUPE_KEY + " IS NOT NULL"
+            + " GROUP BY " + BookEntry.COLUMN_BOOK_DEDUPE_KEY + " HAVING COUNT(*)>1) c"
+            + " JOIN " + BookEntry.TABLE_NAME + " b ON b." + BookEntry._ID + "=c." + BookEntry._ID;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -73,6 +184,56 @@ public class BookProvider extends ContentProvider {
         // For example, "content://com.example.android.books/boos/3" matches, but
         // "content://com.example.android.books/books" (without a number at the end) doesn't match.
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_BOOKS + "/#", BOOK_ID);
+
+        // The content URI of the form "content://com.example.android.books/books/#/cover" will map
+        // to the integer code {@link #BOOK_COVER}. It is only used to open the cover image file.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_COVER, BOOK_COVER);
+
+        // The content URI of the form "content://com.example.android.books/books/isbn/*" will map
+        // to the integer code {@link #BOOK_ISBN}. It finds a single book through the ISBN index.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_ISBN + "/*", BOOK_ISBN);
+
+        // The content URI of the form "content://com.example.android.books/books/sections" will
+        // map to the integer code {@link #BOOK_SECTIONS}. It returns one row per first letter.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_SECTIONS, BOOK_SECTIONS);
+
+        // The content URI of the form "content://com.example.android.books/books/suggestions/*"
+        // will map to the integer code {@link #BOOK_SUGGESTIONS}, where "*" is the column.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_SUGGESTIONS + "/*", BOOK_SUGGESTIONS);
+
+        // The content URI of the form "content://com.example.android.books/books/duplicates" will
+        // map to the integer code {@link #BOOK_DUPLICATES}. It returns one row per cluster.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_DUPLICATES, BOOK_DUPLICATES);
+
+        // The content URIs of the form "content://com.example.android.books/books/#/stock" and
+        // "content://com.example.android.books/books/#/stock/*" map to the stock of one book,
+        // at every location or at the location given by "*".
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_STOCK, BOOK_STOCK);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_STOCK + "/*", BOOK_STOCK_LOCATION);
+
+        // The content URIs "content://com.example.android.books/stock" and
+        // "content://com.example.android.books/stock/locations" map to the stock of all books,
+        // row by row or in totals per location.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_STOCK, STOCK);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_STOCK + "/" + BookContract.PATH_LOCATIONS, STOCK_LOCATIONS);
+
+        // The content URI of the form "content://com.example.android.books/books/#/movements"
+        // maps to the stock movements of one book, optionally within a time range.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_MOVEMENTS, BOOK_MOVEMENTS);
+
+        // The content URI of the form "content://com.example.android.books/books/#/prices"
+        // maps to the price history of one book, optionally within a time range.
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/#/" + BookContract.PATH_PRICES, BOOK_PRICES);
     }
 
     /**
@@ -80,12 +241,136 @@ public class BookProvider extends ContentProvider {
      */
     private BookDbHelper mDbHelper;
 
+    /**
+     * Runs all the writes on one writer thread, committing concurrent writes together
+     */
+    private BookWriteScheduler mWriteScheduler;
+
+    /**
+     * Files holding the book covers
+     */
+    private CoverStore mCoverStore;
+
+    /**
+     * Typeahead suggestions, kept up to date by the writes below
+     */
+    private SuggestionIndex mSuggestions;
+
+    /**
+     * Backs the database up and restores it, one at a time
+     */
+    private BookBackup mBackup;
+
+    /**
+     * The books themselves, behind the storage engine neutral {@link BookStore} interface
+     */
+    private AndroidBookStore mStore;
+
+    /**
+     * Runs bulk deletes and archiving jobs one after the other, off the calling thread
+     */
+    private final ExecutorService mBackgroundExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * How often the provider applies the archive policy by itself
+     */
+    private static final long ARCHIVE_POLICY_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Columns returned by {@link BookContract#METHOD_GET_BOOKS}, in the order they are selected
+     */
+    private static final String[] GET_BOOKS_COLUMNS = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_CATEGORY,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NUMBER,
+            BookEntry.COLUMN_BOOK_VERSION};
+
+    /**
+     * The statements of {@link BookContract#METHOD_GET_BOOKS}, the one at index i looks up
+     * 2^i ids. Batches are padded to the next of these sizes, so only a handful of statements
+     * are ever used and they stay prepared in the statement cache of every connection.
+     */
+    private static final String[] GET_BOOKS_SQL = new String[8];
+
+    static {
+        StringBuilder sql = new StringBuilder("SELECT ")
+                .append(TextUtils.join(",", GET_BOOKS_COLUMNS)).append(" FROM ")
+                .append(BookEntry.TABLE_NAME).append(" WHERE ").append(BookEntry._ID)
+                .append(" IN (?");
+        for (int i = 0; i < GET_BOOKS_SQL.length; i++) {
+            GET_BOOKS_SQL[i] = sql + ")";
+            for (int j = 0; j < 1 << i; j++) {
+                sql.append(",?");
+            }
+        }
+    }
+
+    /**
+     * Books added per transaction by {@link BookContract#METHOD_GENERATE_CATALOG}, so other
+     * writes only wait for one chunk
+     */
+    private static final int GENERATE_CHUNK_SIZE = 5000;
+
+    private static final String PREFS_NAME = "book_provider";
+    private static final String PREF_LAST_ARCHIVE_POLICY_RUN = "last_archive_policy_run";
+
+    /**
+     * The most recently started bulk delete (null if none was started yet)
+     */
+    private volatile BulkDeleteJob mBulkDeleteJob;
+
     @Override
     public boolean onCreate() {
         mDbHelper = new BookDbHelper(getContext());
+        mWriteScheduler = new BookWriteScheduler(mDbHelper);
+        mCoverStore = new CoverStore(getContext());
+        mSuggestions = new SuggestionIndex(mWriteScheduler);
+        mBackup = new BookBackup(mDbHelper, mWriteScheduler);
+        mStore = new AndroidBookStore(mDbHelper, mWriteScheduler);
+        mStore.addListener(new BookStore.Listener() {
+            @Override
+            public void onBooksChanged(long[] ids) {
+                ContentResolver resolver = getContext().getContentResolver();
+                if (ids.length != 1) {
+                    resolver.notifyChange(BookEntry.CONTENT_URI, null);
+                    return;
+                }
+                resolver.notifyChange(ContentUris.withAppendedId(BookEntry.CONTENT_URI, ids[0]),
+                        null);
+            }
+        });
+
+        // Keep the catalog snapshot in step with the committed data
+        mWriteScheduler.addCommitListener(new CatalogSnapshot(getContext()));
+
+        applyRetentionPoliciesIfDue();
         return true;
     }
 
+    /**
+     * Archive the books that have been sold out for a long time, fold the old stock movements
+     * and downsample the old price history, if that wasn't done in the last day. It runs in
+     * the background, the provider is usable right away.
+     */
+    private void applyRetentionPoliciesIfDue() {
+        SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        long lastRun = prefs.getLong(PREF_LAST_ARCHIVE_POLICY_RUN, 0);
+        if (now - lastRun < ARCHIVE_POLICY_INTERVAL_MILLIS && lastRun <= now) {
+            return;
+        }
+        prefs.edit().putLong(PREF_LAST_ARCHIVE_POLICY_RUN, now).apply();
+        mBackgroundExecutor.execute(ArchiveJob.forPolicy(mWriteScheduler, mSuggestions,
+                getContext().getContentResolver(), BookContract.DEFAULT_ARCHIVE_IDLE_DAYS));
+        mBackgroundExecutor.execute(LedgerFoldJob.forRetention(mWriteScheduler));
+        mBackgroundExecutor.execute(PriceDownsampleJob.forRetention(mWriteScheduler));
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
@@ -102,8 +387,7 @@ public class BookProvider extends ContentProvider {
                 // For the BOOKS code, query the books table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the books table.
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryBooks(database, uri, projection, selection, selectionArgs, sortOrder);
                 break;
             case BOOK_ID:
                 // For the BOOK_ID code, extract out the ID from the URI.
@@ -119,16 +403,136 @@ public class BookProvider extends ContentProvider {
 
                 // This will perform a query on the books table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryBooks(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case BOOK_ISBN:
+                // For "content://com.example.android.books/books/isbn/9780747532699" the selection
+                // is "isbn=?", which is answered by the unique ISBN index.
+                selection = BookEntry.COLUMN_BOOK_ISBN + "=?";
+                selectionArgs = new String[]{BookEntry.normalizeIsbn(uri.getLastPathSegment())};
+                cursor = queryBooks(database, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case BOOK_SECTIONS:
+                cursor = database.rawQuery(SECTIONS_QUERY, null);
+                break;
+            case BOOK_SUGGESTIONS:
+                // Answered from memory, every keystroke of a typeahead field ends up here
+                cursor = mSuggestions.query(uri.getLastPathSegment(),
+                        uri.getQueryParameter(BookContract.PARAM_PREFIX));
+                break;
+            case BOOK_DUPLICATES:
+                cursor = database.rawQuery(DUPLICATES_QUERY, null);
+                break;
+            case BOOK_STOCK:
+                // The rows of one book are a range of the unique index on book and location
+                cursor = database.query(StockEntry.TABLE_NAME, projection,
+                        StockEntry.COLUMN_BOOK_ID + "=?",
+                        new String[]{uri.getPathSegments().get(1)}, null, null,
+                        sortOrder == null ? StockEntry.COLUMN_LOCATION : sortOrder);
+                break;
+            case BOOK_STOCK_LOCATION:
+                cursor = database.query(StockEntry.TABLE_NAME, projection,
+                        StockEntry.COLUMN_BOOK_ID + "=? AND " + StockEntry.COLUMN_LOCATION + "=?",
+                        new String[]{uri.getPathSegments().get(1), parseLocation(uri)},
+                        null, null, null);
+                break;
+            case STOCK:
+                cursor = database.query(StockEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case STOCK_LOCATIONS:
+                // SELECT MIN(_id) AS _id, location, SUM(quantity) AS quantity,
+                // COUNT(*) AS book_count FROM stock GROUP BY location ORDER BY location
+                cursor = database.rawQuery("SELECT MIN(" + StockEntry._ID + ") AS " + StockEntry._ID
+                        + ", " + StockEntry.COLUMN_LOCATION
+                        + ", SUM(" + StockEntry.COLUMN_QUANTITY + ") AS " + StockEntry.COLUMN_QUANTITY
+                        + ", COUNT(*) AS " + StockEntry.COLUMN_BOOK_COUNT
+                        + " FROM " + StockEntry.TABLE_NAME
+                        + " GROUP BY " + StockEntry.COLUMN_LOCATION
+                        + " ORDER BY " + StockEntry.COLUMN_LOCATION, null);
+                break;
+            case BOOK_MOVEMENTS:
+                // A range of the index on book and time, which is also the order of the rows
+                cursor = database.query(StockMovementEntry.TABLE_NAME, projection,
+                        StockMovementEntry.COLUMN_BOOK_ID + "=? AND "
+                                + StockMovementEntry.COLUMN_CREATED_AT + ">=? AND "
+                                + StockMovementEntry.COLUMN_CREATED_AT + "<?",
+                        new String[]{uri.getPathSegments().get(1),
+                                String.valueOf(parseTime(uri, BookContract.PARAM_FROM, 0)),
+                                String.valueOf(parseTime(uri, BookContract.PARAM_TO,
+                                        Long.MAX_VALUE))},
+                        null, null, StockMovementEntry.COLUMN_CREATED_AT + ", "
+                                + StockMovementEntry._ID);
+                break;
+            case BOOK_PRICES:
+                // Also a range of the index on book and time
+                cursor = database.query(PriceHistoryEntry.TABLE_NAME, projection,
+                        PriceHistoryEntry.COLUMN_BOOK_ID + "=? AND "
+                                + PriceHistoryEntry.COLUMN_CHANGED_AT + ">=? AND "
+                                + PriceHistoryEntry.COLUMN_CHANGED_AT + "<?",
+                        new String[]{uri.getPathSegments().get(1),
+                                String.valueOf(parseTime(uri, BookContract.PARAM_FROM, 0)),
+                                String.valueOf(parseTime(uri, BookContract.PARAM_TO,
+                                        Long.MAX_VALUE))},
+                        null, null, PriceHistoryEntry.COLUMN_CHANGED_AT + ", "
+                                + PriceHistoryEntry._ID);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        // The stock of all books changes with the books, including when they are deleted
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                match == STOCK || match == STOCK_LOCATIONS ? BookEntry.CONTENT_URI : uri);
         return cursor;
     }
 
+    /**
+     * Returns the time in the given query parameter of the URI, or the default if it has none.
+     */
+    private static long parseTime(Uri uri, String parameter, long defaultTime) {
+        String time = uri.getQueryParameter(parameter);
+        if (time == null) {
+            return defaultTime;
+        }
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " time in " + uri);
+        }
+    }
+
+    /**
+     * Query the books table, and also the archive if the URI asks for it with
+     * {@link BookContract#PARAM_INCLUDE_ARCHIVE}. Without it, queries never touch the archive
+     * and only scale with the books in the catalog.
+     */
+    private static Cursor queryBooks(SQLiteDatabase database, Uri uri, String[] projection,
+                                     String selection, String[] selectionArgs, String sortOrder) {
+        if (!uri.getBooleanQueryParameter(BookContract.PARAM_INCLUDE_ARCHIVE, false)) {
+            return database.query(BookEntry.TABLE_NAME, projection, selection, selectionArgs,
+                    null, null, sortOrder);
+        }
+
+        // SELECT <projection> FROM books WHERE <selection>
+        // UNION ALL SELECT <projection> FROM books_archive WHERE <selection> ORDER BY <sortOrder>
+        if (projection == null) {
+            projection = BookDbHelper.BOOK_COLUMNS;
+        }
+        String sql = SQLiteQueryBuilder.buildQueryString(false, BookEntry.TABLE_NAME, projection,
+                selection, null, null, null, null)
+                + " UNION ALL "
+                + SQLiteQueryBuilder.buildQueryString(false, BookEntry.ARCHIVE_TABLE_NAME,
+                projection, selection, null, null, null, null)
+                + (TextUtils.isEmpty(sortOrder) ? "" : " ORDER BY " + sortOrder);
+        String[] args = null;
+        if (selectionArgs != null) {
+            args = new String[selectionArgs.length * 2];
+            System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+            System.arraycopy(selectionArgs, 0, args, selectionArgs.length, selectionArgs.length);
+        }
+        return database.rawQuery(sql, args);
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
@@ -142,54 +546,226 @@ public class BookProvider extends ContentProvider {
 
     /**
      * Insert a book into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * for that specific row in the database. If the URI asks for it with
+     * {@link BookContract#PARAM_ON_DUPLICATE}, a likely duplicate is rejected or merged into
+     * the existing book instead.
      */
     private Uri insertBook(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(BookEntry.COLUMN_BOOK_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("book requires a name");
+        validateNewBook(values);
+        final String onDuplicate = uri.getQueryParameter(BookContract.PARAM_ON_DUPLICATE);
+        if (onDuplicate != null && !BookContract.ON_DUPLICATE_REJECT.equals(onDuplicate)
+                && !BookContract.ON_DUPLICATE_MERGE.equals(onDuplicate)) {
+            throw new IllegalArgumentException("Unknown duplicate handling " + onDuplicate);
         }
 
-        // If the PRICE is provided, check that it's greater than or equal to 0
-        Integer price = values.getAsInteger(BookEntry.COLUMN_BOOK_PRICE);
-        if (price != null && price < 0) {
-            throw new IllegalArgumentException("book requires valid price");
+        // Insert the new book with the given values, as part of the next group commit.
+        // Looking for a duplicate in the same write means no other write can slip in between.
+        final ContentValues bookValues = values;
+        final SuggestionIndex.Delta[] suggestions = new SuggestionIndex.Delta[1];
+        long id = mWriteScheduler.execute(new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                suggestions[0] = null;
+                if (onDuplicate != null) {
+                    long duplicateId = findDuplicate(database,
+                            bookValues.getAsString(BookEntry.COLUMN_BOOK_DEDUPE_KEY));
+                    if (duplicateId != -1) {
+                        if (BookContract.ON_DUPLICATE_REJECT.equals(onDuplicate)) {
+                            throw new BookDuplicateException(duplicateId);
+                        }
+                        mStore.adjustStock(database, duplicateId, initialQuantity(bookValues),
+                                StockMovementEntry.REASON_MERGE,
+                                bookValues.getAsLong(BookEntry.COLUMN_BOOK_UPDATED_AT));
+                        return duplicateId;
+                    }
+                }
+                // A taken ISBN is reported to the caller, like on update
+                long id = mStore.insert(database, toBook(bookValues),
+                        bookValues.getAsLong(BookEntry.COLUMN_BOOK_UPDATED_AT));
+                suggestions[0] = mSuggestions.inserted(bookValues);
+                return id;
+            }
+        });
+        mSuggestions.apply(suggestions[0]);
+
+        getContext().getContentResolver().notifyChange(BookContract.NAMES_URI, null);
+        getContext().getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Returns the oldest book with the given dedupe key, or -1 if there is none. It is a single
+     * lookup in the dedupe key index.
+     */
+    private static long findDuplicate(SQLiteDatabase database, String dedupeKey) {
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, new String[]{BookEntry._ID},
+                BookEntry.COLUMN_BOOK_DEDUPE_KEY + "=?", new String[]{dedupeKey},
+                null, null, BookEntry._ID, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
         }
+    }
 
-        // If the quantity is provided, check that it's greater than or equal to 0
+    /**
+     * Returns the quantity a new book is inserted with, the default of 0 if it has none.
+     */
+    private static int initialQuantity(ContentValues values) {
         Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
-        if (quantity != null && quantity < 0) {
-            throw new IllegalArgumentException("book requires valid quantity");
+        return quantity == null ? 0 : quantity;
+    }
+
+    /**
+     * Returns the book described by the values of a new book, see {@link #validateNewBook}.
+     */
+    private static Book toBook(ContentValues values) {
+        return applyValues(new Book(null, null, 0, 0, null, 0, null), values);
+    }
+
+    /**
+     * Returns a copy of the book with the values set by a client. The values maintained by the
+     * store (change time and dedupe key) are left out.
+     *
+     * @throws IllegalArgumentException if a value is not a column of the books
+     */
+    private static Book applyValues(Book book, ContentValues values) {
+        String name = book.getName();
+        String category = book.getCategory();
+        int price = book.getPrice();
+        int quantity = book.getQuantity();
+        String supplierName = book.getSupplierName();
+        int supplierNumber = book.getSupplierNumber();
+        String isbn = book.getIsbn();
+        for (String column : values.keySet()) {
+            switch (column) {
+                case BookEntry.COLUMN_BOOK_NAME:
+                    name = values.getAsString(column);
+                    break;
+                case BookEntry.COLUMN_BOOK_CATEGORY:
+                    category = values.getAsString(column);
+                    break;
+                case BookEntry.COLUMN_BOOK_PRICE:
+                    price = intValue(values, column);
+                    break;
+                case BookEntry.COLUMN_BOOK_QUANTITY:
+                    quantity = intValue(values, column);
+                    break;
+                case BookEntry.COLUMN_SUPPLIER_NAME:
+                    supplierName = values.getAsString(column);
+                    break;
+                case BookEntry.COLUMN_SUPPLIER_NUMBER:
+                    supplierNumber = intValue(values, column);
+                    break;
+                case BookEntry.COLUMN_BOOK_ISBN:
+                    isbn = values.getAsString(column);
+                    break;
+                case BookEntry.COLUMN_BOOK_UPDATED_AT:
+                case BookEntry.COLUMN_BOOK_DEDUPE_KEY:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown book column " + column);
+            }
         }
+        return new Book(book.getId(), name, category, price, quantity, supplierName,
+                supplierNumber, isbn, book.getVersion(), book.getUpdatedAt());
+    }
 
-        String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
-        if (supplierName == null) {
-            throw new IllegalArgumentException("book requires a supplier name");
+    /**
+     * Returns the number in the values for the column, 0 if it's null like the column default.
+     */
+    private static int intValue(ContentValues values, String column) {
+        Integer value = values.getAsInteger(column);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Insert all the books in a single transaction, with a single change notification.
+     * Either all the books are inserted or none of them.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != BOOKS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+        for (ContentValues bookValues : values) {
+            validateNewBook(bookValues);
         }
 
-        // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        final ContentValues[] books = values;
+        final SuggestionIndex.Delta[] suggestions = new SuggestionIndex.Delta[1];
+        int inserted = mWriteScheduler.execute(new BookWriteScheduler.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase database) {
+                for (ContentValues bookValues : books) {
+                    mStore.insert(database, toBook(bookValues),
+                            bookValues.getAsLong(BookEntry.COLUMN_BOOK_UPDATED_AT));
+                }
+                suggestions[0] = mSuggestions.inserted(books);
+                return books.length;
+            }
+        });
+        mSuggestions.apply(suggestions[0]);
 
-        // Insert the new book with the given values
-        long id = database.insert(BookEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        if (inserted != 0) {
+            getContext().getContentResolver().notifyChange(BookContract.NAMES_URI, null);
+            getContext().getContentResolver().notifyChange(uri, null);
         }
+        return inserted;
+    }
 
-        getContext().getContentResolver().notifyChange(uri, null);
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Check that the values describe a valid new book, and drop the values that only the
+     * provider may set.
+     */
+    private static void validateNewBook(ContentValues values) {
+        // The same rules as for the books of every BookStore
+        String name = values.getAsString(BookEntry.COLUMN_BOOK_NAME);
+        BookRules.checkName(name);
+        BookRules.checkPrice(values.getAsInteger(BookEntry.COLUMN_BOOK_PRICE));
+        BookRules.checkQuantity(values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY));
+        String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
+        BookRules.checkSupplierName(supplierName);
+
+        normalizeIsbn(values);
+
+        // The row version is maintained by the provider, new books always start at version 1
+        values.remove(BookEntry.COLUMN_BOOK_VERSION);
+        values.put(BookEntry.COLUMN_BOOK_UPDATED_AT, System.currentTimeMillis());
+        values.put(BookEntry.COLUMN_BOOK_DEDUPE_KEY, BookEntry.buildDedupeKey(name, supplierName));
+    }
+
+    /**
+     * If the values contain an ISBN, check it and store it in its normalized form, so lookups
+     * by ISBN find it however it was typed.
+     */
+    private static void normalizeIsbn(ContentValues values) {
+        if (values.containsKey(BookEntry.COLUMN_BOOK_ISBN)) {
+            values.put(BookEntry.COLUMN_BOOK_ISBN,
+                    BookEntry.normalizeIsbn(values.getAsString(BookEntry.COLUMN_BOOK_ISBN)));
+        }
     }
 
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        long span = BookTrace.begin("provider.update");
+        try {
+            return updateUri(uri, contentValues, selection, selectionArgs);
+        } finally {
+            BookTrace.end(span);
+        }
+    }
+
+    private int updateUri(Uri uri, ContentValues contentValues, String selection,
+                          String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
+                if (uri.getQueryParameter(BookContract.PARAM_EXPECTED_VERSION) != null) {
+                    throw new IllegalArgumentException("Conditional update needs a single book " + uri);
+                }
                 return updateBook(uri, contentValues, selection, selectionArgs);
             case BOOK_ID:
                 // For the BOOK_ID code, extract out the ID from the URI,
@@ -197,7 +773,23 @@ public class BookProvider extends ContentProvider {
                 // arguments will be a String array containing the actual ID.
                 selection = BookEntry._ID + "=?";
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateBook(uri, contentValues, selection, selectionArgs);
+
+                // For a conditional update, only touch the row if nobody changed it since
+                // the caller read it.
+                String expectedVersion = uri.getQueryParameter(BookContract.PARAM_EXPECTED_VERSION);
+                if (expectedVersion == null) {
+                    return updateBook(uri, contentValues, selection, selectionArgs);
+                }
+                int rowsUpdated = updateBook(uri, contentValues,
+                        selection + " AND " + BookEntry.COLUMN_BOOK_VERSION + "=?",
+                        new String[]{selectionArgs[0], expectedVersion});
+                if (rowsUpdated == 0 && contentValues.size() > 0) {
+                    throw new BookConflictException(Long.parseLong(expectedVersion),
+                            readVersion(ContentUris.parseId(uri)));
+                }
+                return rowsUpdated;
+            case BOOK_STOCK_LOCATION:
+                return adjustStock(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -209,81 +801,719 @@ public class BookProvider extends ContentProvider {
      * Return the number of rows that were successfully updated.
      */
     private int updateBook(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If the {@link BookEntry#COLUMN_BOOK_NAME} key is present,
-        // check that the name value is not null.
+        // The values present have to follow the same rules as for a new book
         if (values.containsKey(BookEntry.COLUMN_BOOK_NAME)) {
-            String name = values.getAsString(BookEntry.COLUMN_BOOK_NAME);
-            if (name == null) {
-                throw new IllegalArgumentException("Book requires a name");
-            }
+            BookRules.checkName(values.getAsString(BookEntry.COLUMN_BOOK_NAME));
         }
-
-        // If the {@link BookEntry#COLUMN_BOOK_PRICE} key is present,
-        // check that the price value is valid.
         if (values.containsKey(BookEntry.COLUMN_BOOK_PRICE)) {
-            // Check that the price is greater than or equal to 0
-            Integer price = values.getAsInteger(BookEntry.COLUMN_BOOK_PRICE);
-            if (price != null && price < 0) {
-                throw new IllegalArgumentException("book requires valid price");
-            }
+            BookRules.checkPrice(values.getAsInteger(BookEntry.COLUMN_BOOK_PRICE));
         }
-
-        // If the {@link BookEntry#COLUMN_BOOK_QUANTITY} key is present,
-        // check that the price value is valid.
-        if (values.containsKey(BookEntry.COLUMN_BOOK_PRICE)) {
-            // Check that the quantity is greater than or equal to 0
-            Integer quantity = values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY);
-            if (quantity != null && quantity < 0) {
-                throw new IllegalArgumentException("book requires valid quantity");
-            }
+        if (values.containsKey(BookEntry.COLUMN_BOOK_QUANTITY)) {
+            BookRules.checkQuantity(values.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY));
         }
-
-        // If the {@link BookEntry#COLUMN_BOOK_SUPPLIER_NAME} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(BookEntry.COLUMN_BOOK_NAME)) {
-            String supplierName = values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME);
-            if (supplierName == null) {
-                throw new IllegalArgumentException("book requires a supplier name");
-            }
+        if (values.containsKey(BookEntry.COLUMN_SUPPLIER_NAME)) {
+            BookRules.checkSupplierName(values.getAsString(BookEntry.COLUMN_SUPPLIER_NAME));
         }
 
+        normalizeIsbn(values);
+
+        // The row version, change time and dedupe key are maintained by the provider, clients
+        // can't set them
+        values.remove(BookEntry.COLUMN_BOOK_VERSION);
+        values.remove(BookEntry.COLUMN_BOOK_UPDATED_AT);
+        values.remove(BookEntry.COLUMN_BOOK_DEDUPE_KEY);
+
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
         }
 
-        // Otherwise, get writable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // A new quantity is a stock movement of every book it changes
+        final String stockReason = StockLedger.reason(uri);
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Otherwise, update the data as part of the next group commit. Every book is written
+        // by primary key through the store, which also keeps its dedupe key, ledger and price
+        // history up to date.
+        final ContentValues bookValues = values;
+        final String bookSelection = selection;
+        final String[] bookSelectionArgs = selectionArgs;
+        final SuggestionIndex.Delta[] suggestions = new SuggestionIndex.Delta[1];
+        final boolean[] renamed = new boolean[1];
+        int rowsUpdated = mWriteScheduler.execute(new BookWriteScheduler.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase database) {
+                suggestions[0] = mSuggestions.updated(database, bookValues, bookSelection,
+                        bookSelectionArgs);
+                long now = System.currentTimeMillis();
+                List<Long> ids = queryIds(database, bookSelection, bookSelectionArgs);
+                for (long id : ids) {
+                    Book stored = mStore.get(database, id);
+                    Book book = applyValues(stored, bookValues);
+                    mStore.update(database, stored, book, stockReason, now);
+                    renamed[0] |= !book.getName().equals(stored.getName());
+                }
+                return ids.size();
+            }
+        });
+        mSuggestions.apply(suggestions[0]);
+        if (rowsUpdated != 0) {
+            long span = BookTrace.begin("provider.notify");
+            try {
+                BookTrace.markChanged();
+                if (renamed[0]) {
+                    getContext().getContentResolver().notifyChange(BookContract.NAMES_URI, null);
+                }
+                getContext().getContentResolver().notifyChange(uri, null);
+            } finally {
+                BookTrace.end(span);
+            }
+        }
 
         // Returns the number of database rows affected by the update statement
-        return database.update(BookEntry.TABLE_NAME, values, selection, selectionArgs);
+        return rowsUpdated;
+    }
+
+    /**
+     * Returns the ids of the books matching the selection.
+     */
+    private static List<Long> queryIds(SQLiteDatabase database, String selection,
+                                       String[] selectionArgs) {
+        List<Long> ids = new ArrayList<>();
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, new String[]{BookEntry._ID},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the location named by the last segment of a stock URI, without leading or
+     * trailing spaces.
+     */
+    private static String parseLocation(Uri uri) {
+        String location = uri.getLastPathSegment().trim();
+        if (location.isEmpty()) {
+            throw new IllegalArgumentException("stock requires a location " + uri);
+        }
+        return location;
+    }
+
+    /**
+     * Set or adjust the stock of a book at one location, and its total stock by the same
+     * amount. Only the row of that location and the book itself are written.
+     */
+    private int adjustStock(Uri uri, ContentValues values) {
+        final long id = Long.parseLong(uri.getPathSegments().get(1));
+        final String location = parseLocation(uri);
+        final Integer quantity = values.getAsInteger(StockEntry.COLUMN_QUANTITY);
+        final Integer adjustment = values.getAsInteger(StockEntry.COLUMN_ADJUSTMENT);
+        if ((quantity == null) == (adjustment == null)) {
+            throw new IllegalArgumentException("stock requires either a quantity or an adjustment");
+        }
+
+        int change = mWriteScheduler.execute(new BookWriteScheduler.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase database) {
+                long stockId = -1;
+                int current = 0;
+                Cursor cursor = database.query(StockEntry.TABLE_NAME,
+                        new String[]{StockEntry._ID, StockEntry.COLUMN_QUANTITY},
+                        StockEntry.COLUMN_BOOK_ID + "=? AND " + StockEntry.COLUMN_LOCATION + "=?",
+                        new String[]{String.valueOf(id), location}, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        stockId = cursor.getLong(0);
+                        current = cursor.getInt(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                int updated = quantity != null ? quantity : current + adjustment;
+                if (updated < 0) {
+                    throw new IllegalArgumentException("stock at " + location
+                            + " can't go below 0, it is " + current);
+                }
+                int change = updated - current;
+                if (change == 0 && stockId != -1) {
+                    return 0;
+                }
+                ContentValues stock = new ContentValues();
+                stock.put(StockEntry.COLUMN_QUANTITY, updated);
+                if (stockId == -1) {
+                    stock.put(StockEntry.COLUMN_BOOK_ID, id);
+                    stock.put(StockEntry.COLUMN_LOCATION, location);
+                    database.insertOrThrow(StockEntry.TABLE_NAME, null, stock);
+                } else {
+                    database.update(StockEntry.TABLE_NAME, stock, StockEntry._ID + "=?",
+                            new String[]{String.valueOf(stockId)});
+                }
+                // The total goes by the same amount as the location, after it
+                if (mStore.adjustStock(database, id, change, StockMovementEntry.REASON_LOCATION,
+                        System.currentTimeMillis()) == -1) {
+                    throw new IllegalArgumentException("stock of book " + id
+                            + " is less than its stock at the locations");
+                }
+                return change;
+            }
+        });
+
+        if (change != 0) {
+            // Also reaches the stock of the book, and the stock of all books, see query()
+            getContext().getContentResolver().notifyChange(
+                    ContentUris.withAppendedId(BookEntry.CONTENT_URI, id), null);
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the current version of the given book, or -1 if there is no such book.
+     */
+    private long readVersion(long id) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor = database.query(BookEntry.TABLE_NAME,
+                new String[]{BookEntry.COLUMN_BOOK_VERSION}, BookEntry._ID + "=?",
+                new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
-                getContext().getContentResolver().notifyChange(uri, null);
                 // Delete all rows that match the selection and selection args
-                return database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
+                return deleteBook(uri, selection, selectionArgs);
             case BOOK_ID:
-                getContext().getContentResolver().notifyChange(uri, null);
                 // Delete a single row given by the ID in the URI
+                long id = ContentUris.parseId(uri);
                 selection = BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return database.delete(BookEntry.TABLE_NAME, selection, selectionArgs);
+                selectionArgs = new String[]{String.valueOf(id)};
+                int rowsDeleted = deleteBook(uri, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mCoverStore.delete(id);
+                }
+                return rowsDeleted;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
     }
 
+    /**
+     * Delete the books matching the selection as part of the next group commit.
+     * Return the number of rows that were deleted.
+     */
+    private int deleteBook(Uri uri, final String selection, final String[] selectionArgs) {
+        final SuggestionIndex.Delta[] suggestions = new SuggestionIndex.Delta[1];
+        int rowsDeleted = mWriteScheduler.execute(new BookWriteScheduler.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase database) {
+                suggestions[0] = mSuggestions.removed(database, selection, selectionArgs);
+                return mStore.delete(database, selection, selectionArgs);
+            }
+        });
+        mSuggestions.apply(suggestions[0]);
+        if (rowsDeleted != 0) {
+            getContext().getContentResolver().notifyChange(BookContract.NAMES_URI, null);
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return rowsDeleted;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        switch (method) {
+            case BookContract.METHOD_BULK_DELETE:
+                return startBulkDelete(arg,
+                        extras == null ? null : extras.getStringArray(BookContract.EXTRA_SELECTION_ARGS));
+            case BookContract.METHOD_BULK_DELETE_STATUS:
+                BulkDeleteJob job = mBulkDeleteJob;
+                if (job == null) {
+                    Bundle status = new Bundle();
+                    status.putBoolean(BookContract.EXTRA_FINISHED, true);
+                    return status;
+                }
+                return job.getStatus();
+            case BookContract.METHOD_ARCHIVE:
+                startArchive(arg, extras);
+                return null;
+            case BookContract.METHOD_APPLY_PRICE_FEED:
+                return applyPriceFeed(arg);
+            case BookContract.METHOD_BACKUP:
+                return backup(arg);
+            case BookContract.METHOD_RESTORE:
+                return restore(arg);
+            case BookContract.METHOD_GET_BOOKS:
+                if (extras != null && extras.containsKey(BookContract.EXTRA_IDS)) {
+                    return getBooks(extras.getLongArray(BookContract.EXTRA_IDS));
+                }
+                return getBooks(new long[]{parseId(arg)});
+            case BookContract.METHOD_GENERATE_CATALOG:
+                return generateCatalog(parseCount(arg),
+                        extras == null ? 0 : extras.getLong(BookContract.EXTRA_SEED, 0));
+            case BookContract.METHOD_SELL_BY_ISBN:
+                return sellByIsbn(arg,
+                        extras == null ? 1 : extras.getInt(BookContract.EXTRA_QUANTITY, 1),
+                        extras == null ? null : extras.getString(BookContract.EXTRA_LOCATION));
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    private static long parseId(String id) {
+        if (id == null) {
+            throw new IllegalArgumentException("get books requires an id");
+        }
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid book id " + id, e);
+        }
+    }
+
+    /**
+     * Read the books with the given ids straight into arrays, as described in
+     * {@link BookContract#METHOD_GET_BOOKS}. Unlike a query this registers no observer and hands
+     * no cursor window to the caller, the rows are copied into the Bundle and the cursor is
+     * closed right here. The ids are looked up in batches of at most 128, each batch padded
+     * with its last id to one of the sizes of {@link #GET_BOOKS_SQL}.
+     */
+    private Bundle getBooks(long[] ids) {
+        if (ids == null) {
+            throw new IllegalArgumentException("get books requires ids");
+        }
+        int count = ids.length;
+        String[] names = new String[count];
+        String[] categories = new String[count];
+        String[] isbns = new String[count];
+        String[] supplierNames = new String[count];
+        int[] prices = new int[count];
+        int[] quantities = new int[count];
+        int[] supplierNumbers = new int[count];
+        long[] versions = new long[count];
+        boolean[] found = new boolean[count];
+
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        int maxBatch = 1 << (GET_BOOKS_SQL.length - 1);
+        for (int start = 0; start < count; start += maxBatch) {
+            int end = Math.min(start + maxBatch, count);
+            int size = 0;
+            while (1 << size < end - start) {
+                size++;
+            }
+            String[] args = new String[1 << size];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = Long.toString(ids[Math.min(start + i, end - 1)]);
+            }
+
+            Cursor cursor = database.rawQuery(GET_BOOKS_SQL[size], args);
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    // Put each row wherever its id was asked for, the rows come in any order
+                    for (int i = start; i < end; i++) {
+                        if (ids[i] != id) {
+                            continue;
+                        }
+                        names[i] = cursor.getString(1);
+                        categories[i] = cursor.getString(2);
+                        isbns[i] = cursor.getString(3);
+                        supplierNames[i] = cursor.getString(4);
+                        prices[i] = cursor.getInt(5);
+                        quantities[i] = cursor.getInt(6);
+                        supplierNumbers[i] = cursor.getInt(7);
+                        versions[i] = cursor.getLong(8);
+                        found[i] = true;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Leave out the books that don't exist
+        int books = 0;
+        long[] foundIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (!found[i]) {
+                continue;
+            }
+            foundIds[books] = ids[i];
+            names[books] = names[i];
+            categories[books] = categories[i];
+            isbns[books] = isbns[i];
+            supplierNames[books] = supplierNames[i];
+            prices[books] = prices[i];
+            quantities[books] = quantities[i];
+            supplierNumbers[books] = supplierNumbers[i];
+            versions[books] = versions[i];
+            books++;
+        }
+
+        Bundle result = new Bundle();
+        result.putLongArray(BookContract.EXTRA_IDS,
+                books == count ? foundIds : Arrays.copyOf(foundIds, books));
+        result.putStringArray(BookEntry.COLUMN_BOOK_NAME,
+                books == count ? names : Arrays.copyOf(names, books));
+        result.putStringArray(BookEntry.COLUMN_BOOK_CATEGORY,
+                books == count ? categories : Arrays.copyOf(categories, books));
+        result.putStringArray(BookEntry.COLUMN_BOOK_ISBN,
+                books == count ? isbns : Arrays.copyOf(isbns, books));
+        result.putStringArray(BookEntry.COLUMN_SUPPLIER_NAME,
+                books == count ? supplierNames : Arrays.copyOf(supplierNames, books));
+        result.putIntArray(BookEntry.COLUMN_BOOK_PRICE,
+                books == count ? prices : Arrays.copyOf(prices, books));
+        result.putIntArray(BookEntry.COLUMN_BOOK_QUANTITY,
+                books == count ? quantities : Arrays.copyOf(quantities, books));
+        result.putIntArray(BookEntry.COLUMN_SUPPLIER_NUMBER,
+                books == count ? supplierNumbers : Arrays.copyOf(supplierNumbers, books));
+        result.putLongArray(BookEntry.COLUMN_BOOK_VERSION,
+                books == count ? versions : Arrays.copyOf(versions, books));
+        return result;
+    }
+
+    private static int parseCount(String count) {
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number of books " + count, e);
+        }
+    }
+
+    /**
+     * Add a synthetic catalog of the given number of books, as described in
+     * {@link BookContract#METHOD_GENERATE_CATALOG}. Every chunk is inserted through a single
+     * compiled statement, and the ISBNs are numbered after the ids, which AUTOINCREMENT never
+     * hands out twice.
+     */
+    private Bundle generateCatalog(int count, long seed) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Invalid number of books " + count);
+        }
+        final CatalogGenerator generator = new CatalogGenerator(seed, System.currentTimeMillis());
+        long start = System.currentTimeMillis();
+        for (int chunk = 0; chunk < count; chunk += GENERATE_CHUNK_SIZE) {
+            final int first = chunk;
+            final int end = Math.min(chunk + GENERATE_CHUNK_SIZE, count);
+            mWriteScheduler.execute(new BookWriteScheduler.Write<Void>() {
+                @Override
+                public Void apply(SQLiteDatabase database) {
+                    long lastId = DatabaseUtils.longForQuery(database,
+                            "SELECT IFNULL(MAX(seq), 0) FROM sqlite_sequence WHERE name=?",
+                            new String[]{BookEntry.TABLE_NAME});
+                    if (lastId + end - first >= CatalogGenerator.MAX_ISBN_NUMBER) {
+                        throw new IllegalArgumentException("Too many books to generate");
+                    }
+                    SQLiteStatement insert = database.compileStatement(CatalogGenerator.INSERT_SQL);
+                    try {
+                        for (int i = first; i < end; i++) {
+                            generator.bind(insert, i, lastId + 1 + i - first);
+                            insert.executeInsert();
+                        }
+                    } finally {
+                        insert.close();
+                    }
+                    StockLedger.recordInserted(database, lastId);
+                    PriceHistory.recordInserted(database, lastId);
+                    return null;
+                }
+            });
+            // Let the lists show the books as they come in
+            getContext().getContentResolver().notifyChange(BookContract.NAMES_URI, null);
+            getContext().getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        }
+        // The books were added without deltas
+        mSuggestions.invalidate();
+
+        Log.i(LOG_TAG, "Generated " + count + " books in "
+                + (System.currentTimeMillis() - start) + " ms");
+        Bundle result = new Bundle();
+        result.putInt(BookContract.EXTRA_TOTAL, count);
+        return result;
+    }
+
+    /**
+     * Read the price feed at the given content or file URI and write the changes it brings to
+     * the books.
+     */
+    private Bundle applyPriceFeed(String feedUri) {
+        if (feedUri == null) {
+            throw new IllegalArgumentException("price feed requires a feed URI");
+        }
+        String scheme = Uri.parse(feedUri).getScheme();
+        if (!ContentResolver.SCHEME_CONTENT.equals(scheme)
+                && !ContentResolver.SCHEME_FILE.equals(scheme)) {
+            throw new IllegalArgumentException("price feed must be a content or file URI: "
+                    + feedUri);
+        }
+        InputStream in = null;
+        try {
+            in = getContext().getContentResolver().openInputStream(Uri.parse(feedUri));
+            if (in == null) {
+                throw new FileNotFoundException(feedUri);
+            }
+            return new PriceFeedIngester(mDbHelper, mWriteScheduler, mStore,
+                    getContext().getContentResolver()).apply(new InputStreamReader(in, "UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read price feed " + feedUri, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // The feed has been read already
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a compressed copy of the database to the given URI.
+     */
+    private Bundle backup(String backupUri) {
+        if (backupUri == null) {
+            throw new IllegalArgumentException("backup requires a target URI");
+        }
+        OutputStream out = null;
+        try {
+            out = getContext().getContentResolver().openOutputStream(Uri.parse(backupUri), "w");
+            if (out == null) {
+                throw new FileNotFoundException(backupUri);
+            }
+            return mBackup.backup(out);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't write backup " + backupUri, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to close backup " + backupUri, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the database with the backup at the given URI, then let everything that shows or
+     * caches the books start over.
+     */
+    private Bundle restore(String backupUri) {
+        if (backupUri == null) {
+            throw new IllegalArgumentException("restore requires a backup URI");
+        }
+        InputStream in = null;
+        Bundle result;
+        try {
+            in = getContext().getContentResolver().openInputStream(Uri.parse(backupUri));
+            if (in == null) {
+                throw new FileNotFoundException(backupUri);
+            }
+            result = mBackup.restore(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read backup " + backupUri, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // The backup has been read already
+                }
+            }
+        }
+        mSuggestions.invalidate();
+        mCoverStore.deleteAll();
+        getContext().getContentResolver().notifyChange(BookContract.RESTORE_URI, null);
+        getContext().getContentResolver().notifyChange(BookContract.NAMES_URI, null);
+        getContext().getContentResolver().notifyChange(BookEntry.CONTENT_URI, null);
+        return result;
+    }
+
+    /**
+     * Sell copies of the book with the given ISBN, in one round trip from the till: the book is
+     * found with a single lookup in the ISBN index and its stock is decremented with a single
+     * write by primary key. A sale at a location also takes the copies from the stock row of
+     * that location, in the same transaction as the lookup.
+     */
+    private Bundle sellByIsbn(String isbn, final int copies, String location) {
+        if (copies < 1) {
+            throw new IllegalArgumentException("sale requires at least one copy");
+        }
+        final String saleLocation = location == null ? null : location.trim();
+        if (saleLocation != null && saleLocation.isEmpty()) {
+            throw new IllegalArgumentException("sale requires a location");
+        }
+        final String normalizedIsbn = BookEntry.normalizeIsbn(isbn);
+        if (normalizedIsbn == null) {
+            throw new IllegalArgumentException("sale requires an ISBN");
+        }
+        if (saleLocation == null) {
+            return sellFromStore(normalizedIsbn, copies);
+        }
+
+        Bundle sale = mWriteScheduler.execute(new BookWriteScheduler.Write<Bundle>() {
+            @Override
+            public Bundle apply(SQLiteDatabase database) {
+                Bundle sale = new Bundle();
+                long id;
+                Cursor cursor = database.query(BookEntry.TABLE_NAME,
+                        new String[]{BookEntry._ID},
+                        BookEntry.COLUMN_BOOK_ISBN + "=?", new String[]{normalizedIsbn},
+                        null, null, null);
+                try {
+                    if (!cursor.moveToFirst()) {
+                        return unsold(sale, -1, 0);
+                    }
+                    id = cursor.getLong(0);
+                } finally {
+                    cursor.close();
+                }
+
+                int left = sellAtLocation(database, id, saleLocation, copies);
+                if (left == -1) {
+                    return unsold(sale, id, readStockAtLocation(database, id, saleLocation));
+                }
+                sale.putLong(BookContract.EXTRA_BOOK_ID, id);
+                sale.putBoolean(BookContract.EXTRA_SOLD, true);
+                sale.putInt(BookContract.EXTRA_QUANTITY, left);
+                return sale;
+            }
+        });
+
+        if (sale.getBoolean(BookContract.EXTRA_SOLD)) {
+            getContext().getContentResolver().notifyChange(ContentUris.withAppendedId(
+                    BookEntry.CONTENT_URI, sale.getLong(BookContract.EXTRA_BOOK_ID)), null);
+        }
+        return sale;
+    }
+
+    /**
+     * Sell copies from the total stock of a book, through the {@link BookStore}. It notifies
+     * the change of the book itself.
+     */
+    private Bundle sellFromStore(String isbn, int copies) {
+        Bundle sale = new Bundle();
+        Book book = mStore.findByIsbn(isbn);
+        if (book == null) {
+            return unsold(sale, -1, 0);
+        }
+        int left;
+        try {
+            left = mStore.adjustStock(book.getId(), -copies, StockMovementEntry.REASON_SALE);
+        } catch (IllegalArgumentException e) {
+            // Deleted since the lookup
+            return unsold(sale, -1, 0);
+        }
+        if (left == -1) {
+            return unsold(sale, book.getId(), book.getQuantity());
+        }
+        sale.putLong(BookContract.EXTRA_BOOK_ID, book.getId());
+        sale.putBoolean(BookContract.EXTRA_SOLD, true);
+        sale.putInt(BookContract.EXTRA_QUANTITY, left);
+        return sale;
+    }
+
+    /**
+     * Fill in the result of a sale that didn't happen, with the stock there was.
+     */
+    private static Bundle unsold(Bundle sale, long id, int quantity) {
+        sale.putLong(BookContract.EXTRA_BOOK_ID, id);
+        sale.putBoolean(BookContract.EXTRA_SOLD, false);
+        sale.putInt(BookContract.EXTRA_QUANTITY, quantity);
+        return sale;
+    }
+
+    /**
+     * Take copies of a book from its stock at a location, and from its total stock, if there
+     * are enough at the location. Returns the stock left at the location, or -1 if there
+     * weren't enough and nothing changed.
+     */
+    private int sellAtLocation(SQLiteDatabase database, long id, String location, int copies) {
+        int quantity = readStockAtLocation(database, id, location);
+        if (quantity < copies) {
+            return -1;
+        }
+
+        ContentValues stock = new ContentValues();
+        stock.put(StockEntry.COLUMN_QUANTITY, quantity - copies);
+        database.update(StockEntry.TABLE_NAME, stock,
+                StockEntry.COLUMN_BOOK_ID + "=? AND " + StockEntry.COLUMN_LOCATION + "=?",
+                new String[]{String.valueOf(id), location});
+        mStore.adjustStock(database, id, -copies, StockMovementEntry.REASON_SALE,
+                System.currentTimeMillis());
+        return quantity - copies;
+    }
+
+    /**
+     * Returns the stock of a book at a location, 0 if it has none there. It is a single lookup
+     * in the unique index on book and location.
+     */
+    private static int readStockAtLocation(SQLiteDatabase database, long id, String location) {
+        Cursor cursor = database.query(StockEntry.TABLE_NAME,
+                new String[]{StockEntry.COLUMN_QUANTITY},
+                StockEntry.COLUMN_BOOK_ID + "=? AND " + StockEntry.COLUMN_LOCATION + "=?",
+                new String[]{String.valueOf(id), location}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Start deleting the books matching the selection (all books if it's null) on a background
+     * thread, in small chunks so the catalog stays usable. Progress is published on
+     * {@link BookContract#BULK_DELETE_URI}.
+     */
+    private Bundle startBulkDelete(String selection, String[] selectionArgs) {
+        BulkDeleteJob job = new BulkDeleteJob(mWriteScheduler, mStore, mSuggestions,
+                mCoverStore, getContext().getContentResolver(), selection, selectionArgs);
+        mBulkDeleteJob = job;
+        mBackgroundExecutor.execute(job);
+        return job.getStatus();
+    }
+
+    /**
+     * Start moving the books matching the selection into the archive on a background thread,
+     * or the books selected by the archive policy if there is no selection.
+     */
+    private void startArchive(String selection, Bundle extras) {
+        ContentResolver resolver = getContext().getContentResolver();
+        ArchiveJob job;
+        if (selection == null) {
+            int idleDays = extras == null ? BookContract.DEFAULT_ARCHIVE_IDLE_DAYS
+                    : extras.getInt(BookContract.EXTRA_IDLE_DAYS, BookContract.DEFAULT_ARCHIVE_IDLE_DAYS);
+            job = ArchiveJob.forPolicy(mWriteScheduler, mSuggestions, resolver, idleDays);
+        } else {
+            job = new ArchiveJob(mWriteScheduler, mSuggestions, resolver, selection,
+                    extras == null ? null : extras.getStringArray(BookContract.EXTRA_SELECTION_ARGS));
+        }
+        mBackgroundExecutor.execute(job);
+    }
+
+    /**
+     * Open the cover image file of a book, for reading or for replacing it.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != BOOK_COVER) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        // For "content://com.example.android.books/books/3/cover" the book id is 3
+        long id = Long.parseLong(uri.getPathSegments().get(1));
+        return mCoverStore.open(id, mode);
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
@@ -293,8 +1523,28 @@ public class BookProvider extends ContentProvider {
         switch (match) {
             case BOOKS:
                 return BookEntry.CONTENT_LIST_TYPE;
+            case BOOK_SECTIONS:
+                return BookEntry.SECTIONS_TYPE;
+            case BOOK_SUGGESTIONS:
+                return BookEntry.SUGGESTIONS_TYPE;
+            case BOOK_DUPLICATES:
+                return BookEntry.DUPLICATES_TYPE;
             case BOOK_ID:
+            case BOOK_ISBN:
                 return BookEntry.CONTENT_ITEM_TYPE;
+            case BOOK_COVER:
+                return BookEntry.COVER_TYPE;
+            case BOOK_STOCK:
+            case STOCK:
+                return StockEntry.CONTENT_LIST_TYPE;
+            case BOOK_STOCK_LOCATION:
+                return StockEntry.CONTENT_ITEM_TYPE;
+            case STOCK_LOCATIONS:
+                return StockEntry.LOCATIONS_TYPE;
+            case BOOK_MOVEMENTS:
+                return StockMovementEntry.CONTENT_LIST_TYPE;
+            case BOOK_PRICES:
+                return PriceHistoryEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
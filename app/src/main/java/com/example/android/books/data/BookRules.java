@@ -0,0 +1,86 @@
+package com.example.android.books.data;
+
+import java.util.Locale;
+
+/**
+ * The rules every book has to follow, whichever way it is stored. They don't depend on any
+ * Android class, so {@link BookProvider} and every {@link BookStore} check books the same way,
+ * on a device and on a plain JVM.
+ */
+final class BookRules {
+
+    private BookRules() {
+    }
+
+    static void checkName(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("book requires a name");
+        }
+    }
+
+    /**
+     * A missing price is left to the default, but a given one can't be negative.
+     */
+    static void checkPrice(Integer price) {
+        if (price != null && price < 0) {
+            throw new IllegalArgumentException("book requires valid price");
+        }
+    }
+
+    /**
+     * A missing quantity is left to the default, but a given one can't be negative.
+     */
+    static void checkQuantity(Integer quantity) {
+        if (quantity != null && quantity < 0) {
+            throw new IllegalArgumentException("book requires valid quantity");
+        }
+    }
+
+    static void checkSupplierName(String supplierName) {
+        if (supplierName == null) {
+            throw new IllegalArgumentException("book requires a supplier name");
+        }
+    }
+
+    /**
+     * Check every value of the book.
+     */
+    static void checkBook(Book book) {
+        checkName(book.getName());
+        checkPrice(book.getPrice());
+        checkQuantity(book.getQuantity());
+        checkSupplierName(book.getSupplierName());
+        normalizeIsbn(book.getIsbn());
+    }
+
+    /**
+     * See {@link BookContract.BookEntry#normalizeIsbn}.
+     */
+    static String normalizeIsbn(String isbn) {
+        if (isbn == null) {
+            return null;
+        }
+        String normalized = isbn.replace("-", "").replace(" ", "").toUpperCase(Locale.US);
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        if (!normalized.matches("\\d{9}[\\dX]|\\d{13}")) {
+            throw new IllegalArgumentException("Invalid ISBN " + isbn);
+        }
+        return normalized;
+    }
+
+    /**
+     * See {@link BookContract.BookEntry#buildDedupeKey}.
+     */
+    static String buildDedupeKey(String name, String supplierName) {
+        return normalizeForDedupe(name) + "|" + normalizeForDedupe(supplierName);
+    }
+
+    private static String normalizeForDedupe(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.toLowerCase(Locale.US).replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+    }
+}
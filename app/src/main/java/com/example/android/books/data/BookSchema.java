@@ -0,0 +1,127 @@
+package com.example.android.books.data;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+import com.example.android.books.data.BookContract.StockEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+/**
+ * The SQL that creates the books database, shared by {@link BookDbHelper} and every
+ * {@link BookStore} that brings its own database. It only holds strings, so it can be used on a
+ * plain JVM.
+ */
+final class BookSchema {
+
+    static final String CREATE_BOOKS_TABLE = "CREATE TABLE " + BookEntry.TABLE_NAME + " ("
+            + BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + BookEntry.COLUMN_BOOK_NAME + " TEXT NOT NULL, "
+            + BookEntry.COLUMN_BOOK_CATEGORY + " TEXT, "
+            + BookEntry.COLUMN_BOOK_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+            + BookEntry.COLUMN_BOOK_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+            + BookEntry.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL, "
+            + BookEntry.COLUMN_SUPPLIER_NUMBER + " INTEGER DEFAULT 0, "
+            + BookEntry.COLUMN_BOOK_VERSION + " INTEGER NOT NULL DEFAULT 1, "
+            + BookEntry.COLUMN_BOOK_ISBN + " TEXT, "
+            + BookEntry.COLUMN_BOOK_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+            + BookEntry.COLUMN_BOOK_DEDUPE_KEY + " TEXT);";
+
+    static final String CREATE_ISBN_INDEX = "CREATE UNIQUE INDEX " + BookEntry.TABLE_NAME + "_"
+            + BookEntry.COLUMN_BOOK_ISBN
+            + " ON " + BookEntry.TABLE_NAME + " (" + BookEntry.COLUMN_BOOK_ISBN + ")";
+
+    static final String CREATE_NAME_INDEX = "CREATE INDEX " + BookEntry.TABLE_NAME + "_"
+            + BookEntry.COLUMN_BOOK_NAME + " ON " + BookEntry.TABLE_NAME
+            + " (" + BookEntry.COLUMN_BOOK_NAME + " COLLATE NOCASE)";
+
+    static final String CREATE_DEDUPE_KEY_INDEX = "CREATE INDEX " + BookEntry.TABLE_NAME + "_"
+            + BookEntry.COLUMN_BOOK_DEDUPE_KEY
+            + " ON " + BookEntry.TABLE_NAME + " (" + BookEntry.COLUMN_BOOK_DEDUPE_KEY + ")";
+
+    static final String CREATE_ARCHIVE_TABLE = "CREATE TABLE " + BookEntry.ARCHIVE_TABLE_NAME + " ("
+            + BookEntry._ID + " INTEGER PRIMARY KEY, "
+            + BookEntry.COLUMN_BOOK_NAME + " TEXT NOT NULL, "
+            + BookEntry.COLUMN_BOOK_CATEGORY + " TEXT, "
+            + BookEntry.COLUMN_BOOK_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+            + BookEntry.COLUMN_BOOK_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+            + BookEntry.COLUMN_SUPPLIER_NAME + " TEXT NOT NULL, "
+            + BookEntry.COLUMN_SUPPLIER_NUMBER + " INTEGER DEFAULT 0, "
+            + BookEntry.COLUMN_BOOK_VERSION + " INTEGER NOT NULL DEFAULT 1, "
+            + BookEntry.COLUMN_BOOK_ISBN + " TEXT, "
+            + BookEntry.COLUMN_BOOK_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+            + BookEntry.COLUMN_BOOK_DEDUPE_KEY + " TEXT, "
+            + BookEntry.COLUMN_ARCHIVED_AT + " INTEGER NOT NULL);";
+
+    static final String CREATE_STOCK_TABLE = "CREATE TABLE " + StockEntry.TABLE_NAME + " ("
+            + StockEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + StockEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+            + StockEntry.COLUMN_LOCATION + " TEXT NOT NULL, "
+            + StockEntry.COLUMN_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+            + "UNIQUE (" + StockEntry.COLUMN_BOOK_ID + ", " + StockEntry.COLUMN_LOCATION + "));";
+
+    static final String CREATE_STOCK_LOCATION_INDEX = "CREATE INDEX " + StockEntry.TABLE_NAME
+            + "_" + StockEntry.COLUMN_LOCATION
+            + " ON " + StockEntry.TABLE_NAME + " (" + StockEntry.COLUMN_LOCATION + ")";
+
+    // A trigger rather than a foreign key, those need a pragma on every connection
+    static final String CREATE_STOCK_DELETE_TRIGGER = "CREATE TRIGGER " + BookEntry.TABLE_NAME
+            + "_delete_stock AFTER DELETE ON " + BookEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + StockEntry.TABLE_NAME
+            + " WHERE " + StockEntry.COLUMN_BOOK_ID + "=OLD." + BookEntry._ID + "; END";
+
+    // Only appended to and folded, never updated, so it has no constraints to check
+    static final String CREATE_MOVEMENTS_TABLE = "CREATE TABLE " + StockMovementEntry.TABLE_NAME
+            + " ("
+            + StockMovementEntry._ID + " INTEGER PRIMARY KEY, "
+            + StockMovementEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+            + StockMovementEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+            + StockMovementEntry.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+            + StockMovementEntry.COLUMN_REASON + " TEXT NOT NULL, "
+            + StockMovementEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL);";
+
+    static final String CREATE_MOVEMENTS_INDEX = "CREATE INDEX " + StockMovementEntry.TABLE_NAME
+            + "_book_time ON " + StockMovementEntry.TABLE_NAME + " ("
+            + StockMovementEntry.COLUMN_BOOK_ID + ", " + StockMovementEntry.COLUMN_CREATED_AT + ")";
+
+    // Only dropped by the upgrade: archiving deletes books too, and an archived book keeps its
+    // ledger. A deleted book's ledger is deleted with it, see SqlBookStore.deleteBooks.
+    static final String MOVEMENTS_DELETE_TRIGGER = BookEntry.TABLE_NAME + "_delete_movements";
+
+    // Only appended to and downsampled, never updated
+    static final String CREATE_PRICE_HISTORY_TABLE = "CREATE TABLE "
+            + PriceHistoryEntry.TABLE_NAME + " ("
+            + PriceHistoryEntry._ID + " INTEGER PRIMARY KEY, "
+            + PriceHistoryEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+            + PriceHistoryEntry.COLUMN_PRICE + " INTEGER NOT NULL, "
+            + PriceHistoryEntry.COLUMN_MIN_PRICE + " INTEGER NOT NULL, "
+            + PriceHistoryEntry.COLUMN_MAX_PRICE + " INTEGER NOT NULL, "
+            + PriceHistoryEntry.COLUMN_CHANGES + " INTEGER NOT NULL DEFAULT 1, "
+            + PriceHistoryEntry.COLUMN_CHANGED_AT + " INTEGER NOT NULL);";
+
+    static final String CREATE_PRICE_HISTORY_INDEX = "CREATE INDEX "
+            + PriceHistoryEntry.TABLE_NAME + "_book_time ON " + PriceHistoryEntry.TABLE_NAME
+            + " (" + PriceHistoryEntry.COLUMN_BOOK_ID + ", "
+            + PriceHistoryEntry.COLUMN_CHANGED_AT + ")";
+
+    // Only dropped by the upgrade, like the movements trigger
+    static final String PRICE_HISTORY_DELETE_TRIGGER = BookEntry.TABLE_NAME + "_delete_prices";
+
+    /**
+     * Everything a new database is created with, in order
+     */
+    static final String[] CREATE_STATEMENTS = {
+            CREATE_BOOKS_TABLE,
+            CREATE_ISBN_INDEX,
+            CREATE_NAME_INDEX,
+            CREATE_DEDUPE_KEY_INDEX,
+            CREATE_ARCHIVE_TABLE,
+            CREATE_STOCK_TABLE,
+            CREATE_STOCK_LOCATION_INDEX,
+            CREATE_STOCK_DELETE_TRIGGER,
+            CREATE_MOVEMENTS_TABLE,
+            CREATE_MOVEMENTS_INDEX,
+            CREATE_PRICE_HISTORY_TABLE,
+            CREATE_PRICE_HISTORY_INDEX};
+
+    private BookSchema() {
+    }
+}
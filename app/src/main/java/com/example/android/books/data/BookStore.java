@@ -0,0 +1,87 @@
+package com.example.android.books.data;
+
+import java.util.List;
+
+/**
+ * The books of the inventory, independent of the storage engine behind them. The app stores
+ * them in the Android SQLite database of {@link BookProvider} ({@link AndroidBookStore}), and
+ * the same operations run on a plain JVM against any other engine with the same schema, see
+ * {@link SqlBookStore}.
+ * <p>
+ * Every method is safe to call from any thread, and every write is atomic. Books are checked
+ * against the same rules as the books inserted through the provider, and the writes record
+ * their changes of stock and price in the same ledger and price history.
+ */
+public interface BookStore {
+
+    /**
+     * Notified of the books a write changed, after it was committed
+     */
+    interface Listener {
+        /**
+         * Called on the thread that made the change, with the ids of the books inserted,
+         * updated or deleted.
+         */
+        void onBooksChanged(long[] ids);
+    }
+
+    /**
+     * Insert a new book, and return its id. Its id and version are ignored.
+     *
+     * @throws IllegalArgumentException if the book is not valid
+     */
+    long insert(Book book);
+
+    /**
+     * Insert all the books in a single transaction, and return their ids in the same order.
+     * Either all of them are inserted or none is.
+     *
+     * @throws IllegalArgumentException if any of the books is not valid
+     */
+    long[] insertAll(List<Book> books);
+
+    /**
+     * Returns the book with the given id, null if there is none.
+     */
+    Book get(long id);
+
+    /**
+     * Returns the book with the given ISBN, however it is typed, null if there is none.
+     */
+    Book findByIsbn(String isbn);
+
+    /**
+     * Returns the books of a category (all the books if it's null), in the order of
+     * {@link BookContract.BookEntry#CATALOG_SORT_ORDER}.
+     */
+    List<Book> list(String category);
+
+    /**
+     * Replace the values of the book with the same id, and return its new version. Unless the
+     * book is at {@link Book#NO_VERSION}, the stored book has to still be at the version of
+     * the given one.
+     *
+     * @throws BookConflictException    if the stored book is at another version
+     * @throws IllegalArgumentException if the book is not valid or doesn't exist
+     */
+    long update(Book book);
+
+    /**
+     * Delete a book, and return whether it existed.
+     */
+    boolean delete(long id);
+
+    /**
+     * Add copies to the stock of a book, or take them from it with a negative delta, and record
+     * the movement in the ledger with the given reason, see
+     * {@link BookContract.StockMovementEntry}. Returns the new stock, or -1 if there weren't
+     * enough copies to take and nothing changed.
+     *
+     * @throws IllegalArgumentException if the book doesn't exist
+     */
+    int adjustStock(long id, int delta, String reason);
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+}
@@ -0,0 +1,264 @@
+package com.example.android.books.data;
+
+import android.os.Build;
+import android.os.Trace;
+
+import com.example.android.books.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lightweight tracer for following a change from the tap that makes it to the row that shows
+ * it: the click handler, the provider, the writer thread, the change notification, the catalog
+ * reload and the binding of the row.
+ * <p>
+ * A span is a named stage with a start and an end, begun and ended on the same thread. Spans
+ * carry a correlation id, which ties together the stages of one change across threads. A span
+ * begun without an id takes the id of the innermost open span of its thread, so the stages a
+ * call goes through on the same thread are correlated by themselves. Across threads the id is
+ * handed over explicitly: the writer thread gets it with the write, and a reload picks up the
+ * id of the latest change notified before it started, see {@link #markChanged()}.
+ * <p>
+ * While enabled (by default in debug builds) every span is kept in a bounded in-process buffer
+ * of the last {@link #CAPACITY} spans, which tests read with {@link #snapshot()}, and shows as
+ * an {@link Trace} section in systrace on API 18+. While disabled, beginning and ending a span
+ * costs a volatile read.
+ */
+public final class BookTrace {
+
+    /**
+     * Number of spans kept, the oldest ones are dropped first
+     */
+    public static final int CAPACITY = 4096;
+
+    /**
+     * Returned by {@link #begin} while tracing is disabled, ending it does nothing
+     */
+    public static final long NO_SPAN = -1;
+
+    /**
+     * Maximum nesting of open spans per thread that carry the correlation id over
+     */
+    private static final int MAX_DEPTH = 32;
+
+    private static volatile boolean sEnabled = BuildConfig.DEBUG;
+
+    private static final AtomicLong sNextCorrelationId = new AtomicLong(1);
+
+    /**
+     * Correlation id of the latest change notified to the observers
+     */
+    private static final AtomicLong sLastChange = new AtomicLong();
+
+    // The ring buffer of spans, slot i holds the span with sequence number i modulo CAPACITY.
+    // Guarded by the class lock.
+    private static final String[] sNames = new String[CAPACITY];
+    private static final String[] sThreads = new String[CAPACITY];
+    private static final long[] sSequences = new long[CAPACITY];
+    private static final long[] sCorrelationIds = new long[CAPACITY];
+    private static final long[] sStarts = new long[CAPACITY];
+    private static final long[] sEnds = new long[CAPACITY];
+    private static long sNextSequence;
+
+    /**
+     * Sequence number of the oldest span not cleared
+     */
+    private static long sFirstSequence;
+
+    /**
+     * The correlation ids of the open spans of every thread, the depth is at index 0
+     */
+    private static final ThreadLocal<long[]> sOpenSpans = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[MAX_DEPTH + 1];
+        }
+    };
+
+    /**
+     * A finished or still open span, as read by {@link #snapshot()}
+     */
+    public static final class Span {
+        public final String name;
+        public final long correlationId;
+        public final String thread;
+        public final long startNanos;
+
+        /**
+         * End of the span in {@link System#nanoTime()}, -1 while it is open
+         */
+        public final long endNanos;
+
+        Span(String name, long correlationId, String thread, long startNanos, long endNanos) {
+            this.name = name;
+            this.correlationId = correlationId;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        public long durationNanos() {
+            return endNanos < 0 ? -1 : endNanos - startNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + "#" + correlationId + " on " + thread + ": "
+                    + (endNanos < 0 ? "open" : durationNanos() / 1000 + " us");
+        }
+    }
+
+    private BookTrace() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Returns a new correlation id for the stages of one change.
+     */
+    public static long newCorrelationId() {
+        return sNextCorrelationId.getAndIncrement();
+    }
+
+    /**
+     * Returns the correlation id of the innermost open span of this thread, 0 if there is none.
+     */
+    public static long currentCorrelationId() {
+        long[] open = sOpenSpans.get();
+        int depth = (int) open[0];
+        return depth == 0 ? 0 : open[Math.min(depth, MAX_DEPTH)];
+    }
+
+    /**
+     * Begin a span with the correlation id of the innermost open span of this thread.
+     */
+    public static long begin(String name) {
+        if (!sEnabled) {
+            return NO_SPAN;
+        }
+        return begin(name, currentCorrelationId());
+    }
+
+    /**
+     * Begin a span of the given change, and return the span to {@link #end} on this thread.
+     * The spans begun on this thread until then are part of the same change.
+     */
+    public static long begin(String name, long correlationId) {
+        if (!sEnabled) {
+            return NO_SPAN;
+        }
+        long[] open = sOpenSpans.get();
+        int depth = (int) ++open[0];
+        if (depth <= MAX_DEPTH) {
+            open[depth] = correlationId;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+        long start = System.nanoTime();
+        synchronized (BookTrace.class) {
+            long sequence = sNextSequence++;
+            int slot = (int) (sequence % CAPACITY);
+            sSequences[slot] = sequence;
+            sNames[slot] = name;
+            sThreads[slot] = Thread.currentThread().getName();
+            sCorrelationIds[slot] = correlationId;
+            sStarts[slot] = start;
+            sEnds[slot] = -1;
+            return sequence;
+        }
+    }
+
+    /**
+     * End a span returned by {@link #begin}, on the thread that began it.
+     */
+    public static void end(long span) {
+        if (span == NO_SPAN) {
+            return;
+        }
+        long end = System.nanoTime();
+        long[] open = sOpenSpans.get();
+        if (open[0] > 0) {
+            open[0]--;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+        synchronized (BookTrace.class) {
+            int slot = (int) (span % CAPACITY);
+            // The span may have been dropped from the buffer already
+            if (sSequences[slot] == span) {
+                sEnds[slot] = end;
+            }
+        }
+    }
+
+    /**
+     * Remember that the change of this thread's current correlation id was just notified, so
+     * the reloads it causes continue its trace.
+     */
+    public static void markChanged() {
+        if (!sEnabled) {
+            return;
+        }
+        long correlationId = currentCorrelationId();
+        if (correlationId == 0) {
+            return;
+        }
+        // Ids only grow, so keep the newest one if several changes are notified at once
+        long last;
+        do {
+            last = sLastChange.get();
+        } while (last < correlationId && !sLastChange.compareAndSet(last, correlationId));
+    }
+
+    /**
+     * Returns the correlation id of the latest change notified, 0 if there was none yet. A
+     * load started after the notification sees the change.
+     */
+    public static long lastChangeCorrelationId() {
+        return sLastChange.get();
+    }
+
+    /**
+     * Returns the spans in the buffer, oldest first.
+     */
+    public static synchronized List<Span> snapshot() {
+        long first = Math.max(sFirstSequence, sNextSequence - CAPACITY);
+        List<Span> spans = new ArrayList<>((int) (sNextSequence - first));
+        for (long sequence = first; sequence < sNextSequence; sequence++) {
+            int slot = (int) (sequence % CAPACITY);
+            spans.add(new Span(sNames[slot], sCorrelationIds[slot], sThreads[slot],
+                    sStarts[slot], sEnds[slot]));
+        }
+        return spans;
+    }
+
+    /**
+     * Returns the spans of the given change in the buffer, oldest first.
+     */
+    public static List<Span> snapshot(long correlationId) {
+        List<Span> spans = new ArrayList<>();
+        for (Span span : snapshot()) {
+            if (span.correlationId == correlationId) {
+                spans.add(span);
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Drop all the spans in the buffer.
+     */
+    public static synchronized void clear() {
+        sFirstSequence = sNextSequence;
+    }
+}
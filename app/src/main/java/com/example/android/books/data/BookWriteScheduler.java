@@ -0,0 +1,324 @@
+package com.example.android.books.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs all the writes of {@link BookProvider} on a single writer thread. Writes that are waiting
+ * when the writer becomes free, or that arrive within a short window after it, are committed
+ * together in one transaction (group commit), so concurrent callers share one commit and one
+ * fsync instead of queueing up for the database write lock one by one. Each caller still gets
+ * its own result or exception.
+ */
+class BookWriteScheduler {
+
+    private static final String LOG_TAG = BookWriteScheduler.class.getSimpleName();
+
+    /**
+     * How long the writer waits for more writes before committing a batch, when the
+     * previous batch showed that several callers are writing at the same time
+     */
+    private static final long GATHER_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Upper bound on the number of writes committed together
+     */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /**
+     * How long no write has to arrive before the writes are considered settled
+     */
+    private static final long SETTLE_MILLIS = 1000;
+
+    /**
+     * A unit of work for the writer thread. It must only change the database, anything else
+     * (such as notifying observers) is up to the caller once {@link #execute} returns, because
+     * a write may be rolled back and run again if another write of its batch fails.
+     */
+    interface Write<T> {
+        T apply(SQLiteDatabase database);
+    }
+
+    /**
+     * Callbacks made on the writer thread around the changes it commits
+     */
+    interface CommitListener {
+        /**
+         * Called inside the transaction, right before a batch of writes is committed.
+         */
+        void onBeforeCommit(SQLiteDatabase database);
+
+        /**
+         * Called outside of any transaction once the writes have settled, that is when no new
+         * write arrived for a while after the last one. New writes wait until it returns.
+         */
+        void onSettled(SQLiteDatabase database);
+    }
+
+    /**
+     * A write waiting for, or done by, the writer thread
+     */
+    private static class PendingWrite<T> {
+        final Write<T> mWrite;
+        final boolean mInTransaction;
+        final CountDownLatch mDone = new CountDownLatch(1);
+
+        /**
+         * The change the caller is tracing, continued on the writer thread
+         */
+        final long mCorrelationId = BookTrace.currentCorrelationId();
+        T mResult;
+        RuntimeException mError;
+
+        PendingWrite(Write<T> write, boolean inTransaction) {
+            mWrite = write;
+            mInTransaction = inTransaction;
+        }
+
+        void run(SQLiteDatabase database) {
+            long span = BookTrace.begin("sqlite.write", mCorrelationId);
+            try {
+                mResult = mWrite.apply(database);
+                mError = null;
+            } catch (RuntimeException e) {
+                mResult = null;
+                mError = e;
+            } finally {
+                BookTrace.end(span);
+            }
+        }
+    }
+
+    private final BookDbHelper mDbHelper;
+    private final BlockingQueue<PendingWrite<?>> mQueue = new LinkedBlockingQueue<>();
+    private final List<CommitListener> mCommitListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Number of writes and of commits so far, the ratio is the average group commit size
+     */
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final AtomicLong mCommitCount = new AtomicLong();
+
+    BookWriteScheduler(BookDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "BookWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Run the write on the writer thread, as part of a group commit, and wait until it is
+     * committed. Exceptions thrown by the write are rethrown to the caller.
+     */
+    <T> T execute(Write<T> write) {
+        // From the caller's side, waiting for the writer and the commit included
+        long span = BookTrace.begin("write.execute");
+        try {
+            return await(enqueue(new PendingWrite<>(write, true)));
+        } finally {
+            BookTrace.end(span);
+        }
+    }
+
+    /**
+     * Run the write on the writer thread on its own, outside of any transaction, and wait until
+     * it is done. Used for statements that can't run in a transaction, such as VACUUM.
+     */
+    <T> T executeAlone(Write<T> write) {
+        return await(enqueue(new PendingWrite<>(write, false)));
+    }
+
+    void addCommitListener(CommitListener listener) {
+        mCommitListeners.add(listener);
+    }
+
+    long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    long getCommitCount() {
+        return mCommitCount.get();
+    }
+
+    private <T> PendingWrite<T> enqueue(PendingWrite<T> pending) {
+        mQueue.add(pending);
+        return pending;
+    }
+
+    private static <T> T await(PendingWrite<T> pending) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                pending.mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                // The write is already queued, so we have to wait for it anyway
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (pending.mError != null) {
+            throw pending.mError;
+        }
+        return pending.mResult;
+    }
+
+    private void writeLoop() {
+        List<PendingWrite<?>> batch = new ArrayList<>();
+        PendingWrite<?> carriedOver = null;
+        int lastBatchSize = 0;
+        // Start unsettled, so the listeners get a chance to catch up with data written before
+        boolean settled = false;
+        while (true) {
+            try {
+                PendingWrite<?> first = carriedOver != null ? carriedOver : nextWrite(settled);
+                carriedOver = null;
+                settled = false;
+
+                batch.add(first);
+                if (!first.mInTransaction) {
+                    first.run(mDbHelper.getWritableDatabase());
+                    continue;
+                }
+
+                // Gather the transactional writes that are already waiting. If the last batch
+                // had company, other writers are active and probably about to queue up more,
+                // so wait a moment for them too.
+                long deadline = System.nanoTime() + (lastBatchSize > 1 ? GATHER_WINDOW_NANOS : 0);
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite<?> next = remaining > 0
+                            ? mQueue.poll(remaining, TimeUnit.NANOSECONDS) : mQueue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (!next.mInTransaction) {
+                        // Runs on its own, right after this batch
+                        carriedOver = next;
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commit(batch);
+                lastBatchSize = batch.size();
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Writer thread interrupted", e);
+                for (PendingWrite<?> pending : batch) {
+                    pending.mError = new IllegalStateException("write was interrupted", e);
+                }
+            } catch (RuntimeException e) {
+                // Opening the database failed, fail the callers rather than the thread
+                Log.e(LOG_TAG, "Failed to run writes", e);
+                for (PendingWrite<?> pending : batch) {
+                    pending.mError = e;
+                }
+            } finally {
+                for (PendingWrite<?> pending : batch) {
+                    complete(pending);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Wait for the next write. If the previous writes haven't settled yet, the listeners are told
+     * once no write arrives for {@link #SETTLE_MILLIS}.
+     */
+    private PendingWrite<?> nextWrite(boolean settled) throws InterruptedException {
+        if (!settled) {
+            PendingWrite<?> next = mQueue.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+            if (next != null) {
+                return next;
+            }
+            for (CommitListener listener : mCommitListeners) {
+                try {
+                    listener.onSettled(mDbHelper.getWritableDatabase());
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Commit listener failed after writes settled", e);
+                }
+            }
+        }
+        return mQueue.take();
+    }
+
+    /**
+     * Tell the listeners a batch is about to be committed. Failing listeners don't fail the writes.
+     */
+    private void beforeCommit(SQLiteDatabase database) {
+        for (CommitListener listener : mCommitListeners) {
+            try {
+                listener.onBeforeCommit(database);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Commit listener failed before commit", e);
+            }
+        }
+    }
+
+    /**
+     * Commit the batch in one transaction. If any write of the batch fails, the whole batch
+     * is rolled back and each write is run again in its own transaction, so a failing write
+     * can never leave half of its changes behind or take the other writes down with it.
+     */
+    private void commit(List<PendingWrite<?>> batch) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean failed = false;
+        database.beginTransaction();
+        try {
+            for (PendingWrite<?> pending : batch) {
+                pending.run(database);
+                if (pending.mError != null) {
+                    failed = true;
+                    break;
+                }
+            }
+            if (!failed) {
+                beforeCommit(database);
+                database.setTransactionSuccessful();
+            }
+        } finally {
+            database.endTransaction();
+        }
+        mCommitCount.incrementAndGet();
+
+        if (failed && batch.size() > 1) {
+            for (PendingWrite<?> pending : batch) {
+                database.beginTransaction();
+                try {
+                    pending.run(database);
+                    if (pending.mError == null) {
+                        beforeCommit(database);
+                        database.setTransactionSuccessful();
+                    }
+                } finally {
+                    database.endTransaction();
+                }
+                mCommitCount.incrementAndGet();
+            }
+        }
+    }
+
+    private void complete(PendingWrite<?> pending) {
+        if (pending.mDone.getCount() > 0) {
+            mWriteCount.incrementAndGet();
+            pending.mDone.countDown();
+        }
+    }
+}
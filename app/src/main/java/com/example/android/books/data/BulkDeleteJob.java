@@ -0,0 +1,180 @@
+package com.example.android.books.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+/**
+ * Deletes the books matching a selection in small chunks, each one a separate write on the
+ * {@link BookWriteScheduler}, so other writes queued meanwhile get their turn in between and
+ * readers are never blocked for long. Once everything is deleted the free pages are handed back
+ * to the file system through incremental vacuum, on databases created in that mode.
+ */
+class BulkDeleteJob implements Runnable {
+
+    private static final String LOG_TAG = BulkDeleteJob.class.getSimpleName();
+
+    /**
+     * Number of rows deleted per transaction
+     */
+    private static final int CHUNK_SIZE = 500;
+
+    /**
+     * Number of free pages released per incremental vacuum step
+     */
+    private static final int VACUUM_STEP_PAGES = 256;
+
+    /**
+     * Value of "PRAGMA auto_vacuum" when the database is in incremental mode
+     */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final BookWriteScheduler mWriteScheduler;
+    private final AndroidBookStore mStore;
+    private final SuggestionIndex mSuggestions;
+    private final CoverStore mCoverStore;
+    private final ContentResolver mResolver;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+
+    /**
+     * Progress of the job, read from other threads through {@link #getStatus()}
+     */
+    private volatile int mDeleted;
+    private volatile int mTotal = -1;
+    private volatile boolean mFinished;
+
+    BulkDeleteJob(BookWriteScheduler writeScheduler, AndroidBookStore store,
+                  SuggestionIndex suggestions, CoverStore coverStore, ContentResolver resolver,
+                  String selection, String[] selectionArgs) {
+        mWriteScheduler = writeScheduler;
+        mStore = store;
+        mSuggestions = suggestions;
+        mCoverStore = coverStore;
+        mResolver = resolver;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+    }
+
+    /**
+     * Returns the progress of this job as described in {@link BookContract#METHOD_BULK_DELETE_STATUS}.
+     */
+    Bundle getStatus() {
+        Bundle status = new Bundle();
+        status.putInt(BookContract.EXTRA_DELETED, mDeleted);
+        status.putInt(BookContract.EXTRA_TOTAL, mTotal);
+        status.putBoolean(BookContract.EXTRA_FINISHED, mFinished);
+        return status;
+    }
+
+    @Override
+    public void run() {
+        try {
+            mTotal = mWriteScheduler.execute(new BookWriteScheduler.Write<Integer>() {
+                @Override
+                public Integer apply(SQLiteDatabase database) {
+                    return (int) DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME,
+                            mSelection, mSelectionArgs);
+                }
+            });
+            publishProgress();
+
+            // Delete one chunk of the matching rows per write. Each chunk is found through
+            // the primary key, so a chunk never holds the write lock for long. It is picked
+            // again for the ledger, the price history and the books, so it is picked in a
+            // stable order.
+            final String chunkWhere = BookEntry._ID + " IN (SELECT " + BookEntry._ID + " FROM "
+                    + BookEntry.TABLE_NAME
+                    + (TextUtils.isEmpty(mSelection) ? "" : " WHERE " + mSelection)
+                    + " ORDER BY " + BookEntry._ID + " LIMIT " + CHUNK_SIZE + ")";
+            final SuggestionIndex.Delta[] suggestions = new SuggestionIndex.Delta[1];
+            BookWriteScheduler.Write<Integer> deleteChunk = new BookWriteScheduler.Write<Integer>() {
+                @Override
+                public Integer apply(SQLiteDatabase database) {
+                    suggestions[0] = mSuggestions.removed(database, chunkWhere, mSelectionArgs);
+                    return mStore.delete(database, chunkWhere, mSelectionArgs);
+                }
+            };
+            int deleted;
+            do {
+                deleted = mWriteScheduler.execute(deleteChunk);
+                mSuggestions.apply(suggestions[0]);
+                mDeleted += deleted;
+                publishProgress();
+            } while (deleted == CHUNK_SIZE);
+
+            // Let the book lists reload once, now that all the rows are gone
+            mResolver.notifyChange(BookContract.NAMES_URI, null);
+            mResolver.notifyChange(BookEntry.CONTENT_URI, null);
+
+            // The covers of the deleted books are no longer needed either
+            mWriteScheduler.execute(new BookWriteScheduler.Write<Void>() {
+                @Override
+                public Void apply(SQLiteDatabase database) {
+                    mCoverStore.deleteOrphans(database);
+                    return null;
+                }
+            });
+
+            reclaimSpace();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Bulk delete failed after " + mDeleted + " rows", e);
+        } finally {
+            mFinished = true;
+            publishProgress();
+        }
+    }
+
+    /**
+     * Give the pages freed by the delete back to the file system, if the database is in
+     * incremental vacuum mode. Older databases are left as they are: converting them takes a
+     * full VACUUM, which would rewrite the whole file while holding back every write.
+     */
+    private void reclaimSpace() {
+        long freePages = mWriteScheduler.execute(new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                long autoVacuum = DatabaseUtils.longForQuery(database, "PRAGMA auto_vacuum", null);
+                if (autoVacuum != AUTO_VACUUM_INCREMENTAL) {
+                    // The free pages are reused by the next inserts instead
+                    return 0L;
+                }
+                return DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+            }
+        });
+
+        // Release the free pages in small steps so no single step holds the lock for long
+        BookWriteScheduler.Write<Long> vacuumStep = new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                Cursor cursor = database.rawQuery(
+                        "PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")", null);
+                try {
+                    // Stepping the statement to the end is what actually frees the pages
+                    cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+                return DatabaseUtils.longForQuery(database, "PRAGMA freelist_count", null);
+            }
+        };
+        while (freePages > 0) {
+            long remaining = mWriteScheduler.executeAlone(vacuumStep);
+            if (remaining >= freePages) {
+                // Nothing was released, don't spin
+                break;
+            }
+            freePages = remaining;
+        }
+    }
+
+    private void publishProgress() {
+        mResolver.notifyChange(BookContract.BULK_DELETE_URI, null);
+    }
+}
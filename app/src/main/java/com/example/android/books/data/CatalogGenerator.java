@@ -0,0 +1,321 @@
+package com.example.android.books.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates a synthetic catalog for load and scale testing, so performance work runs against
+ * data shaped like a real shop's instead of a single hard-coded book.
+ * <p>
+ * The catalog is deterministic: the book at a given index only depends on the seed and on the
+ * index, so the same seed always gives the same books, in any order and in any batches. Books
+ * are spread over categories and suppliers with a Zipf distribution, so a few of them hold most
+ * of the catalog like in a real shop. Titles are one to eight words long, sometimes with a
+ * subtitle. Prices follow a log-normal distribution around {@link #MEDIAN_PRICE}, one book in
+ * ten is sold out and one in ten is overstocked, and the last change of a book lies anywhere
+ * in the last two years. About {@link #DUPLICATE_PERCENT} percent of the books are another
+ * copy of an earlier book, from the same supplier under the same title.
+ * <p>
+ * Every book gets an ISBN starting with {@link #ISBN_PREFIX}, a range no real book uses, built
+ * from the number it is given, so generated books never take the ISBN of a real one.
+ * <p>
+ * A generator is not thread safe, use one per thread.
+ */
+public class CatalogGenerator {
+
+    /**
+     * Categories from the most common to the least common one
+     */
+    private static final String[] CATEGORIES = {
+            "fiction", "children", "mystery", "romance", "fantasy", "science fiction",
+            "biography", "history", "cooking", "self help", "young adult", "thriller",
+            "travel", "poetry", "religion", "science", "business", "art", "health", "comics",
+            "sports", "music", "philosophy", "reference", "education", "gardening", "crafts",
+            "computers", "law", "drama"};
+
+    public static final int CATEGORY_COUNT = CATEGORIES.length;
+
+    private static final String[] TITLE_WORDS = {
+            "Night", "River", "House", "Garden", "Shadow", "Winter", "Summer", "Stone",
+            "Secret", "Last", "First", "Little", "Lost", "Silent", "Golden", "Dark", "Light",
+            "City", "Island", "Road", "Heart", "Fire", "Water", "Storm", "Queen", "King",
+            "Daughter", "Son", "Mother", "Father", "Friend", "War", "Peace", "Love", "Death",
+            "Life", "Time", "World", "Sea", "Mountain", "Forest", "Wolf", "Bird", "Star",
+            "Moon", "Sun", "Dream", "Promise", "Journey", "Return", "Memory", "Letter", "Book",
+            "Song", "Story", "Girl", "Boy", "Man", "Woman", "Children", "Kitchen", "Guide",
+            "Art", "Science", "History", "Introduction", "Practical", "Complete", "Essential",
+            "Modern", "Ancient", "Hidden", "Broken", "Wild", "Quiet", "Red", "Blue", "Green",
+            "Black", "White", "Glass", "Iron", "Paper", "Salt", "Bread", "Bridge", "Tower",
+            "Window", "Door", "Street", "Harbor", "Valley", "Empire", "Kingdom", "Journal"};
+
+    private static final String[] CONNECTORS = {"of", "and", "the", "in", "for", "on", "at"};
+
+    private static final String[] SUPPLIER_FIRST = {
+            "North", "South", "East", "West", "Blue", "Red", "Golden", "Silver", "Oak",
+            "Maple", "River", "Harbor", "Summit", "Lantern", "Beacon", "Crown", "Pioneer",
+            "Heritage", "Meridian", "Atlas"};
+
+    private static final String[] SUPPLIER_LAST = {
+            "Books", "Press", "Publishing", "Distribution", "Media", "House", "Editions",
+            "Publishers", "Books Ltd", "Book Supply", "Wholesale", "Partners", "Group",
+            "Trading", "Imports", "Readers", "Print", "Library Supply", "& Sons", "Company"};
+
+    private static final int SUPPLIER_COUNT = SUPPLIER_FIRST.length * SUPPLIER_LAST.length;
+
+    /**
+     * Cumulative percentages of titles with one to eight words
+     */
+    private static final int[] TITLE_LENGTHS = {8, 26, 50, 69, 82, 90, 96, 100};
+
+    private static final int CONNECTOR_PERCENT = 20;
+    private static final int SUBTITLE_PERCENT = 8;
+    private static final int DUPLICATE_PERCENT = 2;
+
+    private static final int MEDIAN_PRICE = 15;
+    private static final double PRICE_SIGMA = 0.6;
+    private static final int MAX_PRICE = 500;
+
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(730);
+
+    /**
+     * The prefix of the generated ISBNs, which was set aside for music and is never given to a
+     * book
+     */
+    public static final String ISBN_PREFIX = "9790";
+
+    /**
+     * Generated ISBNs are built from numbers below this one
+     */
+    public static final long MAX_ISBN_NUMBER = 100000000L;
+
+    private static final double[] CATEGORY_WEIGHTS = zipf(CATEGORIES.length, 1.1);
+    private static final double[] SUPPLIER_WEIGHTS = zipf(SUPPLIER_COUNT, 1.3);
+
+    /**
+     * Salts of the random streams of a copy of a book and of the title it has
+     */
+    private static final long COPY_SALT = 0x636F7079L;
+    private static final long WORK_SALT = 0x776F726BL;
+
+    /**
+     * The statement {@link #bind} fills in, it inserts one book
+     */
+    static final String INSERT_SQL = "INSERT INTO " + BookEntry.TABLE_NAME + " ("
+            + BookEntry.COLUMN_BOOK_NAME + ", "
+            + BookEntry.COLUMN_BOOK_CATEGORY + ", "
+            + BookEntry.COLUMN_BOOK_PRICE + ", "
+            + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+            + BookEntry.COLUMN_SUPPLIER_NAME + ", "
+            + BookEntry.COLUMN_SUPPLIER_NUMBER + ", "
+            + BookEntry.COLUMN_BOOK_ISBN + ", "
+            + BookEntry.COLUMN_BOOK_UPDATED_AT + ", "
+            + BookEntry.COLUMN_BOOK_DEDUPE_KEY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final long mSeed;
+    private final long mNow;
+    private final StringBuilder mTitle = new StringBuilder();
+    private long mState;
+
+    // The values of the book generated last
+    private String mName;
+    private String mCategory;
+    private String mSupplierName;
+    private int mSupplierNumber;
+    private int mPrice;
+    private int mQuantity;
+    private long mUpdatedAt;
+
+    /**
+     * Creates a generator of the catalog for the given seed. The books were last changed up to
+     * two years before {@code now}.
+     */
+    public CatalogGenerator(long seed, long now) {
+        mSeed = seed;
+        mNow = now;
+    }
+
+    /**
+     * Returns the values of the book at the given index, with the ISBN built from the given
+     * number, ready for {@link android.content.ContentResolver#bulkInsert}. The provider sets
+     * the time of the last change of the books it inserts itself.
+     */
+    public ContentValues book(long index, long isbnNumber) {
+        generate(index);
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, mName);
+        values.put(BookEntry.COLUMN_BOOK_CATEGORY, mCategory);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, mPrice);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, mQuantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, mSupplierName);
+        values.put(BookEntry.COLUMN_SUPPLIER_NUMBER, mSupplierNumber);
+        values.put(BookEntry.COLUMN_BOOK_ISBN, isbn(isbnNumber));
+        values.put(BookEntry.COLUMN_BOOK_UPDATED_AT, mUpdatedAt);
+        return values;
+    }
+
+    /**
+     * Bind the book at the given index to the parameters of {@link #INSERT_SQL}, without
+     * building its values first.
+     */
+    void bind(SQLiteStatement insert, long index, long isbnNumber) {
+        generate(index);
+        insert.bindString(1, mName);
+        insert.bindString(2, mCategory);
+        insert.bindLong(3, mPrice);
+        insert.bindLong(4, mQuantity);
+        insert.bindString(5, mSupplierName);
+        insert.bindLong(6, mSupplierNumber);
+        insert.bindString(7, isbn(isbnNumber));
+        insert.bindLong(8, mUpdatedAt);
+        insert.bindString(9, BookEntry.buildDedupeKey(mName, mSupplierName));
+    }
+
+    /**
+     * Returns the category of the given rank, 0 being the most common one.
+     */
+    public static String category(int rank) {
+        return CATEGORIES[rank];
+    }
+
+    /**
+     * Returns the generated ISBN-13 for the given number, with its check digit.
+     */
+    public static String isbn(long number) {
+        if (number < 0 || number >= MAX_ISBN_NUMBER) {
+            throw new IllegalArgumentException("No generated ISBN for " + number);
+        }
+        String digits = ISBN_PREFIX + String.format(Locale.US, "%08d", number);
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    private void generate(long index) {
+        // What this copy has of its own
+        seek(index, COPY_SALT);
+        long work = index;
+        if (index > 0 && nextInt(100) < DUPLICATE_PERCENT) {
+            work = (nextLong() >>> 1) % index;
+        }
+        double price = Math.exp(Math.log(MEDIAN_PRICE) + PRICE_SIGMA * nextGaussian());
+        mPrice = (int) Math.max(1, Math.min(MAX_PRICE, Math.round(price)));
+        int stock = nextInt(100);
+        if (stock < 10) {
+            mQuantity = 0;
+        } else if (stock < 30) {
+            mQuantity = 1 + nextInt(3);
+        } else if (stock < 90) {
+            mQuantity = 4 + nextInt(27);
+        } else {
+            mQuantity = 31 + nextInt(470);
+        }
+        mUpdatedAt = mNow - (long) (nextDouble() * MAX_AGE_MILLIS);
+
+        // What it shares with the other copies of the same title
+        seek(work, WORK_SALT);
+        mCategory = CATEGORIES[pick(CATEGORY_WEIGHTS)];
+        int supplier = pick(SUPPLIER_WEIGHTS);
+        mSupplierName = SUPPLIER_FIRST[supplier % SUPPLIER_FIRST.length] + " "
+                + SUPPLIER_LAST[supplier / SUPPLIER_FIRST.length];
+        mSupplierNumber = 20000000 + supplier * 7919;
+        mName = title();
+    }
+
+    private String title() {
+        mTitle.setLength(0);
+        appendWords(pickLength());
+        if (nextInt(100) < SUBTITLE_PERCENT) {
+            mTitle.append(": ");
+            appendWords(2 + nextInt(3));
+        }
+        return mTitle.toString();
+    }
+
+    private void appendWords(int words) {
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                mTitle.append(' ');
+                if (nextInt(100) < CONNECTOR_PERCENT) {
+                    mTitle.append(CONNECTORS[nextInt(CONNECTORS.length)]).append(' ');
+                }
+            }
+            mTitle.append(TITLE_WORDS[nextInt(TITLE_WORDS.length)]);
+        }
+    }
+
+    private int pickLength() {
+        int dice = nextInt(100);
+        int words = 0;
+        while (TITLE_LENGTHS[words] <= dice) {
+            words++;
+        }
+        return words + 1;
+    }
+
+    /**
+     * Returns an index picked with the given cumulative weights.
+     */
+    private int pick(double[] cumulativeWeights) {
+        int index = Arrays.binarySearch(cumulativeWeights, nextDouble());
+        return index >= 0 ? index : Math.min(-index - 1, cumulativeWeights.length - 1);
+    }
+
+    /**
+     * Returns the cumulative weights of the ranks 1 to n in a Zipf distribution with exponent s.
+     */
+    private static double[] zipf(int n, double s) {
+        double[] weights = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1 / Math.pow(rank + 1, s);
+            weights[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            weights[rank] /= sum;
+        }
+        return weights;
+    }
+
+    /**
+     * Start the random stream of the given index. The stream is a SplitMix64 sequence, so it
+     * can start anywhere without running through the streams before it.
+     */
+    private void seek(long index, long salt) {
+        mState = mix(mSeed ^ mix(index * 0x9E3779B97F4A7C15L + salt));
+    }
+
+    private long nextLong() {
+        mState += 0x9E3779B97F4A7C15L;
+        return mix(mState);
+    }
+
+    private int nextInt(int bound) {
+        return (int) ((nextLong() >>> 1) % bound);
+    }
+
+    /**
+     * Returns a number in [0, 1).
+     */
+    private double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    private double nextGaussian() {
+        double u = 1 - nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * nextDouble());
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
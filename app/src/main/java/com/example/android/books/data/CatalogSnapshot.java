@@ -0,0 +1,434 @@
+package com.example.android.books.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compact binary copy of the columns shown by the catalog list, so the catalog can paint the
+ * list at launch straight from a memory-mapped file, before SQLite has even been opened.
+ * <p>
+ * {@link BookProvider} keeps the file up to date: it marks it out of date right before any
+ * change is committed, and rewrites it on a background thread once the writes have settled. The
+ * rewrite reads the books outside of the writer thread, so the writes don't wait for it, and it
+ * is thrown away if any change was committed while it ran. A snapshot carries the generation it
+ * was written at, and it is only shown if that is still the current generation, so it can never
+ * show data older than the database.
+ * <p>
+ * File layout (big endian): magic, format version, generation, row count, offset of the row
+ * table, then for every row its id, price, quantity, name and category, then the row table with
+ * the offset of every row. Strings are stored as a length in bytes (-1 for null) followed by
+ * their UTF-8 bytes.
+ */
+public class CatalogSnapshot implements BookWriteScheduler.CommitListener {
+
+    private static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    private static final String FILE_NAME = "catalog.snapshot";
+    private static final String PREFS_NAME = "catalog_snapshot";
+    private static final String PREF_GENERATION = "generation";
+
+    private static final int MAGIC = 0x424f4f4b; // "BOOK"
+
+    /**
+     * Position of the offset of the row table in the header, and size of the header
+     */
+    private static final int HEADER_TABLE_OFFSET = 20;
+    private static final int HEADER_SIZE = 24;
+    /**
+     * Changes with the layout and with {@link BookEntry#CATALOG_SORT_ORDER}, so a snapshot
+     * written in another order is never shown
+     */
+    private static final int FORMAT_VERSION = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The columns stored in the snapshot, in the order of the cursor returned by {@link #open}
+     */
+    private static final String[] COLUMNS = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_CATEGORY,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY};
+
+    private final Context mContext;
+
+    /**
+     * Writes the snapshots, one at a time
+     */
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    /**
+     * The current generation of the book data, it changes every time the snapshot goes stale
+     */
+    private long mGeneration;
+
+    /**
+     * True while the snapshot file matches the database
+     */
+    private boolean mCurrent;
+
+    /**
+     * True while a snapshot is being written, and true if the writes settled again meanwhile
+     */
+    private boolean mWriting;
+    private boolean mSettledWhileWriting;
+
+    /**
+     * Number of commits so far. A snapshot is only published if there was none while it was
+     * written, otherwise it may have read part of a change.
+     */
+    private long mCommits;
+
+    /**
+     * The callbacks are made on the writer thread of {@link BookWriteScheduler}, the snapshot
+     * is written on a thread of its own. Both share the state under the lock of this object.
+     */
+    CatalogSnapshot(Context context) {
+        mContext = context;
+        mGeneration = prefs(context).getLong(PREF_GENERATION, 0);
+        mCurrent = readGeneration(snapshotFile(context)) == mGeneration;
+    }
+
+    @Override
+    public synchronized void onBeforeCommit(SQLiteDatabase database) {
+        mCommits++;
+        if (mCurrent) {
+            // Move to a new generation before the change becomes visible. apply() changes it in
+            // memory right away and writes it in the background, so the commit doesn't wait
+            // for a second write to disk. If the app dies before it is written, the next launch
+            // shows the old snapshot only until the loader replaces it.
+            mGeneration++;
+            prefs(mContext).edit().putLong(PREF_GENERATION, mGeneration).apply();
+            mCurrent = false;
+        }
+    }
+
+    @Override
+    public synchronized void onSettled(final SQLiteDatabase database) {
+        if (mCurrent) {
+            return;
+        }
+        if (mWriting) {
+            // Written again if the one being written turns out stale
+            mSettledWhileWriting = true;
+            return;
+        }
+        mWriting = true;
+        final long generation = mGeneration;
+        final long commits = mCommits;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(database, generation, commits);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(LOG_TAG, "Failed to write catalog snapshot", e);
+                } finally {
+                    synchronized (CatalogSnapshot.this) {
+                        mWriting = false;
+                        if (mSettledWhileWriting) {
+                            mSettledWhileWriting = false;
+                            onSettled(database);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the list columns of all the books to a temporary file, and move it in place of the
+     * snapshot once it is complete, unless a change was committed in the meantime. The books
+     * are read outside of any transaction, which in WAL mode gets a read connection of its own
+     * and doesn't hold up the writer.
+     */
+    private void write(SQLiteDatabase database, long generation, long commits)
+            throws IOException {
+        File file = snapshotFile(mContext);
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, COLUMNS, null, null, null, null,
+                BookEntry.CATALOG_SORT_ORDER);
+        DataOutputStream out = null;
+        try {
+            int count = cursor.getCount();
+            int[] rowOffsets = new int[count];
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(generation);
+            out.writeInt(count);
+            // Offset of the row table, it comes after the rows
+            out.writeInt(0);
+            for (int i = 0; i < count && cursor.moveToNext(); i++) {
+                rowOffsets[i] = out.size();
+                out.writeLong(cursor.getLong(0));
+                out.writeInt(cursor.getInt(3));
+                out.writeInt(cursor.getInt(4));
+                writeString(out, cursor.getString(1));
+                writeString(out, cursor.getString(2));
+            }
+            int tableOffset = out.size();
+            for (int rowOffset : rowOffsets) {
+                out.writeInt(rowOffset);
+            }
+            out.close();
+            out = null;
+            writeTableOffset(tmpFile, tableOffset);
+        } finally {
+            cursor.close();
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        synchronized (this) {
+            if (commits != mCommits) {
+                // The change committed since then makes this snapshot stale already
+                if (!tmpFile.delete()) {
+                    Log.w(LOG_TAG, "Failed to delete " + tmpFile);
+                }
+                return;
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + file);
+            }
+            mCurrent = true;
+        }
+    }
+
+    /**
+     * Fill in the offset of the row table in the header of a snapshot file.
+     */
+    private static void writeTableOffset(File file, int tableOffset) throws IOException {
+        RandomAccessFile header = new RandomAccessFile(file, "rw");
+        try {
+            header.seek(HEADER_TABLE_OFFSET);
+            header.writeInt(tableOffset);
+        } finally {
+            header.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Memory-map the catalog snapshot and return a cursor over it with the columns
+     * {@link BookEntry#_ID}, {@link BookEntry#COLUMN_BOOK_NAME},
+     * {@link BookEntry#COLUMN_BOOK_CATEGORY}, {@link BookEntry#COLUMN_BOOK_PRICE} and
+     * {@link BookEntry#COLUMN_BOOK_QUANTITY}, sorted like the catalog.
+     *
+     * @return the cursor, or null if there is no snapshot or it is out of date
+     */
+    public static Cursor open(Context context) {
+        long generation = prefs(context).getLong(PREF_GENERATION, 0);
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(snapshotFile(context));
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getLong() != generation) {
+                return null;
+            }
+            int count = buffer.getInt();
+            int tableOffset = buffer.getInt();
+            if (count < 0 || tableOffset < HEADER_SIZE
+                    || tableOffset + 4L * count != buffer.limit()) {
+                return null;
+            }
+            return new SnapshotCursor(buffer, count, tableOffset);
+        } catch (IOException | RuntimeException e) {
+            // No snapshot yet, or a damaged one: just wait for the loader
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // The mapping stays valid after closing the file
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the generation stored in the given snapshot file, or -1 if it can't be read.
+     */
+    private static long readGeneration(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                return -1;
+            }
+            return in.readLong();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing left to read anyway
+                }
+            }
+        }
+    }
+
+    private static File snapshotFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Read-only cursor over a memory-mapped snapshot. Rows are decoded on demand, found through
+     * the row table of the file, so opening it doesn't read the rows.
+     */
+    private static class SnapshotCursor extends AbstractCursor {
+
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+        private final int mTableOffset;
+
+        // Values of the current row
+        private long mId;
+        private int mPrice;
+        private int mQuantity;
+        private String mName;
+        private String mCategory;
+
+        SnapshotCursor(ByteBuffer buffer, int count, int tableOffset) {
+            mBuffer = buffer;
+            mCount = count;
+            mTableOffset = tableOffset;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            int offset = mBuffer.getInt(mTableOffset + 4 * newPosition);
+            mId = mBuffer.getLong(offset);
+            mPrice = mBuffer.getInt(offset + 8);
+            mQuantity = mBuffer.getInt(offset + 12);
+            offset += 16;
+            mName = readString(offset);
+            offset += 4 + Math.max(mBuffer.getInt(offset), 0);
+            mCategory = readString(offset);
+            return true;
+        }
+
+        private String readString(int offset) {
+            int length = mBuffer.getInt(offset);
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer view = mBuffer.duplicate();
+            view.position(offset + 4);
+            view.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return COLUMNS;
+        }
+
+        @Override
+        public String getString(int column) {
+            switch (column) {
+                case 1:
+                    return mName;
+                case 2:
+                    return mCategory;
+                default:
+                    return String.valueOf(getLong(column));
+            }
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            switch (column) {
+                case 0:
+                    return mId;
+                case 3:
+                    return mPrice;
+                case 4:
+                    return mQuantity;
+                default:
+                    return Long.parseLong(getString(column));
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return (column == 1 && mName == null) || (column == 2 && mCategory == null);
+        }
+
+        @Override
+        public int getType(int column) {
+            if (isNull(column)) {
+                return FIELD_TYPE_NULL;
+            }
+            return column == 1 || column == 2 ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.books.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Stores the cover image of every book as a file of its own, named after the book id, in the
+ * app's private files. {@link BookProvider#openFile} hands these files out through
+ * {@link BookEntry#buildCoverUri(long)}.
+ */
+class CoverStore {
+
+    private static final String COVERS_DIR = "covers";
+    private static final String COVER_SUFFIX = ".jpg";
+
+    private final File mDir;
+
+    CoverStore(Context context) {
+        mDir = new File(context.getFilesDir(), COVERS_DIR);
+    }
+
+    /**
+     * Open the cover of the given book.
+     *
+     * @param mode "r" to read the cover, "w", "wt", "rw" or "rwt" to replace it
+     */
+    ParcelFileDescriptor open(long id, String mode) throws FileNotFoundException {
+        int fileMode = parseMode(mode);
+        if ((fileMode & ParcelFileDescriptor.MODE_CREATE) != 0 && !mDir.isDirectory()
+                && !mDir.mkdirs()) {
+            throw new FileNotFoundException("Can't create " + mDir);
+        }
+        return ParcelFileDescriptor.open(coverFile(id), fileMode);
+    }
+
+    /**
+     * Delete the cover of the given book, if it has one.
+     */
+    void delete(long id) {
+        coverFile(id).delete();
+    }
+
+    /**
+     * Delete every cover, for instance after a restore: backups don't have the covers, and the
+     * ids of the restored books may be those of other books before.
+     */
+    void deleteAll() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(COVER_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the covers of books that no longer exist, for instance after a bulk delete.
+     * Archived books keep their cover.
+     */
+    void deleteOrphans(SQLiteDatabase database) {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(COVER_SUFFIX)) {
+                continue;
+            }
+            String id = name.substring(0, name.length() - COVER_SUFFIX.length());
+            long books = DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME,
+                    BookEntry._ID + "=?", new String[]{id})
+                    + DatabaseUtils.queryNumEntries(database, BookEntry.ARCHIVE_TABLE_NAME,
+                    BookEntry._ID + "=?", new String[]{id});
+            if (books == 0) {
+                file.delete();
+            }
+        }
+    }
+
+    private File coverFile(long id) {
+        return new File(mDir, id + COVER_SUFFIX);
+    }
+
+    /**
+     * Translate a {@link android.content.ContentResolver#openFileDescriptor} mode to
+     * {@link ParcelFileDescriptor} flags.
+     */
+    private static int parseMode(String mode) {
+        switch (mode) {
+            case "r":
+                return ParcelFileDescriptor.MODE_READ_ONLY;
+            case "w":
+            case "wt":
+                return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE;
+            case "rw":
+                return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
+            case "rwt":
+                return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE;
+            default:
+                throw new IllegalArgumentException("Unsupported file mode " + mode);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.android.books.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Shrinks a history table of the books, such as the stock ledger or the price history, by
+ * merging its old rows. The books are folded in small ranges of ids, each one a separate write
+ * on the {@link BookWriteScheduler}, so the other writes keep going while it runs.
+ * <p>
+ * A fold inserts the merged rows after all the existing ones, then deletes the rows they
+ * replace, which are found by having a merged row with a newer id. Folding again folds nothing
+ * new, so a job can run as often as wanted.
+ */
+abstract class HistoryFoldJob implements Runnable {
+
+    /**
+     * Number of books whose history is folded per transaction
+     */
+    private static final int CHUNK_BOOKS = 500;
+
+    private final String mLogTag = getClass().getSimpleName();
+    private final BookWriteScheduler mWriteScheduler;
+    private final String mTable;
+    private final String mId;
+    private final String mBookId;
+
+    /**
+     * Constructs a job folding the given table, with its id and book id columns.
+     */
+    HistoryFoldJob(BookWriteScheduler writeScheduler, String table, String id, String bookId) {
+        mWriteScheduler = writeScheduler;
+        mTable = table;
+        mId = id;
+        mBookId = bookId;
+    }
+
+    @Override
+    public void run() {
+        long lastBookId = mWriteScheduler.execute(new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                return DatabaseUtils.longForQuery(database,
+                        "SELECT IFNULL(MAX(" + mBookId + "), 0) FROM " + mTable, null);
+            }
+        });
+
+        int folded = 0;
+        try {
+            for (long first = 0; first <= lastBookId; first += CHUNK_BOOKS) {
+                folded += foldChunk(first, first + CHUNK_BOOKS);
+            }
+        } catch (RuntimeException e) {
+            Log.e(mLogTag, "Folding " + mTable + " failed after " + folded + " rows", e);
+        }
+        if (folded > 0) {
+            Log.i(mLogTag, "Folded " + mTable + " by " + folded + " rows");
+        }
+    }
+
+    /**
+     * Fold the history of the books with ids from first (inclusive) to end (exclusive), and
+     * return by how many rows the table shrank.
+     */
+    abstract int foldChunk(long first, long end);
+
+    /**
+     * Run one fold of the books with ids from first (inclusive) to end (exclusive) in its own
+     * write, and return by how many rows the table shrank. The insert adds the merged rows and
+     * takes the given arguments. The delete takes the last id before the insert, first, end,
+     * the time before which rows are folded, and the last id again.
+     */
+    final int fold(final String insertSql, final Object[] insertArgs, final String deleteSql,
+                   final long first, final long end, final long before) {
+        return mWriteScheduler.execute(new BookWriteScheduler.Write<Integer>() {
+            @Override
+            public Integer apply(SQLiteDatabase database) {
+                long lastId = DatabaseUtils.longForQuery(database,
+                        "SELECT IFNULL(MAX(" + mId + "), 0) FROM " + mTable, null);
+                database.execSQL(insertSql, insertArgs);
+                long merged = DatabaseUtils.longForQuery(database,
+                        "SELECT COUNT(*) FROM " + mTable + " WHERE " + mId + ">?",
+                        new String[]{String.valueOf(lastId)});
+                if (merged == 0) {
+                    return 0;
+                }
+                SQLiteStatement delete = database.compileStatement(deleteSql);
+                int deleted;
+                try {
+                    delete.bindLong(1, lastId);
+                    delete.bindLong(2, first);
+                    delete.bindLong(3, end);
+                    delete.bindLong(4, before);
+                    delete.bindLong(5, lastId);
+                    deleted = delete.executeUpdateDelete();
+                } finally {
+                    delete.close();
+                }
+                return (int) (deleted - merged);
+            }
+        });
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.android.books.data;
+
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folds the old stock movements into snapshots, so the ledger stays bounded: all the movements
+ * of a book in a UTC day before a cutoff are replaced by one {@link
+ * StockMovementEntry#REASON_SNAPSHOT} with their summed delta and the quantity the last one
+ * left. The sum of the deltas of a book, its quantity, doesn't change. A day with a single
+ * movement is left as it is.
+ * <p>
+ * The books are folded in small ranges of ids like any {@link HistoryFoldJob}, so the sales
+ * keep going while it runs.
+ */
+class LedgerFoldJob extends HistoryFoldJob {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String TABLE = StockMovementEntry.TABLE_NAME;
+    private static final String ID = StockMovementEntry._ID;
+    private static final String BOOK_ID = StockMovementEntry.COLUMN_BOOK_ID;
+    private static final String DELTA = StockMovementEntry.COLUMN_DELTA;
+    private static final String QUANTITY = StockMovementEntry.COLUMN_QUANTITY;
+    private static final String CREATED_AT = StockMovementEntry.COLUMN_CREATED_AT;
+
+    /**
+     * The movements of a range of books before the cutoff, grouped by book and day. The rows
+     * are appended in time order, so the last movement of a day has the highest id.
+     */
+    static final String CHUNK_DAYS = "SELECT MAX(" + ID + ") AS last_id, SUM(" + DELTA
+            + ") AS " + DELTA + " FROM " + TABLE
+            + " WHERE " + BOOK_ID + ">=? AND " + BOOK_ID + "<? AND " + CREATED_AT + "<?"
+            + " GROUP BY " + BOOK_ID + ", " + CREATED_AT + "/" + DAY_MILLIS
+            + " HAVING COUNT(*)>1";
+
+    static final String INSERT_SNAPSHOTS = "INSERT INTO " + TABLE + " (" + BOOK_ID + ", "
+            + DELTA + ", " + QUANTITY + ", " + StockMovementEntry.COLUMN_REASON + ", "
+            + CREATED_AT + ") SELECT m." + BOOK_ID + ", d." + DELTA + ", m." + QUANTITY + ", ?, m."
+            + CREATED_AT + " FROM (" + CHUNK_DAYS + ") d JOIN " + TABLE + " m ON m." + ID
+            + "=d.last_id";
+
+    /**
+     * The movements that have a new snapshot (id after the given one) on the same book and day.
+     * The snapshot is found through the index on book and time.
+     */
+    static final String DELETE_FOLDED = "DELETE FROM " + TABLE
+            + " WHERE " + ID + "<=? AND " + BOOK_ID + ">=? AND " + BOOK_ID + "<? AND "
+            + CREATED_AT + "<? AND EXISTS (SELECT 1 FROM " + TABLE + " s"
+            + " WHERE s." + BOOK_ID + "=" + TABLE + "." + BOOK_ID
+            + " AND s." + CREATED_AT + ">=" + TABLE + "." + CREATED_AT + "/" + DAY_MILLIS + "*"
+            + DAY_MILLIS
+            + " AND s." + CREATED_AT + "<" + TABLE + "." + CREATED_AT + "/" + DAY_MILLIS + "*"
+            + DAY_MILLIS + "+" + DAY_MILLIS
+            + " AND s." + ID + ">?)";
+
+    private final long mFoldBefore;
+
+    /**
+     * Constructs a job folding the movements made before the given time, which is rounded
+     * down to the start of its UTC day so a day is always folded as a whole.
+     */
+    LedgerFoldJob(BookWriteScheduler writeScheduler, long foldBefore) {
+        super(writeScheduler, TABLE, ID, BOOK_ID);
+        mFoldBefore = foldBefore / DAY_MILLIS * DAY_MILLIS;
+    }
+
+    /**
+     * Returns a job applying the retention of the ledger, see
+     * {@link StockMovementEntry#RETENTION_DAYS}.
+     */
+    static LedgerFoldJob forRetention(BookWriteScheduler writeScheduler) {
+        return new LedgerFoldJob(writeScheduler, System.currentTimeMillis()
+                - TimeUnit.DAYS.toMillis(StockMovementEntry.RETENTION_DAYS));
+    }
+
+    @Override
+    int foldChunk(long first, long end) {
+        return fold(INSERT_SNAPSHOTS, new Object[]{
+                StockMovementEntry.REASON_SNAPSHOT, first, end, mFoldBefore},
+                DELETE_FOLDED, first, end, mFoldBefore);
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.android.books.data;
+
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downsamples the old price history, so it stays small however often the prices change: the
+ * changes of a book in a UTC day before the daily cutoff are merged into one row, and the rows
+ * of a UTC month before the monthly cutoff too. A merged row has the last price of its day or
+ * month, at the time of the last change, with the lowest and highest prices and the number of
+ * changes of the rows it replaces. A day or month with a single row is left as it is.
+ * <p>
+ * The books are downsampled in small ranges of ids like any {@link HistoryFoldJob}, by day
+ * first, so the days merged now are merged into their month next.
+ */
+class PriceDownsampleJob extends HistoryFoldJob {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String TABLE = PriceHistoryEntry.TABLE_NAME;
+    private static final String ID = PriceHistoryEntry._ID;
+    private static final String BOOK_ID = PriceHistoryEntry.COLUMN_BOOK_ID;
+    private static final String PRICE = PriceHistoryEntry.COLUMN_PRICE;
+    private static final String MIN_PRICE = PriceHistoryEntry.COLUMN_MIN_PRICE;
+    private static final String MAX_PRICE = PriceHistoryEntry.COLUMN_MAX_PRICE;
+    private static final String CHANGES = PriceHistoryEntry.COLUMN_CHANGES;
+    private static final String CHANGED_AT = PriceHistoryEntry.COLUMN_CHANGED_AT;
+
+    /**
+     * The length of the rows of a downsampled history, as SQL giving the start and the end of
+     * the bucket of a time
+     */
+    enum Bucket {
+        DAY {
+            @Override
+            String start(String time) {
+                return time + "/" + DAY_MILLIS + "*" + DAY_MILLIS;
+            }
+
+            @Override
+            String end(String time) {
+                return start(time) + "+" + DAY_MILLIS;
+            }
+        },
+        MONTH {
+            @Override
+            String start(String time) {
+                return "strftime('%s'," + time + "/1000,'unixepoch','start of month')*1000";
+            }
+
+            @Override
+            String end(String time) {
+                return "strftime('%s'," + time
+                        + "/1000,'unixepoch','start of month','+1 month')*1000";
+            }
+        };
+
+        abstract String start(String time);
+
+        abstract String end(String time);
+
+        /**
+         * The rows of a range of books before the cutoff, grouped by book and bucket, with
+         * the time of the last change of each bucket
+         */
+        String groupSql() {
+            return "SELECT " + BOOK_ID + ", MAX(" + CHANGED_AT + ") AS last_at, MIN("
+                    + MIN_PRICE + ") AS " + MIN_PRICE + ", MAX(" + MAX_PRICE + ") AS "
+                    + MAX_PRICE + ", SUM(" + CHANGES + ") AS " + CHANGES + " FROM " + TABLE
+                    + " WHERE " + BOOK_ID + ">=? AND " + BOOK_ID + "<? AND " + CHANGED_AT + "<?"
+                    + " GROUP BY " + BOOK_ID + ", " + start(CHANGED_AT)
+                    + " HAVING COUNT(*)>1";
+        }
+
+        /**
+         * Inserts the merged row of every bucket, with the price of its last row. Merged rows
+         * are added after the rows of newer days, so the last row is found by its time.
+         */
+        String insertSql() {
+            return "INSERT INTO " + TABLE + " (" + BOOK_ID + ", " + PRICE + ", " + MIN_PRICE
+                    + ", " + MAX_PRICE + ", " + CHANGES + ", " + CHANGED_AT + ") SELECT b."
+                    + BOOK_ID + ", p." + PRICE + ", b." + MIN_PRICE + ", b." + MAX_PRICE
+                    + ", b." + CHANGES + ", b.last_at FROM (" + groupSql() + ") b JOIN " + TABLE
+                    + " p ON p." + ID + "=(SELECT " + ID + " FROM " + TABLE + " WHERE "
+                    + BOOK_ID + "=b." + BOOK_ID + " AND " + CHANGED_AT + "=b.last_at"
+                    + " ORDER BY " + ID + " DESC LIMIT 1)";
+        }
+
+        /**
+         * Deletes the rows that have a new merged row (id after the given one) on the same
+         * book and bucket. The merged row is found through the index on book and time.
+         */
+        String deleteSql() {
+            return "DELETE FROM " + TABLE
+                    + " WHERE " + ID + "<=? AND " + BOOK_ID + ">=? AND " + BOOK_ID + "<? AND "
+                    + CHANGED_AT + "<? AND EXISTS (SELECT 1 FROM " + TABLE + " s"
+                    + " WHERE s." + BOOK_ID + "=" + TABLE + "." + BOOK_ID
+                    + " AND s." + CHANGED_AT + ">=" + start(TABLE + "." + CHANGED_AT)
+                    + " AND s." + CHANGED_AT + "<" + end(TABLE + "." + CHANGED_AT)
+                    + " AND s." + ID + ">?)";
+        }
+    }
+
+    private final long mDailyBefore;
+    private final long mMonthlyBefore;
+
+    /**
+     * Constructs a job downsampling the history as of the given time, see
+     * {@link PriceHistoryEntry}. The cutoffs are rounded down to the start of their UTC day and
+     * month, so a bucket is always merged as a whole.
+     */
+    PriceDownsampleJob(BookWriteScheduler writeScheduler, long now) {
+        super(writeScheduler, TABLE, ID, BOOK_ID);
+        long dailyBefore = now - TimeUnit.DAYS.toMillis(PriceHistoryEntry.FULL_RESOLUTION_DAYS);
+        mDailyBefore = dailyBefore / DAY_MILLIS * DAY_MILLIS;
+
+        Calendar monthlyBefore = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        monthlyBefore.setTimeInMillis(
+                now - TimeUnit.DAYS.toMillis(PriceHistoryEntry.DAILY_RESOLUTION_DAYS));
+        monthlyBefore.set(Calendar.DAY_OF_MONTH, 1);
+        monthlyBefore.set(Calendar.HOUR_OF_DAY, 0);
+        monthlyBefore.set(Calendar.MINUTE, 0);
+        monthlyBefore.set(Calendar.SECOND, 0);
+        monthlyBefore.set(Calendar.MILLISECOND, 0);
+        mMonthlyBefore = monthlyBefore.getTimeInMillis();
+    }
+
+    /**
+     * Returns a job applying the retention of the price history as of now.
+     */
+    static PriceDownsampleJob forRetention(BookWriteScheduler writeScheduler) {
+        return new PriceDownsampleJob(writeScheduler, System.currentTimeMillis());
+    }
+
+    @Override
+    int foldChunk(long first, long end) {
+        return mergeChunk(Bucket.DAY, mDailyBefore, first, end)
+                + mergeChunk(Bucket.MONTH, mMonthlyBefore, first, end);
+    }
+
+    /**
+     * Merge the rows before the given time of the books with ids from first (inclusive) to end
+     * (exclusive) by bucket, and return by how many rows the history shrank.
+     */
+    private int mergeChunk(Bucket bucket, long before, long first, long end) {
+        return fold(bucket.insertSql(), new Object[]{first, end, before}, bucket.deleteSql(),
+                first, end, before);
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.android.books.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Applies a supplier price feed to the books, writing only what actually changed.
+ * <p>
+ * A feed is a CSV file with the header {@code isbn,supplier,title,price,quantity} and one line
+ * per book. A line is matched to a book by ISBN if it has one, otherwise by supplier name and
+ * title. An empty price or quantity leaves that value alone. A book is left alone too if the
+ * quantity would go below the stock it has at its locations, see {@link BookContract.StockEntry}.
+ * <p>
+ * The feed is read into memory, then compared with the books in a single pass over the books
+ * table. Only the books whose price or quantity differs are updated, in batches of
+ * {@link #BATCH_SIZE} per transaction, and the book lists get a single change notification at
+ * the end. A daily feed that is mostly the same as yesterday's only costs the read.
+ */
+class PriceFeedIngester {
+
+    private static final String LOG_TAG = PriceFeedIngester.class.getSimpleName();
+
+    /**
+     * Number of changed books written per transaction
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private static final String HEADER = "isbn,supplier,title,price,quantity";
+
+    /**
+     * One line of the feed. Null values are not in the feed.
+     */
+    private static class FeedRow {
+        Integer price;
+        Integer quantity;
+    }
+
+    /**
+     * A book whose values differ from the feed, with the values of the feed. Null values are
+     * not in the feed and stay what the book has when it is written.
+     */
+    private static class Change {
+        final long id;
+        final Integer price;
+        final Integer quantity;
+
+        Change(long id, FeedRow row) {
+            this.id = id;
+            this.price = row.price;
+            this.quantity = row.quantity;
+        }
+
+        /**
+         * Returns the book with the values of the feed applied.
+         */
+        Book applyTo(Book book) {
+            if (price != null) {
+                book = book.withPrice(price);
+            }
+            if (quantity != null) {
+                book = book.withQuantity(quantity);
+            }
+            return book;
+        }
+    }
+
+    private final BookDbHelper mDbHelper;
+    private final BookWriteScheduler mWriteScheduler;
+    private final AndroidBookStore mStore;
+    private final ContentResolver mResolver;
+
+    /**
+     * Feed lines by ISBN, and by supplier and title for the lines without an ISBN
+     */
+    private final Map<String, FeedRow> mByIsbn = new HashMap<>();
+    private final Map<String, FeedRow> mBySupplierAndTitle = new HashMap<>();
+
+    private int mFeedRows;
+    private int mInvalidRows;
+    private int mMatched;
+
+    PriceFeedIngester(BookDbHelper dbHelper, BookWriteScheduler writeScheduler,
+                      AndroidBookStore store, ContentResolver resolver) {
+        mDbHelper = dbHelper;
+        mWriteScheduler = writeScheduler;
+        mStore = store;
+        mResolver = resolver;
+    }
+
+    /**
+     * Apply the feed and return the result as described in
+     * {@link BookContract#METHOD_APPLY_PRICE_FEED}.
+     */
+    Bundle apply(Reader feed) throws IOException {
+        read(feed);
+        List<Change> changes = diff();
+        int changed = write(changes);
+        if (changed > 0) {
+            mResolver.notifyChange(BookEntry.CONTENT_URI, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(BookContract.EXTRA_FEED_ROWS, mFeedRows);
+        result.putInt(BookContract.EXTRA_INVALID_ROWS, mInvalidRows);
+        result.putInt(BookContract.EXTRA_MATCHED, mMatched);
+        result.putInt(BookContract.EXTRA_CHANGED, changed);
+        Log.i(LOG_TAG, "Price feed: " + mFeedRows + " rows, " + mMatched + " matched, "
+                + changed + " changed, " + mInvalidRows + " invalid");
+        return result;
+    }
+
+    private void read(Reader feed) throws IOException {
+        BufferedReader reader = new BufferedReader(feed);
+        String line = reader.readLine();
+        if (line == null || !HEADER.equals(line.trim())) {
+            throw new IllegalArgumentException("price feed requires the header " + HEADER);
+        }
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            mFeedRows++;
+            // isbn,supplier,title,price,quantity where only the title may contain commas
+            String[] fields = line.split(",", -1);
+            if (fields.length < 5) {
+                mInvalidRows++;
+                continue;
+            }
+            FeedRow row = new FeedRow();
+            String isbn;
+            try {
+                isbn = BookEntry.normalizeIsbn(fields[0]);
+                row.price = parseOptional(fields[fields.length - 2]);
+                row.quantity = parseOptional(fields[fields.length - 1]);
+            } catch (IllegalArgumentException e) {
+                // Includes NumberFormatException
+                mInvalidRows++;
+                continue;
+            }
+            if ((row.price != null && row.price < 0) || (row.quantity != null && row.quantity < 0)) {
+                mInvalidRows++;
+                continue;
+            }
+            if (isbn != null) {
+                mByIsbn.put(isbn, row);
+            } else {
+                String title = TextUtils.join(",", Arrays.copyOfRange(fields, 2,
+                        fields.length - 2));
+                mBySupplierAndTitle.put(key(fields[1], title), row);
+            }
+        }
+    }
+
+    /**
+     * Compare the feed with the books in one pass over the books table.
+     */
+    private List<Change> diff() {
+        List<Change> changes = new ArrayList<>();
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor = database.query(BookEntry.TABLE_NAME, new String[]{
+                BookEntry._ID,
+                BookEntry.COLUMN_BOOK_ISBN,
+                BookEntry.COLUMN_SUPPLIER_NAME,
+                BookEntry.COLUMN_BOOK_NAME,
+                BookEntry.COLUMN_BOOK_PRICE,
+                BookEntry.COLUMN_BOOK_QUANTITY}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                FeedRow row = null;
+                if (!cursor.isNull(1)) {
+                    row = mByIsbn.get(cursor.getString(1));
+                }
+                if (row == null) {
+                    row = mBySupplierAndTitle.get(key(cursor.getString(2), cursor.getString(3)));
+                }
+                if (row == null) {
+                    continue;
+                }
+                mMatched++;
+
+                if ((row.price != null && row.price != cursor.getInt(4))
+                        || (row.quantity != null && row.quantity != cursor.getInt(5))) {
+                    changes.add(new Change(cursor.getLong(0), row));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Write the changes in batches, one transaction each, through the statements of the
+     * {@link AndroidBookStore}, which record the movements and the price changes.
+     *
+     * @return the number of books actually updated
+     */
+    private int write(final List<Change> changes) {
+        int written = 0;
+        for (int start = 0; start < changes.size(); start += BATCH_SIZE) {
+            final List<Change> batch = changes.subList(start,
+                    Math.min(start + BATCH_SIZE, changes.size()));
+            written += mWriteScheduler.execute(new BookWriteScheduler.Write<Integer>() {
+                @Override
+                public Integer apply(SQLiteDatabase database) {
+                    long now = System.currentTimeMillis();
+                    int updated = 0;
+                    for (Change change : batch) {
+                        // The book may have changed since it was compared. Only the values in
+                        // the feed are applied to it, and only the books that still differ are
+                        // written, so an up to date book never gets a new version.
+                        Book stored = mStore.get(database, change.id);
+                        if (stored == null) {
+                            continue;
+                        }
+                        Book book = change.applyTo(stored);
+                        if (book.getPrice() == stored.getPrice()
+                                && book.getQuantity() == stored.getQuantity()) {
+                            continue;
+                        }
+                        try {
+                            mStore.update(database, stored, book,
+                                    StockMovementEntry.REASON_FEED, now);
+                        } catch (IllegalArgumentException e) {
+                            // The feed can't take copies that are at a location, the book is
+                            // left alone. Nothing was written for it yet.
+                            Log.w(LOG_TAG, "Price feed skipped: " + e.getMessage());
+                            continue;
+                        }
+                        updated++;
+                    }
+                    return updated;
+                }
+            });
+        }
+        return written;
+    }
+
+    private static Integer parseOptional(String value) {
+        value = value.trim();
+        return value.isEmpty() ? null : Integer.valueOf(value);
+    }
+
+    private static String key(String supplier, String title) {
+        return (supplier == null ? "" : supplier.trim().toLowerCase(Locale.US)) + '\u0000'
+                + (title == null ? "" : title.trim().toLowerCase(Locale.US));
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.android.books.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+
+/**
+ * The price history of the books, see {@link PriceHistoryEntry}. A write that changes the price
+ * of a single book records it through the statements of {@link SqlBookStore}, in the same
+ * transaction as the change. This records the prices of many new books at once.
+ */
+final class PriceHistory {
+
+    private PriceHistory() {
+    }
+
+    /**
+     * Append the price of every book inserted after the given id, in one statement. It is the
+     * price the book had at its last change.
+     */
+    static void recordInserted(SQLiteDatabase database, long afterId) {
+        database.execSQL("INSERT INTO " + PriceHistoryEntry.TABLE_NAME + " ("
+                + PriceHistoryEntry.COLUMN_BOOK_ID + ", "
+                + PriceHistoryEntry.COLUMN_PRICE + ", "
+                + PriceHistoryEntry.COLUMN_MIN_PRICE + ", "
+                + PriceHistoryEntry.COLUMN_MAX_PRICE + ", "
+                + PriceHistoryEntry.COLUMN_CHANGED_AT + ") SELECT "
+                + BookEntry._ID + ", "
+                + BookEntry.COLUMN_BOOK_PRICE + ", "
+                + BookEntry.COLUMN_BOOK_PRICE + ", "
+                + BookEntry.COLUMN_BOOK_PRICE + ", "
+                + BookEntry.COLUMN_BOOK_UPDATED_AT + " FROM " + BookEntry.TABLE_NAME
+                + " WHERE " + BookEntry._ID + ">?", new Object[]{afterId});
+    }
+}
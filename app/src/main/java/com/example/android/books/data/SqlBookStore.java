@@ -0,0 +1,411 @@
+package com.example.android.books.data;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+import com.example.android.books.data.BookContract.StockEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link BookStore} on a SQLite database with the schema of {@link BookSchema}. It holds all
+ * the SQL and the rules, and only leaves running the statements to the engine: a subclass
+ * provides transactions and reads on its own database connection, see {@link Database}.
+ * <p>
+ * {@link BookProvider} writes the books through the same statements, see
+ * {@link AndroidBookStore}, so the indexes checked by the query plan tests serve it on every
+ * engine, and measurements made on a plain JVM carry over to the device. The writes that take
+ * a {@link Database} are those statements, for a transaction that is already running.
+ */
+public abstract class SqlBookStore implements BookStore {
+
+    /**
+     * The columns of a book, in the order {@link Database#queryBooks} reads them
+     */
+    protected static final String BOOK_COLUMNS = BookEntry._ID + ", "
+            + BookEntry.COLUMN_BOOK_NAME + ", "
+            + BookEntry.COLUMN_BOOK_CATEGORY + ", "
+            + BookEntry.COLUMN_BOOK_PRICE + ", "
+            + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+            + BookEntry.COLUMN_SUPPLIER_NAME + ", "
+            + BookEntry.COLUMN_SUPPLIER_NUMBER + ", "
+            + BookEntry.COLUMN_BOOK_ISBN + ", "
+            + BookEntry.COLUMN_BOOK_VERSION + ", "
+            + BookEntry.COLUMN_BOOK_UPDATED_AT;
+
+    private static final String SELECT_BOOKS = "SELECT " + BOOK_COLUMNS
+            + " FROM " + BookEntry.TABLE_NAME;
+
+    private static final String INSERT_BOOK = "INSERT INTO " + BookEntry.TABLE_NAME + " ("
+            + BookEntry.COLUMN_BOOK_NAME + ", "
+            + BookEntry.COLUMN_BOOK_CATEGORY + ", "
+            + BookEntry.COLUMN_BOOK_PRICE + ", "
+            + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+            + BookEntry.COLUMN_SUPPLIER_NAME + ", "
+            + BookEntry.COLUMN_SUPPLIER_NUMBER + ", "
+            + BookEntry.COLUMN_BOOK_ISBN + ", "
+            + BookEntry.COLUMN_BOOK_UPDATED_AT + ", "
+            + BookEntry.COLUMN_BOOK_DEDUPE_KEY + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    static final String UPDATE_BOOK = "UPDATE " + BookEntry.TABLE_NAME + " SET "
+            + BookEntry.COLUMN_BOOK_NAME + "=?, "
+            + BookEntry.COLUMN_BOOK_CATEGORY + "=?, "
+            + BookEntry.COLUMN_BOOK_PRICE + "=?, "
+            + BookEntry.COLUMN_BOOK_QUANTITY + "=?, "
+            + BookEntry.COLUMN_SUPPLIER_NAME + "=?, "
+            + BookEntry.COLUMN_SUPPLIER_NUMBER + "=?, "
+            + BookEntry.COLUMN_BOOK_ISBN + "=?, "
+            + BookEntry.COLUMN_BOOK_UPDATED_AT + "=?, "
+            + BookEntry.COLUMN_BOOK_DEDUPE_KEY + "=?, "
+            + BookEntry.COLUMN_BOOK_VERSION + "=" + BookEntry.COLUMN_BOOK_VERSION + "+1"
+            + " WHERE " + BookEntry._ID + "=?";
+
+    private static final String SELECT_QUANTITY = "SELECT " + BookEntry.COLUMN_BOOK_QUANTITY
+            + " FROM " + BookEntry.TABLE_NAME + " WHERE " + BookEntry._ID + "=?";
+
+    private static final String SELECT_ALLOCATED = "SELECT IFNULL(SUM("
+            + StockEntry.COLUMN_QUANTITY + "), 0) FROM " + StockEntry.TABLE_NAME
+            + " WHERE " + StockEntry.COLUMN_BOOK_ID + "=?";
+
+    static final String UPDATE_QUANTITY = "UPDATE " + BookEntry.TABLE_NAME + " SET "
+            + BookEntry.COLUMN_BOOK_QUANTITY + "=?, "
+            + BookEntry.COLUMN_BOOK_VERSION + "=" + BookEntry.COLUMN_BOOK_VERSION + "+1, "
+            + BookEntry.COLUMN_BOOK_UPDATED_AT + "=?"
+            + " WHERE " + BookEntry._ID + "=?";
+
+    private static final String INSERT_MOVEMENT = "INSERT INTO "
+            + StockMovementEntry.TABLE_NAME + " ("
+            + StockMovementEntry.COLUMN_BOOK_ID + ", "
+            + StockMovementEntry.COLUMN_DELTA + ", "
+            + StockMovementEntry.COLUMN_QUANTITY + ", "
+            + StockMovementEntry.COLUMN_REASON + ", "
+            + StockMovementEntry.COLUMN_CREATED_AT + ") VALUES (?, ?, ?, ?, ?)";
+
+    private static final String INSERT_PRICE = "INSERT INTO "
+            + PriceHistoryEntry.TABLE_NAME + " ("
+            + PriceHistoryEntry.COLUMN_BOOK_ID + ", "
+            + PriceHistoryEntry.COLUMN_PRICE + ", "
+            + PriceHistoryEntry.COLUMN_MIN_PRICE + ", "
+            + PriceHistoryEntry.COLUMN_MAX_PRICE + ", "
+            + PriceHistoryEntry.COLUMN_CHANGED_AT + ") VALUES (?, ?, ?, ?, ?)";
+
+    private static final String DELETE_BOOKS = "DELETE FROM " + BookEntry.TABLE_NAME;
+
+    static final String DELETE_MOVEMENTS = "DELETE FROM "
+            + StockMovementEntry.TABLE_NAME + " WHERE " + StockMovementEntry.COLUMN_BOOK_ID
+            + " IN (SELECT " + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME;
+
+    static final String DELETE_PRICES = "DELETE FROM "
+            + PriceHistoryEntry.TABLE_NAME + " WHERE " + PriceHistoryEntry.COLUMN_BOOK_ID
+            + " IN (SELECT " + BookEntry._ID + " FROM " + BookEntry.TABLE_NAME;
+
+    /**
+     * The statements of the engine, run in a transaction or a read. The arguments are
+     * Strings, Integers, Longs or null.
+     */
+    protected interface Database {
+        /**
+         * Run an INSERT and return the row id of the new row.
+         */
+        long insert(String sql, Object... args);
+
+        /**
+         * Run an UPDATE or DELETE and return the number of rows changed.
+         */
+        int update(String sql, Object... args);
+
+        /**
+         * Run a query selecting {@link #BOOK_COLUMNS} and return its rows as books.
+         */
+        List<Book> queryBooks(String sql, Object... args);
+
+        /**
+         * Run a query and return the number in the first column of its first row, or the
+         * default value if there is no row.
+         */
+        long queryLong(String sql, long defaultValue, Object... args);
+    }
+
+    /**
+     * Work done on the database in one transaction or read. A transaction may be rolled back
+     * and run again, so it must only touch the database.
+     */
+    protected interface Transaction<T> {
+        T run(Database database);
+    }
+
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Run the transaction and commit it, or roll it back and rethrow if it throws.
+     */
+    protected abstract <T> T inTransaction(Transaction<T> transaction);
+
+    /**
+     * Run a transaction that only reads.
+     */
+    protected abstract <T> T read(Transaction<T> transaction);
+
+    @Override
+    public long insert(final Book book) {
+        BookRules.checkBook(book);
+        long id = inTransaction(new Transaction<Long>() {
+            @Override
+            public Long run(Database database) {
+                return insertBook(database, book, System.currentTimeMillis());
+            }
+        });
+        notifyChanged(new long[]{id});
+        return id;
+    }
+
+    @Override
+    public long[] insertAll(final List<Book> books) {
+        for (Book book : books) {
+            BookRules.checkBook(book);
+        }
+        long[] ids = inTransaction(new Transaction<long[]>() {
+            @Override
+            public long[] run(Database database) {
+                long now = System.currentTimeMillis();
+                long[] ids = new long[books.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = insertBook(database, books.get(i), now);
+                }
+                return ids;
+            }
+        });
+        if (ids.length > 0) {
+            notifyChanged(ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Insert a new book, with its initial stock and price as its first movement and the start of
+     * its price history, and return its id. The book is not checked.
+     */
+    static long insertBook(Database database, Book book, long now) {
+        long id = database.insert(INSERT_BOOK, book.getName(), book.getCategory(),
+                book.getPrice(), book.getQuantity(), book.getSupplierName(),
+                book.getSupplierNumber(), BookRules.normalizeIsbn(book.getIsbn()), now,
+                BookRules.buildDedupeKey(book.getName(), book.getSupplierName()));
+        recordMovement(database, id, book.getQuantity(), book.getQuantity(),
+                StockMovementEntry.REASON_INITIAL, now);
+        recordPrice(database, id, book.getPrice(), now);
+        return id;
+    }
+
+    /**
+     * Append the price a book has from now on to its price history.
+     */
+    static void recordPrice(Database database, long id, int price, long now) {
+        database.insert(INSERT_PRICE, id, price, price, price, now);
+    }
+
+    /**
+     * Append the movement of a book that changed by delta copies to the ledger, unless it
+     * didn't change.
+     */
+    static void recordMovement(Database database, long id, long delta, long quantity,
+                                       String reason, long now) {
+        if (delta != 0) {
+            database.insert(INSERT_MOVEMENT, id, delta, quantity, reason, now);
+        }
+    }
+
+    @Override
+    public Book get(final long id) {
+        return read(new Transaction<Book>() {
+            @Override
+            public Book run(Database database) {
+                return getBook(database, id);
+            }
+        });
+    }
+
+    /**
+     * Returns the book with the given id, null if there is none. It is a single lookup by
+     * primary key.
+     */
+    static Book getBook(Database database, long id) {
+        return first(database.queryBooks(SELECT_BOOKS + " WHERE " + BookEntry._ID + "=?", id));
+    }
+
+    @Override
+    public Book findByIsbn(String isbn) {
+        final String normalizedIsbn = BookRules.normalizeIsbn(isbn);
+        if (normalizedIsbn == null) {
+            return null;
+        }
+        return first(read(new Transaction<List<Book>>() {
+            @Override
+            public List<Book> run(Database database) {
+                return database.queryBooks(SELECT_BOOKS + " WHERE "
+                        + BookEntry.COLUMN_BOOK_ISBN + "=?", normalizedIsbn);
+            }
+        }));
+    }
+
+    private static Book first(List<Book> books) {
+        return books.isEmpty() ? null : books.get(0);
+    }
+
+    @Override
+    public List<Book> list(final String category) {
+        return read(new Transaction<List<Book>>() {
+            @Override
+            public List<Book> run(Database database) {
+                if (category == null) {
+                    return database.queryBooks(SELECT_BOOKS
+                            + " ORDER BY " + BookEntry.CATALOG_SORT_ORDER);
+                }
+                return database.queryBooks(SELECT_BOOKS + " WHERE "
+                        + BookEntry.COLUMN_BOOK_CATEGORY + "=?"
+                        + " ORDER BY " + BookEntry.CATALOG_SORT_ORDER, category);
+            }
+        });
+    }
+
+    @Override
+    public long update(final Book book) {
+        BookRules.checkBook(book);
+        long version = inTransaction(new Transaction<Long>() {
+            @Override
+            public Long run(Database database) {
+                Book stored = getBook(database, book.getId());
+                if (stored == null) {
+                    throw new IllegalArgumentException("Unknown book " + book.getId());
+                }
+                if (book.getVersion() != Book.NO_VERSION
+                        && book.getVersion() != stored.getVersion()) {
+                    throw new BookConflictException(book.getVersion(), stored.getVersion());
+                }
+                return updateBook(database, stored, book, StockMovementEntry.REASON_EDIT,
+                        System.currentTimeMillis());
+            }
+        });
+        notifyChanged(new long[]{book.getId()});
+        return version;
+    }
+
+    /**
+     * Replace the values of a stored book with those of the given one, and return its new
+     * version. A change of the quantity is recorded as a movement with the given reason, and a
+     * change of the price in the price history. The book is not checked.
+     *
+     * @throws IllegalArgumentException if the quantity goes down below the stock the book has
+     *                                  at its locations, see {@link StockEntry}
+     */
+    static long updateBook(Database database, Book stored, Book book, String reason, long now) {
+        if (book.getQuantity() < stored.getQuantity()
+                && book.getQuantity() < allocatedStock(database, stored.getId())) {
+            throw new IllegalArgumentException("Book " + stored.getId() + " has more than "
+                    + book.getQuantity() + " copies at its locations");
+        }
+        database.update(UPDATE_BOOK, book.getName(), book.getCategory(),
+                book.getPrice(), book.getQuantity(), book.getSupplierName(),
+                book.getSupplierNumber(), BookRules.normalizeIsbn(book.getIsbn()), now,
+                BookRules.buildDedupeKey(book.getName(), book.getSupplierName()),
+                stored.getId());
+        recordMovement(database, stored.getId(), book.getQuantity() - stored.getQuantity(),
+                book.getQuantity(), reason, now);
+        if (book.getPrice() != stored.getPrice()) {
+            recordPrice(database, stored.getId(), book.getPrice(), now);
+        }
+        return stored.getVersion() + 1;
+    }
+
+    @Override
+    public boolean delete(final long id) {
+        int deleted = inTransaction(new Transaction<Integer>() {
+            @Override
+            public Integer run(Database database) {
+                return deleteBooks(database, BookEntry._ID + "=?", id);
+            }
+        });
+        if (deleted != 0) {
+            notifyChanged(new long[]{id});
+        }
+        return deleted != 0;
+    }
+
+    /**
+     * Delete the books matching the selection (all of them if it's null) with their ledger and
+     * price history, and return how many there were. The selection is run again for each, so
+     * one with a LIMIT has to pick its books in a stable order. Archiving deletes books without
+     * this, so an archived book keeps its ledger and price history.
+     */
+    static int deleteBooks(Database database, String selection, Object... selectionArgs) {
+        database.update(DELETE_MOVEMENTS + where(selection) + ")", selectionArgs);
+        database.update(DELETE_PRICES + where(selection) + ")", selectionArgs);
+        return database.update(DELETE_BOOKS + where(selection), selectionArgs);
+    }
+
+    private static String where(String selection) {
+        return selection == null || selection.isEmpty() ? "" : " WHERE " + selection;
+    }
+
+    @Override
+    public int adjustStock(final long id, final int delta, final String reason) {
+        int quantity = inTransaction(new Transaction<Integer>() {
+            @Override
+            public Integer run(Database database) {
+                return adjustStock(database, id, delta, reason, System.currentTimeMillis());
+            }
+        });
+        if (quantity != -1 && delta != 0) {
+            notifyChanged(new long[]{id});
+        }
+        return quantity;
+    }
+
+    /**
+     * Add copies to the stock of a book, or take them from it with a negative delta, and record
+     * the movement. Copies are only taken from the stock that isn't at any location, see
+     * {@link StockEntry}: a change of the stock at a location updates its row first. Returns the
+     * new stock, or -1 if there weren't enough copies to take and nothing changed.
+     *
+     * @throws IllegalArgumentException if the book doesn't exist
+     */
+    static int adjustStock(Database database, long id, int delta, String reason, long now) {
+        long quantity = database.queryLong(SELECT_QUANTITY, -1, id);
+        if (quantity == -1) {
+            throw new IllegalArgumentException("Unknown book " + id);
+        }
+        long adjusted = quantity + delta;
+        if (adjusted < 0 || (delta < 0 && adjusted < allocatedStock(database, id))) {
+            return -1;
+        }
+        if (delta != 0) {
+            database.update(UPDATE_QUANTITY, adjusted, now, id);
+            recordMovement(database, id, delta, adjusted, reason, now);
+        }
+        return (int) adjusted;
+    }
+
+    /**
+     * Returns the stock of a book at all its locations. It is a range of the unique index on
+     * book and location.
+     */
+    private static long allocatedStock(Database database, long id) {
+        return database.queryLong(SELECT_ALLOCATED, 0, id);
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyChanged(long[] ids) {
+        for (Listener listener : mListeners) {
+            listener.onBooksChanged(ids);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.android.books.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+/**
+ * The stock movements of the books, see {@link StockMovementEntry}. A write that changes the
+ * quantity of a single book records its movement through the statements of
+ * {@link SqlBookStore}, in the same transaction as the change, so the quantity of a book and
+ * its movements never disagree. This records the initial stock of many new books at once, and
+ * reads the reason a provider URI gives for its changes.
+ */
+final class StockLedger {
+
+    private StockLedger() {
+    }
+
+    /**
+     * Append the initial stock of every book inserted after the given id, in one statement.
+     */
+    static void recordInserted(SQLiteDatabase database, long afterId) {
+        database.execSQL("INSERT INTO " + StockMovementEntry.TABLE_NAME + " ("
+                + StockMovementEntry.COLUMN_BOOK_ID + ", "
+                + StockMovementEntry.COLUMN_DELTA + ", "
+                + StockMovementEntry.COLUMN_QUANTITY + ", "
+                + StockMovementEntry.COLUMN_REASON + ", "
+                + StockMovementEntry.COLUMN_CREATED_AT + ") SELECT "
+                + BookEntry._ID + ", "
+                + BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + BookEntry.COLUMN_BOOK_QUANTITY + ", ?, "
+                + BookEntry.COLUMN_BOOK_UPDATED_AT + " FROM " + BookEntry.TABLE_NAME
+                + " WHERE " + BookEntry._ID + ">? AND " + BookEntry.COLUMN_BOOK_QUANTITY + "<>0",
+                new Object[]{StockMovementEntry.REASON_INITIAL, afterId});
+    }
+
+    /**
+     * Returns the reason an update of the given URI gives for its change of the stock, see
+     * {@link BookContract#PARAM_STOCK_REASON}.
+     */
+    static String reason(Uri uri) {
+        String reason = uri.getQueryParameter(BookContract.PARAM_STOCK_REASON);
+        if (reason == null) {
+            return StockMovementEntry.REASON_EDIT;
+        }
+        reason = reason.trim();
+        if (TextUtils.isEmpty(reason)) {
+            throw new IllegalArgumentException("Empty stock reason in " + uri);
+        }
+        return reason;
+    }
+}
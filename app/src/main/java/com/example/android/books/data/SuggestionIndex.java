@@ -0,0 +1,372 @@
+package com.example.android.books.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory prefix index over the distinct values of the columns that get typeahead
+ * suggestions, see {@link BookEntry#buildSuggestionsUri}. Every value is kept with the number
+ * of books that have it, in a sorted map keyed by its lower case form, so the values starting
+ * with a prefix are a single range of the map and a keystroke never reaches the database.
+ * <p>
+ * The index is built on first use, with one grouped query per column, and kept fresh from then
+ * on by the writes of {@link BookProvider}: every write that adds, changes or removes one of the
+ * values records a {@link Delta} on the writer thread and applies it once it is committed.
+ * A value disappears when its last book does.
+ * <p>
+ * Writes are numbered on the writer thread, and the build runs there too, so the index knows
+ * which deltas it already contains: a delta is only applied if its write came after the build.
+ */
+class SuggestionIndex {
+
+    /**
+     * The columns that get suggestions
+     */
+    static final String[] COLUMNS = {BookEntry.COLUMN_BOOK_CATEGORY, BookEntry.COLUMN_SUPPLIER_NAME};
+
+    /**
+     * Upper bound on the number of suggestions returned for a prefix
+     */
+    private static final int MAX_SUGGESTIONS = 20;
+
+    /**
+     * A value of a column and the number of books that have it
+     */
+    private static class Entry {
+        final String value;
+        int count;
+
+        Entry(String value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * The changes one write made to the number of books per value
+     */
+    static class Delta {
+        private final long mSequence;
+        private final Map<String, Map<String, Integer>> mCounts = new HashMap<>();
+
+        private Delta(long sequence) {
+            mSequence = sequence;
+        }
+
+        private void add(String column, String value, int count) {
+            if (TextUtils.isEmpty(value) || count == 0) {
+                return;
+            }
+            Map<String, Integer> counts = mCounts.get(column);
+            if (counts == null) {
+                counts = new HashMap<>();
+                mCounts.put(column, counts);
+            }
+            Integer current = counts.get(value);
+            counts.put(value, current == null ? count : current + count);
+        }
+    }
+
+    /**
+     * The index as built on the writer thread
+     */
+    private static class Built {
+        final long sequence;
+        final Map<String, TreeMap<String, Entry>> entries = new HashMap<>();
+
+        Built(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private final BookWriteScheduler mWriteScheduler;
+
+    /**
+     * Number of the last write that recorded a delta or built the index. Only used on the
+     * writer thread.
+     */
+    private long mSequence;
+
+    // All the fields below are guarded by this
+
+    /**
+     * The entries of every column, null until the index is built
+     */
+    private Map<String, TreeMap<String, Entry>> mEntries;
+
+    /**
+     * Number of the write that built the index, the index contains all writes up to it
+     */
+    private long mBuiltAt;
+
+    /**
+     * True while a build is running, the deltas arriving meanwhile wait in {@link #mPending}
+     */
+    private boolean mBuilding;
+    private final List<Delta> mPending = new ArrayList<>();
+
+    /**
+     * Incremented on every {@link #invalidate}, so a build started before it is thrown away
+     */
+    private int mGeneration;
+
+    SuggestionIndex(BookWriteScheduler writeScheduler) {
+        mWriteScheduler = writeScheduler;
+    }
+
+    /**
+     * Returns a delta for inserting the given books. Only call it on the writer thread, from
+     * the write that inserts them.
+     */
+    Delta inserted(ContentValues... books) {
+        Delta delta = new Delta(++mSequence);
+        for (ContentValues book : books) {
+            for (String column : COLUMNS) {
+                delta.add(column, book.getAsString(column), 1);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Returns a delta for updating the books matching the selection with the given values, or
+     * null if the update doesn't touch any of the columns. Only call it on the writer thread,
+     * from the write that updates them, right before the update.
+     */
+    Delta updated(SQLiteDatabase database, ContentValues values, String selection,
+                  String[] selectionArgs) {
+        boolean touched = false;
+        for (String column : COLUMNS) {
+            touched |= values.containsKey(column);
+        }
+        if (!touched) {
+            return null;
+        }
+        Delta delta = new Delta(++mSequence);
+        Cursor cursor = countValues(database, selection, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                int count = cursor.getInt(COLUMNS.length);
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    if (values.containsKey(COLUMNS[i])) {
+                        delta.add(COLUMNS[i], cursor.getString(i), -count);
+                        delta.add(COLUMNS[i], values.getAsString(COLUMNS[i]), count);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return delta;
+    }
+
+    /**
+     * Returns a delta for deleting the books matching the selection from the books table. Only
+     * call it on the writer thread, from the write that deletes them, right before the delete.
+     */
+    Delta removed(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Delta delta = new Delta(++mSequence);
+        Cursor cursor = countValues(database, selection, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                int count = cursor.getInt(COLUMNS.length);
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    delta.add(COLUMNS[i], cursor.getString(i), -count);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return delta;
+    }
+
+    /**
+     * SELECT category, supplier_name, COUNT(*) FROM books WHERE <selection>
+     * GROUP BY category, supplier_name
+     */
+    private static Cursor countValues(SQLiteDatabase database, String selection,
+                                      String[] selectionArgs) {
+        String columns = TextUtils.join(", ", COLUMNS);
+        return database.rawQuery("SELECT " + columns + ", COUNT(*) FROM " + BookEntry.TABLE_NAME
+                + (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection)
+                + " GROUP BY " + columns, selectionArgs);
+    }
+
+    /**
+     * Apply the delta of a committed write. Call it once the write has returned from the
+     * {@link BookWriteScheduler}, on any thread.
+     */
+    synchronized void apply(Delta delta) {
+        if (delta == null) {
+            return;
+        }
+        if (mEntries != null) {
+            if (delta.mSequence > mBuiltAt) {
+                merge(mEntries, delta);
+            }
+        } else if (mBuilding) {
+            mPending.add(delta);
+        }
+        // Otherwise the next build reads the change from the database
+    }
+
+    /**
+     * Forget the index, it is built again on next use. For changes made without deltas.
+     */
+    synchronized void invalidate() {
+        mEntries = null;
+        mPending.clear();
+        mGeneration++;
+    }
+
+    /**
+     * Returns the values of the column starting with the prefix, ignoring case, in alphabetical
+     * order, in a cursor with the columns {@link BookEntry#_ID} and
+     * {@link BookEntry#COLUMN_SUGGESTION}.
+     */
+    Cursor query(String column, String prefix) {
+        if (!isSuggestionColumn(column)) {
+            throw new IllegalArgumentException("No suggestions for " + column);
+        }
+        String from = key(prefix == null ? "" : prefix.trim());
+        MatrixCursor cursor = new MatrixCursor(
+                new String[]{BookEntry._ID, BookEntry.COLUMN_SUGGESTION});
+        while (!lookUp(column, from, cursor)) {
+            build();
+        }
+        return cursor;
+    }
+
+    /**
+     * Add the values of the column starting with the prefix to the cursor. If the index isn't
+     * built yet, wait for the build running on another thread, or return false if the caller
+     * has to build it.
+     */
+    private synchronized boolean lookUp(String column, String from, MatrixCursor cursor) {
+        while (mEntries == null && mBuilding) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while building suggestions", e);
+            }
+        }
+        if (mEntries == null) {
+            mBuilding = true;
+            return false;
+        }
+
+        int id = 0;
+        for (Entry entry : mEntries.get(column).subMap(from, from + '\uffff').values()) {
+            cursor.addRow(new Object[]{id++, entry.value});
+            if (id == MAX_SUGGESTIONS) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the values of every column with the number of books that have them. It runs on the
+     * writer thread, numbered in the same order as the writes, but without holding the lock of
+     * the index, so the deltas of the writes committed meanwhile are queued in the meantime.
+     */
+    private void build() {
+        int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        Built built = null;
+        try {
+            built = mWriteScheduler.execute(new BookWriteScheduler.Write<Built>() {
+                @Override
+                public Built apply(SQLiteDatabase database) {
+                    Built index = new Built(++mSequence);
+                    for (String column : COLUMNS) {
+                        TreeMap<String, Entry> values = new TreeMap<>();
+                        // SELECT category, COUNT(*) FROM books WHERE category<>'' GROUP BY category
+                        Cursor cursor = database.rawQuery("SELECT " + column + ", COUNT(*) FROM "
+                                + BookEntry.TABLE_NAME + " WHERE " + column + "<>''"
+                                + " GROUP BY " + column, null);
+                        try {
+                            while (cursor.moveToNext()) {
+                                Entry entry = new Entry(cursor.getString(0));
+                                entry.count = cursor.getInt(1);
+                                values.put(indexKey(entry.value), entry);
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                        index.entries.put(column, values);
+                    }
+                    return index;
+                }
+            });
+        } finally {
+            synchronized (this) {
+                mBuilding = false;
+                if (built != null && generation == mGeneration) {
+                    mEntries = built.entries;
+                    mBuiltAt = built.sequence;
+                    for (Delta delta : mPending) {
+                        if (delta.mSequence > mBuiltAt) {
+                            merge(mEntries, delta);
+                        }
+                    }
+                }
+                mPending.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    private static void merge(Map<String, TreeMap<String, Entry>> entries, Delta delta) {
+        for (Map.Entry<String, Map<String, Integer>> column : delta.mCounts.entrySet()) {
+            TreeMap<String, Entry> values = entries.get(column.getKey());
+            for (Map.Entry<String, Integer> change : column.getValue().entrySet()) {
+                String key = indexKey(change.getKey());
+                Entry entry = values.get(key);
+                if (entry == null) {
+                    entry = new Entry(change.getKey());
+                    values.put(key, entry);
+                }
+                entry.count += change.getValue();
+                if (entry.count <= 0) {
+                    values.remove(key);
+                }
+            }
+        }
+    }
+
+    static boolean isSuggestionColumn(String column) {
+        for (String suggestionColumn : COLUMNS) {
+            if (suggestionColumn.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String key(String value) {
+        return value.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Key of a value in the index: its lower case form, for the prefix ranges, followed by the
+     * value itself, so values differing only in case are kept apart
+     */
+    private static String indexKey(String value) {
+        return key(value) + '\u0000' + value;
+    }
+}
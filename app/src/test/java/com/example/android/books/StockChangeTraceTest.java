@@ -0,0 +1,65 @@
+package com.example.android.books;
+
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookProvider;
+import com.example.android.books.data.BookTrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static com.example.android.books.StockChangeTrip.STAGES;
+import static com.example.android.books.StockChangeTrip.span;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Follows a tap on the sale button of a row through every stage to the row showing the new
+ * stock, and checks every stage is traced, in order, under the correlation id of the tap. How
+ * long the trip may take is checked by the soak tests only, as a wall-clock budget depends on
+ * the machine running the tests.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class StockChangeTraceTest {
+
+    private boolean mWasTracing;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(BookProvider.class, BookContract.CONTENT_AUTHORITY);
+        mWasTracing = BookTrace.isEnabled();
+        BookTrace.setEnabled(true);
+        BookTrace.clear();
+    }
+
+    @After
+    public void tearDown() {
+        BookTrace.clear();
+        BookTrace.setEnabled(mWasTracing);
+    }
+
+    @Test
+    public void stockChangeIsTracedFromTapToRow() {
+        StockChangeTrip trip = new StockChangeTrip(RuntimeEnvironment.application, 5);
+        List<BookTrace.Span> spans = trip.sellOne();
+
+        assertEquals("4", trip.shownQuantity());
+        BookTrace.Span previous = span(spans, STAGES[0]);
+        for (String stage : STAGES) {
+            BookTrace.Span span = span(spans, stage);
+            assertTrue(stage + " ended: " + spans, span.endNanos >= span.startNanos);
+            assertTrue(stage + " began after the stage before it: " + spans,
+                    span.startNanos >= previous.startNanos);
+            previous = span;
+        }
+        trip.close();
+    }
+}
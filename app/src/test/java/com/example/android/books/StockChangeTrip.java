@@ -0,0 +1,129 @@
+package com.example.android.books;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.view.View;
+import android.widget.TextView;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookTrace;
+
+import java.util.List;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Drives a tap on the sale button of a catalog row through every stage to the row showing the
+ * new stock, the way the app runs them, and returns what {@link BookTrace} recorded for it. The
+ * provider must be set up and tracing enabled.
+ * <p>
+ * The catalog reload is started right after the change instead of by the loader framework, so
+ * the update throttle of {@link CatalogLoader} is not part of the trip.
+ */
+public final class StockChangeTrip {
+
+    /**
+     * The stages of a stock change, in the order they begin
+     */
+    public static final String[] STAGES = {
+            "stock.tap",
+            "provider.update",
+            "write.execute",
+            "sqlite.write",
+            "provider.notify",
+            "catalog.load",
+            "adapter.swapCursor",
+            "adapter.bindView"};
+
+    private static final String[] PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_CATEGORY,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_VERSION};
+
+    private final Context mContext;
+    private final CatalogLoader mLoader;
+    private final BookCursorAdapter mAdapter;
+    private final View mRow;
+
+    /**
+     * Adds a book with the given number of copies, and binds its row of the catalog.
+     */
+    public StockChangeTrip(Context context, int quantity) {
+        mContext = context;
+        ContentValues book = new ContentValues();
+        book.put(BookEntry.COLUMN_BOOK_NAME, "The Hobbit");
+        book.put(BookEntry.COLUMN_BOOK_CATEGORY, "fantasy");
+        book.put(BookEntry.COLUMN_BOOK_PRICE, 12);
+        book.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        book.put(BookEntry.COLUMN_SUPPLIER_NAME, "Harper Collins");
+        context.getContentResolver().insert(BookEntry.CONTENT_URI, book);
+
+        mLoader = new CatalogLoader(context, BookEntry.CONTENT_URI, PROJECTION, null, null,
+                BookEntry.CATALOG_SORT_ORDER);
+        mAdapter = new BookCursorAdapter(context, null);
+        mAdapter.swapCursor(mLoader.loadInBackground());
+        Cursor cursor = moveToRow();
+        mRow = mAdapter.newView(context, cursor, null);
+        mAdapter.bindView(mRow, context, cursor);
+    }
+
+    /**
+     * Sell one copy with the sale button of the row, reload the catalog and bind the row again,
+     * then return the spans traced under the correlation id of the tap.
+     */
+    public List<BookTrace.Span> sellOne() {
+        BookTrace.clear();
+        mRow.findViewById(R.id.reduce).performClick();
+        mAdapter.swapCursor(mLoader.loadInBackground()).close();
+        mAdapter.bindView(mRow, mContext, moveToRow());
+        return BookTrace.snapshot(tapCorrelationId());
+    }
+
+    /**
+     * Returns the quantity the row shows.
+     */
+    public String shownQuantity() {
+        TextView quantity = mRow.findViewById(R.id.quantity);
+        return quantity.getText().toString();
+    }
+
+    /**
+     * Close the catalog cursor.
+     */
+    public void close() {
+        mAdapter.swapCursor(null).close();
+    }
+
+    /**
+     * Returns the span of the given stage.
+     */
+    public static BookTrace.Span span(List<BookTrace.Span> spans, String name) {
+        for (BookTrace.Span span : spans) {
+            if (name.equals(span.name)) {
+                return span;
+            }
+        }
+        fail("No " + name + " span in " + spans);
+        return null;
+    }
+
+    private Cursor moveToRow() {
+        Cursor cursor = mAdapter.getCursor();
+        cursor.moveToFirst();
+        return cursor;
+    }
+
+    private static long tapCorrelationId() {
+        for (BookTrace.Span span : BookTrace.snapshot()) {
+            if ("stock.tap".equals(span.name)) {
+                return span.correlationId;
+            }
+        }
+        fail("No tap traced: " + BookTrace.snapshot());
+        return 0;
+    }
+}
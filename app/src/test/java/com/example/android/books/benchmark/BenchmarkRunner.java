@@ -0,0 +1,277 @@
+package com.example.android.books.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Small JMH-style harness for benchmarks that have to run inside a Robolectric sandbox, where
+ * JMH itself can't fork. Every benchmark runs a few warmup iterations, then a few measured
+ * iterations. An iteration calls the operation over and over until {@link #ITERATION_MILLIS} has
+ * passed, and its score is the average time per call.
+ * <p>
+ * The results are written in the JSON format of JMH ({@code -rf json}), so runs can be compared
+ * with the usual JMH tooling. Along with the time, every iteration records the bytes allocated
+ * per call by the benchmark thread, reported like JMH's {@code -prof gc} as
+ * {@code ·gc.alloc.rate.norm}. Allocations made on other threads, such as the SQLite thread of
+ * Robolectric, are not counted.
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_MILLIS = 1000;
+
+    /**
+     * Student's t quantiles for a two-sided 99.9% confidence interval, indexed by degrees of
+     * freedom - 1. JMH reports its score error with the same interval.
+     */
+    private static final double[] T_999 = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408,
+            5.041, 4.781, 4.587};
+
+    /**
+     * The code being measured. Only {@link #run} is timed.
+     */
+    public abstract static class Operation {
+
+        /**
+         * Called before every iteration, outside the measured time.
+         */
+        public void setUpIteration() {
+        }
+
+        /**
+         * One call of the measured code.
+         *
+         * @param invocation number of the call within the iteration, starting at 0
+         */
+        public abstract void run(int invocation);
+
+        /**
+         * Called after every iteration, outside the measured time.
+         */
+        public void tearDownIteration() {
+        }
+    }
+
+    /**
+     * Result of one benchmark with one set of parameters.
+     */
+    public static class Result {
+
+        public final String benchmark;
+        public final Map<String, String> params;
+
+        /**
+         * Average time per call of every measured iteration, in microseconds
+         */
+        public final double[] samples;
+
+        /**
+         * Bytes allocated per call of every measured iteration, NaN if the JVM can't tell
+         */
+        public final double[] allocationSamples;
+
+        Result(String benchmark, Map<String, String> params, double[] samples,
+               double[] allocationSamples) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.samples = samples;
+            this.allocationSamples = allocationSamples;
+        }
+
+        public double score() {
+            return mean(samples);
+        }
+
+        public double scoreError() {
+            return error(samples);
+        }
+
+        public double allocationScore() {
+            return mean(allocationSamples);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %s %.3f ± %.3f us/op, %.0f B/op", benchmark,
+                    params, score(), scoreError(), allocationScore());
+        }
+    }
+
+    private static double mean(double[] samples) {
+        double sum = 0;
+        for (double sample : samples) {
+            sum += sample;
+        }
+        return sum / samples.length;
+    }
+
+    private static double error(double[] samples) {
+        if (samples.length < 2) {
+            return Double.NaN;
+        }
+        double mean = mean(samples);
+        double squares = 0;
+        for (double sample : samples) {
+            squares += (sample - mean) * (sample - mean);
+        }
+        double stdDev = Math.sqrt(squares / (samples.length - 1));
+        int degreesOfFreedom = samples.length - 1;
+        double t = degreesOfFreedom <= T_999.length ? T_999[degreesOfFreedom - 1] : 3.291;
+        return t * stdDev / Math.sqrt(samples.length);
+    }
+
+    private final List<Result> mResults = new ArrayList<>();
+
+    /**
+     * Measure the operation and keep the result.
+     *
+     * @param benchmark fully qualified name of the benchmark
+     * @param params    parameters of this run, e.g. the catalog size
+     */
+    public Result measure(String benchmark, Map<String, String> params, Operation operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(operation);
+        }
+        double[] samples = new double[MEASUREMENT_ITERATIONS];
+        double[] allocationSamples = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            double[] sample = iteration(operation);
+            samples[i] = sample[0];
+            allocationSamples[i] = sample[1];
+        }
+
+        Result result = new Result(benchmark, new LinkedHashMap<>(params), samples,
+                allocationSamples);
+        synchronized (mResults) {
+            mResults.add(result);
+        }
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Run one iteration and return the average time per call in microseconds, and the bytes
+     * allocated per call.
+     */
+    private static double[] iteration(Operation operation) {
+        operation.setUpIteration();
+        long deadline = System.nanoTime() + ITERATION_MILLIS * 1000000L;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        int invocations = 0;
+        long now;
+        do {
+            operation.run(invocations++);
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocated = allocatedBytes() - allocatedBefore;
+        operation.tearDownIteration();
+        return new double[]{(now - start) / 1000.0 / invocations,
+                allocatedBefore < 0 ? Double.NaN : (double) allocated / invocations};
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread so far, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Write all the results measured so far to the given file, in JMH's JSON format.
+     */
+    public void writeJson(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+
+        StringBuilder json = new StringBuilder("[\n");
+        synchronized (mResults) {
+            for (int i = 0; i < mResults.size(); i++) {
+                appendResult(json, mResults.get(i));
+                json.append(i < mResults.size() - 1 ? ",\n" : "\n");
+            }
+        }
+        json.append("]\n");
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(json.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void appendResult(StringBuilder json, Result result) {
+        json.append("    {\n");
+        json.append("        \"benchmark\" : ").append(quote(result.benchmark)).append(",\n");
+        json.append("        \"mode\" : \"avgt\",\n");
+        json.append("        \"threads\" : 1,\n");
+        json.append("        \"forks\" : 1,\n");
+        json.append("        \"warmupIterations\" : ").append(WARMUP_ITERATIONS).append(",\n");
+        json.append("        \"warmupTime\" : \"").append(ITERATION_MILLIS).append(" ms\",\n");
+        json.append("        \"measurementIterations\" : ").append(MEASUREMENT_ITERATIONS)
+                .append(",\n");
+        json.append("        \"measurementTime\" : \"").append(ITERATION_MILLIS).append(" ms\",\n");
+        json.append("        \"params\" : {");
+        int p = 0;
+        for (Map.Entry<String, String> param : result.params.entrySet()) {
+            json.append(p++ == 0 ? "\n" : ",\n");
+            json.append("            ").append(quote(param.getKey())).append(" : ")
+                    .append(quote(param.getValue()));
+        }
+        json.append("\n        },\n");
+        json.append("        \"primaryMetric\" : {\n");
+        json.append("            \"score\" : ").append(number(result.score())).append(",\n");
+        json.append("            \"scoreError\" : ").append(number(result.scoreError()))
+                .append(",\n");
+        json.append("            \"scoreUnit\" : \"us/op\",\n");
+        json.append("            \"rawData\" : [\n                [");
+        for (int i = 0; i < result.samples.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(number(result.samples[i]));
+        }
+        json.append("]\n            ]\n");
+        json.append("        },\n");
+        json.append("        \"secondaryMetrics\" : {\n");
+        json.append("            \"\u00b7gc.alloc.rate.norm\" : {\n");
+        json.append("                \"score\" : ").append(number(result.allocationScore()))
+                .append(",\n");
+        json.append("                \"scoreError\" : ")
+                .append(number(error(result.allocationSamples))).append(",\n");
+        json.append("                \"scoreUnit\" : \"B/op\",\n");
+        json.append("                \"rawData\" : [\n                    [");
+        for (int i = 0; i < result.allocationSamples.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(number(result.allocationSamples[i]));
+        }
+        json.append("]\n                ]\n");
+        json.append("            }\n");
+        json.append("        }\n");
+        json.append("    }");
+    }
+
+    private static String number(double value) {
+        // JSON has no NaN, JMH writes it as a string
+        return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.US, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
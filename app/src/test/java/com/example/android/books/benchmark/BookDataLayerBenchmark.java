@@ -0,0 +1,392 @@
+package com.example.android.books.benchmark;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.View;
+
+import com.example.android.books.BookCursorAdapter;
+import com.example.android.books.CatalogColumns;
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookProvider;
+import com.example.android.books.data.CatalogGenerator;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks of the data layer on a plain JVM: {@link BookProvider} runs inside Robolectric on
+ * a real, local SQLite database. Every benchmark is measured for a range of catalog sizes,
+ * 1k to 1M books by default, or the sizes given in the {@code benchmark.rows} system property.
+ * <p>
+ * The results are written to {@code benchmark.output}/data-layer.json in JMH's JSON format.
+ * Run it with {@code ./gradlew testDebugUnitTest -Pbenchmark}.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+@Config(sdk = 26)
+public class BookDataLayerBenchmark {
+
+    private static final String DEFAULT_ROWS = "1000,10000,100000,1000000";
+
+    /**
+     * Seed of the synthetic catalog measured
+     */
+    private static final long CATALOG_SEED = 42;
+
+    /**
+     * Books per call in the bulk insert benchmark
+     */
+    private static final int BULK_INSERT_SIZE = 100;
+
+    /**
+     * Books per batch in the fetch by id benchmarks
+     */
+    private static final int FETCH_BATCH_SIZE = 50;
+
+    /**
+     * Number of distinct categories of the books added by the insert benchmarks
+     */
+    private static final int CATEGORY_COUNT = 20;
+
+    /**
+     * The columns of the catalog list
+     */
+    private static final String[] LIST_PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_CATEGORY,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_BOOK_VERSION};
+
+    /**
+     * The columns returned by {@link BookContract#METHOD_GET_BOOKS}
+     */
+    private static final String[] GET_BOOKS_PROJECTION = {
+            BookEntry._ID,
+            BookEntry.COLUMN_BOOK_NAME,
+            BookEntry.COLUMN_BOOK_CATEGORY,
+            BookEntry.COLUMN_BOOK_ISBN,
+            BookEntry.COLUMN_SUPPLIER_NAME,
+            BookEntry.COLUMN_BOOK_PRICE,
+            BookEntry.COLUMN_BOOK_QUANTITY,
+            BookEntry.COLUMN_SUPPLIER_NUMBER,
+            BookEntry.COLUMN_BOOK_VERSION};
+
+    private static final BenchmarkRunner sRunner = new BenchmarkRunner();
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "rows={0}")
+    public static Collection<Object[]> rows() {
+        List<Object[]> rows = new ArrayList<>();
+        for (String size : System.getProperty("benchmark.rows", DEFAULT_ROWS).split(",")) {
+            rows.add(new Object[]{Integer.parseInt(size.trim())});
+        }
+        return rows;
+    }
+
+    private final int mRows;
+    private final Map<String, String> mParams;
+    private final Random mRandom = new Random(42);
+
+    private Context mContext;
+    private ContentResolver mResolver;
+
+    public BookDataLayerBenchmark(int rows) {
+        mRows = rows;
+        mParams = Collections.singletonMap("rows", String.valueOf(rows));
+    }
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(BookProvider.class, BookContract.CONTENT_AUTHORITY);
+        mContext = RuntimeEnvironment.application;
+        mResolver = mContext.getContentResolver();
+
+        // Fill the catalog with the same synthetic books every run, they get the ids 1 to mRows
+        Bundle extras = new Bundle();
+        extras.putLong(BookContract.EXTRA_SEED, CATALOG_SEED);
+        mResolver.call(BookEntry.CONTENT_URI, BookContract.METHOD_GENERATE_CATALOG,
+                String.valueOf(mRows), extras);
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        String output = System.getProperty("benchmark.output", "build/benchmark-results");
+        sRunner.writeJson(new File(output, "data-layer.json"));
+    }
+
+    @Test
+    public void dataLayer() {
+        measure("insert", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                mResolver.insert(BookEntry.CONTENT_URI, book(mRows + invocation));
+            }
+
+            @Override
+            public void tearDownIteration() {
+                deleteAddedBooks();
+            }
+        });
+
+        measure("bulkInsert", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                ContentValues[] books = new ContentValues[BULK_INSERT_SIZE];
+                for (int i = 0; i < books.length; i++) {
+                    books[i] = book(mRows + invocation * BULK_INSERT_SIZE + i);
+                }
+                mResolver.bulkInsert(BookEntry.CONTENT_URI, books);
+            }
+
+            @Override
+            public void tearDownIteration() {
+                deleteAddedBooks();
+            }
+        });
+
+        measure("updateById", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                ContentValues values = new ContentValues();
+                values.put(BookEntry.COLUMN_BOOK_PRICE, invocation % 100);
+                mResolver.update(randomBookUri(), values, null, null);
+            }
+        });
+
+        measure("queryById", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                Cursor cursor = mResolver.query(randomBookUri(), null, null, null, null);
+                try {
+                    cursor.moveToFirst();
+                    cursor.getString(cursor.getColumnIndexOrThrow(BookEntry.COLUMN_BOOK_NAME));
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+
+        measure("listAll", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                readAll(mResolver.query(BookEntry.CONTENT_URI, LIST_PROJECTION, null, null,
+                        BookEntry.CATALOG_SORT_ORDER));
+            }
+        });
+
+        measure("listByCategory", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                readAll(mResolver.query(BookEntry.CONTENT_URI, LIST_PROJECTION,
+                        BookEntry.COLUMN_BOOK_CATEGORY + "=?",
+                        new String[]{CatalogGenerator.category(
+                                mRandom.nextInt(CatalogGenerator.CATEGORY_COUNT))},
+                        BookEntry.CATALOG_SORT_ORDER));
+            }
+        });
+
+        measureBindView();
+        measureColumns();
+        measureGetBooks();
+    }
+
+    /**
+     * Books fetched by id through {@link BookContract#METHOD_GET_BOOKS}, against the same books
+     * read through a cursor: one book, compared with queryById, and a batch of
+     * {@link #FETCH_BATCH_SIZE} random books, compared with an "_id IN (...)" query reading the
+     * same columns. The allocations per call are in the secondary metrics of the results.
+     */
+    private void measureGetBooks() {
+        measure("getBookCall", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                Bundle book = mResolver.call(BookEntry.CONTENT_URI,
+                        BookContract.METHOD_GET_BOOKS,
+                        String.valueOf(1 + mRandom.nextInt(mRows)), null);
+                book.getStringArray(BookEntry.COLUMN_BOOK_NAME);
+            }
+        });
+
+        measure("getBooksCall", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                Bundle extras = new Bundle();
+                extras.putLongArray(BookContract.EXTRA_IDS, randomIds());
+                Bundle books = mResolver.call(BookEntry.CONTENT_URI,
+                        BookContract.METHOD_GET_BOOKS, null, extras);
+                books.getStringArray(BookEntry.COLUMN_BOOK_NAME);
+                books.getIntArray(BookEntry.COLUMN_BOOK_PRICE);
+            }
+        });
+
+        measure("getBooksQuery", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                long[] ids = randomIds();
+                StringBuilder selection = new StringBuilder(BookEntry._ID + " IN (?");
+                String[] args = new String[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    selection.append(i == 0 ? "" : ",?");
+                    args[i] = String.valueOf(ids[i]);
+                }
+                selection.append(')');
+                readAll(mResolver.query(BookEntry.CONTENT_URI, GET_BOOKS_PROJECTION,
+                        selection.toString(), args, null));
+            }
+        });
+    }
+
+    private long[] randomIds() {
+        long[] ids = new long[Math.min(FETCH_BATCH_SIZE, mRows)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1 + mRandom.nextInt(mRows);
+        }
+        return ids;
+    }
+
+    /**
+     * Cost of the in-memory catalog columns: loading them, refreshing them after a single
+     * update, and the sorts, filters and totals they serve without a query. Their size per book
+     * is printed along with the results.
+     */
+    private void measureColumns() {
+        measure("columnsLoad", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                CatalogColumns.load(mResolver);
+            }
+        });
+
+        final CatalogColumns columns = CatalogColumns.load(mResolver);
+        System.out.println("CatalogColumns rows=" + mRows + ": "
+                + columns.estimateBytes() / Math.max(columns.size(), 1) + " bytes per book");
+
+        final CatalogColumns[] refreshed = {columns};
+        measure("columnsRefresh", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                ContentValues values = new ContentValues();
+                values.put(BookEntry.COLUMN_BOOK_PRICE, invocation % 100);
+                mResolver.update(randomBookUri(), values, null, null);
+                refreshed[0] = refreshed[0].refresh(mResolver);
+            }
+        });
+
+        measure("columnsSortByPrice", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                columns.select(CatalogColumns.SORT_BY_PRICE, CatalogColumns.NO_MIN_PRICE,
+                        CatalogColumns.NO_MAX_PRICE);
+            }
+        });
+
+        measure("columnsPriceRange", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                int minPrice = mRandom.nextInt(90);
+                columns.select(CatalogColumns.SORT_BY_NAME, minPrice, minPrice + 10);
+            }
+        });
+
+        final int[] all = columns.select(CatalogColumns.SORT_BY_NAME,
+                CatalogColumns.NO_MIN_PRICE, CatalogColumns.NO_MAX_PRICE);
+        measure("columnsAggregate", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                columns.aggregate(all);
+            }
+        });
+    }
+
+    /**
+     * Cost of binding one list row, as paid on the main thread while scrolling. Cover loads are
+     * queued on the background scheduler, which is paused, so only the binding is measured.
+     */
+    private void measureBindView() {
+        Robolectric.getBackgroundThreadScheduler().pause();
+        final Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, LIST_PROJECTION, null, null,
+                BookEntry.CATALOG_SORT_ORDER);
+        final BookCursorAdapter adapter = new BookCursorAdapter(mContext, cursor);
+        cursor.moveToFirst();
+        final View view = adapter.newView(mContext, cursor, null);
+        try {
+            measure("bindView", new BenchmarkRunner.Operation() {
+                @Override
+                public void run(int invocation) {
+                    cursor.moveToPosition(invocation % cursor.getCount());
+                    adapter.bindView(view, mContext, cursor);
+                }
+            });
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void measure(String name, BenchmarkRunner.Operation operation) {
+        sRunner.measure(getClass().getName() + "." + name, mParams, operation);
+    }
+
+    /**
+     * Read every column of every row, then close the cursor.
+     */
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Remove the books added by an insert benchmark, so every iteration starts from the same
+     * catalog size.
+     */
+    private void deleteAddedBooks() {
+        mResolver.delete(BookEntry.CONTENT_URI, BookEntry._ID + ">?",
+                new String[]{String.valueOf(mRows)});
+    }
+
+    private Uri randomBookUri() {
+        return ContentUris.withAppendedId(BookEntry.CONTENT_URI, 1 + mRandom.nextInt(mRows));
+    }
+
+    private static String category(int i) {
+        return "category " + i;
+    }
+
+    private static ContentValues book(int i) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, "Book " + i);
+        values.put(BookEntry.COLUMN_BOOK_CATEGORY, category(i % CATEGORY_COUNT));
+        values.put(BookEntry.COLUMN_BOOK_PRICE, i % 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1 + i % 50);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + i % 100);
+        values.put(BookEntry.COLUMN_SUPPLIER_NUMBER, 20458900 + i % 100);
+        return values;
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.books.benchmark;
+
+import com.example.android.books.data.Book;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+import com.example.android.books.data.JdbcBookStore;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmarks of the {@link com.example.android.books.data.BookStore} operations on a plain
+ * JVM, without Robolectric: the store runs on {@link JdbcBookStore}, an in-memory database of
+ * the native SQLite driver, with the schema and the SQL of the app. It shows the cost of the
+ * data layer's own logic and SQL without the emulation of the Android framework.
+ * <p>
+ * The catalog sizes are the ones of {@link BookDataLayerBenchmark}, and the results are written
+ * to {@code benchmark.output}/book-store.json in JMH's JSON format.
+ */
+@RunWith(Parameterized.class)
+public class BookStoreBenchmark {
+
+    private static final String DEFAULT_ROWS = "1000,10000,100000,1000000";
+
+    /**
+     * Books per call in the batch insert benchmark
+     */
+    private static final int BATCH_SIZE = 100;
+
+    private static final int CATEGORY_COUNT = 20;
+
+    private static final BenchmarkRunner sRunner = new BenchmarkRunner();
+
+    @Parameterized.Parameters(name = "rows={0}")
+    public static Collection<Object[]> rows() {
+        List<Object[]> rows = new ArrayList<>();
+        for (String size : System.getProperty("benchmark.rows", DEFAULT_ROWS).split(",")) {
+            rows.add(new Object[]{Integer.parseInt(size.trim())});
+        }
+        return rows;
+    }
+
+    private final int mRows;
+    private final Map<String, String> mParams;
+    private final Random mRandom = new Random(42);
+
+    private JdbcBookStore mStore;
+
+    /**
+     * Number of the ISBN of the next book inserted
+     */
+    private int mNextNumber;
+
+    public BookStoreBenchmark(int rows) {
+        mRows = rows;
+        mParams = Collections.singletonMap("rows", String.valueOf(rows));
+    }
+
+    @Before
+    public void setUp() {
+        mStore = new JdbcBookStore("jdbc:sqlite::memory:");
+        // The books get the ids 1 to mRows
+        List<Book> books = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < mRows; i++) {
+            books.add(book(i));
+            if (books.size() == BATCH_SIZE || i == mRows - 1) {
+                mStore.insertAll(books);
+                books.clear();
+            }
+        }
+        mNextNumber = mRows;
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        String output = System.getProperty("benchmark.output", "build/benchmark-results");
+        sRunner.writeJson(new File(output, "book-store.json"));
+    }
+
+    @Test
+    public void benchmark() {
+        // The reads first, the inserts grow the catalog
+        measure("get", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                mStore.get(randomId());
+            }
+        });
+
+        measure("findByIsbn", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                mStore.findByIsbn(isbn(mRandom.nextInt(mRows)));
+            }
+        });
+
+        measure("listByCategory", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                mStore.list("category " + mRandom.nextInt(CATEGORY_COUNT));
+            }
+        });
+
+        measure("update", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                Book book = mStore.get(randomId());
+                mStore.update(book.withPrice(mRandom.nextInt(100)));
+            }
+        });
+
+        measure("adjustStock", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                mStore.adjustStock(randomId(), invocation % 2 == 0 ? 1 : -1,
+                        StockMovementEntry.REASON_SALE);
+            }
+        });
+
+        measure("insert", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                mStore.insert(book(mNextNumber++));
+            }
+        });
+
+        measure("insertAll", new BenchmarkRunner.Operation() {
+            @Override
+            public void run(int invocation) {
+                List<Book> books = new ArrayList<>(BATCH_SIZE);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    books.add(book(-1));
+                }
+                mStore.insertAll(books);
+            }
+        });
+    }
+
+    private void measure(String name, BenchmarkRunner.Operation operation) {
+        sRunner.measure(getClass().getName() + "." + name, mParams, operation);
+    }
+
+    private long randomId() {
+        return 1 + mRandom.nextInt(mRows);
+    }
+
+    /**
+     * Returns a book, with an ISBN derived from the number unless it's negative.
+     */
+    private Book book(int number) {
+        return new Book("Book " + mRandom.nextInt(), "category " + mRandom.nextInt(CATEGORY_COUNT),
+                mRandom.nextInt(100), 1 + mRandom.nextInt(10), "Supplier " + mRandom.nextInt(50),
+                0, number < 0 ? null : isbn(number));
+    }
+
+    private static String isbn(int number) {
+        return String.format(Locale.US, "978%010d", number);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.android.books.data;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that archiving a book keeps its stock ledger and price history, and that only
+ * deleting a book deletes them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class ArchiveJobTest {
+
+    /**
+     * 2017-07-01T00:00:00Z
+     */
+    private static final long JULY_2017 = 1498867200000L;
+
+    private BookHistoryFixture mFixture;
+
+    @Before
+    public void setUp() {
+        mFixture = new BookHistoryFixture();
+    }
+
+    @After
+    public void tearDown() {
+        mFixture.close();
+    }
+
+    @Test
+    public void archivedBooksKeepTheirHistory() {
+        long archived = mFixture.insertBook("Dune", 10, 0);
+        long deleted = mFixture.insertBook("Emma", 12, 0);
+        for (long id : new long[]{archived, deleted}) {
+            mFixture.recordMovement(id, 2, 2, JULY_2017);
+            mFixture.recordPrice(id, 10, JULY_2017);
+        }
+
+        BookWriteScheduler writeScheduler = mFixture.getWriteScheduler();
+        new ArchiveJob(writeScheduler, new SuggestionIndex(writeScheduler),
+                mFixture.getResolver(), BookEntry._ID + "=?",
+                new String[]{String.valueOf(archived)}).run();
+        assertTrue(new AndroidBookStore(mFixture.getDbHelper(), writeScheduler).delete(deleted));
+
+        assertEquals(1, mFixture.movements("COUNT(*)", archived));
+        assertEquals(1, mFixture.prices("COUNT(*)", archived));
+        assertEquals(0, mFixture.movements("COUNT(*)", deleted));
+        assertEquals(0, mFixture.prices("COUNT(*)", deleted));
+    }
+}
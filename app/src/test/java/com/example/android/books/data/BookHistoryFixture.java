@@ -0,0 +1,120 @@
+package com.example.android.books.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * What the tests of the stock ledger and the price history share: the provider, for the writes
+ * that record history, and a database of their own, for filling the history tables directly
+ * and running the jobs that shrink or keep them.
+ */
+class BookHistoryFixture {
+
+    private static final String DATABASE_NAME = "history-test.db";
+
+    private final ContentResolver mResolver;
+    private final BookDbHelper mDbHelper;
+    private final BookWriteScheduler mWriteScheduler;
+    private final SQLiteDatabase mDatabase;
+
+    /**
+     * Sets up the provider and opens the database. Call {@link #close()} after the test.
+     */
+    BookHistoryFixture() {
+        Robolectric.setupContentProvider(BookProvider.class, BookContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mDbHelper = new BookDbHelper(RuntimeEnvironment.application, DATABASE_NAME);
+        mWriteScheduler = new BookWriteScheduler(mDbHelper);
+        mDatabase = mDbHelper.getWritableDatabase();
+    }
+
+    ContentResolver getResolver() {
+        return mResolver;
+    }
+
+    BookDbHelper getDbHelper() {
+        return mDbHelper;
+    }
+
+    BookWriteScheduler getWriteScheduler() {
+        return mWriteScheduler;
+    }
+
+    SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Close and delete the database.
+     */
+    void close() {
+        mDbHelper.close();
+        RuntimeEnvironment.application.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Insert a book straight into the database, without any history, and return its id.
+     */
+    long insertBook(String name, int price, int quantity) {
+        return mDatabase.insertOrThrow(BookEntry.TABLE_NAME, null, book(name, price, quantity));
+    }
+
+    void recordMovement(long id, int delta, int quantity, long time) {
+        ContentValues values = new ContentValues();
+        values.put(StockMovementEntry.COLUMN_BOOK_ID, id);
+        values.put(StockMovementEntry.COLUMN_DELTA, delta);
+        values.put(StockMovementEntry.COLUMN_QUANTITY, quantity);
+        values.put(StockMovementEntry.COLUMN_REASON, StockMovementEntry.REASON_EDIT);
+        values.put(StockMovementEntry.COLUMN_CREATED_AT, time);
+        mDatabase.insertOrThrow(StockMovementEntry.TABLE_NAME, null, values);
+    }
+
+    void recordPrice(long id, int price, long time) {
+        ContentValues values = new ContentValues();
+        values.put(PriceHistoryEntry.COLUMN_BOOK_ID, id);
+        values.put(PriceHistoryEntry.COLUMN_PRICE, price);
+        values.put(PriceHistoryEntry.COLUMN_MIN_PRICE, price);
+        values.put(PriceHistoryEntry.COLUMN_MAX_PRICE, price);
+        values.put(PriceHistoryEntry.COLUMN_CHANGED_AT, time);
+        mDatabase.insertOrThrow(PriceHistoryEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Returns the aggregate, such as "COUNT(*)", of the movements of a book.
+     */
+    long movements(String aggregate, long id) {
+        return aggregate(StockMovementEntry.TABLE_NAME, aggregate, id);
+    }
+
+    /**
+     * Returns the aggregate, such as "COUNT(*)", of the price history of a book.
+     */
+    long prices(String aggregate, long id) {
+        return aggregate(PriceHistoryEntry.TABLE_NAME, aggregate, id);
+    }
+
+    private long aggregate(String table, String aggregate, long id) {
+        // Both history tables name the column of the book the same
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT " + aggregate + " FROM " + table
+                + " WHERE " + StockMovementEntry.COLUMN_BOOK_ID + "=?",
+                new String[]{String.valueOf(id)});
+    }
+
+    static ContentValues book(String name, int price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, name);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, price);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Ace");
+        return values;
+    }
+}
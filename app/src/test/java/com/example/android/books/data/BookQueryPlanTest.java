@@ -0,0 +1,410 @@
+package com.example.android.books.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+import com.example.android.books.data.BookContract.StockEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the query plan of every SQL shape the provider and the UI issue, so a change of the
+ * schema or of a query can't silently turn an index lookup into a full scan.
+ * <p>
+ * Each shape runs through EXPLAIN QUERY PLAN on a populated database built by
+ * {@link BookDbHelper}, and has to use the expected index. No shape may scan a whole table
+ * without an index unless it says so, and the shapes read in a given order may not sort in a
+ * temporary b-tree. A failure prints the SQL and the whole plan.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class BookQueryPlanTest {
+
+    private static final int BOOKS = 500;
+
+    /**
+     * A plan line that reads a whole table without an index, as in "SCAN TABLE books" or, with
+     * newer SQLite versions, "SCAN books AS b"
+     */
+    private static final Pattern FULL_SCAN =
+            Pattern.compile("^SCAN (TABLE )?(books|books_archive|stock|stock_movements|price_history)( AS \\w+)?$");
+
+    private BookDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new BookDbHelper(RuntimeEnvironment.application, "query-plan-test.db");
+        mDatabase = mDbHelper.getWritableDatabase();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < BOOKS; i++) {
+                ContentValues book = new ContentValues();
+                book.put(BookEntry.COLUMN_BOOK_NAME, "Book " + i);
+                book.put(BookEntry.COLUMN_BOOK_CATEGORY, "category " + i % 20);
+                book.put(BookEntry.COLUMN_BOOK_PRICE, i % 100);
+                book.put(BookEntry.COLUMN_BOOK_QUANTITY, i % 7);
+                book.put(BookEntry.COLUMN_SUPPLIER_NAME, "supplier " + i % 30);
+                book.put(BookEntry.COLUMN_BOOK_ISBN, String.format(Locale.US, "978%010d", i));
+                book.put(BookEntry.COLUMN_BOOK_DEDUPE_KEY,
+                        BookEntry.buildDedupeKey("Book " + i % 450, "supplier " + i % 30));
+                long id = mDatabase.insertOrThrow(BookEntry.TABLE_NAME, null, book);
+
+                ContentValues stock = new ContentValues();
+                stock.put(StockEntry.COLUMN_BOOK_ID, id);
+                stock.put(StockEntry.COLUMN_LOCATION, "branch " + i % 5);
+                stock.put(StockEntry.COLUMN_QUANTITY, i % 3);
+                mDatabase.insertOrThrow(StockEntry.TABLE_NAME, null, stock);
+
+                ContentValues movement = new ContentValues();
+                movement.put(StockMovementEntry.COLUMN_BOOK_ID, id);
+                movement.put(StockMovementEntry.COLUMN_DELTA, i % 7);
+                movement.put(StockMovementEntry.COLUMN_QUANTITY, i % 7);
+                movement.put(StockMovementEntry.COLUMN_REASON, StockMovementEntry.REASON_INITIAL);
+                movement.put(StockMovementEntry.COLUMN_CREATED_AT, i * 1000L);
+                mDatabase.insertOrThrow(StockMovementEntry.TABLE_NAME, null, movement);
+
+                ContentValues price = new ContentValues();
+                price.put(PriceHistoryEntry.COLUMN_BOOK_ID, id);
+                price.put(PriceHistoryEntry.COLUMN_PRICE, i % 100);
+                price.put(PriceHistoryEntry.COLUMN_MIN_PRICE, i % 100);
+                price.put(PriceHistoryEntry.COLUMN_MAX_PRICE, i % 100);
+                price.put(PriceHistoryEntry.COLUMN_CHANGED_AT, i * 1000L);
+                mDatabase.insertOrThrow(PriceHistoryEntry.TABLE_NAME, null, price);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        RuntimeEnvironment.application.deleteDatabase("query-plan-test.db");
+    }
+
+    @Test
+    public void catalogList() {
+        // CatalogLoader, CatalogSnapshot: the whole catalog in CATALOG_SORT_ORDER
+        plan("SELECT _id, name, category, price, quantity, version FROM books"
+                + " ORDER BY " + BookEntry.CATALOG_SORT_ORDER)
+                .uses("INDEX books_name")
+                .without("TEMP B-TREE")
+                .check();
+    }
+
+    @Test
+    public void catalogSections() {
+        // BookProvider BOOK_SECTIONS: one pass over the name index, which covers the query
+        plan(BookProvider.SECTIONS_QUERY)
+                .uses("COVERING INDEX books_name")
+                .check();
+    }
+
+    @Test
+    public void bookById() {
+        // BookProvider BOOK_ID, EditorActivity
+        plan("SELECT * FROM books WHERE _id=?", "1")
+                .uses("INTEGER PRIMARY KEY")
+                .check();
+    }
+
+    @Test
+    public void updateById() {
+        // SqlBookStore updateBook and adjustStock, for every book a provider write changes
+        plan(SqlBookStore.UPDATE_BOOK, "Book", "category", "1", "1", "supplier", "555",
+                "9780000000001", "1", "book|supplier", "1")
+                .uses("INTEGER PRIMARY KEY")
+                .check();
+        plan(SqlBookStore.UPDATE_QUANTITY, "1", "1", "1")
+                .uses("INTEGER PRIMARY KEY")
+                .check();
+    }
+
+    @Test
+    public void bookByIsbn() {
+        // BookProvider BOOK_ISBN and sell_by_isbn
+        plan("SELECT _id, quantity FROM books WHERE isbn=?", "9780000000001")
+                .uses("INDEX books_isbn")
+                .check();
+    }
+
+    @Test
+    public void catalogFilteredByCategory() {
+        // A filtered list still comes in catalog order straight from the name index
+        plan("SELECT _id, name, category, price, quantity FROM books WHERE category=?"
+                + " ORDER BY " + BookEntry.CATALOG_SORT_ORDER, "category 1")
+                .uses("INDEX books_name")
+                .without("TEMP B-TREE")
+                .check();
+    }
+
+    @Test
+    public void columnsByIdOrder() {
+        // CatalogColumns load and refresh read the books in id order
+        plan("SELECT _id, version FROM books ORDER BY _id")
+                .allowFullScan()
+                .without("TEMP B-TREE")
+                .check();
+    }
+
+    @Test
+    public void columnsChangedRows() {
+        // CatalogColumns refresh reads the changed books by id
+        plan("SELECT _id, name, category, price, quantity, version FROM books"
+                + " WHERE _id IN (?,?,?)", "1", "2", "3")
+                .uses("INTEGER PRIMARY KEY")
+                .check();
+    }
+
+    @Test
+    public void duplicateLookup() {
+        // BookProvider findDuplicate, on every insert that checks for duplicates
+        plan("SELECT _id FROM books WHERE dedupe_key=? ORDER BY _id LIMIT 1", "book 1|supplier 1")
+                .uses("INDEX books_dedupe_key")
+                .without("TEMP B-TREE")
+                .check();
+    }
+
+    @Test
+    public void duplicateClusters() {
+        // BookProvider BOOK_DUPLICATES: one pass over the dedupe key index
+        plan(BookProvider.DUPLICATES_QUERY)
+                .uses("COVERING INDEX books_dedupe_key")
+                .uses("INTEGER PRIMARY KEY")
+                .check();
+    }
+
+    @Test
+    public void suggestionDeltaById() {
+        // SuggestionIndex deltas of the updates and deletes of a single book
+        plan("SELECT category, supplier_name, COUNT(*) FROM books WHERE _id=?"
+                + " GROUP BY category, supplier_name", "1")
+                .uses("INTEGER PRIMARY KEY")
+                .check();
+    }
+
+    @Test
+    public void archiveChunk() {
+        // ArchiveJob picks its chunks in id order, the policy itself has no index
+        plan("SELECT _id FROM books WHERE quantity=0 AND updated_at<? ORDER BY _id LIMIT 500", "1")
+                .allowFullScan()
+                .without("TEMP B-TREE")
+                .check();
+    }
+
+    @Test
+    public void bulkDeleteChunk() {
+        // BulkDeleteJob deletes every chunk through the primary key
+        plan("DELETE FROM books WHERE _id IN (SELECT _id FROM books ORDER BY _id LIMIT 500)")
+                .uses("INTEGER PRIMARY KEY")
+                .allowFullScan()
+                .without("TEMP B-TREE")
+                .check();
+    }
+
+    @Test
+    public void stockOfBook() {
+        // BookProvider BOOK_STOCK, and the trigger deleting the stock of a deleted book
+        plan("SELECT * FROM stock WHERE book_id=? ORDER BY location", "1")
+                .uses("INDEX sqlite_autoindex_stock_1")
+                .without("TEMP B-TREE")
+                .check();
+        plan("DELETE FROM stock WHERE book_id=?", "1")
+                .uses("INDEX sqlite_autoindex_stock_1")
+                .check();
+    }
+
+    @Test
+    public void stockAtLocation() {
+        // BookProvider BOOK_STOCK_LOCATION, stock adjustments and sales at a location
+        plan("SELECT _id, quantity FROM stock WHERE book_id=? AND location=?", "1", "branch 1")
+                .uses("INDEX sqlite_autoindex_stock_1")
+                .check();
+        plan("UPDATE stock SET quantity=? WHERE book_id=? AND location=?", "1", "1", "branch 1")
+                .uses("INDEX sqlite_autoindex_stock_1")
+                .check();
+    }
+
+    @Test
+    public void stockTotalsPerLocation() {
+        // BookProvider STOCK_LOCATIONS
+        plan("SELECT MIN(_id) AS _id, location, SUM(quantity) AS quantity, COUNT(*) AS book_count"
+                + " FROM stock GROUP BY location ORDER BY location")
+                .uses("INDEX stock_location")
+                .without("TEMP B-TREE")
+                .check();
+    }
+
+    @Test
+    public void movementHistory() {
+        // BookProvider BOOK_MOVEMENTS: a range of time of one book, already in order
+        plan("SELECT * FROM stock_movements WHERE book_id=? AND created_at>=? AND created_at<?"
+                + " ORDER BY created_at, _id", "1", "0", "1000")
+                .uses("INDEX stock_movements_book_time")
+                .without("TEMP B-TREE")
+                .check();
+        // SqlBookStore deleting the ledger of the deleted books
+        plan(SqlBookStore.DELETE_MOVEMENTS + " WHERE _id=?)", "1")
+                .uses("INDEX stock_movements_book_time")
+                .check();
+    }
+
+    @Test
+    public void ledgerFold() {
+        // LedgerFoldJob groups a range of books by day, reads the last movement of every day by
+        // id, then finds the snapshot of every folded movement through the index
+        plan(LedgerFoldJob.INSERT_SNAPSHOTS, StockMovementEntry.REASON_SNAPSHOT, "0", "500", "1000")
+                .uses("INDEX stock_movements_book_time (book_id>? AND book_id<?)")
+                .uses("INTEGER PRIMARY KEY")
+                .check();
+        plan(LedgerFoldJob.DELETE_FOLDED, "1000", "0", "500", "1000", "1000")
+                .uses("INDEX stock_movements_book_time (book_id>? AND book_id<?)")
+                .uses("INDEX stock_movements_book_time (book_id=? AND created_at>? AND created_at<?)")
+                .check();
+    }
+
+    @Test
+    public void priceHistory() {
+        // BookProvider BOOK_PRICES: a range of time of one book, already in order
+        plan("SELECT * FROM price_history WHERE book_id=? AND changed_at>=? AND changed_at<?"
+                + " ORDER BY changed_at, _id", "1", "0", "1000")
+                .uses("INDEX price_history_book_time")
+                .without("TEMP B-TREE")
+                .check();
+        // SqlBookStore deleting the price history of the deleted books
+        plan(SqlBookStore.DELETE_PRICES + " WHERE _id=?)", "1")
+                .uses("INDEX price_history_book_time")
+                .check();
+    }
+
+    @Test
+    public void priceDownsample() {
+        // PriceDownsampleJob finds the last row of every bucket and the merged row of every
+        // replaced one through the index, by day and by month
+        for (PriceDownsampleJob.Bucket bucket : PriceDownsampleJob.Bucket.values()) {
+            plan(bucket.insertSql(), "0", "500", "1000")
+                    .uses("INDEX price_history_book_time (book_id>? AND book_id<?)")
+                    .uses("INDEX price_history_book_time (book_id=? AND changed_at=?)")
+                    .check();
+            plan(bucket.deleteSql(), "1000", "0", "500", "1000", "1000")
+                    .uses("INDEX price_history_book_time (book_id>? AND book_id<?)")
+                    .uses("INDEX price_history_book_time (book_id=? AND changed_at>? AND changed_at<?)")
+                    .check();
+        }
+    }
+
+    private Plan plan(String sql, String... args) {
+        return new Plan(sql, args);
+    }
+
+    /**
+     * The expectations for the plan of one SQL statement
+     */
+    private class Plan {
+        private final String mSql;
+        private final String[] mArgs;
+        private final List<String> mUses = new ArrayList<>();
+        private final List<String> mWithout = new ArrayList<>();
+        private boolean mFullScanAllowed;
+
+        Plan(String sql, String[] args) {
+            mSql = sql;
+            mArgs = args;
+        }
+
+        /**
+         * Some line of the plan has to contain the fragment
+         */
+        Plan uses(String fragment) {
+            mUses.add(fragment);
+            return this;
+        }
+
+        /**
+         * No line of the plan may contain the fragment
+         */
+        Plan without(String fragment) {
+            mWithout.add(fragment);
+            return this;
+        }
+
+        Plan allowFullScan() {
+            mFullScanAllowed = true;
+            return this;
+        }
+
+        void check() {
+            List<String> plan = explain(mSql, mArgs);
+            List<String> problems = new ArrayList<>();
+            for (String fragment : mUses) {
+                if (!contains(plan, fragment)) {
+                    problems.add("expected a step using \"" + fragment + "\"");
+                }
+            }
+            for (String fragment : mWithout) {
+                if (contains(plan, fragment)) {
+                    problems.add("expected no step with \"" + fragment + "\"");
+                }
+            }
+            if (!mFullScanAllowed) {
+                for (String line : plan) {
+                    if (FULL_SCAN.matcher(line).matches()) {
+                        problems.add("unexpected full scan \"" + line + "\"");
+                    }
+                }
+            }
+            if (!problems.isEmpty()) {
+                fail("Query plan degraded for\n    " + mSql + "\n"
+                        + TextUtils.join("\n", problems) + "\nactual plan:\n    "
+                        + TextUtils.join("\n    ", plan));
+            }
+        }
+    }
+
+    private static boolean contains(List<String> plan, String fragment) {
+        for (String line : plan) {
+            if (line.contains(fragment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the detail of every step of the plan of the statement
+     */
+    private List<String> explain(String sql, String[] args) {
+        List<String> plan = new ArrayList<>();
+        Cursor cursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql,
+                args.length == 0 ? null : args);
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.books.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link BookTrace} correlates spans and bounds its buffer.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class BookTraceTest {
+
+    private boolean mWasTracing;
+
+    @Before
+    public void setUp() {
+        mWasTracing = BookTrace.isEnabled();
+        BookTrace.setEnabled(true);
+        BookTrace.clear();
+    }
+
+    @After
+    public void tearDown() {
+        BookTrace.clear();
+        BookTrace.setEnabled(mWasTracing);
+    }
+
+    @Test
+    public void nestedSpansTakeTheCorrelationId() {
+        long correlationId = BookTrace.newCorrelationId();
+        long outer = BookTrace.begin("outer", correlationId);
+        long inner = BookTrace.begin("inner");
+        assertEquals(correlationId, BookTrace.currentCorrelationId());
+        BookTrace.end(inner);
+        BookTrace.end(outer);
+        assertEquals(0, BookTrace.currentCorrelationId());
+
+        List<BookTrace.Span> spans = BookTrace.snapshot(correlationId);
+        assertEquals(2, spans.size());
+        assertEquals("outer", spans.get(0).name);
+        assertEquals("inner", spans.get(1).name);
+        for (BookTrace.Span span : spans) {
+            assertTrue(span.durationNanos() >= 0);
+        }
+        assertTrue(spans.get(0).startNanos <= spans.get(1).startNanos);
+        assertTrue(spans.get(0).endNanos >= spans.get(1).endNanos);
+    }
+
+    @Test
+    public void otherThreadsKeepTheirOwnCorrelationId() throws InterruptedException {
+        long correlationId = BookTrace.newCorrelationId();
+        long span = BookTrace.begin("outer", correlationId);
+        final long[] seen = new long[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                seen[0] = BookTrace.currentCorrelationId();
+            }
+        });
+        thread.start();
+        thread.join();
+        BookTrace.end(span);
+        assertEquals(0, seen[0]);
+    }
+
+    @Test
+    public void lastChangeOnlyMovesForward() {
+        long older = BookTrace.newCorrelationId();
+        long newer = BookTrace.newCorrelationId();
+        long span = BookTrace.begin("newer", newer);
+        BookTrace.markChanged();
+        BookTrace.end(span);
+        span = BookTrace.begin("older", older);
+        BookTrace.markChanged();
+        BookTrace.end(span);
+        assertEquals(newer, BookTrace.lastChangeCorrelationId());
+    }
+
+    @Test
+    public void bufferKeepsTheNewestSpans() {
+        long correlationId = BookTrace.newCorrelationId();
+        long first = BookTrace.begin("first", correlationId);
+        for (int i = 0; i < BookTrace.CAPACITY; i++) {
+            BookTrace.end(BookTrace.begin("span " + i, correlationId));
+        }
+        // Ending a span that was dropped already does nothing
+        BookTrace.end(first);
+
+        List<BookTrace.Span> spans = BookTrace.snapshot();
+        assertEquals(BookTrace.CAPACITY, spans.size());
+        assertEquals("span 0", spans.get(0).name);
+        assertEquals("span " + (BookTrace.CAPACITY - 1), spans.get(spans.size() - 1).name);
+    }
+
+    @Test
+    public void disabledRecordsNothing() {
+        BookTrace.setEnabled(false);
+        try {
+            long span = BookTrace.begin("ignored", BookTrace.newCorrelationId());
+            assertEquals(BookTrace.NO_SPAN, span);
+            BookTrace.end(span);
+            assertEquals(0, BookTrace.currentCorrelationId());
+            assertTrue(BookTrace.snapshot().isEmpty());
+        } finally {
+            BookTrace.setEnabled(true);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.example.android.books.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the promises of {@link BookWriteScheduler}: a write failing in a group commit doesn't
+ * take the others down, each caller gets its own result or exception, writes run in the order
+ * they were queued, and failing commit listeners don't fail the writes.
+ * <p>
+ * To get several writes into one batch, the writer thread is held by a first write until the
+ * others are queued, that is until their callers wait for them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class BookWriteSchedulerTest {
+
+    private static final String DATABASE_NAME = "scheduler-test.db";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private BookDbHelper mDbHelper;
+    private BookWriteScheduler mScheduler;
+    private ExecutorService mCallers;
+    private final List<String> mApplied = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        mDbHelper = new BookDbHelper(RuntimeEnvironment.application, DATABASE_NAME);
+        mScheduler = new BookWriteScheduler(mDbHelper);
+        mCallers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        mCallers.shutdownNow();
+        mDbHelper.close();
+        RuntimeEnvironment.application.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void failingWriteDoesNotRollBackTheOthers() throws Exception {
+        CountDownLatch release = holdWriter();
+        Future<Long> first = submit(insert("first"));
+        final IllegalArgumentException failure = new IllegalArgumentException("rejected");
+        Future<Long> failing = submit(new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                insert("failing").apply(database);
+                throw failure;
+            }
+        });
+        Future<Long> last = submit(insert("last"));
+        release.countDown();
+
+        long firstId = first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long lastId = last.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        try {
+            failing.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("failing write succeeded");
+        } catch (ExecutionException e) {
+            // The caller gets the very exception its write threw
+            assertSame(failure, e.getCause());
+        }
+
+        assertEquals(firstId, idOf("first"));
+        assertEquals(lastId, idOf("last"));
+        assertEquals(-1, idOf("failing"));
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDbHelper.getReadableDatabase(),
+                BookEntry.TABLE_NAME, BookEntry.COLUMN_BOOK_NAME + "<>'holder'", null));
+        // The batch stopped at the failing write and was rolled back, then each write was
+        // run again on its own
+        assertEquals(2, Collections.frequency(mApplied, "first"));
+        assertEquals(2, Collections.frequency(mApplied, "failing"));
+        assertEquals(1, Collections.frequency(mApplied, "last"));
+    }
+
+    @Test
+    public void writesRunInQueueOrder() throws Exception {
+        CountDownLatch release = holdWriter();
+        Future<Long> before = submit(insert("before"));
+        Future<String> alone = submitAlone(new BookWriteScheduler.Write<String>() {
+            @Override
+            public String apply(SQLiteDatabase database) {
+                mApplied.add("alone");
+                // Outside of any transaction
+                return String.valueOf(database.inTransaction());
+            }
+        });
+        Future<Long> after = submit(insert("after"));
+        release.countDown();
+
+        before.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals("false", alone.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        after.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(mApplied.toString(), 3, mApplied.size());
+        assertEquals("before", mApplied.get(0));
+        assertEquals("alone", mApplied.get(1));
+        assertEquals("after", mApplied.get(2));
+    }
+
+    @Test
+    public void failingListenerDoesNotFailTheWrites() throws Exception {
+        mScheduler.addCommitListener(new BookWriteScheduler.CommitListener() {
+            @Override
+            public void onBeforeCommit(SQLiteDatabase database) {
+                throw new IllegalStateException("listener failed before commit");
+            }
+
+            @Override
+            public void onSettled(SQLiteDatabase database) {
+                throw new IllegalStateException("listener failed after settling");
+            }
+        });
+
+        long id = mScheduler.execute(insert("listened"));
+        assertEquals(id, idOf("listened"));
+        // The writer thread survives the listener, and so do the next writes
+        assertTrue(mScheduler.execute(insert("next")) > id);
+    }
+
+    /**
+     * Keep the writer thread busy until the returned latch is released
+     */
+    private CountDownLatch holdWriter() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        submit(new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return database.insertOrThrow(BookEntry.TABLE_NAME, null, book("holder"));
+            }
+        });
+        assertTrue(running.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private <T> Future<T> submit(final BookWriteScheduler.Write<T> write)
+            throws InterruptedException {
+        return queue(new Callable<T>() {
+            @Override
+            public T call() {
+                return mScheduler.execute(write);
+            }
+        });
+    }
+
+    private <T> Future<T> submitAlone(final BookWriteScheduler.Write<T> write)
+            throws InterruptedException {
+        return queue(new Callable<T>() {
+            @Override
+            public T call() {
+                return mScheduler.executeAlone(write);
+            }
+        });
+    }
+
+    /**
+     * Call from a thread of its own, and return once the write is queued: its caller waits
+     */
+    private <T> Future<T> queue(final Callable<T> call) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final Thread[] caller = new Thread[1];
+        Future<T> result = mCallers.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                caller[0] = Thread.currentThread();
+                started.countDown();
+                return call.call();
+            }
+        });
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (caller[0].getState() != Thread.State.WAITING && !result.isDone()) {
+            assertTrue("write never queued", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        return result;
+    }
+
+    private BookWriteScheduler.Write<Long> insert(final String name) {
+        return new BookWriteScheduler.Write<Long>() {
+            @Override
+            public Long apply(SQLiteDatabase database) {
+                mApplied.add(name);
+                return database.insertOrThrow(BookEntry.TABLE_NAME, null, book(name));
+            }
+        };
+    }
+
+    private long idOf(String name) {
+        return DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(), "SELECT IFNULL(MAX("
+                + BookEntry._ID + "), -1) FROM " + BookEntry.TABLE_NAME + " WHERE "
+                + BookEntry.COLUMN_BOOK_NAME + "=?", new String[]{name});
+    }
+
+    private static ContentValues book(String name) {
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, name);
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 10);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Ace");
+        return values;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.books.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a new database is in incremental vacuum mode even though it runs in WAL mode, so
+ * a {@link BulkDeleteJob} hands the pages of the deleted books back to the file system.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class BulkDeleteJobTest {
+
+    private static final String DATABASE_NAME = "bulk-delete-test.db";
+
+    private BookDbHelper mDbHelper;
+    private BookWriteScheduler mWriteScheduler;
+
+    @Before
+    public void setUp() {
+        mDbHelper = new BookDbHelper(RuntimeEnvironment.application, DATABASE_NAME);
+        mWriteScheduler = new BookWriteScheduler(mDbHelper);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        RuntimeEnvironment.application.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void bulkDeleteShrinksTheFile() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // 2 is INCREMENTAL
+        assertEquals(2, pragma(database, "auto_vacuum"));
+        assertTrue(database.isWriteAheadLoggingEnabled());
+
+        database.beginTransaction();
+        try {
+            // Long names, so the books fill many pages
+            String padding = new String(new char[200]).replace('\0', 'x');
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < 2000; i++) {
+                values.put(BookEntry.COLUMN_BOOK_NAME, "Book " + i + padding);
+                values.put(BookEntry.COLUMN_BOOK_PRICE, 10);
+                values.put(BookEntry.COLUMN_BOOK_QUANTITY, 1);
+                values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Ace");
+                database.insertOrThrow(BookEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        long pages = pragma(database, "page_count");
+
+        new BulkDeleteJob(mWriteScheduler, new AndroidBookStore(mDbHelper, mWriteScheduler),
+                new SuggestionIndex(mWriteScheduler),
+                new CoverStore(RuntimeEnvironment.application),
+                RuntimeEnvironment.application.getContentResolver(), null, null).run();
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(database, BookEntry.TABLE_NAME));
+        assertEquals(0, pragma(database, "freelist_count"));
+        assertTrue(pragma(database, "page_count") < pages);
+    }
+
+    private static long pragma(SQLiteDatabase database, String name) {
+        return DatabaseUtils.longForQuery(database, "PRAGMA " + name, null);
+    }
+}
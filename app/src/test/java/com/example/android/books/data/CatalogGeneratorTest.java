@@ -0,0 +1,96 @@
+package com.example.android.books.data;
+
+import android.content.ContentValues;
+
+import com.example.android.books.data.BookContract.BookEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link CatalogGenerator} is deterministic and that the catalog it generates has
+ * the shape it promises.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class CatalogGeneratorTest {
+
+    private static final long NOW = 1500000000000L;
+    private static final int BOOKS = 20000;
+
+    @Test
+    public void sameSeedSameBooks() {
+        CatalogGenerator first = new CatalogGenerator(7, NOW);
+        CatalogGenerator second = new CatalogGenerator(7, NOW);
+        // In any order
+        for (int i = 100; i >= 0; i--) {
+            assertEquals(first.book(i, i), second.book(i, i));
+        }
+    }
+
+    @Test
+    public void otherSeedOtherBooks() {
+        CatalogGenerator first = new CatalogGenerator(7, NOW);
+        CatalogGenerator second = new CatalogGenerator(8, NOW);
+        int same = 0;
+        for (int i = 0; i < 100; i++) {
+            if (first.book(i, i).equals(second.book(i, i))) {
+                same++;
+            }
+        }
+        assertEquals(0, same);
+    }
+
+    @Test
+    public void isbnHasValidCheckDigit() {
+        assertEquals("9790000000001", CatalogGenerator.isbn(0));
+        for (long number : new long[]{1, 42, 99999999}) {
+            String isbn = CatalogGenerator.isbn(number);
+            assertEquals(13, isbn.length());
+            assertTrue(isbn.startsWith(CatalogGenerator.ISBN_PREFIX));
+            int sum = 0;
+            for (int i = 0; i < isbn.length(); i++) {
+                sum += (isbn.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+            }
+            assertEquals(0, sum % 10);
+        }
+    }
+
+    @Test
+    public void catalogIsSkewed() {
+        CatalogGenerator generator = new CatalogGenerator(1, NOW);
+        Map<String, Integer> categories = new HashMap<>();
+        int soldOut = 0;
+        long nameLength = 0;
+        for (int i = 0; i < BOOKS; i++) {
+            ContentValues book = generator.book(i, i);
+            String category = book.getAsString(BookEntry.COLUMN_BOOK_CATEGORY);
+            Integer count = categories.get(category);
+            categories.put(category, count == null ? 1 : count + 1);
+            if (book.getAsInteger(BookEntry.COLUMN_BOOK_QUANTITY) == 0) {
+                soldOut++;
+            }
+            nameLength += book.getAsString(BookEntry.COLUMN_BOOK_NAME).length();
+            int price = book.getAsInteger(BookEntry.COLUMN_BOOK_PRICE);
+            assertTrue(price >= 1 && price <= 500);
+            long updatedAt = book.getAsLong(BookEntry.COLUMN_BOOK_UPDATED_AT);
+            assertTrue(updatedAt <= NOW);
+        }
+
+        int top = categories.get(CatalogGenerator.category(0));
+        int last = categories.get(CatalogGenerator.category(CatalogGenerator.CATEGORY_COUNT - 1));
+        assertTrue("most common category " + top + " vs " + last, top > 10 * last);
+        assertTrue("sold out " + soldOut, soldOut > BOOKS / 12 && soldOut < BOOKS / 8);
+        long averageLength = nameLength / BOOKS;
+        assertTrue("average name length " + averageLength,
+                averageLength >= 15 && averageLength <= 40);
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.android.books.data;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link BookStore} on the JVM-native SQLite driver of sqlite-jdbc, so the data layer runs
+ * and is measured on a plain JVM, without the Android framework or Robolectric.
+ * <p>
+ * It uses a single connection, and runs one transaction or read at a time. A new database is
+ * created with the schema of the app.
+ */
+public class JdbcBookStore extends SqlBookStore {
+
+    private final Connection mConnection;
+    private final JdbcDatabase mDatabase;
+
+    /**
+     * Opens the database at the JDBC url, such as {@code jdbc:sqlite::memory:}, and creates
+     * its tables if it has none.
+     */
+    public JdbcBookStore(String url) {
+        try {
+            mConnection = DriverManager.getConnection(url);
+            mDatabase = new JdbcDatabase(mConnection);
+            if (mDatabase.queryLong("SELECT COUNT(*) FROM sqlite_master", 0) == 0) {
+                Statement statement = mConnection.createStatement();
+                try {
+                    for (String sql : BookSchema.CREATE_STATEMENTS) {
+                        statement.execute(sql);
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Can't open " + url, e);
+        }
+    }
+
+    @Override
+    protected synchronized <T> T inTransaction(Transaction<T> transaction) {
+        try {
+            mConnection.setAutoCommit(false);
+            boolean committed = false;
+            try {
+                T result = transaction.run(mDatabase);
+                mConnection.commit();
+                committed = true;
+                return result;
+            } finally {
+                if (!committed) {
+                    mConnection.rollback();
+                }
+                mConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    protected synchronized <T> T read(Transaction<T> transaction) {
+        return transaction.run(mDatabase);
+    }
+
+    /**
+     * Returns the number in the first column of the first row of a query, for checking the
+     * tables directly.
+     */
+    synchronized long queryLong(String sql, Object... args) {
+        return mDatabase.queryLong(sql, -1, args);
+    }
+
+    /**
+     * Runs an INSERT, UPDATE or DELETE outside of the store, for setting up the tables directly.
+     */
+    synchronized void execute(String sql, Object... args) {
+        mDatabase.update(sql, args);
+    }
+
+    public synchronized void close() {
+        try {
+            mConnection.close();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Runs the statements on a JDBC connection
+     */
+    private static class JdbcDatabase implements Database {
+        private final Connection mConnection;
+
+        JdbcDatabase(Connection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public long insert(String sql, Object... args) {
+            update(sql, args);
+            return queryLong("SELECT last_insert_rowid()", -1);
+        }
+
+        @Override
+        public int update(String sql, Object... args) {
+            try {
+                PreparedStatement statement = prepare(sql, args);
+                try {
+                    return statement.executeUpdate();
+                } finally {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(sql, e);
+            }
+        }
+
+        @Override
+        public List<Book> queryBooks(String sql, Object... args) {
+            try {
+                PreparedStatement statement = prepare(sql, args);
+                try {
+                    ResultSet rows = statement.executeQuery();
+                    List<Book> books = new ArrayList<>();
+                    while (rows.next()) {
+                        books.add(new Book(rows.getLong(1), rows.getString(2),
+                                rows.getString(3), rows.getInt(4), rows.getInt(5),
+                                rows.getString(6), rows.getInt(7), rows.getString(8),
+                                rows.getLong(9), rows.getLong(10)));
+                    }
+                    return books;
+                } finally {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(sql, e);
+            }
+        }
+
+        @Override
+        public long queryLong(String sql, long defaultValue, Object... args) {
+            try {
+                PreparedStatement statement = prepare(sql, args);
+                try {
+                    ResultSet rows = statement.executeQuery();
+                    return rows.next() ? rows.getLong(1) : defaultValue;
+                } finally {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(sql, e);
+            }
+        }
+
+        private PreparedStatement prepare(String sql, Object[] args) throws SQLException {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            for (int i = 0; i < args.length; i++) {
+                statement.setObject(i + 1, args[i]);
+            }
+            return statement;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.example.android.books.data;
+
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the {@link SqlBookStore} operations on a plain JVM, without Robolectric, on an in-memory
+ * database of {@link JdbcBookStore}.
+ */
+public class JdbcBookStoreTest {
+
+    private JdbcBookStore mStore;
+    private final List<long[]> mChanges = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mStore = new JdbcBookStore("jdbc:sqlite::memory:");
+        mStore.addListener(new BookStore.Listener() {
+            @Override
+            public void onBooksChanged(long[] ids) {
+                mChanges.add(ids);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+    }
+
+    @Test
+    public void insertAndGet() {
+        long id = mStore.insert(new Book("The Hobbit", "fantasy", 12, 5, "Harper Collins", 0,
+                "0-261-10221-4"));
+
+        Book book = mStore.get(id);
+        assertEquals("The Hobbit", book.getName());
+        assertEquals(12, book.getPrice());
+        assertEquals(5, book.getQuantity());
+        assertEquals("0261102214", book.getIsbn());
+        assertEquals(1, book.getVersion());
+        assertTrue(book.getUpdatedAt() > 0);
+        assertArrayEquals(new long[]{id}, mChanges.get(0));
+        assertNull(mStore.get(id + 1));
+    }
+
+    @Test
+    public void findByIsbnHoweverTyped() {
+        long id = mStore.insert(new Book("Dune", "science fiction", 10, 1, "Ace", 0,
+                "978-0441013593"));
+        assertEquals(id, mStore.findByIsbn("978 0441013593").getId());
+        assertNull(mStore.findByIsbn("9780000000002"));
+        assertNull(mStore.findByIsbn(null));
+    }
+
+    @Test
+    public void invalidBookIsRejected() {
+        try {
+            mStore.insert(new Book("Dune", null, -1, 1, "Ace", 0, null));
+            fail("negative price accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mStore.insertAll(Arrays.asList(new Book("Dune", null, 1, 1, "Ace", 0, null),
+                    new Book("Emma", null, 1, 1, null, 0, null)));
+            fail("book without supplier accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertTrue(mStore.list(null).isEmpty());
+        assertTrue(mChanges.isEmpty());
+    }
+
+    @Test
+    public void insertAllIsAtomic() {
+        mStore.insert(new Book("Dune", null, 1, 1, "Ace", 0, "9780441013593"));
+        try {
+            mStore.insertAll(Arrays.asList(new Book("Emma", null, 1, 1, "Penguin", 0, null),
+                    new Book("Dune again", null, 1, 1, "Ace", 0, "9780441013593")));
+            fail("duplicate ISBN accepted");
+        } catch (RuntimeException expected) {
+        }
+        assertEquals(1, mStore.list(null).size());
+    }
+
+    @Test
+    public void listInCatalogOrder() {
+        long[] ids = mStore.insertAll(Arrays.asList(
+                new Book("emma", "classics", 8, 1, "Penguin", 0, null),
+                new Book("Dune", "science fiction", 10, 1, "Ace", 0, null),
+                new Book("Anna Karenina", "classics", 9, 1, "Penguin", 0, null)));
+        assertArrayEquals(ids, mChanges.get(0));
+
+        List<Book> all = mStore.list(null);
+        assertEquals("Anna Karenina", all.get(0).getName());
+        assertEquals("Dune", all.get(1).getName());
+        assertEquals("emma", all.get(2).getName());
+
+        List<Book> classics = mStore.list("classics");
+        assertEquals(2, classics.size());
+        assertEquals(ids[2], classics.get(0).getId());
+        assertEquals(ids[0], classics.get(1).getId());
+    }
+
+    @Test
+    public void updateChecksVersion() {
+        long id = mStore.insert(new Book("Dune", null, 10, 1, "Ace", 0, null));
+        Book book = mStore.get(id);
+
+        assertEquals(2, mStore.update(book.withPrice(11)));
+        try {
+            mStore.update(book.withPrice(12));
+            fail("stale version accepted");
+        } catch (BookConflictException e) {
+            assertEquals(1, e.getExpectedVersion());
+            assertEquals(2, e.getCurrentVersion());
+        }
+        assertEquals(11, mStore.get(id).getPrice());
+
+        Book unversioned = new Book(id, "Dune", null, 13, 1, "Ace", 0, null, Book.NO_VERSION, 0);
+        assertEquals(3, mStore.update(unversioned));
+        assertEquals(13, mStore.get(id).getPrice());
+    }
+
+    @Test
+    public void adjustStockNeverGoesNegative() {
+        long id = mStore.insert(new Book("Dune", null, 10, 2, "Ace", 0, null));
+        mChanges.clear();
+
+        assertEquals(5, mStore.adjustStock(id, 3, "delivery"));
+        assertEquals(0, mStore.adjustStock(id, -5, StockMovementEntry.REASON_SALE));
+        assertEquals(-1, mStore.adjustStock(id, -1, StockMovementEntry.REASON_SALE));
+        assertEquals(0, mStore.get(id).getQuantity());
+        assertEquals(3, mStore.get(id).getVersion());
+        assertEquals(2, mChanges.size());
+        try {
+            mStore.adjustStock(id + 1, 1, "delivery");
+            fail("unknown book adjusted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void stockAtLocationsIsOnlyTakenFromThem() {
+        long id = mStore.insert(new Book("Dune", null, 10, 8, "Ace", 0, null));
+        mStore.execute("INSERT INTO stock (book_id, location, quantity) VALUES (?, ?, ?)",
+                id, "main", 5);
+
+        // 3 of the 8 copies aren't at any location
+        assertEquals(5, mStore.adjustStock(id, -3, StockMovementEntry.REASON_SALE));
+        assertEquals(-1, mStore.adjustStock(id, -1, StockMovementEntry.REASON_SALE));
+        try {
+            mStore.update(mStore.get(id).withQuantity(4));
+            fail("quantity below the stock at the locations accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(5, mStore.get(id).getQuantity());
+
+        // Adding copies, or taking them back down to the locations' stock, is fine
+        assertEquals(7, mStore.adjustStock(id, 2, "delivery"));
+        mStore.update(mStore.get(id).withQuantity(5));
+        assertEquals(5, mStore.get(id).getQuantity());
+        assertEquals(5, mStore.queryLong("SELECT SUM(quantity) FROM stock WHERE book_id=?", id));
+    }
+
+    @Test
+    public void everyQuantityChangeIsAMovement() {
+        long id = mStore.insert(new Book("Dune", null, 10, 4, "Ace", 0, null));
+        mStore.adjustStock(id, -1, StockMovementEntry.REASON_SALE);
+        mStore.update(mStore.get(id).withQuantity(10));
+        mStore.update(mStore.get(id).withPrice(12));
+        mStore.adjustStock(id, -20, StockMovementEntry.REASON_SALE);
+
+        assertEquals(3, countMovements(id));
+        assertEquals(10, mStore.queryLong("SELECT SUM(delta) FROM stock_movements"
+                + " WHERE book_id=?", id));
+        assertEquals(7, mStore.queryLong("SELECT delta FROM stock_movements"
+                + " WHERE book_id=? AND reason=?", id, StockMovementEntry.REASON_EDIT));
+        assertEquals(3, mStore.queryLong("SELECT quantity FROM stock_movements"
+                + " WHERE book_id=? AND reason=?", id, StockMovementEntry.REASON_SALE));
+
+        // The ledger goes with the book
+        mStore.delete(id);
+        assertEquals(0, countMovements(id));
+    }
+
+    @Test
+    public void everyPriceChangeIsInTheHistory() {
+        long id = mStore.insert(new Book("Dune", null, 10, 4, "Ace", 0, null));
+        mStore.update(mStore.get(id).withPrice(12));
+        mStore.update(mStore.get(id).withQuantity(5));
+        mStore.adjustStock(id, -1, StockMovementEntry.REASON_SALE);
+        mStore.update(mStore.get(id).withPrice(9));
+
+        assertEquals(3, countPrices(id));
+        assertEquals(9, mStore.queryLong("SELECT price FROM price_history WHERE book_id=?"
+                + " ORDER BY changed_at DESC, _id DESC LIMIT 1", id));
+        assertEquals(1, mStore.queryLong("SELECT MAX(changes) FROM price_history"
+                + " WHERE book_id=?", id));
+
+        mStore.delete(id);
+        assertEquals(0, countPrices(id));
+    }
+
+    private long countPrices(long id) {
+        return mStore.queryLong("SELECT COUNT(*) FROM price_history WHERE book_id=?", id);
+    }
+
+    private long countMovements(long id) {
+        return mStore.queryLong("SELECT COUNT(*) FROM stock_movements WHERE book_id=?", id);
+    }
+
+    @Test
+    public void delete() {
+        long id = mStore.insert(new Book("Dune", null, 10, 2, "Ace", 0, null));
+        assertTrue(mStore.delete(id));
+        assertFalse(mStore.delete(id));
+        assertNull(mStore.get(id));
+        assertEquals(2, mChanges.size());
+    }
+}
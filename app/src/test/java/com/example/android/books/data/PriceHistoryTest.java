@@ -0,0 +1,138 @@
+package com.example.android.books.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.PriceHistoryEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the price changes made through the provider are in the price history, and that
+ * downsampling it keeps the recent changes and merges the old ones by day and by month.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class PriceHistoryTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * 2017-07-01T00:00:00Z
+     */
+    private static final long JULY_2017 = 1498867200000L;
+
+    private BookHistoryFixture mFixture;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mFixture = new BookHistoryFixture();
+        mResolver = mFixture.getResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mFixture.close();
+    }
+
+    @Test
+    public void providerPriceChangesAreRecorded() {
+        Uri uri = mResolver.insert(BookEntry.CONTENT_URI,
+                BookHistoryFixture.book("Dune", 10, 1));
+        long id = ContentUris.parseId(uri);
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 12);
+        mResolver.update(uri, values, null, null);
+        // The same price again, and a change of the quantity alone, aren't price changes
+        mResolver.update(uri, values, null, null);
+        values.clear();
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 3);
+        mResolver.update(uri, values, null, null);
+
+        Cursor cursor = mResolver.query(BookEntry.buildPricesUri(id), null, null, null, null);
+        try {
+            assertEquals(2, cursor.getCount());
+            int[] prices = {10, 12};
+            for (int i = 0; cursor.moveToNext(); i++) {
+                assertEquals(prices[i], cursor.getInt(
+                        cursor.getColumnIndexOrThrow(PriceHistoryEntry.COLUMN_PRICE)));
+                assertEquals(1, cursor.getInt(
+                        cursor.getColumnIndexOrThrow(PriceHistoryEntry.COLUMN_CHANGES)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mResolver.query(BookEntry.buildPricesUri(id, 0, 1), null, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void downsampleByDayAndMonth() {
+        long id = mFixture.insertBook("Dune", 10, 1);
+        long now = JULY_2017 + 500 * DAY;
+        // Three changes a day in July 2017, long before the monthly cutoff, three on a day
+        // before the daily cutoff, and three recent ones
+        for (int day = 0; day < 31; day++) {
+            for (int change = 0; change < 3; change++) {
+                mFixture.recordPrice(id, 10 + day + change,
+                        JULY_2017 + day * DAY + change * HOUR);
+            }
+        }
+        for (int change = 0; change < 3; change++) {
+            mFixture.recordPrice(id, 20 - change, now - 60 * DAY + change * HOUR);
+            mFixture.recordPrice(id, 30 + change, now - DAY + change * HOUR);
+        }
+
+        PriceDownsampleJob job = new PriceDownsampleJob(mFixture.getWriteScheduler(), now);
+        job.run();
+
+        // One row for July, one for the old day, the three recent ones
+        assertEquals(5, mFixture.prices("COUNT(*)", id));
+        assertEquals(31 * 3 + 6, mFixture.prices("SUM(" + PriceHistoryEntry.COLUMN_CHANGES
+                + ")", id));
+        Cursor cursor = mFixture.getDatabase().query(PriceHistoryEntry.TABLE_NAME, new String[]{
+                PriceHistoryEntry.COLUMN_PRICE,
+                PriceHistoryEntry.COLUMN_MIN_PRICE,
+                PriceHistoryEntry.COLUMN_MAX_PRICE,
+                PriceHistoryEntry.COLUMN_CHANGED_AT}, null, null, null, null,
+                PriceHistoryEntry.COLUMN_CHANGED_AT);
+        try {
+            cursor.moveToFirst();
+            assertEquals(42, cursor.getInt(0));
+            assertEquals(10, cursor.getInt(1));
+            assertEquals(42, cursor.getInt(2));
+            assertEquals(JULY_2017 + 30 * DAY + 2 * HOUR, cursor.getLong(3));
+            cursor.moveToNext();
+            assertEquals(18, cursor.getInt(0));
+            assertEquals(18, cursor.getInt(1));
+            assertEquals(20, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+
+        // Nothing more to merge
+        job.run();
+        assertEquals(5, mFixture.prices("COUNT(*)", id));
+    }
+}
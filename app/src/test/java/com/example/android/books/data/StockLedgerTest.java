@@ -0,0 +1,140 @@
+package com.example.android.books.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookContract.StockMovementEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that every write of the provider that changes a quantity leaves its movement in the
+ * ledger, and that folding the ledger keeps the quantities it adds up to.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class StockLedgerTest {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long NOW = 1500000000000L / DAY * DAY;
+
+    private BookHistoryFixture mFixture;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mFixture = new BookHistoryFixture();
+        mResolver = mFixture.getResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mFixture.close();
+    }
+
+    @Test
+    public void providerWritesAreMovements() {
+        Uri uri = mResolver.insert(BookEntry.CONTENT_URI,
+                BookHistoryFixture.book("Dune", 10, 5));
+        long id = ContentUris.parseId(uri);
+
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 4);
+        mResolver.update(uri.buildUpon()
+                .appendQueryParameter(BookContract.PARAM_STOCK_REASON,
+                        StockMovementEntry.REASON_SALE)
+                .build(), values, null, null);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, 9);
+        mResolver.update(uri, values, null, null);
+        // A change of the price alone isn't a movement
+        values.clear();
+        values.put(BookEntry.COLUMN_BOOK_PRICE, 12);
+        mResolver.update(uri, values, null, null);
+
+        Cursor cursor = mResolver.query(BookEntry.buildMovementsUri(id), null, null, null, null);
+        try {
+            assertEquals(3, cursor.getCount());
+            int sum = 0;
+            String[] reasons = {StockMovementEntry.REASON_INITIAL,
+                    StockMovementEntry.REASON_SALE, StockMovementEntry.REASON_EDIT};
+            int[] quantities = {5, 4, 9};
+            for (int i = 0; cursor.moveToNext(); i++) {
+                sum += cursor.getInt(cursor.getColumnIndexOrThrow(StockMovementEntry.COLUMN_DELTA));
+                assertEquals(reasons[i], cursor.getString(
+                        cursor.getColumnIndexOrThrow(StockMovementEntry.COLUMN_REASON)));
+                assertEquals(quantities[i], cursor.getInt(
+                        cursor.getColumnIndexOrThrow(StockMovementEntry.COLUMN_QUANTITY)));
+            }
+            assertEquals(9, sum);
+        } finally {
+            cursor.close();
+        }
+
+        // No movement before the first one
+        cursor = mResolver.query(BookEntry.buildMovementsUri(id, 0, 1), null, null, null, null);
+        try {
+            assertEquals(0, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badRangeIsRejected() {
+        mResolver.query(BookEntry.buildMovementsUri(1).buildUpon()
+                .appendQueryParameter(BookContract.PARAM_FROM, "yesterday")
+                .build(), null, null, null, null);
+    }
+
+    @Test
+    public void foldKeepsTheQuantity() {
+        long id = mFixture.insertBook("Dune", 10, 0);
+        // Two old days of three movements, one old day of one, and a recent day of two
+        long[] times = {10 * DAY + 1, 10 * DAY + 2, 10 * DAY + 3,
+                11 * DAY + 1, 11 * DAY + 2, 11 * DAY + 3,
+                12 * DAY + 1,
+                NOW + 1, NOW + 2};
+        int quantity = 0;
+        for (int i = 0; i < times.length; i++) {
+            quantity += i % 3 == 2 ? -1 : 2;
+            mFixture.recordMovement(id, i % 3 == 2 ? -1 : 2, quantity, times[i]);
+        }
+
+        LedgerFoldJob job = new LedgerFoldJob(mFixture.getWriteScheduler(), NOW);
+        job.run();
+
+        SQLiteDatabase database = mFixture.getDatabase();
+        assertEquals(5, mFixture.movements("COUNT(*)", id));
+        assertEquals(quantity, mFixture.movements("SUM(" + StockMovementEntry.COLUMN_DELTA + ")",
+                id));
+        assertEquals(2, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM "
+                + StockMovementEntry.TABLE_NAME + " WHERE "
+                + StockMovementEntry.COLUMN_REASON + "=?",
+                new String[]{StockMovementEntry.REASON_SNAPSHOT}));
+        // The snapshot of a day has the quantity its last movement left
+        assertEquals(6, DatabaseUtils.longForQuery(database, "SELECT "
+                + StockMovementEntry.COLUMN_QUANTITY + " FROM "
+                + StockMovementEntry.TABLE_NAME + " WHERE "
+                + StockMovementEntry.COLUMN_CREATED_AT + "=?",
+                new String[]{String.valueOf(11 * DAY + 3)}));
+
+        // Nothing more to fold
+        assertEquals(0, job.foldChunk(0, id + 1));
+        assertEquals(5, mFixture.movements("COUNT(*)", id));
+    }
+}
@@ -0,0 +1,547 @@
+package com.example.android.books.soak;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.books.data.BookConflictException;
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookContract.BookEntry;
+import com.example.android.books.data.BookProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Load generator for {@link BookProvider}. It runs a number of reader and writer threads against
+ * the provider for a fixed time, with a mix of operations like the one the app sees:
+ * <ul>
+ * <li>readers list the catalog and look books up by id and by ISBN,</li>
+ * <li>writers sell and restock books with conditional updates (retrying on a conflict, like the
+ * sale button does), sell by ISBN like the till does, and insert new books.</li>
+ * </ul>
+ * Every operation is timed, and all failures are counted. Writers keep track of every change
+ * they got through, so once the run is over the database can be checked for lost updates: the
+ * total stock has to match the changes made, and the version of every book has to match the
+ * number of updates it received.
+ */
+public class ProviderLoadGenerator {
+
+    /**
+     * The operations of the mix
+     */
+    enum Op {
+        LIST_CATALOG, LOOKUP_BY_ID, LOOKUP_BY_ISBN, SELL, RESTOCK, SELL_BY_ISBN, INSERT
+    }
+
+    /**
+     * How many times a conditional update is retried after a conflict before giving up
+     */
+    private static final int MAX_ATTEMPTS = 10;
+
+    private static final int INITIAL_QUANTITY = 20;
+    private static final int RESTOCK_QUANTITY = 5;
+
+    /**
+     * Number of error messages kept for the report
+     */
+    private static final int MAX_ERROR_SAMPLES = 10;
+
+    private final ContentResolver mResolver;
+    private final int mReaders;
+    private final int mWriters;
+    private final long mDurationMillis;
+    private final int mInitialBooks;
+
+    /**
+     * Net change of the total stock made by all the writes that went through
+     */
+    private final AtomicLong mStockDelta = new AtomicLong();
+
+    /**
+     * Number of successful updates of every book, by id
+     */
+    private final ConcurrentHashMap<Long, AtomicInteger> mUpdates = new ConcurrentHashMap<>();
+
+    /**
+     * Number of ISBNs handed out so far, new books get the next one
+     */
+    private final AtomicInteger mIsbnCount = new AtomicInteger();
+
+    private final AtomicInteger mInserted = new AtomicInteger();
+    private final AtomicLong mConflicts = new AtomicLong();
+    private final AtomicLong mGiveUps = new AtomicLong();
+    private final AtomicLong mLockTimeouts = new AtomicLong();
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[Op.values().length];
+    private final AtomicLongArray mErrors = new AtomicLongArray(Op.values().length);
+    private final List<String> mErrorSamples = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Creates a load generator.
+     *
+     * @param resolver       resolver that reaches the provider under test
+     * @param readers        number of reader threads
+     * @param writers        number of writer threads
+     * @param durationMillis how long the load runs
+     * @param initialBooks   number of books to start with
+     */
+    public ProviderLoadGenerator(ContentResolver resolver, int readers, int writers,
+                                 long durationMillis, int initialBooks) {
+        if (readers < 0 || writers < 0 || readers + writers == 0) {
+            throw new IllegalArgumentException("load requires at least one thread");
+        }
+        if (initialBooks < 1) {
+            throw new IllegalArgumentException("load requires at least one book");
+        }
+        mResolver = resolver;
+        mReaders = readers;
+        mWriters = writers;
+        mDurationMillis = durationMillis;
+        mInitialBooks = initialBooks;
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Insert the initial books, run the load, then check the final state of the database.
+     */
+    public Report run() throws InterruptedException {
+        ContentValues[] books = new ContentValues[mInitialBooks];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = newBook();
+        }
+        mResolver.bulkInsert(BookEntry.CONTENT_URI, books);
+        long initialStock = (long) mInitialBooks * INITIAL_QUANTITY;
+
+        final CyclicBarrier start = new CyclicBarrier(mReaders + mWriters);
+        final long[] opsPerReader = new long[mReaders];
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < mReaders; r++) {
+            final int reader = r;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    opsPerReader[reader] = runThread(start, true, reader);
+                }
+            }, "SoakReader-" + r));
+        }
+        for (int w = 0; w < mWriters; w++) {
+            final int writer = w;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runThread(start, false, writer);
+                }
+            }, "SoakWriter-" + w));
+        }
+
+        long startNanos = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        return new Report(elapsedNanos, opsPerReader, initialStock);
+    }
+
+    /**
+     * Run operations until the time is up.
+     *
+     * @return the number of operations run
+     */
+    private long runThread(CyclicBarrier start, boolean reader, int index) {
+        Random random = new Random(reader ? index : 1000 + index);
+        try {
+            start.await();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        long deadline = System.nanoTime() + mDurationMillis * 1000000L;
+        long ops = 0;
+        while (System.nanoTime() < deadline) {
+            Op op = reader ? pickRead(random) : pickWrite(random);
+            long opStart = System.nanoTime();
+            try {
+                runOp(op, random);
+            } catch (RuntimeException e) {
+                mErrors.incrementAndGet(op.ordinal());
+                if (e instanceof SQLiteDatabaseLockedException) {
+                    mLockTimeouts.incrementAndGet();
+                }
+                if (mErrorSamples.size() < MAX_ERROR_SAMPLES) {
+                    mErrorSamples.add(op + ": " + e);
+                }
+            }
+            mLatencies[op.ordinal()].record(System.nanoTime() - opStart);
+            ops++;
+        }
+        return ops;
+    }
+
+    private static Op pickRead(Random random) {
+        int dice = random.nextInt(100);
+        if (dice < 20) {
+            return Op.LIST_CATALOG;
+        }
+        return dice < 80 ? Op.LOOKUP_BY_ID : Op.LOOKUP_BY_ISBN;
+    }
+
+    private static Op pickWrite(Random random) {
+        int dice = random.nextInt(100);
+        if (dice < 40) {
+            return Op.SELL;
+        } else if (dice < 60) {
+            return Op.RESTOCK;
+        }
+        return dice < 90 ? Op.SELL_BY_ISBN : Op.INSERT;
+    }
+
+    private void runOp(Op op, Random random) {
+        switch (op) {
+            case LIST_CATALOG:
+                Cursor catalog = mResolver.query(BookEntry.CONTENT_URI, new String[]{
+                                BookEntry._ID, BookEntry.COLUMN_BOOK_NAME,
+                                BookEntry.COLUMN_BOOK_PRICE, BookEntry.COLUMN_BOOK_QUANTITY},
+                        null, null, BookEntry.CATALOG_SORT_ORDER);
+                try {
+                    while (catalog.moveToNext()) {
+                        catalog.getString(1);
+                    }
+                } finally {
+                    catalog.close();
+                }
+                break;
+            case LOOKUP_BY_ID:
+                readBook(ContentUris.withAppendedId(BookEntry.CONTENT_URI, randomBook(random)));
+                break;
+            case LOOKUP_BY_ISBN:
+                readBook(BookEntry.buildIsbnUri(isbn(random.nextInt(mInitialBooks))));
+                break;
+            case SELL:
+                adjustStock(randomBook(random), -1);
+                break;
+            case RESTOCK:
+                adjustStock(randomBook(random), RESTOCK_QUANTITY);
+                break;
+            case SELL_BY_ISBN:
+                Bundle sale = mResolver.call(BookEntry.CONTENT_URI,
+                        BookContract.METHOD_SELL_BY_ISBN, isbn(random.nextInt(mInitialBooks)),
+                        null);
+                if (sale.getBoolean(BookContract.EXTRA_SOLD)) {
+                    countUpdate(sale.getLong(BookContract.EXTRA_BOOK_ID), -1);
+                }
+                break;
+            case INSERT:
+                if (mResolver.insert(BookEntry.CONTENT_URI, newBook()) == null) {
+                    throw new IllegalStateException("insert failed");
+                }
+                mInserted.incrementAndGet();
+                mStockDelta.addAndGet(INITIAL_QUANTITY);
+                break;
+        }
+    }
+
+    private void readBook(Uri uri) {
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new IllegalStateException("book not found " + uri);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Change the stock of a book by the given amount with a conditional update, reading the
+     * book again and retrying if another writer got there first. Sales never take the stock
+     * below zero.
+     */
+    private void adjustStock(long id, int change) {
+        Uri uri = ContentUris.withAppendedId(BookEntry.CONTENT_URI, id);
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            int quantity;
+            long version;
+            Cursor cursor = mResolver.query(uri, new String[]{BookEntry.COLUMN_BOOK_QUANTITY,
+                    BookEntry.COLUMN_BOOK_VERSION}, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    throw new IllegalStateException("book not found " + uri);
+                }
+                quantity = cursor.getInt(0);
+                version = cursor.getLong(1);
+            } finally {
+                cursor.close();
+            }
+            if (quantity + change < 0) {
+                return;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(BookEntry.COLUMN_BOOK_QUANTITY, quantity + change);
+            try {
+                mResolver.update(BookEntry.buildConditionalUri(id, version), values, null, null);
+                countUpdate(id, change);
+                return;
+            } catch (BookConflictException e) {
+                mConflicts.incrementAndGet();
+            }
+        }
+        mGiveUps.incrementAndGet();
+    }
+
+    private void countUpdate(long id, int change) {
+        mStockDelta.addAndGet(change);
+        AtomicInteger updates = mUpdates.get(id);
+        if (updates == null) {
+            AtomicInteger created = new AtomicInteger();
+            updates = mUpdates.putIfAbsent(id, created);
+            if (updates == null) {
+                updates = created;
+            }
+        }
+        updates.incrementAndGet();
+    }
+
+    private long randomBook(Random random) {
+        // The initial books have the ids 1 to mInitialBooks
+        return 1 + random.nextInt(mInitialBooks);
+    }
+
+    private ContentValues newBook() {
+        int i = mIsbnCount.getAndIncrement();
+        ContentValues values = new ContentValues();
+        values.put(BookEntry.COLUMN_BOOK_NAME, "Book " + i);
+        values.put(BookEntry.COLUMN_BOOK_CATEGORY, "soak");
+        values.put(BookEntry.COLUMN_BOOK_PRICE, i % 100);
+        values.put(BookEntry.COLUMN_BOOK_QUANTITY, INITIAL_QUANTITY);
+        values.put(BookEntry.COLUMN_SUPPLIER_NAME, "Supplier " + i % 10);
+        values.put(BookEntry.COLUMN_SUPPLIER_NUMBER, 20458900);
+        values.put(BookEntry.COLUMN_BOOK_ISBN, isbn(i));
+        return values;
+    }
+
+    private static String isbn(int i) {
+        return String.format(Locale.US, "978%010d", i);
+    }
+
+    /**
+     * Outcome of a run: throughput, latencies and errors of every operation, and the result of
+     * the consistency checks.
+     */
+    public class Report {
+
+        public final long elapsedNanos;
+        public final long[] opsPerReader;
+
+        public final long expectedStock;
+        public final long actualStock;
+        public final int expectedBooks;
+        public final int actualBooks;
+        public final int negativeStockBooks;
+
+        /**
+         * Books whose version doesn't match the number of updates they received
+         */
+        public final int versionMismatches;
+
+        Report(long elapsedNanos, long[] opsPerReader, long initialStock) {
+            this.elapsedNanos = elapsedNanos;
+            this.opsPerReader = opsPerReader;
+            expectedStock = initialStock + mStockDelta.get();
+            expectedBooks = mInitialBooks + mInserted.get();
+
+            long stock = 0;
+            int books = 0;
+            int negative = 0;
+            int mismatches = 0;
+            Cursor cursor = mResolver.query(BookEntry.CONTENT_URI, new String[]{BookEntry._ID,
+                            BookEntry.COLUMN_BOOK_QUANTITY, BookEntry.COLUMN_BOOK_VERSION},
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    books++;
+                    int quantity = cursor.getInt(1);
+                    stock += quantity;
+                    if (quantity < 0) {
+                        negative++;
+                    }
+                    AtomicInteger updates = mUpdates.get(cursor.getLong(0));
+                    long expectedVersion = 1 + (updates == null ? 0 : updates.get());
+                    if (cursor.getLong(2) != expectedVersion) {
+                        mismatches++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            actualStock = stock;
+            actualBooks = books;
+            negativeStockBooks = negative;
+            versionMismatches = mismatches;
+        }
+
+        public boolean isConsistent() {
+            return expectedStock == actualStock && expectedBooks == actualBooks
+                    && negativeStockBooks == 0 && versionMismatches == 0;
+        }
+
+        public long totalErrors() {
+            long errors = 0;
+            for (int i = 0; i < mErrors.length(); i++) {
+                errors += mErrors.get(i);
+            }
+            return errors;
+        }
+
+        public List<String> errorSamples() {
+            synchronized (mErrorSamples) {
+                return new ArrayList<>(mErrorSamples);
+            }
+        }
+
+        /**
+         * The report as JSON, for comparing runs.
+         */
+        public String toJson() {
+            double seconds = elapsedNanos / 1e9;
+            StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"readers\" : ").append(mReaders).append(",\n");
+            json.append("  \"writers\" : ").append(mWriters).append(",\n");
+            json.append("  \"initialBooks\" : ").append(mInitialBooks).append(",\n");
+            json.append("  \"seconds\" : ").append(format(seconds)).append(",\n");
+            json.append("  \"operations\" : {\n");
+            for (Op op : Op.values()) {
+                LatencyHistogram latency = mLatencies[op.ordinal()];
+                json.append("    \"").append(op.name()).append("\" : {")
+                        .append("\"count\" : ").append(latency.count())
+                        .append(", \"errors\" : ").append(mErrors.get(op.ordinal()))
+                        .append(", \"opsPerSecond\" : ").append(format(latency.count() / seconds))
+                        .append(", \"p50Micros\" : ").append(latency.percentileMicros(0.50))
+                        .append(", \"p90Micros\" : ").append(latency.percentileMicros(0.90))
+                        .append(", \"p99Micros\" : ").append(latency.percentileMicros(0.99))
+                        .append(", \"p999Micros\" : ").append(latency.percentileMicros(0.999))
+                        .append(", \"maxMicros\" : ").append(latency.maxMicros())
+                        .append(op.ordinal() < Op.values().length - 1 ? "},\n" : "}\n");
+            }
+            json.append("  },\n");
+            long minReaderOps = Long.MAX_VALUE;
+            long maxReaderOps = 0;
+            for (long ops : opsPerReader) {
+                minReaderOps = Math.min(minReaderOps, ops);
+                maxReaderOps = Math.max(maxReaderOps, ops);
+            }
+            json.append("  \"minOpsPerReader\" : ")
+                    .append(opsPerReader.length == 0 ? 0 : minReaderOps).append(",\n");
+            json.append("  \"maxOpsPerReader\" : ").append(maxReaderOps).append(",\n");
+            json.append("  \"conflicts\" : ").append(mConflicts.get()).append(",\n");
+            json.append("  \"givenUpUpdates\" : ").append(mGiveUps.get()).append(",\n");
+            json.append("  \"lockTimeouts\" : ").append(mLockTimeouts.get()).append(",\n");
+            json.append("  \"errors\" : ").append(totalErrors()).append(",\n");
+            json.append("  \"expectedStock\" : ").append(expectedStock).append(",\n");
+            json.append("  \"actualStock\" : ").append(actualStock).append(",\n");
+            json.append("  \"expectedBooks\" : ").append(expectedBooks).append(",\n");
+            json.append("  \"actualBooks\" : ").append(actualBooks).append(",\n");
+            json.append("  \"negativeStockBooks\" : ").append(negativeStockBooks).append(",\n");
+            json.append("  \"versionMismatches\" : ").append(versionMismatches).append(",\n");
+            json.append("  \"consistent\" : ").append(isConsistent()).append("\n");
+            json.append("}\n");
+            return json.toString();
+        }
+
+        private String format(double value) {
+            return String.format(Locale.US, "%.1f", value);
+        }
+    }
+
+    /**
+     * Lock-free latency histogram with buckets that grow exponentially, 8 per power of two,
+     * so every recorded latency is known to within 12.5%.
+     */
+    static class LatencyHistogram {
+
+        private static final int SUB_BUCKETS = 8;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong mMaxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            mCounts.incrementAndGet(bucket(micros));
+            long max;
+            while (micros > (max = mMaxMicros.get())) {
+                if (mMaxMicros.compareAndSet(max, micros)) {
+                    break;
+                }
+            }
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                count += mCounts.get(i);
+            }
+            return count;
+        }
+
+        long maxMicros() {
+            return mMaxMicros.get();
+        }
+
+        /**
+         * Returns the lower bound of the bucket holding the given percentile, in microseconds.
+         */
+        long percentileMicros(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(percentile * count);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length(); i++) {
+                seen += mCounts.get(i);
+                if (seen >= target) {
+                    return lowerBound(i);
+                }
+            }
+            return maxMicros();
+        }
+
+        /**
+         * Values below 8 get a bucket of their own, above that every power of two is split in
+         * 8 buckets of equal width.
+         */
+        private static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int subBucket = (int) (micros >> (exponent - 3)) - SUB_BUCKETS;
+            return SUB_BUCKETS * (exponent - 2) + subBucket;
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 2;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+        }
+    }
+}
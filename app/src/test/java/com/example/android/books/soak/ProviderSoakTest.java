@@ -0,0 +1,75 @@
+package com.example.android.books.soak;
+
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Soak test running concurrent readers and writers against {@link BookProvider} with
+ * {@link ProviderLoadGenerator}. It fails on any error, and on any sign of a lost update.
+ * <p>
+ * The load is configured with system properties: {@code soak.readers}, {@code soak.writers},
+ * {@code soak.seconds} and {@code soak.books}. The report is printed and written to
+ * {@code soak.output}/soak.json. Run it with {@code ./gradlew testDebugUnitTest -Psoak}, e.g.
+ * {@code -Psoak -Psoak.readers=8 -Psoak.seconds=300}.
+ * <p>
+ * Robolectric runs SQLite natively but funnels all its calls through one thread, so the latencies
+ * show the contention inside the provider and the writer thread, not the file locking of a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class ProviderSoakTest {
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(BookProvider.class, BookContract.CONTENT_AUTHORITY);
+    }
+
+    @Test
+    public void concurrentReadersAndWriters() throws Exception {
+        ProviderLoadGenerator generator = new ProviderLoadGenerator(
+                RuntimeEnvironment.application.getContentResolver(),
+                Integer.getInteger("soak.readers", 4),
+                Integer.getInteger("soak.writers", 4),
+                Integer.getInteger("soak.seconds", 30) * 1000L,
+                Integer.getInteger("soak.books", 1000));
+        ProviderLoadGenerator.Report report = generator.run();
+
+        String json = report.toJson();
+        System.out.println(json);
+        File output = new File(System.getProperty("soak.output", "build/soak-results"));
+        if (output.isDirectory() || output.mkdirs()) {
+            Writer out = new OutputStreamWriter(
+                    new FileOutputStream(new File(output, "soak.json")), "UTF-8");
+            try {
+                out.write(json);
+            } finally {
+                out.close();
+            }
+        }
+
+        assertEquals("errors: " + report.errorSamples(), 0, report.totalErrors());
+        assertEquals("lost or phantom stock changes", report.expectedStock, report.actualStock);
+        assertEquals("lost or phantom inserts", report.expectedBooks, report.actualBooks);
+        assertEquals("books with negative stock", 0, report.negativeStockBooks);
+        assertEquals("books whose version doesn't match their updates",
+                0, report.versionMismatches);
+        for (long ops : report.opsPerReader) {
+            assertTrue("a reader was starved", ops > 0);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.android.books.soak;
+
+import com.example.android.books.StockChangeTrip;
+import com.example.android.books.data.BookContract;
+import com.example.android.books.data.BookProvider;
+import com.example.android.books.data.BookTrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sells copies one tap at a time with {@link StockChangeTrip}, and checks that 95% of the taps
+ * show the new stock in their row within the budget, from the tap to the row being bound again.
+ * <p>
+ * The number of taps and the budget are configured with the system properties
+ * {@code soak.taps} and {@code soak.budgetMillis}. Run it with
+ * {@code ./gradlew testDebugUnitTest -Psoak}, e.g. {@code -Psoak -Psoak.budgetMillis=50}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 26)
+public class StockChangeSoakTest {
+
+    private boolean mWasTracing;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(BookProvider.class, BookContract.CONTENT_AUTHORITY);
+        mWasTracing = BookTrace.isEnabled();
+        BookTrace.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        BookTrace.clear();
+        BookTrace.setEnabled(mWasTracing);
+    }
+
+    @Test
+    public void stockChangeStaysWithinBudget() {
+        int taps = Integer.getInteger("soak.taps", 200);
+        long budgetMillis = Long.getLong("soak.budgetMillis", 100);
+        StockChangeTrip trip = new StockChangeTrip(RuntimeEnvironment.application, taps);
+
+        long[] millis = new long[taps];
+        for (int i = 0; i < taps; i++) {
+            List<BookTrace.Span> spans = trip.sellOne();
+            BookTrace.Span tap = StockChangeTrip.span(spans, "stock.tap");
+            BookTrace.Span bind = StockChangeTrip.span(spans, "adapter.bindView");
+            millis[i] = TimeUnit.NANOSECONDS.toMillis(bind.endNanos - tap.startNanos);
+        }
+        trip.close();
+
+        Arrays.sort(millis);
+        long p95 = millis[(int) Math.ceil(taps * 0.95) - 1];
+        assertTrue("95% of the stock changes took up to " + p95 + " ms, over the budget of "
+                + budgetMillis + " ms", p95 <= budgetMillis);
+    }
+}